@@ -6,6 +6,11 @@ public class Callback {
 	public final String evt;
 	public final String url;
 
+	/**
+	 * If true, the receiver accepts a json array of events, so several can go in one POST.
+	 */
+	public boolean batch;
+
 	public Callback(String dataspace, String eventType, String url) {
 		this.dataspace= dataspace;
 		this.evt = eventType;
@@ -14,7 +19,7 @@ public class Callback {
 
 	@Override
 	public String toString() {
-		return "Callback [dataspace=" + dataspace + ", evt=" + evt + ", url=" + url + "]";
+		return "Callback [dataspace=" + dataspace + ", evt=" + evt + ", url=" + url + (batch? ", batch" : "") + "]";
 	}
 
 }
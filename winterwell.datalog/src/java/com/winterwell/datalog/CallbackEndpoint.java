@@ -0,0 +1,240 @@
+package com.winterwell.datalog;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.winterwell.gson.Gson;
+import com.winterwell.utils.containers.ArrayMap;
+import com.winterwell.utils.log.Log;
+import com.winterwell.utils.web.WebUtils;
+import com.winterwell.web.FakeBrowser;
+
+/**
+ * Delivery to one callback url: a bounded queue, up to {@link DataLogConfig#callbackThreads} POSTs
+ * in flight (over {@link CallbackManager}'s shared keep-alive HttpClient), batching if the receiver
+ * accepts it, and retry with exponential backoff.
+ * Events which fail every retry, or which don't fit in the queue, go to the dead-letter file.
+ * <p>
+ * So a slow or dead endpoint only backs up its own queue.
+ *
+ * @testedby {@link CallbackManagerTest}
+ * @author daniel
+ */
+final class CallbackEndpoint {
+
+	/**
+	 * An event on its way, with its retry count
+	 */
+	static final class Delivery {
+		final DataLogEvent event;
+		/**
+		 * System.nanoTime() of the first attempt, for latency stats
+		 */
+		final long queued = System.nanoTime();
+		int attempt;
+
+		Delivery(DataLogEvent event) {
+			this.event = event;
+		}
+	}
+
+	/**
+	 * Cap on the retry backoff
+	 */
+	private static final long MAX_RETRY_DELAY = TimeUnit.MINUTES.toMillis(10);
+
+	final String url;
+	/**
+	 * If true, POST a json array of events
+	 */
+	final boolean batch;
+	/**
+	 * for stats tags (a url does not make a good tag)
+	 */
+	private final String host;
+	private final CallbackManager manager;
+	private final BlockingQueue<Delivery> queue;
+	private final AtomicInteger workers = new AtomicInteger();
+	/**
+	 * Waiting on the scheduler for a retry
+	 */
+	private final Set<Delivery> retrying = ConcurrentHashMap.newKeySet();
+
+	final AtomicLong sent = new AtomicLong();
+	final AtomicLong failed = new AtomicLong();
+	final AtomicLong dead = new AtomicLong();
+	private final AtomicLong latencySumMs = new AtomicLong();
+
+	CallbackEndpoint(CallbackManager manager, String url, boolean batch) {
+		this.manager = manager;
+		this.url = url;
+		this.batch = batch;
+		String h = WebUtils.getHost(url);
+		this.host = h==null? "unknown" : h;
+		this.queue = new ArrayBlockingQueue<Delivery>(Math.max(1, manager.config().callbackQueueSize));
+	}
+
+	/**
+	 * Never blocks.
+	 * @return false if the queue was full (the event is then dead-lettered)
+	 */
+	boolean offer(Delivery d) {
+		if ( ! queue.offer(d)) {
+			deadLetter(d, "queue full");
+			return false;
+		}
+		maybeStartWorker();
+		return true;
+	}
+
+	private void maybeStartWorker() {
+		int max = Math.max(1, manager.config().callbackThreads);
+		while (true) {
+			int w = workers.get();
+			if (w >= max || queue.isEmpty()) return;
+			if (workers.compareAndSet(w, w + 1)) {
+				manager.exec.execute(this::drain);
+				return;
+			}
+		}
+	}
+
+	private void drain() {
+		int batchSize = batch? Math.max(1, manager.config().callbackBatchSize) : 1;
+		List<Delivery> todo = new ArrayList<Delivery>(batchSize);
+		try {
+			while (queue.drainTo(todo, batchSize) != 0) {
+				deliver(todo);
+				todo.clear();
+			}
+		} catch(Throwable ex) {
+			Log.e(CallbackManager.LOGTAG, ex);
+		} finally {
+			workers.decrementAndGet();
+			// an offer may have raced with our exit
+			maybeStartWorker();
+		}
+	}
+
+	private void deliver(List<Delivery> ds) {
+		try {
+			post(ds);
+		} catch (Exception ex) {
+			failed.addAndGet(ds.size());
+			DataLog.count(ds.size(), CallbackManager.LOGTAG, host, "failed");
+			Log.w(CallbackManager.LOGTAG, url+" x"+ds.size()+" -> "+ex);
+			for (Delivery d : ds) {
+				retry(d, ex);
+			}
+			return;
+		}
+		long now = System.nanoTime();
+		sent.addAndGet(ds.size());
+		for (Delivery d : ds) {
+			long ms = TimeUnit.NANOSECONDS.toMillis(now - d.queued);
+			latencySumMs.addAndGet(ms);
+			DataLog.mean(ms, CallbackManager.LOGTAG, host, "latency");
+		}
+		DataLog.count(ds.size(), CallbackManager.LOGTAG, host, "sent");
+		DataLog.set(queue.size(), CallbackManager.LOGTAG, host, "queue");
+	}
+
+	/**
+	 * POST, and check for a 2xx response. Package-visible for testing.
+	 * @throws IOException on a network error or non-2xx response
+	 */
+	void post(List<Delivery> ds) throws IOException, InterruptedException {
+		String json;
+		if (batch) {
+			List<DataLogEvent> events = new ArrayList<DataLogEvent>(ds.size());
+			for (Delivery d : ds) events.add(d.event);
+			json = Gson.toJSON(events);
+		} else {
+			assert ds.size() == 1 : ds.size();
+			json = Gson.toJSON(ds.get(0).event);
+		}
+		Log.d(CallbackManager.LOGTAG, url+" Posting "+json);
+		HttpRequest req = HttpRequest.newBuilder(URI.create(url))
+				.timeout(Duration.ofMillis(manager.config().callbackTimeout.getMillisecs()))
+				.header("Content-Type", "application/json")
+				.header("User-Agent", FakeBrowser.HONEST_USER_AGENT)
+				.POST(HttpRequest.BodyPublishers.ofString(json))
+				.build();
+		// NB: discard the body (which frees the connection for keep-alive re-use)
+		HttpResponse<Void> res = manager.http.send(req, HttpResponse.BodyHandlers.discarding());
+		int code = res.statusCode();
+		if (code < 200 || code >= 300) {
+			throw new IOException("HTTP "+code+" from "+url);
+		}
+	}
+
+	private void retry(Delivery d, Exception ex) {
+		d.attempt++;
+		if (d.attempt > manager.config().callbackRetries) {
+			deadLetter(d, ex.toString());
+			return;
+		}
+		long delay = manager.config().callbackRetryDelay.getMillisecs() << Math.min(d.attempt - 1, 20);
+		retrying.add(d);
+		try {
+			manager.scheduler.schedule(() -> {
+				// not if shutdown() got it first
+				if (retrying.remove(d)) offer(d);
+			}, Math.min(delay, MAX_RETRY_DELAY), TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException rex) {
+			// shutting down
+			if (retrying.remove(d)) deadLetter(d, "shutdown, after "+ex);
+		}
+	}
+
+	/**
+	 * Dead-letter the retries still waiting. Call once the scheduler has stopped.
+	 */
+	void shutdown() {
+		for (Delivery d : retrying) {
+			if (retrying.remove(d)) {
+				deadLetter(d, "shutdown before retry "+d.attempt);
+			}
+		}
+	}
+
+	private void deadLetter(Delivery d, String reason) {
+		dead.incrementAndGet();
+		DataLog.count(1, CallbackManager.LOGTAG, host, "dead");
+		manager.deadLetter(url, d.event, reason);
+	}
+
+	/**
+	 * @return queue, in-flight workers, sent, failed (attempts), dead, mean latency in milliseconds
+	 */
+	Map<String, Object> getStats() {
+		long s = sent.get();
+		return new ArrayMap(
+				"queue", queue.size(),
+				"workers", workers.get(),
+				"sent", s,
+				"failed", failed.get(),
+				"dead", dead.get(),
+				"latency", s==0? 0 : latencySumMs.get() / s
+				);
+	}
+
+	@Override
+	public String toString() {
+		return "CallbackEndpoint[" + url + " " + getStats() + "]";
+	}
+}
@@ -1,34 +1,84 @@
 package com.winterwell.datalog;
 
+import java.io.File;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
+import com.winterwell.datalog.CallbackEndpoint.Delivery;
 import com.winterwell.depot.IInit;
 import com.winterwell.gson.Gson;
+import com.winterwell.utils.containers.ArrayMap;
 import com.winterwell.utils.containers.Containers;
 import com.winterwell.utils.containers.ListMap;
+import com.winterwell.utils.io.FileUtils;
 import com.winterwell.utils.log.Log;
 import com.winterwell.utils.threads.Actor;
-import com.winterwell.web.FakeBrowser;
+import com.winterwell.utils.time.Time;
 import com.winterwell.web.app.AppUtils;
 import com.winterwell.web.app.KServerType;
 
 /**
- * Using an Actor model here for high-throughput low-latency
+ * Using an Actor model here for high-throughput low-latency.
+ * <p>
+ * The actor thread only matches events to callbacks. Delivery is done by a {@link CallbackEndpoint}
+ * per url -- each with its own bounded queue, concurrency, batching and retries -- so one slow webhook
+ * does not hold up the others. All endpoints share one HttpClient, which keeps connections alive.
+ * Events which cannot be delivered are appended to {@link DataLogConfig#callbackDeadLetterFile}.
+ *
+ * @testedby {@link CallbackManagerTest}
  * @author daniel
  *
  */
 public class CallbackManager extends Actor<DataLogEvent> implements IInit {
 
-	private static final String LOGTAG = "CallbackManager";
-	
+	static final String LOGTAG = "CallbackManager";
+
 	ListMap<String,Callback> callbacksForDataspace = new ListMap();
-	
-	public CallbackManager() {		
-	}	
-	
+
+	/**
+	 * url (+ batch flag) -> endpoint
+	 */
+	private final Map<String, CallbackEndpoint> endpoints = new ConcurrentHashMap<String, CallbackEndpoint>();
+
+	/**
+	 * Runs the endpoint workers. Concurrency is capped per endpoint, not here.
+	 */
+	final ExecutorService exec = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "CallbackManager-post");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/**
+	 * For retries
+	 */
+	final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "CallbackManager-retry");
+		t.setDaemon(true);
+		return t;
+	});
+
+	final HttpClient http = HttpClient.newBuilder()
+			.version(HttpClient.Version.HTTP_1_1)
+			.connectTimeout(Duration.ofSeconds(10))
+			.executor(exec)
+			.build();
+
+	private DataLogConfig config;
+
+	public CallbackManager() {
+	}
+
 	@Override
 	public void init() {
-		if (DataLog.getImplementation().getConfig().noCallbacks) {
+		if (config().noCallbacks) {
 			return;
 		}
 		// HACK remove this hard-coded callback, and make it a dynamic setup
@@ -36,17 +86,29 @@ public class CallbackManager extends Actor<DataLogEvent> implements IInit {
 		KServerType mtype = AppUtils.getServerType(null);
 		StringBuilder url = AppUtils.getServerUrl(mtype, "as.good-loop.com");
 		url.append("/lgwebhook");
-		// minview is where money gets spent. donation is when a user picks a charity.		
+		// minview is where money gets spent. donation is when a user picks a charity.
 		for(String evt : new String[] {"minview","click","donation"}) {
 			Callback cb = new Callback("gl", evt, url.toString());
+			cb.batch = config().callbackBatch;
 			callbacksForDataspace.add("gl", cb);
 		}
 	}
 
+	/**
+	 * @return the DataLog config, or defaults if DataLog is not setup (e.g. in tests)
+	 */
+	DataLogConfig config() {
+		if (config != null) return config;
+		IDataLog dl = DataLog.getImplementation();
+		DataLogConfig c = dl==null? null : dl.getConfig();
+		config = c==null? new DataLogConfig() : c;
+		return config;
+	}
+
 	@Override
 	protected void consume(DataLogEvent msg, Actor sender) throws Exception {
 		assert msg != null;
-		if (DataLog.getImplementation().getConfig().noCallbacks) {
+		if (config().noCallbacks) {
 			Log.d(LOGTAG, "config: no callbacks");
 			return;
 		}
@@ -58,26 +120,53 @@ public class CallbackManager extends Actor<DataLogEvent> implements IInit {
 			if ( ! matches(msg, callback)) {
 				continue;
 			}
-			try {
-				consume2_doCallback(msg, callback);
-			} catch(Exception ex) {
-				// retry once
-				if (sender != this) {
-					send(msg, this);
-					return;
-				}
-				throw ex;
-			}
+			// never blocks
+			getEndpoint(callback).offer(new Delivery(msg));
 		}
 	}
 
-	protected void consume2_doCallback(DataLogEvent msg, Callback callback) {
-		String json = Gson.toJSON(msg);
-		Log.d(LOGTAG, callback.url+" for "+msg+" Posting "+json);
-		FakeBrowser fb = new FakeBrowser();
-		fb.setUserAgent(FakeBrowser.HONEST_USER_AGENT);
-		fb.setDebug(true);		
-		String ok = fb.post(callback.url, json);
+	CallbackEndpoint getEndpoint(Callback callback) {
+		String key = callback.batch? "batch "+callback.url : callback.url;
+		return endpoints.computeIfAbsent(key, k -> new CallbackEndpoint(this, callback.url, callback.batch));
+	}
+
+	/**
+	 * Post now, on this thread, without retries.
+	 * @throws Exception if the post fails
+	 */
+	protected void consume2_doCallback(DataLogEvent msg, Callback callback) throws Exception {
+		getEndpoint(callback).post(Arrays.asList(new Delivery(msg)));
+	}
+
+	/**
+	 * Record an undeliverable event
+	 */
+	synchronized void deadLetter(String url, DataLogEvent event, String reason) {
+		File f = config().callbackDeadLetterFile;
+		Log.w(LOGTAG, "dead letter: "+url+" "+event+" "+reason+" -> "+f);
+		if (f==null) return;
+		try {
+			String line = Gson.toJSON(new ArrayMap(
+					"time", new Time().toISOString(),
+					"url", url,
+					"reason", reason,
+					"event", event.toJson2()
+					));
+			FileUtils.append(line+"\n", f);
+		} catch(Throwable ex) {
+			Log.e(LOGTAG, ex);
+		}
+	}
+
+	/**
+	 * @return url -> queue depth, latency, etc. For monitoring.
+	 */
+	public Map<String, Map<String, Object>> getStats() {
+		Map<String, Map<String, Object>> stats = new ArrayMap();
+		for (Map.Entry<String, CallbackEndpoint> e : endpoints.entrySet()) {
+			stats.put(e.getKey(), e.getValue().getStats());
+		}
+		return stats;
 	}
 
 	private boolean matches(DataLogEvent msg, Callback callback) {
@@ -89,5 +178,14 @@ public class CallbackManager extends Actor<DataLogEvent> implements IInit {
 		}
 		return false;
 	}
-	
+
+	@Override
+	protected void shutdown() throws Exception {
+		scheduler.shutdownNow();
+		// retries which were waiting on the scheduler would be lost -- record them instead
+		for (CallbackEndpoint endpoint : endpoints.values()) {
+			endpoint.shutdown();
+		}
+		exec.shutdown();
+	}
 }
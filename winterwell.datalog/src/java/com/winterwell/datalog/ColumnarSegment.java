@@ -0,0 +1,494 @@
+package com.winterwell.datalog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+import com.winterwell.datalog.GorillaCodec.BitReader;
+import com.winterwell.datalog.GorillaCodec.BitWriter;
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.io.FileUtils;
+import com.winterwell.utils.log.Log;
+
+/**
+ * One time-period's worth of {@link ColumnarStorage} data: a single append-only file of chunks.
+ * <p>
+ * File format: header (magic, generation), then chunks. Each chunk is:
+ * <pre>
+ * magic, body-length,
+ * min-time, max-time,
+ * new dictionary entries (tags are stored as ints; ids are assigned in order within the file),
+ * column index: (tag-id, kind, rows, offset)*,
+ * column data: per column, Gorilla timestamps then Gorilla values (1 value for counts, 4 for means)
+ * </pre>
+ * A save appends one small chunk. {@link #compact()} rewrites the file as a single chunk, so that each
+ * tag is one contiguous column (which is where the compression comes from), and the chunk's column
+ * index is the segment's tag index.
+ * <p>
+ * Reads memory-map the file, and use the column index to decode only the tags asked for.
+ * A half-written chunk (e.g. the JVM died mid-save) is ignored, and truncated before the next append.
+ * <p>
+ * Thread-safe. Across JVMs: appends are file-locked, and readers spot a compaction by the generation
+ * changing -- but compaction itself assumes only one JVM writes to a namespace.
+ *
+ * @testedby {@link ColumnarStorageTest}
+ * @author daniel
+ */
+final class ColumnarSegment {
+
+	private static final int FILE_MAGIC = 0x444c4331; // "DLC1"
+	private static final int CHUNK_MAGIC = 0x43484e4b; // "CHNK"
+	private static final int HEADER_SIZE = 4 + 8;
+	/**
+	 * chunk magic + length
+	 */
+	private static final int CHUNK_HEADER_SIZE = 4 + 4;
+
+	static final byte KIND_COUNT = 0;
+	static final byte KIND_MEAN = 1;
+
+	/**
+	 * Receives rows from {@link ColumnarSegment#scan(Predicate, long, long, RowVisitor)}
+	 */
+	interface RowVisitor {
+		/**
+		 * @param tag
+		 * @param kind {@link #KIND_COUNT} or {@link #KIND_MEAN}
+		 * @param time epoch millisecs
+		 * @param row count, or mean, var, min, max
+		 */
+		void visit(String tag, byte kind, long time, double[] row);
+	}
+
+	/**
+	 * The in-memory index for one chunk.
+	 */
+	private static final class Chunk {
+		long minTime;
+		long maxTime;
+		int[] tagIds;
+		byte[] kinds;
+		int[] rows;
+		/**
+		 * absolute file offsets
+		 */
+		int[] offsets;
+	}
+
+	/**
+	 * A column being assembled, e.g. for a save or a compaction.
+	 */
+	private static final class Column {
+		final String tag;
+		final byte kind;
+		int n;
+		long[] times = new long[4];
+		double[][] vals;
+
+		Column(String tag, byte kind) {
+			this.tag = tag;
+			this.kind = kind;
+			vals = new double[kind==KIND_MEAN? 4 : 1][4];
+		}
+
+		void add(long t, double[] row) {
+			if (n == times.length) {
+				times = Arrays.copyOf(times, n * 2);
+				for (int v = 0; v < vals.length; v++) vals[v] = Arrays.copyOf(vals[v], n * 2);
+			}
+			times[n] = t;
+			for (int v = 0; v < vals.length; v++) vals[v][n] = row[v];
+			n++;
+		}
+	}
+
+	final File file;
+
+	private final List<String> dict = new ArrayList<String>();
+	private final Map<String, Integer> tag2id = new HashMap<String, Integer>();
+	private final List<Chunk> chunks = new ArrayList<Chunk>();
+	private long generation;
+	/**
+	 * bytes of the file which have been indexed (i.e. up to the end of the last good chunk)
+	 */
+	private int indexed;
+	/**
+	 * with the file length, a cheap check for "has anything changed?"
+	 */
+	private long lastModified;
+	private MappedByteBuffer map;
+
+	ColumnarSegment(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Append a chunk.
+	 * @param tag2count Can be null
+	 * @param tag2mean Can be null. tag -> mean, var, min, max
+	 */
+	synchronized void append(long time, Map<String, Double> tag2count, Map<String, double[]> tag2mean) {
+		Map<String, Column> cols = new TreeMap<String, Column>();
+		if (tag2count != null) {
+			for (Map.Entry<String, Double> e : tag2count.entrySet()) {
+				if (e.getValue()==null) continue;
+				column(cols, e.getKey(), KIND_COUNT).add(time, new double[] {e.getValue()});
+			}
+		}
+		if (tag2mean != null) {
+			for (Map.Entry<String, double[]> e : tag2mean.entrySet()) {
+				column(cols, e.getKey(), KIND_MEAN).add(time, e.getValue());
+			}
+		}
+		append2(cols.values());
+	}
+
+	/**
+	 * Append count rows, each with its own time.
+	 * @param rows (tag, time, count)
+	 */
+	synchronized void appendRows(List<Object[]> rows) {
+		Map<String, Column> cols = new TreeMap<String, Column>();
+		for (Object[] row : rows) {
+			column(cols, (String) row[0], KIND_COUNT).add((Long) row[1], new double[] {(Double) row[2]});
+		}
+		append2(cols.values());
+	}
+
+	private static Column column(Map<String, Column> cols, String tag, byte kind) {
+		String key = kind + tag;
+		Column col = cols.get(key);
+		if (col == null) {
+			col = new Column(tag, kind);
+			cols.put(key, col);
+		}
+		return col;
+	}
+
+	private void append2(Collection<Column> cols) {
+		if (cols.isEmpty()) return;
+		file.getParentFile().mkdirs();
+		try (FileChannel fc = FileChannel.open(file.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			FileLock lock = fc.lock())
+		{
+			if (fc.size() == 0) {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				header.putInt(FILE_MAGIC).putLong(System.nanoTime() ^ System.currentTimeMillis());
+				header.flip();
+				fc.write(header, 0);
+			}
+			// sync up with any other writer, and drop any torn chunk
+			refresh();
+			if (fc.size() > indexed) {
+				Log.w(DataLog.LOGTAG, "truncate "+file+" from "+fc.size()+" to "+indexed);
+				fc.truncate(indexed);
+			}
+			ByteBuffer chunk = encode(cols, dict.size());
+			fc.write(chunk, indexed);
+			fc.force(false);
+		} catch (IOException ex) {
+			throw Utils.runtime(ex);
+		}
+		refresh();
+	}
+
+	/**
+	 * @param cols
+	 * @param nextId the id to give the first new tag
+	 * @return a chunk, ready to write
+	 */
+	private ByteBuffer encode(Iterable<Column> cols, int nextId) {
+		List<String> newTags = new ArrayList<String>();
+		Map<String, Integer> newIds = new HashMap<String, Integer>();
+		long minTime = Long.MAX_VALUE, maxTime = Long.MIN_VALUE;
+		List<Column> colList = new ArrayList<Column>();
+		List<BitWriter> data = new ArrayList<BitWriter>();
+		for (Column col : cols) {
+			if (col.n == 0) continue;
+			if ( ! tag2id.containsKey(col.tag) && ! newIds.containsKey(col.tag)) {
+				newIds.put(col.tag, nextId + newTags.size());
+				newTags.add(col.tag);
+			}
+			BitWriter bw = new BitWriter();
+			GorillaCodec.writeTimes(col.times, col.n, bw);
+			for (double[] vs : col.vals) {
+				GorillaCodec.writeValues(vs, col.n, bw);
+			}
+			for (int i = 0; i < col.n; i++) {
+				minTime = Math.min(minTime, col.times[i]);
+				maxTime = Math.max(maxTime, col.times[i]);
+			}
+			colList.add(col);
+			data.add(bw);
+		}
+		ByteArrayOutputStream head = new ByteArrayOutputStream();
+		writeLong(head, minTime);
+		writeLong(head, maxTime);
+		writeVarint(head, newTags.size());
+		for (String tag : newTags) {
+			byte[] bytes = tag.getBytes(StandardCharsets.UTF_8);
+			writeVarint(head, bytes.length);
+			head.write(bytes, 0, bytes.length);
+		}
+		writeVarint(head, colList.size());
+		int offset = 0;
+		for (int c = 0; c < colList.size(); c++) {
+			Column col = colList.get(c);
+			Integer id = tag2id.get(col.tag);
+			writeVarint(head, id != null ? id : newIds.get(col.tag));
+			head.write(col.kind);
+			writeVarint(head, col.n);
+			writeVarint(head, offset);
+			offset += data.get(c).size();
+		}
+		int bodyLength = head.size() + offset;
+		ByteBuffer chunk = ByteBuffer.allocate(CHUNK_HEADER_SIZE + bodyLength);
+		chunk.putInt(CHUNK_MAGIC).putInt(bodyLength);
+		chunk.put(head.toByteArray());
+		for (BitWriter bw : data) {
+			bw.writeTo(chunk);
+		}
+		chunk.flip();
+		return chunk;
+	}
+
+	/**
+	 * Index any chunks which have been appended since we last looked. If the file has been
+	 * compacted (by another instance), start again.
+	 */
+	synchronized void refresh() {
+		long len = file.length();
+		if (len < HEADER_SIZE) {
+			reset();
+			return;
+		}
+		long modified = file.lastModified();
+		if (len == indexed && modified == lastModified && map != null) {
+			return;
+		}
+		try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			len = fc.size();
+			if (len > Integer.MAX_VALUE) {
+				throw new IllegalStateException("Segment too big: "+file+" "+len);
+			}
+			MappedByteBuffer m = fc.map(FileChannel.MapMode.READ_ONLY, 0, len);
+			if (m.getInt(0) != FILE_MAGIC) {
+				throw new IllegalStateException("Not a DataLog segment: "+file);
+			}
+			if (m.getLong(4) != generation || len < indexed) {
+				reset();
+				generation = m.getLong(4);
+			}
+			map = m;
+			lastModified = modified;
+			while (indexed + CHUNK_HEADER_SIZE <= len) {
+				if (map.getInt(indexed) != CHUNK_MAGIC) break;
+				int bodyLength = map.getInt(indexed + 4);
+				int end = indexed + CHUNK_HEADER_SIZE + bodyLength;
+				if (bodyLength < 0 || end > len) break; // torn write
+				int dictSize = dict.size();
+				try {
+					chunks.add(readChunk(indexed + CHUNK_HEADER_SIZE));
+				} catch(IndexOutOfBoundsException ex) {
+					// a corrupt chunk -- treat it like a torn write
+					Log.e(DataLog.LOGTAG, "bad chunk in "+file+" at "+indexed+": "+ex);
+					while (dict.size() > dictSize) tag2id.remove(dict.remove(dict.size() - 1));
+					break;
+				}
+				indexed = end;
+			}
+		} catch (IOException ex) {
+			throw Utils.runtime(ex);
+		}
+	}
+
+	private void reset() {
+		dict.clear();
+		tag2id.clear();
+		chunks.clear();
+		indexed = HEADER_SIZE;
+		map = null;
+		generation = 0;
+		lastModified = 0;
+	}
+
+	private Chunk readChunk(int pos) {
+		int[] p = new int[] {pos};
+		Chunk chunk = new Chunk();
+		chunk.minTime = map.getLong(p[0]);
+		chunk.maxTime = map.getLong(p[0] + 8);
+		p[0] += 16;
+		int nNew = readVarint(map, p);
+		for (int i = 0; i < nNew; i++) {
+			int len = readVarint(map, p);
+			byte[] bytes = new byte[len];
+			for (int b = 0; b < len; b++) bytes[b] = map.get(p[0] + b);
+			p[0] += len;
+			String tag = new String(bytes, StandardCharsets.UTF_8);
+			tag2id.put(tag, dict.size());
+			dict.add(tag);
+		}
+		int nCols = readVarint(map, p);
+		chunk.tagIds = new int[nCols];
+		chunk.kinds = new byte[nCols];
+		chunk.rows = new int[nCols];
+		chunk.offsets = new int[nCols];
+		for (int c = 0; c < nCols; c++) {
+			chunk.tagIds[c] = readVarint(map, p);
+			chunk.kinds[c] = map.get(p[0]++);
+			chunk.rows[c] = readVarint(map, p);
+			chunk.offsets[c] = readVarint(map, p);
+		}
+		// offsets are relative to the end of the column index
+		for (int c = 0; c < nCols; c++) {
+			chunk.offsets[c] += p[0];
+		}
+		return chunk;
+	}
+
+	/**
+	 * Decode the matching rows.
+	 * @param tagFilter Tested once per tag, not per row.
+	 * @param start inclusive, epoch millisecs
+	 * @param end exclusive
+	 * @param visitor
+	 */
+	synchronized void scan(Predicate<String> tagFilter, long start, long end, RowVisitor visitor) {
+		refresh();
+		if (map == null) return;
+		// which tags? Decided once per segment (the dictionary is the same for all chunks)
+		boolean[] wanted = new boolean[dict.size()];
+		for (int i = 0; i < wanted.length; i++) {
+			wanted[i] = tagFilter.test(dict.get(i));
+		}
+		for (Chunk chunk : chunks) {
+			if (chunk.maxTime < start || chunk.minTime >= end) continue;
+			for (int c = 0; c < chunk.tagIds.length; c++) {
+				if ( ! wanted[chunk.tagIds[c]]) continue;
+				String tag = dict.get(chunk.tagIds[c]);
+				byte kind = chunk.kinds[c];
+				int n = chunk.rows[c];
+				BitReader in = new BitReader(map, chunk.offsets[c]);
+				long[] times = GorillaCodec.readTimes(in, n);
+				double[][] vals = new double[kind==KIND_MEAN? 4 : 1][];
+				for (int v = 0; v < vals.length; v++) {
+					vals[v] = GorillaCodec.readValues(in, n);
+				}
+				for (int i = 0; i < n; i++) {
+					if (times[i] < start || times[i] >= end) continue;
+					double[] row = new double[vals.length];
+					for (int v = 0; v < row.length; v++) row[v] = vals[v][i];
+					visitor.visit(tag, kind, times[i], row);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Rewrite as a single chunk, with one sorted column per tag (and kind).
+	 * Counts for the same tag and time are summed (e.g. from saveHistory); for means, the last one wins.
+	 * Safe against readers, including ones in other JVMs (the file is replaced atomically).
+	 */
+	synchronized void compact() {
+		refresh();
+		if (chunks.size() < 2) return;
+		Map<String, TreeMap<Long, double[]>> key2rows = new TreeMap<String, TreeMap<Long, double[]>>();
+		scan(tag -> true, Long.MIN_VALUE, Long.MAX_VALUE, (tag, kind, time, row) -> {
+			TreeMap<Long, double[]> rows = key2rows.computeIfAbsent(kind + tag, k -> new TreeMap<Long, double[]>());
+			double[] old = rows.get(time);
+			if (old != null && kind == KIND_COUNT) {
+				old[0] += row[0];
+			} else {
+				rows.put(time, row);
+			}
+		});
+		List<Column> cols = new ArrayList<Column>();
+		for (Map.Entry<String, TreeMap<Long, double[]>> e : key2rows.entrySet()) {
+			String key = e.getKey();
+			Column col = new Column(key.substring(1), (byte) (key.charAt(0) - '0'));
+			for (Map.Entry<Long, double[]> row : e.getValue().entrySet()) {
+				col.add(row.getKey(), row.getValue());
+			}
+			cols.add(col);
+		}
+		File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+		try (FileChannel lockChannel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+			FileLock lock = lockChannel.lock())
+		{
+			// the new file has a fresh dictionary
+			int nTags = dict.size();
+			reset();
+			ByteBuffer chunk = encode(cols, 0);
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(FILE_MAGIC).putLong(System.nanoTime() ^ System.currentTimeMillis());
+			header.flip();
+			try (FileChannel fc = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+				fc.write(header);
+				fc.write(chunk);
+				fc.force(false);
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			Log.d(DataLog.LOGTAG, "compacted "+file+": "+nTags+" tags, "+cols.size()+" columns");
+		} catch (IOException ex) {
+			FileUtils.delete(tmp);
+			throw Utils.runtime(ex);
+		} finally {
+			reset();
+			refresh();
+		}
+	}
+
+	/**
+	 * @return number of chunks. For debug and test.
+	 */
+	synchronized int getChunkCount() {
+		refresh();
+		return chunks.size();
+	}
+
+	private static void writeLong(ByteArrayOutputStream out, long v) {
+		for (int i = 56; i >= 0; i -= 8) {
+			out.write((int) (v >>> i));
+		}
+	}
+
+	private static void writeVarint(ByteArrayOutputStream out, int v) {
+		while ((v & ~0x7F) != 0) {
+			out.write((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		out.write(v);
+	}
+
+	private static int readVarint(ByteBuffer buf, int[] pos) {
+		int v = 0;
+		for (int shift = 0; ; shift += 7) {
+			byte b = buf.get(pos[0]++);
+			v |= (b & 0x7F) << shift;
+			if (b >= 0) return v;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "ColumnarSegment[" + file + "]";
+	}
+}
@@ -0,0 +1,274 @@
+package com.winterwell.datalog;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import com.winterwell.datalog.ColumnarSegment.RowVisitor;
+import com.winterwell.datalog.DataLog.KInterpolate;
+import com.winterwell.depot.Depot;
+import com.winterwell.maths.stats.distributions.d1.Gaussian1D;
+import com.winterwell.maths.stats.distributions.d1.IDistribution1D;
+import com.winterwell.maths.timeseries.IDataStream;
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.containers.Pair2;
+import com.winterwell.utils.log.Log;
+import com.winterwell.utils.threads.FixedFuture;
+import com.winterwell.utils.threads.IFuture;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.Period;
+import com.winterwell.utils.time.Time;
+
+/**
+ * A local, embedded store: fast range queries for single-node setups, without Elasticsearch or SQL.
+ * <p>
+ * Data is kept in one {@link ColumnarSegment} file per {@link DataLogConfig#filePeriod} (a day by default),
+ * under {@link DataLogConfig#columnarDir}/namespace. Segments are append-only, and are compacted into
+ * one column per tag once their period is over.
+ * <p>
+ * Limitations: no events (use ESStorage for those), no setHistory, and local data only (the server is ignored).
+ *
+ * @testedby {@link ColumnarStorageTest}
+ * @author daniel
+ */
+public class ColumnarStorage implements IDataLogStorage {
+
+	private static final String SUFFIX = ".dlc";
+
+	DataLogConfig config;
+	private File dir;
+	private long periodMillis;
+
+	/**
+	 * segment start -> segment
+	 */
+	private final ConcurrentMap<Long, ColumnarSegment> segments = new ConcurrentHashMap<Long, ColumnarSegment>();
+
+	/**
+	 * The segment of the last save, so we know when to compact.
+	 */
+	private volatile long lastSaveSegment = Long.MIN_VALUE;
+
+	public ColumnarStorage() {
+	}
+
+	public ColumnarStorage(DataLogConfig config) {
+		init(config);
+	}
+
+	@Override
+	public IDataLogStorage init(DataLogConfig config) {
+		this.config = config;
+		periodMillis = config.filePeriod.getMillisecs();
+		dir = config.columnarDir;
+		if (dir == null) {
+			// with the rest of the DataLog data (CSVStorage keeps its files in the Depot)
+			dir = new File(Depot.getDefault().getConfig().getDir(), "datalog-columnar");
+		}
+		if ( ! Utils.isBlank(config.namespace)) {
+			dir = new File(dir, config.namespace);
+		}
+		dir.mkdirs();
+		return this;
+	}
+
+	@Override
+	public void save(Period period, Map<String, Double> tag2count, Map<String, IDistribution1D> tag2mean) {
+		// Save as the middle of the period (as CSVStorage does)
+		Time mid = DataLogImpl.doSave3_time(period);
+		Map<String, double[]> tag2row = new HashMap<String, double[]>(tag2mean.size());
+		for (Map.Entry<String, IDistribution1D> e : tag2mean.entrySet()) {
+			IDistribution1D mv = e.getValue();
+			tag2row.put(e.getKey(), new double[] {
+					mv.getMean(), mv.getVariance(), mv.getSupport().low, mv.getSupport().high});
+		}
+		long segStart = segmentStart(mid.getTime());
+		getSegment(segStart).append(mid.getTime(), tag2count, tag2row);
+		StatReqBatcher.dflt.invalidate(tag2count.keySet(), mid);
+		StatReqBatcher.dflt.invalidate(tag2mean.keySet(), mid);
+		// a new period? Then the last one is done, so compact it
+		long prev = lastSaveSegment;
+		lastSaveSegment = segStart;
+		if (prev != Long.MIN_VALUE && prev < segStart) {
+			try {
+				getSegment(prev).compact();
+			} catch(Throwable ex) {
+				// no harm done -- the segment is still readable
+				Log.e(DataLog.LOGTAG, ex);
+			}
+		}
+	}
+
+	/**
+	 * Adds to any existing counts at those times.
+	 */
+	@Override
+	public void saveHistory(Map<Pair2<String, Time>, Double> tag2time2count) {
+		Map<Long, List<Object[]>> seg2rows = new HashMap<Long, List<Object[]>>();
+		for (Map.Entry<Pair2<String, Time>, Double> e : tag2time2count.entrySet()) {
+			long t = e.getKey().second.getTime();
+			seg2rows.computeIfAbsent(segmentStart(t), k -> new ArrayList<Object[]>())
+				.add(new Object[] {e.getKey().first, t, e.getValue()});
+		}
+		for (Map.Entry<Long, List<Object[]>> e : seg2rows.entrySet()) {
+			getSegment(e.getKey()).appendRows(e.getValue());
+		}
+		StatReqBatcher.dflt.invalidate(tag2time2count);
+	}
+
+	@Override @Deprecated
+	public void setHistory(Map<Pair2<String, Time>, Double> tagTime2set) {
+		// unsupported
+	}
+
+	/**
+	 * Compact all the finished segments. Normally this happens as each period ends,
+	 * but this is handy after a crash or a big saveHistory.
+	 */
+	public void compact() {
+		long current = segmentStart(System.currentTimeMillis());
+		for (ColumnarSegment seg : getSegments(Long.MIN_VALUE, current)) {
+			seg.compact();
+		}
+	}
+
+	long segmentStart(long t) {
+		return t - Math.floorMod(t, periodMillis);
+	}
+
+	ColumnarSegment getSegment(long segStart) {
+		return segments.computeIfAbsent(segStart, s -> new ColumnarSegment(new File(dir, s + SUFFIX)));
+	}
+
+	/**
+	 * @param start inclusive
+	 * @param end exclusive
+	 * @return segments which could hold data for [start, end), in time order
+	 */
+	List<ColumnarSegment> getSegments(long start, long end) {
+		List<Long> starts = new ArrayList<Long>();
+		String[] files = dir.list();
+		if (files == null) return new ArrayList<ColumnarSegment>();
+		for (String f : files) {
+			if ( ! f.endsWith(SUFFIX)) continue;
+			try {
+				long s = Long.parseLong(f.substring(0, f.length() - SUFFIX.length()));
+				if (s + periodMillis <= start || s >= end) continue;
+				starts.add(s);
+			} catch(NumberFormatException ex) {
+				// not ours
+			}
+		}
+		starts.sort(null);
+		List<ColumnarSegment> segs = new ArrayList<ColumnarSegment>(starts.size());
+		for (Long s : starts) {
+			segs.add(getSegment(s));
+		}
+		return segs;
+	}
+
+	/**
+	 * Visit matching rows, segment by segment (so in time order across segments, but not within one).
+	 * @param tagFilter
+	 * @param start inclusive
+	 * @param end exclusive
+	 * @param visitor
+	 */
+	void scan(Predicate<String> tagFilter, long start, long end, RowVisitor visitor) {
+		for (ColumnarSegment seg : getSegments(start, end)) {
+			seg.scan(tagFilter, start, end, visitor);
+		}
+	}
+
+	static Predicate<String> tagFilter(Pattern tagMatcher, String tag) {
+		assert tagMatcher != null || tag != null : "One of tagMatcher/tag should not be null";
+		if (tag != null) return tag::equals;
+		return t -> tagMatcher.matcher(t).matches();
+	}
+
+	@Override
+	public IFuture<IDataStream> getData(Pattern id, Time start, Time end) {
+		return new StatReqColumnar<IDataStream>(this, KStatReq.DATA, id, start, end);
+	}
+
+	@Override
+	public StatReq<IDataStream> getData(String tag, Time start, Time end, KInterpolate fn, Dt bucketSize) {
+		return StatReqBatcher.dflt.add(new StatReqColumnar<IDataStream>(this, KStatReq.DATA, tag, start, end, fn, bucketSize));
+	}
+
+	@Override
+	public StatReq<IDataStream> getMeanData(String tag, Time start, Time end, KInterpolate fn, Dt bucketSize) {
+		return StatReqBatcher.dflt.add(new StatReqColumnar<IDataStream>(this, KStatReq.MEANDATA, tag, start, end, fn, bucketSize));
+	}
+
+	@Override
+	public StatReq<Double> getTotal(String tag, Time start, Time end) {
+		return StatReqBatcher.dflt.add(new StatReqColumnar<Double>(this, KStatReq.TOTAL, tag, start, end, null, null));
+	}
+
+	/**
+	 * Pools the saved means: the mean of the means, and within-bucket plus between-bucket variance.
+	 * @return rate per {@link DataLogConfig#interval}, or null if there is no data
+	 */
+	@Override
+	public IFuture<MeanRate> getMean(Time start, Time end, String tag) {
+		double[] sums = new double[4]; // n, sum of means, sum of squared means, sum of vars
+		scan(tag::equals, start==null? Long.MIN_VALUE : start.getTime(), end==null? Long.MAX_VALUE : end.getTime(),
+			(t, kind, time, row) -> {
+				if (kind != ColumnarSegment.KIND_MEAN) return;
+				sums[0]++;
+				sums[1] += row[0];
+				sums[2] += row[0] * row[0];
+				sums[3] += row[1];
+			});
+		if (sums[0] == 0) return new FixedFuture<MeanRate>(null);
+		double n = sums[0];
+		double mean = sums[1] / n;
+		double var = sums[3] / n + Math.max(0, sums[2] / n - mean * mean);
+		Gaussian1D dist = new Gaussian1D(mean, var);
+		return new FixedFuture<MeanRate>(new MeanRate(dist, config.interval));
+	}
+
+	/**
+	 * @param server ignored -- this is local data
+	 * @return rows of [Time, tag, count] or [Time, tag, mean, var, min, max], in time order
+	 */
+	@Override
+	public Iterator<Object[]> getReader(String server, Time s, Time e, Pattern tagMatcher, String tag) {
+		List<Object[]> rows = new ArrayList<Object[]>();
+		scan(tagFilter(tagMatcher, tag), s==null? Long.MIN_VALUE : s.getTime(), e==null? Long.MAX_VALUE : e.getTime(),
+			(t, kind, time, row) -> {
+				Object[] r = new Object[2 + row.length];
+				r[0] = new Time(time);
+				r[1] = t;
+				for (int i = 0; i < row.length; i++) r[2 + i] = row[i];
+				rows.add(r);
+			});
+		rows.sort((a, b) -> ((Time) a[0]).compareTo((Time) b[0]));
+		return rows.iterator();
+	}
+
+	@Override
+	public Object saveEvent(Dataspace dataspace, DataLogEvent event, Period period) {
+		// unsupported: events go to ESStorage
+		return null;
+	}
+
+	@Override
+	public void saveEvents(Collection<DataLogEvent> values, Period period) {
+		// unsupported: events go to ESStorage
+	}
+
+	@Override
+	public String toString() {
+		return "ColumnarStorage[" + dir + "]";
+	}
+}
@@ -0,0 +1,320 @@
+package com.winterwell.datalog;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+
+import com.winterwell.maths.stats.distributions.d1.IDistribution1D;
+
+/**
+ * The live counters for the current DataLog bucket.
+ * <p>
+ * Tag paths are interned into a trie of {@link Slot}s, so a repeat count() is a couple of
+ * hash lookups plus a {@link DoubleAdder} add -- no Strings are built and nothing is boxed.
+ * The Map form which {@link IDataLogStorage#save(com.winterwell.utils.time.Period, Map, Map)}
+ * wants is only materialised by {@link #swap(int)}.
+ * <p>
+ * Each slot is double-buffered: it has one {@link Cell} per {@link Epoch} parity. Writers use
+ * the current epoch's cell, whilst the saver harvests the other one once its writers have drained.
+ * <p>
+ * Slots which sit idle for {@link #PRUNE_AFTER} buckets are dropped from the trie, so one-off tags
+ * (e.g. from event2tag) do not accumulate forever.
+ *
+ * @testedby {@link CounterStoreTest}
+ */
+final class CounterStore {
+
+	/**
+	 * Drop a slot after this many consecutive buckets without a count or mean.
+	 */
+	static final int PRUNE_AFTER = 2;
+
+	/**
+	 * The trie root. This has no tag of its own.
+	 */
+	final Slot root = new Slot(null, null);
+
+	/**
+	 * Flat index of all the interned slots, for lookup by full tag.
+	 */
+	private final ConcurrentHashMap<String, Slot> tag2slot = new ConcurrentHashMap<String, Slot>();
+
+	/**
+	 * Slots pruned at the last swap. A writer may have resolved one just before it was unlinked,
+	 * so these get harvested once more at the next swap.
+	 */
+	private List<Slot> graveyard = new ArrayList<Slot>();
+
+	/**
+	 * One bucket's worth of data for one slot.
+	 */
+	static final class Cell {
+		final DoubleAdder count = new DoubleAdder();
+		/**
+		 * true if count() or set() touched this cell.
+		 */
+		volatile boolean live;
+		/**
+		 * The distribution from mean(), or null
+		 */
+		volatile IDistribution1D dist;
+
+		void add(double dx) {
+			count.add(dx);
+			if ( ! live) live = true;
+		}
+
+		/**
+		 * Overwrite the count.
+		 * This is not atomic with respect to a concurrent count() on the same tag.
+		 */
+		void set(double x) {
+			count.reset();
+			count.add(x);
+			live = true;
+		}
+
+		/**
+		 * Set the distribution, unless another thread got there first.
+		 * @param d
+		 * @return the cell's distribution (which may not be d)
+		 */
+		synchronized IDistribution1D initDist(IDistribution1D d) {
+			if (dist == null) dist = d;
+			return dist;
+		}
+	}
+
+	/**
+	 * One node in the tag trie, e.g. "foo/bar".
+	 */
+	static final class Slot {
+		/**
+		 * The full tag, e.g. "foo/bar". Computed once when the slot is interned.
+		 */
+		final String tag;
+		final Slot parent;
+		/**
+		 * Keyed by the raw tag-bit (for speed) AND by the escaped tag-bit (to avoid duplicates).
+		 */
+		final ConcurrentHashMap<Object, Slot> kids = new ConcurrentHashMap<Object, Slot>(4);
+		/**
+		 * Indexed by {@link Epoch#parity}
+		 */
+		final Cell[] cells = {new Cell(), new Cell()};
+		/**
+		 * How many buckets in a row has this been unused? Only touched by {@link CounterStore#swap(int)}.
+		 */
+		int idle;
+		/**
+		 * The tag path, encoded for {@link DataLogJournal}. Lazily set.
+		 */
+		volatile byte[] journalKey;
+
+		Slot(Slot parent, String tag) {
+			this.parent = parent;
+			this.tag = tag;
+		}
+
+		@Override
+		public String toString() {
+			return "Slot[" + tag + "]";
+		}
+	}
+
+	/**
+	 * The materialised output of {@link CounterStore#swap(int)}
+	 */
+	static final class Bucket {
+		final Map<String, Double> tag2count;
+		final Map<String, IDistribution1D> tag2dist;
+
+		Bucket(Map<String, Double> tag2count, Map<String, IDistribution1D> tag2dist) {
+			this.tag2count = tag2count;
+			this.tag2dist = tag2dist;
+		}
+	}
+
+	/**
+	 * Find or intern the child slot for tagBit.
+	 *
+	 * @param parent
+	 * @param tagBit Must not be null.
+	 * @return never null
+	 */
+	Slot slot(Slot parent, Object tagBit) {
+		// Strings and enums are safe as keys as they are -- anything else goes via toString()
+		Object key = tagBit instanceof String || tagBit instanceof Enum ? tagBit : tagBit.toString();
+		Slot kid = parent.kids.get(key);
+		if (kid != null) return kid;
+		return slot2_intern(parent, key);
+	}
+
+	private Slot slot2_intern(Slot parent, Object key) {
+		String bit = DataLog.tag2_escape(key.toString());
+		Slot kid = parent.kids.get(bit);
+		if (kid == null) {
+			String tag = parent.tag == null ? bit : parent.tag + DataLog.HIERARCHY_CHAR + bit;
+			Slot newKid = new Slot(parent, tag);
+			kid = parent.kids.putIfAbsent(bit, newKid);
+			if (kid == null) {
+				kid = newKid;
+				tag2slot.put(tag, kid);
+			}
+		}
+		// alias the raw key (e.g. with odd whitespace) to the canonical slot
+		if ( ! bit.equals(key)) {
+			parent.kids.putIfAbsent(key, kid);
+		}
+		return kid;
+	}
+
+	/**
+	 * @param tagBits
+	 * @return the slot for the full tag, interning as needed
+	 */
+	Slot slot(Object... tagBits) {
+		Slot s = root;
+		for (Object tg : tagBits) {
+			s = slot(s, tg);
+		}
+		return s;
+	}
+
+	/**
+	 * @param parity See {@link Epoch#parity}
+	 * @param tag
+	 * @return the count, or null if the tag has not been counted this bucket
+	 */
+	Double getCount(int parity, String tag) {
+		Slot s = tag2slot.get(tag);
+		if (s == null) return null;
+		Cell cell = s.cells[parity];
+		return cell.live ? cell.count.sum() : null;
+	}
+
+	/**
+	 * @param parity See {@link Epoch#parity}
+	 * @param tag
+	 * @return the distribution, or null
+	 */
+	IDistribution1D getDist(int parity, String tag) {
+		Slot s = tag2slot.get(tag);
+		return s == null ? null : s.cells[parity].dist;
+	}
+
+	/**
+	 * @param parity See {@link Epoch#parity}
+	 * @return A snapshot copy of the counts. This is NOT cheap.
+	 */
+	Map<String, Double> getCounts(int parity) {
+		HashMap<String, Double> map = new HashMap<String, Double>();
+		for (Slot s : tag2slot.values()) {
+			Cell cell = s.cells[parity];
+			if (cell.live) map.put(s.tag, cell.count.sum());
+		}
+		return map;
+	}
+
+	/**
+	 * @param parity See {@link Epoch#parity}
+	 * @return A snapshot copy of the distributions.
+	 */
+	Map<String, IDistribution1D> getDists(int parity) {
+		HashMap<String, IDistribution1D> map = new HashMap<String, IDistribution1D>();
+		for (Slot s : tag2slot.values()) {
+			IDistribution1D d = s.cells[parity].dist;
+			if (d != null) map.put(s.tag, d);
+		}
+		return map;
+	}
+
+	/**
+	 * @param parity See {@link Epoch#parity}
+	 * @return the tags with a count or a mean in the bucket
+	 */
+	Set<String> getLive(int parity) {
+		HashSet<String> set = new HashSet<String>();
+		for (Slot s : tag2slot.values()) {
+			Cell cell = s.cells[parity];
+			if (cell.live || cell.dist != null) set.add(s.tag);
+		}
+		return set;
+	}
+
+	/**
+	 * @return number of interned tags (live or not)
+	 */
+	int size() {
+		return tag2slot.size();
+	}
+
+	/**
+	 * Harvest one side of the double-buffer into fresh maps, and reset it for re-use.
+	 * The interned slots are kept (apart from long-idle ones), so later counts do not allocate.
+	 * <p>
+	 * Only one thread should call this at a time, and nothing should be writing to this parity
+	 * -- see {@link Epoch#drain()}.
+	 *
+	 * @param parity See {@link Epoch#parity}
+	 */
+	Bucket swap(int parity) {
+		HashMap<String, Double> tag2count = new HashMap<String, Double>();
+		HashMap<String, IDistribution1D> tag2dist = new HashMap<String, IDistribution1D>();
+		// last time's pruned slots
+		List<Slot> dead = graveyard;
+		graveyard = new ArrayList<Slot>();
+		for (Slot s : dead) {
+			swap2_harvest(s.cells[parity], s.tag, tag2count, tag2dist);
+		}
+		for (Slot s : tag2slot.values()) {
+			boolean used = swap2_harvest(s.cells[parity], s.tag, tag2count, tag2dist);
+			if (used) {
+				s.idle = 0;
+				continue;
+			}
+			s.idle++;
+			if (s.idle >= PRUNE_AFTER && s.kids.isEmpty()) {
+				swap3_prune(s);
+			}
+		}
+		return new Bucket(tag2count, tag2dist);
+	}
+
+	/**
+	 * @return true if the cell had any data
+	 */
+	private boolean swap2_harvest(Cell cell, String tag, Map<String, Double> tag2count, Map<String, IDistribution1D> tag2dist) {
+		boolean used = false;
+		if (cell.live) {
+			cell.live = false;
+			double x = cell.count.sumThenReset();
+			tag2count.merge(tag, x, Double::sum);
+			used = true;
+		}
+		IDistribution1D d = cell.dist;
+		if (d != null) {
+			cell.dist = null;
+			tag2dist.putIfAbsent(tag, d);
+			used = true;
+		}
+		return used;
+	}
+
+	private void swap3_prune(Slot s) {
+		// unlink from the parent (under every key, including aliases)
+		s.parent.kids.values().removeIf(kid -> kid == s);
+		tag2slot.remove(s.tag, s);
+		graveyard.add(s);
+	}
+
+	@Override
+	public String toString() {
+		return "CounterStore[" + tag2slot.size() + " tags]";
+	}
+}
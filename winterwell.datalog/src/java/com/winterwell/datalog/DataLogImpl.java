@@ -1,18 +1,17 @@
 package com.winterwell.datalog;
 
 import java.io.Closeable;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 import java.util.function.Supplier;
 import java.util.regex.Pattern;
 
@@ -28,8 +27,8 @@ import com.winterwell.utils.Dep;
 import com.winterwell.utils.Printer;
 import com.winterwell.utils.ReflectionUtils;
 import com.winterwell.utils.Utils;
-import com.winterwell.utils.containers.Containers;
 import com.winterwell.utils.containers.Pair2;
+import com.winterwell.utils.io.FileUtils;
 import com.winterwell.utils.log.KErrorPolicy;
 import com.winterwell.utils.log.Log;
 import com.winterwell.utils.threads.FixedFuture;
@@ -105,7 +104,6 @@ public class DataLogImpl implements Closeable, IDataLog {
 	
 	@Override
 	public IFuture<MeanRate> getMean(Time start, Time end, String... tagBits) {
-		StatReq<IDataStream> mdata = getMeanData(start, end, KInterpolate.SKIP_ZEROS, null, tagBits);
 		return new FixedFuture(getMean(tagBits)); // Wrong! But returns plausible lies
 //		FIXME return storage.getMean(start, end, tag);
 	}
@@ -148,24 +146,18 @@ public class DataLogImpl implements Closeable, IDataLog {
 	 * @param tag
 	 * @param start can be null (which means include all historic)
 	 * @param end can be null (which means include all historic)
-	 * @return a list of historic data, currently stored in {@link #tagTime2count} map.
+	 * @return a list of historic data, currently stored in {@link Epoch#tagTime2count} map.
 	 */
 	List<Datum> currentHistoric(String tag, Time start, Time end) {
-		List<Datum> data = new ArrayList<Datum>();
 		// thread safety: grab a reference to the now
-		final ConcurrentMap<Pair2<String, Time>, Double> _tag2time2count = tagTime2count;
-		for (Pair2<String, Time> key : _tag2time2count.keySet()) {
-			assert key != null;
-			if ( ! key.first.equals(tag)) continue;
-			// filter on time
-			if (start != null && key.second.isBefore(start)) continue;
-			if (end != null && key.second.isAfter(end)) continue;
-
-			Datum datum = new Datum(key.second, _tag2time2count.get(key), tag);
-			data.add(datum);
+		final TagTimeMap _tag2time2count = epoch.tagTime2count;
+		// Ordering is important because ListDataStream may get data out of order. see #4988
+		// -- the map is time-ordered, so no sort is needed.
+		NavigableMap<Long, Double> time2count = _tag2time2count.get(tag, start, end);
+		List<Datum> data = new ArrayList<Datum>(time2count.size());
+		for (Map.Entry<Long, Double> e : time2count.entrySet()) {
+			data.add(new Datum(new Time(e.getKey()), e.getValue(), tag));
 		}
-		// Sorting is important because ListDataStream may get data out of order. see #4988
-		Collections.sort(data);
 		return data;
 	}
 
@@ -178,30 +170,24 @@ public class DataLogImpl implements Closeable, IDataLog {
 
 	@Override
 	public  Set<String> getLive() {
-		Set<String> keys = tag2count.keySet();
-		Set<String> keys2 = tag2dist.keySet();
-		HashSet<String> set = new HashSet<String>(keys);
-		set.addAll(keys2);
-		return set;
+		return counters.getLive(epoch.parity);
 	}
 
 	/**
-	 * What's happening now?
+	 * What's happening now? Holds the counts and means, double-buffered by {@link Epoch#parity}.
 	 */
-	ConcurrentMap<String,Double> tag2count = newMap();
+	final CounterStore counters = new CounterStore();
 
-	ConcurrentMap<String, IDistribution1D> tag2dist = newMap();
-
-	ConcurrentMap<String, DataLogEvent> id2event = newMap();
+	/**
+	 * The current bucket. Writers go via {@link Epoch#enter(DataLogImpl)}.
+	 * doSave() replaces this, then waits for the old one's writers to drain.
+	 */
+	volatile Epoch epoch = new Epoch(0);
 
 	/**
-	 * Map for holding historical data of the form tag+time -> count 
-	 * key: (tag,time)
-	 * value: a delta to apply to stored value for this time-bucket.
+	 * Serialises saves. Writers never take this.
 	 */
-	ConcurrentMap<Pair2<String, Time>, Double> tagTime2count = newMap();
-	
-	ConcurrentMap<Pair2<String, Time>, Double> tagTime2set = newMap();
+	private final Object saveLock = new Object();
 
 	private boolean init;
 
@@ -210,6 +196,11 @@ public class DataLogImpl implements Closeable, IDataLog {
 	final DataLogConfig config;
 	final IDataLogStorage storage;
 
+	/**
+	 * null unless {@link DataLogConfig#journalDir} is set. Indexed by {@link Epoch#parity}.
+	 */
+	DataLogJournal[] journals;
+
 	/**
 	 * IStatStorage defaults to SQLStorage.
 	 *
@@ -239,6 +230,15 @@ public class DataLogImpl implements Closeable, IDataLog {
 			Log.e(DataLog.LOGTAG, "storage creation failed for "+config.storageClass);
 			throw Utils.runtime(ex);
 		}
+		// Recover counts from before a restart?
+		if (config.journalDir != null) {
+			try {
+				journals = DataLogJournal.recover(this);
+			} catch (IOException ex) {
+				Log.e(DataLog.LOGTAG, "journal failed in "+config.journalDir);
+				throw Utils.runtime(ex);
+			}
+		}
 	}
 	
 	@Override
@@ -266,6 +266,10 @@ public class DataLogImpl implements Closeable, IDataLog {
 		// start-up the new
 		saveThread = new Timer("DataLog.save", true);
 		saveThread.scheduleAtFixedRate(new SaveAndSystemStatsTask(), first.getDate(), config.interval.getMillisecs());
+		if (journals != null) {
+			long ms = config.journalCheckpoint.getMillisecs();
+			saveThread.schedule(new JournalCheckpointTask(), ms, ms);
+		}
 		Log.i(DataLog.LOGTAG, "1st save at "+first+" ("+TimeUtils.toString(new Time().dt(first))+")");
 		// prepare for callbacks
 		if ( ! Dep.has(CallbackManager.class)) {
@@ -276,9 +280,9 @@ public class DataLogImpl implements Closeable, IDataLog {
 	}
 
 	/**
-	 * Bucket start
+	 * Bucket start. Written by doSave() (within saveLock), read without locks.
 	 */
-	Time start = new Time();
+	volatile Time start = new Time();
 
 	@Override
 	public String label(String label, String... tagBits) {
@@ -287,43 +291,63 @@ public class DataLogImpl implements Closeable, IDataLog {
 		return null;
 	}
 
-	protected synchronized void doSave() {		
-		Map<String, Double> old = tag2count;		
-		Map<String, IDistribution1D> oldMean = tag2dist;
-		Map<String, DataLogEvent> oldid2event = id2event;
-		Map<Pair2<String, Time>, Double> oldTagTimeCount = tagTime2count;
-		Map<Pair2<String, Time>, Double> oldTagTimeSet = tagTime2set;
-
-		// save internal stats? (skip 0s)
-		if ( ! old.isEmpty()) old.put("stat_bucket_count", 1.0*old.size());
-		if ( ! oldMean.isEmpty()) old.put("stat_bucket_dist", 1.0*oldMean.size());
-		if ( ! oldTagTimeCount.isEmpty()) old.put("stat_bucket_retro_count", 1.0*oldTagTimeCount.size());
-		if ( ! oldTagTimeSet.isEmpty()) old.put("stat_bucket_retro_set", 1.0*oldTagTimeSet.size());
-		
-		Period period = getCurrentBucket();
-
-		// new buckets
-		tag2count = newMap();
-		tag2dist = newMap();
-		id2event =  newMap();
-		tagTime2count = newMap();
-		tagTime2set = newMap();
-		// Advance the bucket time?
-		Time now = new Time();
-		if (period.second.isAfter(now)) {
-			// Nope -- this is a premature flush
-			Log.d(DataLog.LOGTAG, "save but no advance.");
-		} else {
-			start = period.second;
-		}
-		// save the counters!
-		if ( ! old.isEmpty()) {
-			Log.d(DataLog.LOGTAG, "Saving "+old.size()+" simple + "+oldMean.size()+" dist + "+oldTagTimeCount.size()+" historical "+oldTagTimeSet.size()+"...");
+	/**
+	 * Roll over to a new bucket and save the old one.
+	 * Writers are not blocked: they move onto the new epoch, and the old one is only read
+	 * (and sent to storage) after its in-flight writers have finished.
+	 */
+	protected void doSave() {
+		synchronized (saveLock) {
+			Period period = getCurrentBucket();
+			Epoch oldEpoch = doSave2_rollover();
+			CounterStore.Bucket oldBucket = counters.swap(oldEpoch.parity);
+			
+			// Advance the bucket time?
+			Time now = new Time();
+			if (period.second.isAfter(now)) {
+				// Nope -- this is a premature flush
+				Log.d(DataLog.LOGTAG, "save but no advance.");
+			} else {
+				start = period.second;
+			}
+			
+			Map<String, Double> old = oldBucket.tag2count;
+			Map<String, IDistribution1D> oldMean = oldBucket.tag2dist;
+			Map<String, DataLogEvent> oldid2event = oldEpoch.id2event;
+			Map<Pair2<String, Time>, Double> oldTagTimeCount = oldEpoch.tagTime2count.toPairMap();
+			Map<Pair2<String, Time>, Double> oldTagTimeSet = oldEpoch.tagTime2set.toPairMap();
+	
+			// save internal stats? (skip 0s)
+			if ( ! old.isEmpty()) old.put("stat_bucket_count", 1.0*old.size());
+			if ( ! oldMean.isEmpty()) old.put("stat_bucket_dist", 1.0*oldMean.size());
+			if ( ! oldTagTimeCount.isEmpty()) old.put("stat_bucket_retro_count", 1.0*oldTagTimeCount.size());
+			if ( ! oldTagTimeSet.isEmpty()) old.put("stat_bucket_retro_set", 1.0*oldTagTimeSet.size());
+			
+			// save the counters!
+			if ( ! old.isEmpty()) {
+				Log.d(DataLog.LOGTAG, "Saving "+old.size()+" simple + "+oldMean.size()+" dist + "+oldTagTimeCount.size()+" historical "+oldTagTimeSet.size()+"...");
+			}
+			storage.save(period, old, oldMean);
+			storage.saveHistory(oldTagTimeCount);
+			storage.setHistory(oldTagTimeSet);
+			storage.saveEvents(oldid2event.values(), period);
+			// saved -- so the journal can be emptied, ready for the epoch after next
+			if (journals != null) {
+				journals[oldEpoch.parity].reset(oldEpoch.n + 2);
+			}
 		}
-		storage.save(period, old, oldMean);
-		storage.saveHistory(oldTagTimeCount);
-		storage.setHistory(oldTagTimeSet);
-		storage.saveEvents(oldid2event.values(), period);
+	}
+
+	/**
+	 * Install a new epoch, and wait for writers on the old one to finish.
+	 * Call within saveLock.
+	 * @return the old epoch, which is now safe to read.
+	 */
+	Epoch doSave2_rollover() {
+		Epoch old = epoch;
+		epoch = old.next();
+		old.drain();
+		return old;
 	}
 
 	Period getCurrentBucket() {
@@ -331,8 +355,29 @@ public class DataLogImpl implements Closeable, IDataLog {
 		return new Period(start, start.plus(dt));
 	}
 	
+	/**
+	 * @param time
+	 * @return the bucket for time. Buckets are [start, end), except in the future, where they are (start, end].
+	 * This is arithmetic for the fixed-length units, so it is cheap however far time is from the current bucket.
+	 */
 	Period getBucket(Time time) {
 		Dt dt = getPeriod();
+		Time t = start;
+		if (dt.getUnit().millisecs > TUnit.WEEK.millisecs) {
+			// months and years vary in length -- step through them
+			return getBucket2_walk(time, dt);
+		}
+		long dtms = dt.getMillisecs();
+		long d = time.getTime() - t.getTime();
+		// the future (odd!): an end-point belongs to the bucket before
+		long n = d > 0? Math.floorDiv(d - 1, dtms) : Math.floorDiv(d, dtms);
+		Time s = new Time(t.getTime() + n*dtms);
+		Period p = new Period(s, new Time(s.getTime() + dtms));
+		assert p.contains(time) : p+" "+time;
+		return p;
+	}
+
+	private Period getBucket2_walk(Time time, Dt dt) {
 		if (time.isAfter(start)) {
 			// the future (odd!)
 			Time t = start;
@@ -355,11 +400,6 @@ public class DataLogImpl implements Closeable, IDataLog {
 
 	private boolean closed;
 
-	private <X, Y> ConcurrentMap<X, Y> newMap() {
-		ConcurrentHashMap<X, Y> cc = new ConcurrentHashMap<X, Y>();
-		return cc;
-	}
-
 	public static final class ClosedException extends IllegalStateException {
 		private static final long serialVersionUID = 1L;
 	}
@@ -372,12 +412,15 @@ public class DataLogImpl implements Closeable, IDataLog {
 	public  void set(double x, Object... tagBits) {
 		if (closed) throw new ClosedException();
 //		init();
-		String tag = DataLog.tag(tagBits);
-		tag2count.put(tag, x);
-
-		// track our own size
-		if ( ! tag.startsWith("Stat")) {
-			mean(tag2count.size(), "Stat", "counts");
+		CounterStore.Slot slot = counters.slot(DataLog.check(tagBits));
+		Epoch ep = Epoch.enter(this);
+		try {
+			slot.cells[ep.parity].set(x);
+			if (journals != null) {
+				journals[ep.parity].add(DataLogJournal.SET, slot, x);
+			}
+		} finally {
+			ep.exit();
 		}
 	}
 
@@ -387,30 +430,34 @@ public class DataLogImpl implements Closeable, IDataLog {
 		assert tagBits.length != 0 : dx;
 		if (dx==0) return;
 		// loop over tag.heiriarchy
-		StringBuilder tag = new StringBuilder();
-		for(Object tg : tagBits) {
-			if (tg == null) throw new IllegalArgumentException(Printer.toString(tagBits));
-
-			String stag = parseTag(tg, tag);
-			assert tag2count != null : stag;
-
-			double x = Containers.plus(tag2count, stag, dx);
-			// alerts?
-			IListenDataLog listener = listeners.get(stag);
-			if (listener!=null) {
-				try {
-					listener.handleCount(x, dx, stag);
-				} catch(Throwable ex) {
-					// don't throw an exception here
-					Log.e(DataLog.LOGTAG, ex);
+		// NB: This is the hot path, so it works on interned slots and does not build tag Strings.
+		// (The bucket-size stats are recorded at save time as stat_bucket_count & co.)
+		CounterStore.Slot slot = counters.root;
+		Epoch ep = Epoch.enter(this);
+		try {
+			for(Object tg : tagBits) {
+				if (tg == null) throw new IllegalArgumentException(Printer.toString(tagBits));
+	
+				slot = counters.slot(slot, tg);
+				CounterStore.Cell cell = slot.cells[ep.parity];
+				cell.add(dx);
+				// alerts?
+				IListenDataLog listener = listeners.get(slot.tag);
+				if (listener!=null) {
+					try {
+						listener.handleCount(cell.count.sum(), dx, slot.tag);
+					} catch(Throwable ex) {
+						// don't throw an exception here
+						Log.e(DataLog.LOGTAG, ex);
+					}
 				}
 			}
+			if (journals != null) {
+				journals[ep.parity].add(DataLogJournal.COUNT, slot, dx);
+			}
+		} finally {
+			ep.exit();
 		}
-		// track our own size
-		if ( ! "Stat".equals(tagBits[0])) {
-			mean(tag2count.size(), "Stat", "counts");
-		}
-//		return new Rate(x, getPeriod(stag), stag);
 	}
 
 	@Override
@@ -418,22 +465,27 @@ public class DataLogImpl implements Closeable, IDataLog {
 //		init();
 		assert ! closed;
 		// loop over tag.hieriarchy
-		StringBuilder tag = new StringBuilder();
-		String topTag = null;
-		for(Object tg : tagBits) {
-			String stag = parseTag(tg, tag);			
-			if (topTag==null) topTag = stag;
-			IDistribution1D dist = tag2dist.get(stag);
-			if (dist==null) {
-				dist = newDistribution(topTag, stag); // use mean-var
-				tag2dist.put(stag, dist);
+		CounterStore.Slot slot = counters.root;
+		CounterStore.Slot top = null;
+		Epoch ep = Epoch.enter(this);
+		try {
+			for(Object tg : tagBits) {
+				slot = counters.slot(slot, tg);
+				if (top==null) top = slot;
+				CounterStore.Cell cell = slot.cells[ep.parity];
+				IDistribution1D dist = cell.dist;
+				if (dist==null) {
+					dist = cell.initDist(newDistribution(top.tag, slot.tag)); // use mean-var
+				}
+				synchronized (dist) {
+					((ITrainable.Unsupervised)dist).train1(x);
+				}
 			}
-			((ITrainable.Unsupervised)dist).train1(x);
-		}
-
-		// track our own size
-		if ( ! "Stat".equals(tagBits[0])) {
-			mean(tag2dist.size(), "Stat", "means");
+			if (journals != null) {
+				journals[ep.parity].add(DataLogJournal.MEAN, slot, x);
+			}
+		} finally {
+			ep.exit();
 		}
 	}
 
@@ -448,20 +500,21 @@ public class DataLogImpl implements Closeable, IDataLog {
 	@Override
 	public MeanRate getMean(String... tagBits) {
 		String tag = DataLog.tag(tagBits);
-		IDistribution1D dist = tag2dist.get(tag);
-		return new MeanRate((IDistribution1D) dist, getPeriod());
+		IDistribution1D dist = counters.getDist(epoch.parity, tag);
+		return new MeanRate(dist, getPeriod());
 	}
 
 	@Override
 	public Rate get(String... tags) {
 		// make the tag
 		String stag = DataLog.tag(tags);
-		Double v = tag2count.get(stag);
+		int parity = epoch.parity;
+		Double v = counters.getCount(parity, stag);
 		if (v != null) {
 			return new Rate(v, getPeriod(), stag);
 		}
 		// Perhaps we track the mean/var? -- use the mean
-		IDistribution1D mv = (IDistribution1D) tag2dist.get(stag);
+		IDistribution1D mv = counters.getDist(parity, stag);
 		return mv==null? Rate.ZERO(stag) : new Rate(mv.getMean(), getPeriod(), stag);
 	}
 
@@ -483,17 +536,18 @@ public class DataLogImpl implements Closeable, IDataLog {
 		Log.i(DataLog.LOGTAG, "CLOSE!");
 		flush();
 		closed = true;
-		tag2count = null;
 		saveThread.cancel();
 		saveThread = null;
+		if (journals != null) {
+			for (DataLogJournal j : journals) {
+				FileUtils.close(j);
+			}
+		}
 	}
 
 	@Override
 	public Collection<String> getActiveLabels() {
-		ArrayList<String> labels = new ArrayList<String>();
-		labels.addAll(tag2count.keySet());
-		labels.addAll(tag2dist.keySet());
-		return labels;
+		return new ArrayList<String>(counters.getLive(epoch.parity));
 	}
 
 
@@ -531,9 +585,17 @@ public class DataLogImpl implements Closeable, IDataLog {
 //		}
 
 		String stag = DataLog.tag(tags);					
-		Pair2<String, Time> tag2time = new Pair2<String, Time>(stag, at);
-		tagTime2count.remove(tag2time);
-		tagTime2set.put(tag2time, x);
+		Epoch ep = Epoch.enter(this);
+		try {
+			ep.tagTime2count.remove(stag, at);
+			ep.tagTime2set.put(stag, at, x);
+			StatReqBatcher.dflt.invalidate(stag, at);
+			if (journals != null) {
+				journals[ep.parity].add(DataLogJournal.SET_AT, at, Collections.singletonList(stag), x);
+			}
+		} finally {
+			ep.exit();
+		}
 	}
 
 	@Override
@@ -545,15 +607,26 @@ public class DataLogImpl implements Closeable, IDataLog {
 
 		// loop over tag.hierarchy
 		StringBuilder tag = new StringBuilder();
-		for(Object tg : tags) {
-			if (tg == null) throw new IllegalArgumentException(Printer.toString(tags));
-
-			String stag = parseTag(tg, tag);
-
-			assert tagTime2count != null : stag;
-
-			Pair2<String, Time> key = new Pair2<String, Time>(stag, at);
-			Containers.plus(tagTime2count, key, dx);
+		Epoch ep = Epoch.enter(this);
+		try {
+			for(Object tg : tags) {
+				if (tg == null) throw new IllegalArgumentException(Printer.toString(tags));
+	
+				String stag = parseTag(tg, tag);
+	
+				ep.tagTime2count.plus(stag, at, dx);
+				// a finished time range may have been cached
+				StatReqBatcher.dflt.invalidate(stag, at);
+			}
+			if (journals != null) {
+				List<String> bits = new ArrayList<String>(tags.length);
+				for(Object tg : tags) {
+					bits.add(DataLog.tag2_escape(tg.toString()));
+				}
+				journals[ep.parity].add(DataLogJournal.COUNT_AT, at, bits, dx);
+			}
+		} finally {
+			ep.exit();
 		}
 	}
 
@@ -612,6 +685,26 @@ public class DataLogImpl implements Closeable, IDataLog {
 		}
 	}
 
+	/**
+	 * Push the journals to disk, so they also survive an OS crash.
+	 */
+	class JournalCheckpointTask extends TimerTask {
+		@Override
+		public void run() {
+			if (closed) {
+				cancel();
+				return;
+			}
+			try {
+				for (DataLogJournal j : journals) {
+					j.force();
+				}
+			} catch(Throwable t) {
+				Log.e(DataLog.LOGTAG, t);
+			}
+		}
+	}
+
 	@Override
 	public void count(DataLogEvent event) {
 		// HACK just save it to ES? Yes, unless it looks like a very simple stat.
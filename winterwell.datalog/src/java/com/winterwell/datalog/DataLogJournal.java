@@ -0,0 +1,479 @@
+package com.winterwell.datalog;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.winterwell.utils.containers.ArrayMap;
+import com.winterwell.utils.io.FileUtils;
+import com.winterwell.utils.log.Log;
+import com.winterwell.utils.time.Time;
+
+/**
+ * Write-ahead journal for the in-memory DataLog bucket, so a restart does not lose the counts
+ * since the last save. Switched on by {@link DataLogConfig#journalDir}.
+ * <p>
+ * There is one journal file per {@link Epoch#parity}. Writers append a compact binary record of
+ * each count/set/mean to the journal of the epoch they are writing to. Once an epoch has been
+ * drained and stored, its journal is emptied ({@link #reset(long)}) for re-use two epochs later.
+ * So the journals only ever hold data which is not (yet) in storage.
+ * <p>
+ * The file is memory-mapped in chunks of {@link DataLogConfig#journalChunkSize}. An append is a
+ * lock-free reservation plus a few puts into the page cache -- which survives a JVM crash.
+ * Checkpoints ({@link #force()}, every {@link DataLogConfig#journalCheckpoint}) push it to disk,
+ * to also survive an OS crash.
+ * <p>
+ * File format: a header (magic, state, epoch, chunk size), then records. Records are
+ * [int length][byte type][double x][long time (retro records only)][short n][n x (short len, utf8)]
+ * -- the type is written last, so a torn record has type 0 and is skipped.
+ * A record never straddles a chunk: a zero length means "on to the next chunk".
+ * <p>
+ * Caveat: a crash after storage.save() but before the journal reset will replay (and so double
+ * count) that bucket. That window is a few milliseconds per save.
+ *
+ * @testedby {@link DataLogJournalTest}
+ */
+final class DataLogJournal implements Closeable {
+
+	private static final int MAGIC = 0x444c4a31; // "DLJ1"
+	private static final int STATE_LIVE = 1;
+	/**
+	 * Being reset: the contents have been saved, so ignore them
+	 */
+	private static final int STATE_DEAD = 2;
+	/**
+	 * magic, state, epoch, chunk size -- padded
+	 */
+	static final int HEADER = 32;
+	/**
+	 * length, type, x, no tag bits
+	 */
+	private static final int MIN_RECORD = 4 + 1 + 8 + 2;
+	private static final int POS_STATE = 4;
+	private static final int POS_EPOCH = 8;
+	private static final int POS_CHUNK = 16;
+
+	static final byte COUNT = 1;
+	static final byte SET = 2;
+	static final byte MEAN = 3;
+	static final byte COUNT_AT = 4;
+	static final byte SET_AT = 5;
+	/**
+	 * Brackets the copy of the other journal, made at startup. x = the other journal's epoch.
+	 */
+	static final byte ABSORB_START = 6;
+	static final byte ABSORB_END = 7;
+
+	private static final byte[] NO_BITS = {0, 0};
+
+	private static final class Chunk {
+		final MappedByteBuffer buf;
+		final int start;
+		final AtomicInteger pos;
+		/**
+		 * How far reset() must zero, beyond pos. Only set when opening an existing file, which may
+		 * have torn records after its last readable one.
+		 */
+		int dirty;
+
+		Chunk(MappedByteBuffer buf, int start) {
+			this.buf = buf;
+			this.start = start;
+			this.pos = new AtomicInteger(start);
+		}
+
+		int used() {
+			return Math.min(pos.get(), buf.capacity());
+		}
+	}
+
+	final File file;
+	private final FileChannel channel;
+	private final int chunkSize;
+	/**
+	 * Guarded by this. Chunks are kept mapped for re-use after a reset.
+	 */
+	private final List<Chunk> chunks = new ArrayList<Chunk>();
+	private volatile Chunk current;
+	private long epoch;
+	private int state;
+	/**
+	 * Set by {@link #replay(DataLogImpl)}: the epoch of the other journal, if a complete copy of it
+	 * was found in this one.
+	 */
+	Long absorbed;
+
+	final AtomicLong records = new AtomicLong();
+	final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * Open (or create) a journal file.
+	 * @param file
+	 * @param epoch Used if the file is new (or unreadable)
+	 * @param chunkSize Used if the file is new (or unreadable)
+	 */
+	DataLogJournal(File file, long epoch, int chunkSize) throws IOException {
+		this.file = file;
+		channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		MappedByteBuffer head = null;
+		if (channel.size() >= HEADER) {
+			head = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER);
+		}
+		if (head != null && head.getInt(0) == MAGIC && head.getInt(POS_CHUNK) > HEADER) {
+			this.chunkSize = head.getInt(POS_CHUNK);
+			this.epoch = head.getLong(POS_EPOCH);
+			this.state = head.getInt(POS_STATE);
+		} else {
+			if (channel.size() != 0) {
+				Log.w(DataLog.LOGTAG, "Journal "+file+" is not a journal - starting afresh");
+				channel.truncate(0);
+			}
+			this.chunkSize = Math.max(chunkSize, 4096);
+			this.epoch = epoch;
+			this.state = STATE_LIVE;
+		}
+		// map what's there (or the first chunk)
+		long n = Math.max(1, (channel.size() + this.chunkSize - 1) / this.chunkSize);
+		for (int i = 0; i < n; i++) {
+			map(i);
+		}
+		current = chunks.get(0);
+		if (head == null || head.getInt(0) != MAGIC) {
+			writeHeader(STATE_LIVE);
+		}
+	}
+
+	private Chunk map(int i) throws IOException {
+		MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, (long) i * chunkSize, chunkSize);
+		Chunk chunk = new Chunk(buf, i == 0? HEADER : 0);
+		chunks.add(chunk);
+		return chunk;
+	}
+
+	private void writeHeader(int newState) {
+		MappedByteBuffer buf = chunks.get(0).buf;
+		buf.putInt(0, MAGIC);
+		buf.putInt(POS_STATE, newState);
+		buf.putLong(POS_EPOCH, epoch);
+		buf.putInt(POS_CHUNK, chunkSize);
+		buf.force();
+		state = newState;
+	}
+
+	/**
+	 * @return false if the journal was being reset -- i.e. its contents are already saved.
+	 */
+	boolean isLive() {
+		return state == STATE_LIVE;
+	}
+
+	/**
+	 * Journal a count, set or mean on the tag path of slot.
+	 */
+	void add(byte type, CounterStore.Slot slot, double x) {
+		byte[] key = slot.journalKey;
+		if (key == null) {
+			List<String> bits = new ArrayList<String>();
+			for (CounterStore.Slot s = slot; s.tag != null; s = s.parent) {
+				int i = s.parent.tag == null? 0 : s.parent.tag.length() + 1;
+				bits.add(0, s.tag.substring(i));
+			}
+			key = encode(bits);
+			if (key == null) {
+				dropped.incrementAndGet();
+				return;
+			}
+			slot.journalKey = key;
+		}
+		append(type, x, 0, key);
+	}
+
+	/**
+	 * Journal a retro count or set.
+	 * @param tagBits Escaped tag bits
+	 */
+	void add(byte type, Time at, List<String> tagBits, double x) {
+		byte[] key = encode(tagBits);
+		if (key == null) {
+			dropped.incrementAndGet();
+			return;
+		}
+		append(type, x, at.getTime(), key);
+	}
+
+	/**
+	 * @return the tag bits as [short n][n x (short len, utf8)], or null if they are too long for that
+	 */
+	private static byte[] encode(List<String> bits) {
+		if (bits.size() > 0xFFFF) return null;
+		ByteBuffer bb = ByteBuffer.allocate(2 + bits.stream().mapToInt(b -> 2 + 3 * b.length()).sum());
+		bb.putShort((short) bits.size());
+		for (String bit : bits) {
+			byte[] bs = bit.getBytes(StandardCharsets.UTF_8);
+			if (bs.length > 0xFFFF) return null;
+			bb.putShort((short) bs.length);
+			bb.put(bs);
+		}
+		byte[] key = new byte[bb.position()];
+		bb.flip();
+		bb.get(key);
+		return key;
+	}
+
+	private void append(byte type, double x, long time, byte[] key) {
+		boolean retro = type == COUNT_AT || type == SET_AT;
+		int len = 4 + 1 + 8 + (retro? 8 : 0) + key.length;
+		if (len > chunkSize - HEADER) {
+			// can't journal this one (a truly giant tag)
+			dropped.incrementAndGet();
+			return;
+		}
+		while (true) {
+			Chunk c = current;
+			int p = c.pos.getAndAdd(len);
+			if (p + len <= c.buf.capacity()) {
+				MappedByteBuffer buf = c.buf;
+				buf.putInt(p, len);
+				int q = p + 5;
+				buf.putDouble(q, x);
+				q += 8;
+				if (retro) {
+					buf.putLong(q, time);
+					q += 8;
+				}
+				for (byte b : key) {
+					buf.put(q++, b);
+				}
+				// publish
+				buf.put(p + 4, type);
+				records.incrementAndGet();
+				return;
+			}
+			try {
+				nextChunk(c);
+			} catch (IOException ex) {
+				dropped.incrementAndGet();
+				Log.e(DataLog.LOGTAG, "Journal "+file+" could not grow: "+ex);
+				return;
+			}
+		}
+	}
+
+	private synchronized void nextChunk(Chunk full) throws IOException {
+		if (current != full) return; // someone else did it
+		int i = chunks.indexOf(full) + 1;
+		current = i < chunks.size()? chunks.get(i) : map(i);
+	}
+
+	/**
+	 * Checkpoint: push the journal to disk.
+	 */
+	synchronized void force() {
+		Chunk c = current;
+		for (Chunk chunk : chunks) {
+			chunk.buf.force();
+			if (chunk == c) break;
+		}
+	}
+
+	/**
+	 * Empty the journal, once its epoch has been stored. Nobody should be writing to it.
+	 * @param nextEpoch The epoch which will next write to this journal
+	 */
+	synchronized void reset(long nextEpoch) {
+		// Mark the contents as dead first, so a crash mid-way does not replay a partial journal
+		writeHeader(STATE_DEAD);
+		byte[] zeros = new byte[64 * 1024];
+		Chunk c = current;
+		for (Chunk chunk : chunks) {
+			int end = Math.max(chunk.used(), chunk.dirty);
+			chunk.dirty = 0;
+			for (int i = chunk.start; i < end; i += zeros.length) {
+				ByteBuffer dup = chunk.buf.duplicate();
+				dup.position(i);
+				dup.put(zeros, 0, Math.min(zeros.length, end - i));
+			}
+			chunk.pos.set(chunk.start);
+			if (chunk == c) break;
+		}
+		force();
+		current = chunks.get(0);
+		epoch = nextEpoch;
+		writeHeader(STATE_LIVE);
+	}
+
+	/**
+	 * Mark the start or end of a copy of another journal's records.
+	 */
+	void mark(byte type, long otherEpoch) {
+		append(type, otherEpoch, 0, NO_BITS);
+	}
+
+	/**
+	 * Feed the journal's records to dl (and set {@link #absorbed}). This does not check {@link #isLive()}.
+	 * Appends after this go after the existing records.
+	 * @param dl
+	 * @return number of records applied
+	 */
+	int replay(DataLogImpl dl) {
+		// Pass 1: is there a complete ABSORB block? (an incomplete one is skipped)
+		Long inBlock = null;
+		for (Chunk chunk : chunks) {
+			int p = chunk.start;
+			int len;
+			while ((len = replay2_len(chunk, p)) != 0) {
+				byte type = chunk.buf.get(p + 4);
+				if (type == ABSORB_START) inBlock = (long) chunk.buf.getDouble(p + 5);
+				if (type == ABSORB_END && inBlock != null) absorbed = inBlock;
+				p += len;
+			}
+		}
+		// Pass 2: apply
+		int n = 0;
+		boolean skipping = false;
+		current = chunks.get(0);
+		for (Chunk chunk : chunks) {
+			int p = chunk.start;
+			int len;
+			while ((len = replay2_len(chunk, p)) != 0) {
+				byte type = chunk.buf.get(p + 4);
+				if (type == ABSORB_START) {
+					skipping = absorbed == null || absorbed != (long) chunk.buf.getDouble(p + 5);
+				} else if (type == ABSORB_END) {
+					skipping = false;
+				} else if (type != 0 && ! skipping) {
+					try {
+						replay2_apply(dl, chunk.buf, p, len, type);
+						n++;
+					} catch (Throwable ex) {
+						Log.w(DataLog.LOGTAG, "Journal "+file+" bad record at "+p+": "+ex);
+					}
+				}
+				p += len;
+			}
+			chunk.pos.set(p);
+			chunk.dirty = chunk.buf.capacity();
+			if (p != chunk.start) current = chunk;
+		}
+		return n;
+	}
+
+	/**
+	 * @return the length of the record at p, or 0 for "no more in this chunk"
+	 */
+	private static int replay2_len(Chunk chunk, int p) {
+		if (p + 4 > chunk.buf.capacity()) return 0;
+		int len = chunk.buf.getInt(p);
+		if (len < MIN_RECORD || p + len > chunk.buf.capacity()) return 0;
+		return len;
+	}
+
+	private void replay2_apply(DataLogImpl dl, MappedByteBuffer buf, int p, int len, byte type) {
+		ByteBuffer bb = buf.duplicate();
+		bb.position(p + 5);
+		bb.limit(p + len);
+		double x = bb.getDouble();
+		Time at = type == COUNT_AT || type == SET_AT? new Time(bb.getLong()) : null;
+		int n = bb.getShort() & 0xFFFF;
+		String[] bits = new String[n];
+		for (int i = 0; i < n; i++) {
+			byte[] bs = new byte[bb.getShort() & 0xFFFF];
+			bb.get(bs);
+			bits[i] = new String(bs, StandardCharsets.UTF_8);
+		}
+		switch (type) {
+		case COUNT: dl.count(x, (Object[]) bits); break;
+		case SET: dl.set(x, (Object[]) bits); break;
+		case MEAN: dl.mean(x, (Object[]) bits); break;
+		case COUNT_AT: dl.count(at, x, (Object[]) bits); break;
+		case SET_AT: dl.set(at, x, (Object[]) bits); break;
+		default:
+			Log.w(DataLog.LOGTAG, "Journal "+file+" unknown record type "+type);
+		}
+	}
+
+	/**
+	 * Open the journals, replay them into dl's current bucket, and leave them ready for use.
+	 * Call from the DataLogImpl constructor, before anyone else can count.
+	 * <p>
+	 * The older journal's records are copied into the newer one (bracketed by ABSORB_START/END),
+	 * then the older one is reset. A crash at any point in this leaves the files replayable.
+	 *
+	 * @return the journals, indexed by parity
+	 */
+	static DataLogJournal[] recover(DataLogImpl dl) throws IOException {
+		DataLogConfig config = dl.getConfig();
+		File dir = config.journalDir;
+		dir.mkdirs();
+		String base = "datalog." + FileUtils.safeFilename(config.namespace, false);
+		DataLogJournal[] journals = new DataLogJournal[2];
+		for (int i = 0; i < 2; i++) {
+			journals[i] = new DataLogJournal(new File(dir, base + "." + i + ".journal"), i, config.journalChunkSize);
+			if ((journals[i].epoch & 1) != i) {
+				Log.w(DataLog.LOGTAG, "Journal "+journals[i].file+" has the wrong parity - ignoring it");
+				journals[i].reset(i);
+			}
+		}
+		// the newer journal has the current epoch
+		DataLogJournal newer = journals[0].epoch > journals[1].epoch? journals[0] : journals[1];
+		if ( ! newer.isLive()) newer = newer == journals[0]? journals[1] : journals[0];
+		DataLogJournal older = newer == journals[0]? journals[1] : journals[0];
+		dl.epoch = new Epoch(newer.epoch);
+
+		// replay the newer -- it's already journalled, so dl.journals is not set yet
+		int replayed = 0;
+		if (newer.isLive()) {
+			replayed += newer.replay(dl);
+		} else {
+			newer.reset(newer.epoch);
+		}
+		// replay the older, copying it into the newer
+		dl.journals = journals;
+		Long absorbed = newer.absorbed;
+		if (older.isLive() && (absorbed == null || absorbed != older.epoch)) {
+			newer.mark(ABSORB_START, older.epoch);
+			replayed += older.replay(dl);
+			newer.mark(ABSORB_END, older.epoch);
+			newer.force();
+		}
+		if (replayed != 0) {
+			Log.i(DataLog.LOGTAG, "Journal: replayed "+replayed+" records into the current bucket");
+		}
+		older.reset(newer.epoch + 1);
+		return journals;
+	}
+
+	/**
+	 * @return records, dropped, epoch, chunks
+	 */
+	Map<String, Object> getStats() {
+		return new ArrayMap(
+				"records", records.get(),
+				"dropped", dropped.get(),
+				"epoch", epoch,
+				"chunks", chunks.size()
+				);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		force();
+		channel.close();
+	}
+
+	@Override
+	public String toString() {
+		return "DataLogJournal[" + file + " epoch:" + epoch + "]";
+	}
+}
@@ -0,0 +1,258 @@
+package com.winterwell.datalog;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.winterwell.es.client.BulkRequest;
+import com.winterwell.es.client.BulkResponse;
+import com.winterwell.es.client.ESHttpClient;
+import com.winterwell.es.client.ESHttpRequest;
+import com.winterwell.utils.MathUtils;
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.containers.Containers;
+import com.winterwell.utils.log.Log;
+import com.winterwell.utils.threads.SafeExecutor;
+import com.winterwell.utils.time.Dt;
+
+/**
+ * Batches up ES index/update requests into _bulk calls, one batch per dataspace.
+ * <p>
+ * A batch is sent when it reaches {@link DataLogConfig#bulkMaxActions} requests or
+ * {@link DataLogConfig#bulkMaxBytes} (estimated) bytes, or on {@link #flush()}.
+ * At most {@link DataLogConfig#bulkMaxInFlight} bulk calls run at once -- beyond that, callers block
+ * (backpressure) rather than queue up an unbounded amount of work.
+ * Items which fail with a retryable status (e.g. 429 too-many-requests) are retried, with backoff.
+ *
+ * @testedby {@link ESBulkWriterTest}
+ */
+public class ESBulkWriter {
+
+	private static final String LOGTAG = "DataLog.ES.bulk";
+
+	private final ESStorage storage;
+	private final int maxActions;
+	private final long maxBytes;
+	private final int maxInFlight;
+	private final int maxRetries;
+	/**
+	 * Milliseconds before the first retry. Doubles after that.
+	 */
+	long backoff = 500;
+	/**
+	 * One permit per in-flight bulk call
+	 */
+	private final Semaphore inFlight;
+	private final SafeExecutor exec;
+
+	private final ConcurrentHashMap<Dataspace, Batch> batches = new ConcurrentHashMap<Dataspace, Batch>();
+
+	/**
+	 * The pending requests for one dataspace. Synchronise on this to edit.
+	 */
+	static final class Batch {
+		List<ESHttpRequest> reqs = new ArrayList<ESHttpRequest>();
+		long bytes;
+
+		/**
+		 * @return the requests so far, and reset this batch
+		 */
+		List<ESHttpRequest> drain() {
+			List<ESHttpRequest> r = reqs;
+			reqs = new ArrayList<ESHttpRequest>();
+			bytes = 0;
+			return r;
+		}
+	}
+
+	public ESBulkWriter(ESStorage storage, DataLogConfig config) {
+		this.storage = storage;
+		this.maxActions = config.bulkMaxActions;
+		this.maxBytes = config.bulkMaxBytes;
+		this.maxInFlight = config.bulkMaxInFlight;
+		this.maxRetries = config.bulkRetries;
+		inFlight = new Semaphore(maxInFlight);
+		exec = new SafeExecutor(Executors.newFixedThreadPool(maxInFlight, r -> {
+			Thread t = new Thread(r, "ESBulkWriter");
+			t.setDaemon(true);
+			return t;
+		}));
+	}
+
+	/**
+	 * Queue a request. This may trigger a send -- and if too many sends are in flight,
+	 * it will block until one finishes.
+	 *
+	 * @param dataspace
+	 * @param req An index or update request, made with {@link ESStorage#client(Dataspace)}
+	 * @param doc The request's doc, for estimating size. Can be null.
+	 */
+	public void add(Dataspace dataspace, ESHttpRequest req, Map<String, Object> doc) {
+		List<ESHttpRequest> full = null;
+		Batch batch = batches.computeIfAbsent(dataspace, k -> new Batch());
+		synchronized (batch) {
+			batch.reqs.add(req);
+			batch.bytes += estimateBytes(doc);
+			if (batch.reqs.size() >= maxActions || batch.bytes >= maxBytes) {
+				full = batch.drain();
+			}
+		}
+		if (full != null) {
+			send(dataspace, full);
+		}
+	}
+
+	/**
+	 * Send all the part-filled batches. Does not wait for them to complete -- see {@link #awaitIdle(Dt)}.
+	 */
+	public void flush() {
+		for (Map.Entry<Dataspace, Batch> e : batches.entrySet()) {
+			List<ESHttpRequest> reqs;
+			Batch batch = e.getValue();
+			synchronized (batch) {
+				if (batch.reqs.isEmpty()) continue;
+				reqs = batch.drain();
+			}
+			send(e.getKey(), reqs);
+		}
+	}
+
+	/**
+	 * Wait for in-flight bulk calls to finish.
+	 * @param timeout
+	 * @return true if idle, false on timeout
+	 */
+	public boolean awaitIdle(Dt timeout) {
+		try {
+			if ( ! inFlight.tryAcquire(maxInFlight, timeout.getMillisecs(), TimeUnit.MILLISECONDS)) {
+				return false;
+			}
+			inFlight.release(maxInFlight);
+			return true;
+		} catch (InterruptedException e) {
+			throw Utils.runtime(e);
+		}
+	}
+
+	private void send(Dataspace dataspace, List<ESHttpRequest> reqs) {
+		// backpressure: block the caller if too much is in flight
+		inFlight.acquireUninterruptibly();
+		try {
+			exec.submit(() -> {
+				try {
+					send2(dataspace, reqs);
+				} finally {
+					inFlight.release();
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			inFlight.release();
+			throw ex;
+		}
+	}
+
+	private void send2(Dataspace dataspace, List<ESHttpRequest> reqs) {
+		List<ESHttpRequest> todo = reqs;
+		for (int attempt = 0; ; attempt++) {
+			try {
+				todo = send3_bulk(dataspace, todo);
+				if (todo.isEmpty()) return;
+			} catch (Throwable ex) {
+				// e.g. a network failure -- retry the lot
+				Log.w(LOGTAG, "bulk of " + todo.size() + " for " + dataspace + " failed: " + ex);
+			}
+			if (attempt >= maxRetries) {
+				Log.e(LOGTAG, "Giving up on " + todo.size() + " items for " + dataspace + " after " + (attempt + 1) + " tries");
+				return;
+			}
+			// backoff: 0.5s, 1s, 2s, ...
+			Utils.sleep(backoff << Math.min(attempt, 6));
+		}
+	}
+
+	/**
+	 * One _bulk call. Overridden in tests.
+	 * @return the requests which failed but are worth retrying
+	 */
+	List<ESHttpRequest> send3_bulk(Dataspace dataspace, List<ESHttpRequest> reqs) {
+		ESHttpClient esc = storage.client(dataspace);
+		BulkRequest bulk = esc.prepareBulk();
+		for (ESHttpRequest req : reqs) {
+			bulk.add(req);
+		}
+		BulkResponse br = bulk.get();
+		if ( ! br.hasErrors()) {
+			return Collections.emptyList();
+		}
+		return send4_retryableFailures(br, reqs);
+	}
+
+	/**
+	 * ES bulk responses list one item per request, in order.
+	 * @return the requests which are worth retrying. The others are logged.
+	 */
+	private List<ESHttpRequest> send4_retryableFailures(BulkResponse br, List<ESHttpRequest> sent) {
+		List<ESHttpRequest> retry = new ArrayList<ESHttpRequest>();
+		List<Map> items = Containers.asList(br.getParsedJson().get("items"));
+		for (int i = 0; i < items.size() && i < sent.size(); i++) {
+			// {"index": {"_id":..., "status":..., "error":...}}
+			Collection<Object> vs = items.get(i).values();
+			if (vs.isEmpty()) continue;
+			Map result = (Map) vs.iterator().next();
+			int status = (int) MathUtils.toNum(result.get("status"));
+			if (status < 300) continue;
+			if (isRetryable(status)) {
+				retry.add(sent.get(i));
+			} else {
+				Log.e(LOGTAG, "bulk item failed: " + status + " " + result.get("error"));
+			}
+		}
+		return retry;
+	}
+
+	/**
+	 * 409 is a version conflict -- e.g. two upserts racing on a grouped event.
+	 */
+	static boolean isRetryable(int status) {
+		return status == 409 || status == 429 || status >= 500;
+	}
+
+	/**
+	 * A rough size for the JSON of doc. This avoids serialising it twice.
+	 */
+	static long estimateBytes(Object doc) {
+		if (doc == null) return 0;
+		if (doc instanceof CharSequence) return ((CharSequence) doc).length() + 2;
+		if (doc instanceof Map) {
+			Map<?, ?> map = (Map) doc;
+			// braces, and a : and , per entry (bar the last ,)
+			long n = map.isEmpty()? 2 : 1;
+			for (Map.Entry e : map.entrySet()) {
+				n += estimateBytes(String.valueOf(e.getKey())) + 2 + estimateBytes(e.getValue());
+			}
+			return n;
+		}
+		if (doc instanceof Collection) {
+			Collection list = (Collection) doc;
+			long n = list.isEmpty()? 2 : 1;
+			for (Object o : list) {
+				n += estimateBytes(o) + 1;
+			}
+			return n;
+		}
+		// numbers, booleans, times etc
+		return 12;
+	}
+
+	@Override
+	public String toString() {
+		return "ESBulkWriter[pending=" + batches.size() + " dataspaces, in-flight=" + (maxInFlight - inFlight.availablePermits()) + "]";
+	}
+}
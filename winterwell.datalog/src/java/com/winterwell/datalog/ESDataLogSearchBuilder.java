@@ -46,6 +46,10 @@ public class ESDataLogSearchBuilder {
 	int numExamples; 
 	Time start;
 	Time end; 
+	/**
+	 * Optional: a window inside start-end to leave out
+	 */
+	Time excludeStart, excludeEnd;
 	SearchQuery query;
 	List<String> breakdown;
 	private boolean doneFlag;
@@ -72,6 +76,9 @@ public class ESDataLogSearchBuilder {
 		doneFlag = true;
 		com.winterwell.es.client.query.BoolQueryBuilder filter 
 			= AppUtils.makeESFilterFromSearchQuery(query, start, end);
+		if (excludeStart != null) {
+			filter = filter.mustNot(ESQueryBuilders.dateRangeQuery("time", excludeStart, excludeEnd));
+		}
 		
 		String index = ESStorage.readIndexFromDataspace(dataspace);
 		
@@ -135,7 +142,7 @@ public class ESDataLogSearchBuilder {
 
 		// ??Is there a use-case for recursive handling??
 		String[] breakdown_output = bd.split("\\{");
-		String[] bucketBy = breakdown_output[0].trim().split("/");
+		String[] bucketBy = getBucketBy(bd);
 		Map<String,String> reportSpec = new ArrayMap("count","sum"); // default to sum of `count`
 		if (breakdown_output.length > 1) {
 			String json = bd.substring(bd.indexOf("{"), bd.length());
@@ -222,6 +229,26 @@ public class ESDataLogSearchBuilder {
 	}
 	
 
+	/**
+	 * @param bd e.g. "evt/time {"count":"sum"}"
+	 * @return the bucket-by fields, e.g. [evt, time]
+	 */
+	static String[] getBucketBy(String bd) {
+		return bd.split("\\{")[0].trim().split("/");
+	}
+
+	/**
+	 * @return true if any breakdown buckets by dateRange. The dateRange buckets depend on the start/end,
+	 * so results for two time windows cannot be merged.
+	 */
+	public static boolean hasDateRange(List<String> breakdown) {
+		for (String bd : breakdown) {
+			if (Utils.isBlank(bd)) continue;
+			if (Arrays.asList(getBucketBy(bd)).contains("dateRange")) return true;
+		}
+		return false;
+	}
+
 	public ESDataLogSearchBuilder setStart(Time start) {
 		assert ! doneFlag;
 		this.start = start;
@@ -234,6 +261,19 @@ public class ESDataLogSearchBuilder {
 		return this;
 	}
 
+	/**
+	 * Leave out events from excludeStart to excludeEnd (inclusive), e.g. a window whose results are cached.
+	 * @param excludeStart
+	 * @param excludeEnd
+	 * @return this
+	 */
+	public ESDataLogSearchBuilder setExclude(Time excludeStart, Time excludeEnd) {
+		assert ! doneFlag;
+		this.excludeStart = excludeStart;
+		this.excludeEnd = excludeEnd;
+		return this;
+	}
+
 	Dt interval = TUnit.DAY.dt;
 	
 	public void setInterval(Dt interval) {
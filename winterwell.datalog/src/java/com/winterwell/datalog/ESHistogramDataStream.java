@@ -0,0 +1,154 @@
+package com.winterwell.datalog;
+
+import java.util.List;
+import java.util.Map;
+
+import com.winterwell.datalog.DataLog.KInterpolate;
+import com.winterwell.maths.timeseries.ADataStream;
+import com.winterwell.maths.timeseries.Datum;
+import com.winterwell.utils.MathUtils;
+import com.winterwell.utils.containers.AbstractIterator;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.TUnit;
+import com.winterwell.utils.time.Time;
+import com.winterwell.utils.web.SimpleJson;
+
+/**
+ * The buckets of an ES date_histogram aggregation, as a 1D data stream. Buckets are converted
+ * to Datums as the stream is read, and {@link KInterpolate} is applied on the fly:
+ * <ul>
+ * <li>null: empty count-buckets are 0, empty mean-buckets are skipped.
+ * <li>{@link KInterpolate#SKIP_ZEROS}: empty and zero buckets are skipped.
+ * <li>{@link KInterpolate#LINEAR_1DAY}: empty mean-buckets are linearly interpolated from the
+ * nearest data either side, looking up to a day away (so the query should fetch a day either side
+ * of [start, end) -- buckets outside that are used for interpolation, but not output).
+ * </ul>
+ * Buckets are labelled with their start time. NB: ES aligns buckets to the epoch, not to start.
+ *
+ * @testedby {@link ESHistogramDataStreamTest}
+ * @author daniel
+ */
+final class ESHistogramDataStream extends ADataStream {
+
+	private static final long serialVersionUID = 1L;
+
+	private final List<Map> buckets;
+	/**
+	 * The name of the sub-aggregation: a sum for counts, stats for means
+	 */
+	private final String agg;
+	private final boolean means;
+	private final String tag;
+	private final long start;
+	private final long end;
+	private final long size;
+	private final KInterpolate interpolate;
+
+	/**
+	 * @param buckets From the date_histogram, in time order
+	 * @param agg The sub-aggregation holding the value
+	 * @param means true: agg is a stats aggregation, use its avg. false: agg is a sum
+	 * @param start Can be null
+	 * @param end Can be null
+	 * @param interpolate Can be null
+	 */
+	ESHistogramDataStream(List<Map> buckets, String agg, boolean means, String tag,
+			Time start, Time end, Dt bucketSize, KInterpolate interpolate)
+	{
+		super(1);
+		this.buckets = buckets;
+		this.agg = agg;
+		this.means = means;
+		this.tag = tag;
+		this.start = start==null? Long.MIN_VALUE : start.getTime();
+		this.end = end==null? Long.MAX_VALUE : end.getTime();
+		this.size = bucketSize.getMillisecs();
+		this.interpolate = interpolate;
+	}
+
+	@Override
+	public AbstractIterator<Datum> iterator() {
+		return new AbstractIterator<Datum>() {
+			int i;
+			/**
+			 * The last bucket with a value, for interpolation
+			 */
+			long prevT = Long.MIN_VALUE;
+			double prevX;
+			/**
+			 * The next bucket with a value, for interpolation. -1 if unknown
+			 */
+			int nexti = -1;
+
+			@Override
+			protected Datum next2() {
+				while (i < buckets.size()) {
+					Map b = buckets.get(i++);
+					long t = key(b);
+					Double x = value(b);
+					if (x != null) {
+						prevT = t;
+						prevX = x;
+					} else if (interpolate == KInterpolate.LINEAR_1DAY) {
+						x = interpolate(t);
+					}
+					// in [start, end)?
+					if (t + size <= start || t >= end) continue;
+					if (x == null) continue;
+					if (interpolate == KInterpolate.SKIP_ZEROS && x == 0) continue;
+					return new Datum(new Time(t), x, tag);
+				}
+				return null;
+			}
+
+			/**
+			 * @param t an empty bucket (i.e. buckets[i-1])
+			 * @return value linearly interpolated from data up to a day either side, or null
+			 */
+			private Double interpolate(long t) {
+				if (prevT == Long.MIN_VALUE || t - prevT > TUnit.DAY.millisecs) {
+					return null;
+				}
+				// look ahead (remembering what we found, so a run of gaps is only scanned once)
+				if (nexti < i) {
+					nexti = buckets.size();
+					for (int j = i; j < buckets.size(); j++) {
+						if (value(buckets.get(j)) != null) {
+							nexti = j;
+							break;
+						}
+					}
+				}
+				if (nexti == buckets.size()) return null;
+				Map nb = buckets.get(nexti);
+				long nextT = key(nb);
+				if (nextT - t > TUnit.DAY.millisecs) return null;
+				double f = (t - prevT) / (double) (nextT - prevT);
+				return prevX + f * (value(nb) - prevX);
+			}
+		};
+	}
+
+	private static long key(Map bucket) {
+		return (long) MathUtils.toNum(bucket.get("key"));
+	}
+
+	/**
+	 * @return the bucket's sum or avg, or null if it is empty
+	 */
+	Double value(Map bucket) {
+		Object v = SimpleJson.get(bucket, agg, means? "avg" : "value");
+		if (v == null) return null;
+		return MathUtils.toNum(v);
+	}
+
+	@Override
+	public boolean isFactory() {
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return "ESHistogramDataStream[" + tag + " " + buckets.size() + " buckets]";
+	}
+}
@@ -10,6 +10,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
@@ -20,6 +21,7 @@ import com.winterwell.es.ESPath;
 import com.winterwell.es.ESType;
 import com.winterwell.es.client.ESConfig;
 import com.winterwell.es.client.ESHttpClient;
+import com.winterwell.es.client.ESHttpRequest;
 import com.winterwell.es.client.ESHttpResponse;
 import com.winterwell.es.client.IESResponse;
 import com.winterwell.es.client.IndexRequest;
@@ -33,6 +35,7 @@ import com.winterwell.es.client.admin.GetAliasesRequest;
 import com.winterwell.es.client.admin.IndicesAdminClient;
 import com.winterwell.es.client.admin.IndicesAliasesRequest;
 import com.winterwell.es.client.admin.PutMappingRequest;
+import com.winterwell.es.client.agg.Aggregation;
 import com.winterwell.es.client.agg.Aggregations;
 import com.winterwell.es.client.query.ESQueryBuilder;
 import com.winterwell.es.client.query.ESQueryBuilders;
@@ -63,6 +66,7 @@ import com.winterwell.utils.time.Dt;
 import com.winterwell.utils.time.Period;
 import com.winterwell.utils.time.TUnit;
 import com.winterwell.utils.time.Time;
+import com.winterwell.utils.web.SimpleJson;
 import com.winterwell.utils.web.XStreamUtils;
 
 /**
@@ -114,16 +118,15 @@ public class ESStorage implements IDataLogStorage {
 
 	@Override
 	public void saveHistory(Map<Pair2<String, Time>, Double> tag2time2count) {		
+		if (tag2time2count.isEmpty()) return;
+		DataLogImpl dl = (DataLogImpl) DataLog.getImplementation();
 		for(Entry<Pair2<String, Time>, Double> tc : tag2time2count.entrySet()) {
 			DataLogEvent event = event4tag(tc.getKey().first, tc.getValue());
 			event.time = tc.getKey().second;
-			// Minor TODO batch for efficiency
-			Collection<DataLogEvent> events = new ArrayList();
-			events.add(event);		
-			DataLogImpl dl = (DataLogImpl) DataLog.getImplementation();
 			Period bucketPeriod = dl.getBucket(event.time); 
-			saveEvents(events, bucketPeriod);
-		}		
+			saveEvent2_bulk(event, bucketPeriod);
+		}
+		bulk.flush();
 	}
 
 	@Override
@@ -135,6 +138,10 @@ public class ESStorage implements IDataLogStorage {
 	@Override
 	public StatReq<IDataStream> getData(String tag, Time start, Time end, KInterpolate fn, Dt bucketSize) {
 		DataLogEvent spec = eventspec4tag(tag);
+		if (bucketSize != null) {
+			IDataStream data = getData2_histogram(spec, tag, start, end, fn, bucketSize, false);
+			return new StatReqFixed<IDataStream>(data);
+		}
 		SearchResponse sr = getData2(spec, start, end, true);
 		List<Map<String, Object>> hits = sr.getSearchResults();
 		ListDataStream list = new ListDataStream(1);
@@ -142,10 +149,11 @@ public class ESStorage implements IDataLogStorage {
 			Object t = hit.get("time");
 			Time time = Time.of(t.toString());
 			Number vcount = (Number) hit.get(count);
+			if (fn == KInterpolate.SKIP_ZEROS && vcount.doubleValue() == 0) continue;
 			Datum d = new Datum(time, vcount.doubleValue(), tag);
 			list.add(d);
 		}
-		// TODO interpolate and buckets
+		// TODO LINEAR_1DAY for raw data
 		return new StatReqFixed<IDataStream>(list);
 	}
 
@@ -182,6 +190,10 @@ public class ESStorage implements IDataLogStorage {
 	@Override
 	public StatReq<IDataStream> getMeanData(String tag, Time start, Time end, KInterpolate fn, Dt bucketSize) {
 		DataLogEvent spec = eventspec4tag(tag);
+		if (bucketSize != null) {
+			IDataStream data = getData2_histogram(spec, tag, start, end, fn, bucketSize, true);
+			return new StatReqFixed<IDataStream>(data);
+		}
 		SearchResponse sr = getData2(spec, start, end, true);
 		List<Map<String, Object>> hits = sr.getSearchResults();
 		ListDataStream list = new ListDataStream(1);
@@ -190,13 +202,40 @@ public class ESStorage implements IDataLogStorage {
 			Object xtra = hit.get("xtra");
 			Time time = Time.of(t.toString());
 			Number vcount = (Number) hit.get(count);
+			if (fn == KInterpolate.SKIP_ZEROS && vcount.doubleValue() == 0) continue;
 			Datum d = new Datum(time, vcount.doubleValue(), tag);
 			list.add(d);
 		}
-		// TODO interpolate and buckets
+		// TODO LINEAR_1DAY for raw data
 		return new StatReqFixed<IDataStream>(list);
 	}
 
+	/**
+	 * Downsample in ES: a date_histogram with one bucket per bucketSize, and a sum (counts)
+	 * or stats (means) of the count field. So the response size depends on (end - start) / bucketSize,
+	 * not on how many events there are -- and is not capped by {@link DataLogConfig#maxDataPoints}.
+	 * 
+	 * @param means Mean events store their mean in count, so these are averaged rather than summed.
+	 * @return the buckets, converted (and interpolated) as they are read
+	 */
+	IDataStream getData2_histogram(DataLogEvent spec, String tag, Time start, Time end, KInterpolate fn, Dt bucketSize, boolean means) {
+		// LINEAR_1DAY looks up to a day either side for data to interpolate from
+		Time qstart = start, qend = end;
+		if (fn == KInterpolate.LINEAR_1DAY) {
+			if (start != null) qstart = start.minus(TUnit.DAY);
+			if (end != null) qend = end.plus(TUnit.DAY);
+		}
+		SearchRequest search = getData3_prepareSearch(spec, qstart, qend);
+		Aggregation byTime = Aggregations.dateHistogram("by_time", "time", bucketSize);
+		byTime.subAggregation(means? Aggregations.stats(count, count) : Aggregations.sum(count, count));
+		search.addAggregation(byTime);
+		search.setSize(0);
+		SearchResponse sr = search.get();
+		List<Map> buckets = Containers.asList((Object) SimpleJson.get(sr.getAggregations(), "by_time", "buckets"));
+		if (buckets == null) buckets = new ArrayList();
+		return new ESHistogramDataStream(buckets, count, means, tag, start, end, bucketSize, fn);
+	}
+
 	@Override
 	public void setHistory(Map<Pair2<String, Time>, Double> tagTime2set) {
 		// TODO Auto-generated method stub
@@ -204,6 +243,9 @@ public class ESStorage implements IDataLogStorage {
 
 	public IDataLogStorage init(DataLogConfig config) {
 //		this.config = config; only used here
+		if (bulk == null) {
+			bulk = new ESBulkWriter(this, config);
+		}
 		// ES config
 		if (esConfig == null) {
 			ConfigFactory cf = ConfigFactory.get();
@@ -232,7 +274,8 @@ public class ESStorage implements IDataLogStorage {
 							.set(f)
 							.get();
 					Dataspace ds = new Dataspace(n);
-					config4dataspace.put(ds, esConfig4n);					
+					config4dataspace.put(ds, esConfig4n);
+					client4dataspace.remove(ds);
 				}
 			}
 		}
@@ -419,6 +462,64 @@ public class ESStorage implements IDataLogStorage {
 	 */
 	@Override
 	public Future<ESHttpResponse> saveEvent(Dataspace dataspace, DataLogEvent event, Period bucketPeriod) {
+		ESHttpRequest saveReq = saveEvent2_prepare(dataspace, event, bucketPeriod);
+		if (saveReq instanceof UpdateRequest) {
+			saveReq.setDebug(true); // Debugging Sep 2018 (this will be noisy)
+			// try x3 before failing
+			saveReq.setRetries(2);
+		}
+		Future<ESHttpResponse> f = saveReq.execute();
+		
+		// log stuff ??does this create a resource leak??
+		if (f instanceof ListenableFuture) {
+			((ListenableFuture<ESHttpResponse>) f).addListener(() -> {			
+				try {
+					ESHttpResponse response = f.get();
+					response.check();
+	//				Log.d("datalog.es", "...saveEvent done :) event: "+event);
+				} catch(Throwable ex) {
+					Log.e(DataLog.LOGTAG, "...saveEvent FAIL :( "+ex+" from event: "+event);
+				}
+			}, MoreExecutors.directExecutor());
+		}
+		
+		return f;
+	}
+	
+	/**
+	 * Queue a save with the bulk writer. Call bulk.flush() when done.
+	 */
+	private void saveEvent2_bulk(DataLogEvent event, Period bucketPeriod) {
+		Dataspace dataspace = new Dataspace(event.dataspace);
+		// serialise once, for both the request and its size estimate
+		Map<String, Object> doc = saveEvent2_doc(event, bucketPeriod);
+		ESHttpRequest saveReq = saveEvent2_prepare(dataspace, event, bucketPeriod, doc);
+		bulk.add(dataspace, saveReq, doc);
+	}
+
+	ESHttpRequest saveEvent2_prepare(Dataspace dataspace, DataLogEvent event, Period bucketPeriod) {
+		return saveEvent2_prepare(dataspace, event, bucketPeriod, saveEvent2_doc(event, bucketPeriod));
+	}
+
+	/**
+	 * @return the json to store for event. This sets event.time if it was null.
+	 */
+	private Map<String, Object> saveEvent2_doc(DataLogEvent event, Period bucketPeriod) {
+		// always have a time
+		if (event.time==null) {
+			event.time = bucketPeriod.getEnd();
+		}
+		return event.toJson2();
+	}
+
+	/**
+	 * @param dataspace
+	 * @param event
+	 * @param bucketPeriod 
+	 * @param doc From {@link #saveEvent2_doc(DataLogEvent, Period)}
+	 * @return an index request, or an update (upsert) request for grouped events. Not yet executed.
+	 */
+	private ESHttpRequest saveEvent2_prepare(Dataspace dataspace, DataLogEvent event, Period bucketPeriod, Map<String, Object> doc) {
 		if (event.dataspace!=null && ! event.dataspace.equals(dataspace.name)) {
 			Log.e(LOGTAG, new WeirdException("(swallowing) Dataspace mismatch: "+dataspace+" vs "+event.dataspace+" in "+event));
 		}
@@ -438,62 +539,31 @@ public class ESStorage implements IDataLogStorage {
 			id = event.getId()+"_"+secs;
 		}
 		
-		// always have a time
-		if (event.time==null) {
-			event.time = bucketPeriod.getEnd();
-		}
-		
 		ESHttpClient client = client(dataspace);
 		
-//		client.debug = true;
-		
 		String index = writeIndexFromDataspace(dataspace);
 		// save -- update for grouped events, index otherwise
 		ESPath path = new ESPath(index, type, id);
-		Future<ESHttpResponse> f;
 		if (grpById) {
 			UpdateRequest saveReq = client.prepareUpdate(path);
-			saveReq.setDebug(true); // Debugging Sep 2018 (this will be noisy)
-			// try x3 before failing
-			saveReq.setRetries(2);
-			// set doc
-			Map<String, Object> doc = event.toJson2();
 			PainlessScriptBuilder psb = PainlessScriptBuilder.fromJsonObject(doc);
 			saveReq.setScript(psb);
 			// upsert		
 			saveReq.setUpsert(doc);
-			saveReq.setDebug(true); 
-			f = saveReq.execute();
-		} else {
-			IndexRequest saveReq = client.prepareIndex(path);
-			if (event.time==null) event.time = bucketPeriod.getEnd();
-			// set doc
-			Map<String, Object> doc = event.toJson2();			
-			saveReq.setBodyMap(doc);
-			f = saveReq.execute();
-		}		
-		client.close();
-		
-		// log stuff ??does this create a resource leak??
-		if (f instanceof ListenableFuture) {
-			((ListenableFuture<ESHttpResponse>) f).addListener(() -> {			
-				try {
-					ESHttpResponse response = f.get();
-					response.check();
-	//				Log.d("datalog.es", "...saveEvent done :) event: "+event);
-				} catch(Throwable ex) {
-					Log.e(DataLog.LOGTAG, "...saveEvent FAIL :( "+ex+" from event: "+event);
-				}
-			}, MoreExecutors.directExecutor());
+			return saveReq;
 		}
-		
-		return f;
+		IndexRequest saveReq = client.prepareIndex(path);
+		saveReq.setBodyMap(doc);
+		return saveReq;
 	}
 	
 	@Override
 	public void flush() {
-		// wait a second
-		Utils.sleep(1000);
+		// send any part-batches, and wait for them
+		bulk.flush();
+		if ( ! bulk.awaitIdle(new Dt(10, TUnit.SECOND))) {
+			Log.w(LOGTAG, "flush: timed out waiting for "+bulk);
+		}
 	}
 
 	@Override
@@ -541,11 +611,35 @@ public class ESStorage implements IDataLogStorage {
 //		if end in bucket, end at end of bucket
 		
 		DataLogConfig config = Dep.get(DataLogConfig.class);		
+		SearchRequest search = getData3_prepareSearch(spec, start, end);
+		search.setSize(config.maxDataPoints);
+		if (sortByTime) {
+			Sort sort = new Sort("time", KSortOrder.asc);
+			search.addSort(sort);
+		}
+
+		// stats or just sum??
+		if (sortByTime) {
+			
+		} else {
+			search.addAggregation(Aggregations.stats("event_total", count));
+			search.setSize(0);
+		}
+//		ListenableFuture<ESHttpResponse> sf = search.execute(); TODO return a future
+//		client.debug = true;
+		SearchResponse sr = search.get();
+//		client.debug = false;
+		return sr;
+	}
+
+	/**
+	 * @return a search on the read index, filtered by time and tag
+	 */
+	private SearchRequest getData3_prepareSearch(DataLogEvent spec, Time start, Time end) {
 		final Dataspace dataspace = new Dataspace(spec.dataspace);
 		String index = readIndexFromDataspace(dataspace);
 		SearchRequest search = client(dataspace).prepareSearch(index);
 		search.setType(ESTYPE);
-		search.setSize(config.maxDataPoints);
 		
 		com.winterwell.es.client.query.BoolQueryBuilder filter = ESQueryBuilders.boolQuery();
 //		BoolQueryBuilder filter = QueryBuilders.boolQuery();
@@ -564,39 +658,40 @@ public class ESStorage implements IDataLogStorage {
 		}		
 		
 		search.setQuery(filter);
-		if (sortByTime) {
-			Sort sort = new Sort("time", KSortOrder.asc);
-			search.addSort(sort);
-		}
-
-		// stats or just sum??
-		if (sortByTime) {
-			
-		} else {
-			search.addAggregation(Aggregations.stats("event_total", count));
-			search.setSize(0);
-		}
-//		ListenableFuture<ESHttpResponse> sf = search.execute(); TODO return a future
-//		client.debug = true;
-		SearchResponse sr = search.get();
-//		client.debug = false;
-		return sr;
+		return search;
 	}
 
 	static Map<Dataspace, ESConfig> config4dataspace = new HashMap();
 	
-	public ESHttpClient client(Dataspace dataspace) {		
+	/**
+	 * Clients are re-used, as they are thread-safe, and making one is not free. 
+	 */
+	private final Map<Dataspace, ESHttpClient> client4dataspace = new ConcurrentHashMap();
+
+	/**
+	 * Batches saveEvents() and saveHistory() into _bulk requests
+	 */
+	private ESBulkWriter bulk;
+	
+	/**
+	 * @param dataspace
+	 * @return a shared client -- do not close it
+	 */
+	public ESHttpClient client(Dataspace dataspace) {
+		ESHttpClient client = client4dataspace.get(dataspace);
+		if (client != null) return client;
 		ESConfig _config = Utils.or(config4dataspace.get(dataspace), esConfig);
 		assert _config != null : dataspace+" "+esConfig;
-		return new ESHttpClient(_config);
+		return client4dataspace.computeIfAbsent(dataspace, k -> new ESHttpClient(_config));
 	}
 
 	@Override
 	public void saveEvents(Collection<DataLogEvent> events, Period period) {
-		// TODO use a batch-save for speed
+		if (events.isEmpty()) return;
 		for (DataLogEvent e : events) {
-			saveEvent(new Dataspace(e.dataspace), e, period);
+			saveEvent2_bulk(e, period);
 		}
+		bulk.flush();
 	}
 
 	/**
@@ -0,0 +1,97 @@
+package com.winterwell.datalog;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One DataLog bucket-in-progress. Writers {@link #enter(DataLogImpl)} the current epoch, and
+ * {@link #exit()} when done. At save time, {@link DataLogImpl} installs a new epoch, then
+ * {@link #drain()}s the old one -- after which nobody is writing to it, and it can be handed
+ * to storage without any locks or lost counts.
+ * <p>
+ * The counters themselves live in {@link CounterStore}, double-buffered by {@link #parity}.
+ *
+ * @testedby {@link EpochTest}
+ */
+final class Epoch {
+
+	/**
+	 * Sequence number, which also numbers the journal generations: it is stamped in the
+	 * {@link DataLogJournal} header, and on restart the journal with the higher n is the current one
+	 * (see {@link DataLogJournal#recover(DataLogImpl)}). So it must go up by one per epoch, and never
+	 * go back -- its low bit is the {@link #parity}.
+	 */
+	final long n;
+
+	/**
+	 * 0 or 1: which {@link CounterStore.Cell} this epoch writes to.
+	 */
+	final int parity;
+
+	/**
+	 * Writers in flight = entered - exited.
+	 * Striped, so that writers on different cores do not contend.
+	 */
+	private final LongAdder entered = new LongAdder();
+	private final LongAdder exited = new LongAdder();
+
+	final ConcurrentMap<String, DataLogEvent> id2event = new ConcurrentHashMap<String, DataLogEvent>();
+
+	/**
+	 * Historical data of the form tag+time -> count
+	 * value: a delta to apply to stored value for this time-bucket.
+	 */
+	final TagTimeMap tagTime2count = new TagTimeMap();
+
+	final TagTimeMap tagTime2set = new TagTimeMap();
+
+	Epoch(long n) {
+		this.n = n;
+		this.parity = (int) (n & 1);
+	}
+
+	Epoch next() {
+		return new Epoch(n + 1);
+	}
+
+	/**
+	 * Register as a writer on the current epoch.
+	 * You MUST call {@link #exit()} on the returned epoch afterwards (use try-finally).
+	 *
+	 * @param dl
+	 * @return the epoch to write to
+	 */
+	static Epoch enter(DataLogImpl dl) {
+		while (true) {
+			Epoch ep = dl.epoch;
+			ep.entered.increment();
+			// Did a rollover sneak in? Then the saver may not have seen us -- retry on the new epoch.
+			if (ep == dl.epoch) return ep;
+			ep.exited.increment();
+		}
+	}
+
+	void exit() {
+		exited.increment();
+	}
+
+	/**
+	 * Wait for in-flight writers to finish. Call this after the epoch has been replaced, so that
+	 * no new writers can arrive. Writers are short (a few map operations), so this spins.
+	 */
+	void drain() {
+		while (true) {
+			// read exited first: both only go up, so equality means nobody is in flight
+			long out = exited.sum();
+			long in = entered.sum();
+			if (in == out) return;
+			Thread.yield();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Epoch[" + n + "]";
+	}
+}
@@ -0,0 +1,217 @@
+package com.winterwell.datalog;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Bit-packed compression for time-series columns, as in Facebook's Gorilla paper:
+ * <ul>
+ * <li>timestamps: delta-of-delta, with a variable-length prefix code. Regular saves (e.g. every 15 minutes)
+ * cost 1 bit each.
+ * <li>values: XOR with the previous value, storing only the meaningful bits. Repeated values cost 1 bit,
+ * and slowly-varying ones typically a dozen or so.
+ * </ul>
+ * Used by {@link ColumnarSegment}.
+ *
+ * @testedby {@link ColumnarStorageTest}
+ * @author daniel
+ */
+final class GorillaCodec {
+
+	private GorillaCodec() {}
+
+	/**
+	 * Append-only bit buffer.
+	 */
+	static final class BitWriter {
+		private byte[] buf = new byte[64];
+		private long bits;
+
+		void write(boolean bit) {
+			ensure(1);
+			if (bit) {
+				buf[(int) (bits >>> 3)] |= (byte) (0x80 >>> (bits & 7));
+			}
+			bits++;
+		}
+
+		/**
+		 * @param v
+		 * @param n number of low bits of v to write, most-significant first. 0 to 64.
+		 */
+		void write(long v, int n) {
+			ensure(n);
+			for (int i = n - 1; i >= 0; i--) {
+				if (((v >>> i) & 1) != 0) {
+					buf[(int) (bits >>> 3)] |= (byte) (0x80 >>> (bits & 7));
+				}
+				bits++;
+			}
+		}
+
+		private void ensure(int n) {
+			int need = (int) ((bits + n + 7) >>> 3);
+			if (need > buf.length) {
+				buf = Arrays.copyOf(buf, Math.max(need, buf.length * 2));
+			}
+		}
+
+		/**
+		 * @return number of bytes used
+		 */
+		int size() {
+			return (int) ((bits + 7) >>> 3);
+		}
+
+		void writeTo(ByteBuffer out) {
+			out.put(buf, 0, size());
+		}
+	}
+
+	/**
+	 * Reads bits from a buffer, starting at a byte offset.
+	 */
+	static final class BitReader {
+		private final ByteBuffer buf;
+		private final int offset;
+		private long bits;
+
+		BitReader(ByteBuffer buf, int offset) {
+			this.buf = buf;
+			this.offset = offset;
+		}
+
+		boolean read() {
+			int b = buf.get(offset + (int) (bits >>> 3));
+			boolean bit = (b & (0x80 >>> (bits & 7))) != 0;
+			bits++;
+			return bit;
+		}
+
+		long read(int n) {
+			long v = 0;
+			for (int i = 0; i < n; i++) {
+				v = (v << 1) | (read() ? 1 : 0);
+			}
+			return v;
+		}
+	}
+
+	/**
+	 * @param times Must be sorted (actually: any order works, but sorted is what compresses)
+	 * @param n
+	 * @param out
+	 */
+	static void writeTimes(long[] times, int n, BitWriter out) {
+		if (n == 0) return;
+		out.write(times[0], 64);
+		long prevDelta = 0;
+		for (int i = 1; i < n; i++) {
+			long delta = times[i] - times[i - 1];
+			long dod = delta - prevDelta;
+			prevDelta = delta;
+			if (dod == 0) {
+				out.write(false);
+			} else if (dod >= -63 && dod <= 64) {
+				out.write(0b10, 2);
+				out.write(dod, 7);
+			} else if (dod >= -255 && dod <= 256) {
+				out.write(0b110, 3);
+				out.write(dod, 9);
+			} else if (dod >= -2047 && dod <= 2048) {
+				out.write(0b1110, 4);
+				out.write(dod, 12);
+			} else {
+				// NB: Gorilla uses 32 bits here, as it stores seconds. We have millisecond gaps which can be months.
+				out.write(0b1111, 4);
+				out.write(dod, 64);
+			}
+		}
+	}
+
+	static long[] readTimes(BitReader in, int n) {
+		long[] times = new long[n];
+		if (n == 0) return times;
+		times[0] = in.read(64);
+		long delta = 0;
+		for (int i = 1; i < n; i++) {
+			long dod;
+			if ( ! in.read()) {
+				dod = 0;
+			} else if ( ! in.read()) {
+				dod = signExtend(in.read(7), 7);
+			} else if ( ! in.read()) {
+				dod = signExtend(in.read(9), 9);
+			} else if ( ! in.read()) {
+				dod = signExtend(in.read(12), 12);
+			} else {
+				dod = in.read(64);
+			}
+			delta += dod;
+			times[i] = times[i - 1] + delta;
+		}
+		return times;
+	}
+
+	private static long signExtend(long v, int n) {
+		// the positive end of the range is one larger than two's complement allows (e.g. 64 in 7 bits)
+		long half = 1L << (n - 1);
+		if (v == half) return half;
+		return (v << (64 - n)) >> (64 - n);
+	}
+
+	static void writeValues(double[] xs, int n, BitWriter out) {
+		if (n == 0) return;
+		long prev = Double.doubleToRawLongBits(xs[0]);
+		out.write(prev, 64);
+		int prevLeading = -1, prevTrailing = 0;
+		for (int i = 1; i < n; i++) {
+			long v = Double.doubleToRawLongBits(xs[i]);
+			long xor = v ^ prev;
+			prev = v;
+			if (xor == 0) {
+				out.write(false);
+				continue;
+			}
+			out.write(true);
+			int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+			int trailing = Long.numberOfTrailingZeros(xor);
+			if (prevLeading != -1 && leading >= prevLeading && trailing >= prevTrailing) {
+				// fits in the previous window
+				out.write(false);
+				out.write(xor >>> prevTrailing, 64 - prevLeading - prevTrailing);
+				continue;
+			}
+			out.write(true);
+			int len = 64 - leading - trailing;
+			out.write(leading, 5);
+			// len is 1 to 64 -- store 64 as 0
+			out.write(len & 63, 6);
+			out.write(xor >>> trailing, len);
+			prevLeading = leading;
+			prevTrailing = trailing;
+		}
+	}
+
+	static double[] readValues(BitReader in, int n) {
+		double[] xs = new double[n];
+		if (n == 0) return xs;
+		long prev = in.read(64);
+		xs[0] = Double.longBitsToDouble(prev);
+		int leading = 0, trailing = 0;
+		for (int i = 1; i < n; i++) {
+			if (in.read()) {
+				if (in.read()) {
+					leading = (int) in.read(5);
+					int len = (int) in.read(6);
+					if (len == 0) len = 64;
+					trailing = 64 - leading - len;
+				}
+				long xor = in.read(64 - leading - trailing) << trailing;
+				prev ^= xor;
+			}
+			xs[i] = Double.longBitsToDouble(prev);
+		}
+		return xs;
+	}
+}
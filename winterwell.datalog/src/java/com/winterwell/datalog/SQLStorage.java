@@ -4,8 +4,12 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.regex.Pattern;
 
@@ -45,6 +49,35 @@ public class SQLStorage implements IDataLogStorage {
 	public static String COLUMNS_DISTR = " timestamp, tag, count_mean, variance, min, max ";
 	
 	private static int BATCH_SIZE = 100;
+
+	/**
+	 * Rows per multi-row INSERT. Postgres allows up to 32767 parameters per statement.
+	 */
+	static final int ROWS_PER_INSERT = 2000;
+	
+	/**
+	 * A count row has no variance, a mean row does. So a tag can have both at one timestamp.
+	 */
+	static final String UNIQUE_KEY = "(tag, timestamp, (variance is null))";
+	static final String UNIQUE_INDEX = "stats_tag_timestamp_kind_uidx";
+
+	static final String ON_CONFLICT_ADD = " on conflict " + UNIQUE_KEY + " do update set count_mean = "
+			+ TABLE + ".count_mean + excluded.count_mean";
+	static final String ON_CONFLICT_SET = " on conflict " + UNIQUE_KEY + " do update set count_mean = excluded.count_mean";
+	static final String ON_CONFLICT_SET_DISTR = " on conflict " + UNIQUE_KEY + " do update set count_mean = excluded.count_mean, "
+			+ "variance = excluded.variance, min = excluded.min, max = excluded.max";
+
+	/**
+	 * true if the {@link #UNIQUE_INDEX} is in place, so we can upsert with INSERT ... ON CONFLICT
+	 */
+	private boolean upsert;
+	
+	private final Object saveLock = new Object();
+	
+	/**
+	 * Reused between saves. Guarded by saveLock.
+	 */
+	private Connection saveConn;
 	
 	private DataLogConfig config;
 
@@ -118,6 +151,61 @@ public class SQLStorage implements IDataLogStorage {
 		
 		SqlUtils.executeCommand("create index stats_timestamp_idx on stats (timestamp);", null, true);
 		SqlUtils.executeCommand("create index stats_tag_idx on stats (tag);", null, true);
+		// For upserts (needs Postgres 9.5+)
+		upsert = hasUniqueIndex();
+		if ( ! upsert) {
+			try {
+				migrateToUniqueIndex();
+				upsert = hasUniqueIndex();
+			} catch(Exception ex) {
+				Log.e(DataLog.LOGTAG, "SQLStorage: unique index migration failed: "+Utils.getRootCause(ex));
+			}
+		}
+		if ( ! upsert) {
+			Log.w(DataLog.LOGTAG, "SQLStorage: no unique "+UNIQUE_KEY+" index, so no upserts.");
+		}
+	}
+
+	private boolean hasUniqueIndex() {
+		try {
+			return SqlUtils.executeQuery(
+					"select 1 from pg_indexes where indexname = '"+UNIQUE_INDEX+"';", null, 1).iterator().hasNext();
+		} catch(Exception ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * One-off migration for tables from before {@link #UNIQUE_INDEX}, which can hold several rows
+	 * per tag, timestamp and kind. Duplicate count rows are merged into one (readers sum them anyway),
+	 * for duplicate mean rows the latest is kept. Then the unique index is made.
+	 * All in one transaction, so on failure the table is left as it was.
+	 */
+	void migrateToUniqueIndex() throws SQLException {
+		Log.i(DataLog.LOGTAG, "SQLStorage: migrating "+TABLE+" to a unique "+UNIQUE_KEY+" index...");
+		synchronized (saveLock) {
+			Connection conn = getSaveConnection();
+			try (Statement stmnt = conn.createStatement()) {
+				int merged = stmnt.executeUpdate("update "+TABLE+" s set count_mean = d.total from "
+						+ "(select min(id) as keep, sum(count_mean) as total from "+TABLE
+						+ " where variance is null group by tag, timestamp having count(*) > 1) d where s.id = d.keep;");
+				int counts = stmnt.executeUpdate("delete from "+TABLE+" s using "+TABLE+" k"
+						+ " where s.variance is null and k.variance is null"
+						+ " and s.tag = k.tag and s.timestamp = k.timestamp and s.id > k.id;");
+				int means = stmnt.executeUpdate("delete from "+TABLE+" s using "+TABLE+" k"
+						+ " where s.variance is not null and k.variance is not null"
+						+ " and s.tag = k.tag and s.timestamp = k.timestamp and s.id < k.id;");
+				// from an earlier version, which clashed counts with means
+				stmnt.execute("drop index if exists stats_tag_timestamp_uidx;");
+				stmnt.execute("create unique index "+UNIQUE_INDEX+" on "+TABLE+" "+UNIQUE_KEY+";");
+				conn.commit();
+				Log.i(DataLog.LOGTAG, "SQLStorage: migrated. Merged "+counts+" duplicate count rows into "+merged
+						+", dropped "+means+" old duplicate mean rows");
+			} catch (SQLException ex) {
+				rollback();
+				throw ex;
+			}
+		}
 	}
 
 	
@@ -134,49 +222,50 @@ public class SQLStorage implements IDataLogStorage {
 		}
 		assert initFlag;
 
-		String sqlPrefix = "insert into " + TABLE;
-
 		// Save as the middle of the period?!
 		Time mid = DataLogImpl.doSave3_time(period);
+		Long timestamp = mid.getTime();
 
-		Connection conn = null;
-		try {
-			conn = config.dbUrl!=null? SqlUtils.getConnection(config) : SqlUtils.getConnection();
-			for (String tag : tag2count.keySet()) {
-				Double value = tag2count.get(tag);				
-//				if (value!=null && value > 0) Log.d(Stat.LOGTAG, "saving " + tag + "=" + value + " to db");
-	
-				String values = " values (" + mid.getTime() + ", "+ SqlUtils.sqlEncode(tag) +", " + value + ");";
-				String sql = sqlPrefix + " ( " + COLUMNS_COUNT + " ) " + values;
-				SqlUtils.executeUpdate(sql, conn);
-			}
-	
-			for (String tag : tag2mean.keySet()) {
-				IDistribution1D value = tag2mean.get(tag);
-//				Log.v(Stat.LOGTAG, "saving " + tag + "=" + value + " to db");
-				double min = value.getSupport().low;
-				double max = value.getSupport().high;
-				// protect SQL from infinity
-				if ( ! MathUtils.isFinite(min)) min = 0;
-				if ( ! MathUtils.isFinite(max)) max = 0;
-				String values = "values (" 	+
-						mid.getTime() 			+ ", " +
-						SqlUtils.sqlEncode(tag)	+ ", " +
-						value.getMean() 		+ ", " +
-						value.getVariance() 	+ ", " +
-						min 			+ ", " +
-						max			
-//						value.getCount() TODO
-						+ ");";
-				String sql = sqlPrefix + " ( " + COLUMNS_DISTR + " ) " + values;
-
-				SqlUtils.executeUpdate(sql, conn);
+		List<Object[]> counts = new ArrayList<Object[]>(tag2count.size());
+		for (Map.Entry<String, Double> e : tag2count.entrySet()) {
+			if (e.getValue()==null) continue;
+			counts.add(new Object[] {timestamp, e.getKey(), e.getValue()});
+		}
+		List<Object[]> means = new ArrayList<Object[]>(tag2mean.size());
+		for (Map.Entry<String, IDistribution1D> e : tag2mean.entrySet()) {
+			IDistribution1D value = e.getValue();
+			double min = value.getSupport().low;
+			double max = value.getSupport().high;
+			// protect SQL from infinity
+			if ( ! MathUtils.isFinite(min)) min = 0;
+			if ( ! MathUtils.isFinite(max)) max = 0;
+			means.add(new Object[] {timestamp, e.getKey(), value.getMean(), value.getVariance(), min, max});
+		}
+
+		synchronized (saveLock) {
+			try {
+				Connection conn = getSaveConnection();
+				try {
+					// one transaction for the lot
+					insertRows(conn, COLUMNS_COUNT, upsert? ON_CONFLICT_ADD : "", counts);
+					insertRows(conn, COLUMNS_DISTR, upsert? ON_CONFLICT_SET_DISTR : "", means);
+					conn.commit();
+				} catch (SQLException ex) {
+					rollback();
+					throw ex;
+				}
+			} catch (SQLException e) {
+				Log.e(DataLog.LOGTAG, Utils.getRootCause(e));
+				throw Utils.runtime(e);
 			}
-		} finally {
-			SqlUtils.close(conn);
 		}
+		StatReqBatcher.dflt.invalidate(tag2count.keySet(), mid);
+		StatReqBatcher.dflt.invalidate(tag2mean.keySet(), mid);
 	}
 	
+	/**
+	 * Adds to the values at the given tag/time pairs.
+	 */
 	@Override
 	public void saveHistory(Map<Pair2<String, Time>, Double> tag2time2count) {
 		saveHistory2(tag2time2count, false);
@@ -206,42 +295,72 @@ public class SQLStorage implements IDataLogStorage {
 			Log.e(DataLog.LOGTAG, "Cannot save history! Database not initialised. Losing counts for: "+tag2time2count.keySet());
 			return;
 		}
-		if (tag2time2count.isEmpty()) return;
-	
+		synchronized (saveLock) {
+			try {
+				Connection conn = getSaveConnection();
+				try {
+					if (upsert) {
+						List<Object[]> rows = new ArrayList<Object[]>(tag2time2count.size());
+						for (Map.Entry<Pair2<String, Time>, Double> e : tag2time2count.entrySet()) {
+							rows.add(new Object[] {e.getKey().second.getTime(), e.getKey().first, e.getValue()});
+						}
+						insertRows(conn, COLUMNS_COUNT, setOrAdd? ON_CONFLICT_SET : ON_CONFLICT_ADD, rows);
+					} else {
+						saveHistory3_selectThenWrite(conn, tag2time2count, setOrAdd);
+					}
+					conn.commit();
+					Log.d(DataLog.LOGTAG, "saveHistory " + tag2time2count.size() + " rows");
+				} catch (SQLException ex) {
+					rollback();
+					throw ex;
+				}
+			} catch (SQLException e) {
+				Log.e(DataLog.LOGTAG, Utils.getRootCause(e));
+				throw Utils.runtime(e);
+			}
+		}
+		StatReqBatcher.dflt.invalidate(tag2time2count);
+	}
+
+	/**
+	 * The fallback for when there's no unique index (so no upserts): 
+	 * try first an update and if it doesn't succeed insert the row. Does not commit.
+	 * Only count rows (no variance) are touched.
+	 */
+	private void saveHistory3_selectThenWrite(Connection conn, Map<Pair2<String, Time>, Double> tag2time2count, boolean setOrAdd) 
+			throws SQLException 
+	{
 		int rowCount = 0;
-		Connection conn = null;
-		try {
-			conn = config.dbUrl!=null? SqlUtils.getConnection(config) : SqlUtils.getConnection();
-			// Try first an update and if it doesn't succeed insert the row.
-			PreparedStatement select = conn.prepareStatement(
-					"SELECT count_mean FROM " + TABLE + " WHERE timestamp = ? AND tag = ?;");			
+		try (PreparedStatement select = conn.prepareStatement(
+				"SELECT count_mean FROM " + TABLE + " WHERE timestamp = ? AND tag = ? AND variance IS NULL;");			
 			PreparedStatement update = conn.prepareStatement(
-					"UPDATE " + TABLE + " SET " + " count_mean = ? WHERE timestamp = ? AND tag = ?;");
+				"UPDATE " + TABLE + " SET " + " count_mean = ? WHERE timestamp = ? AND tag = ? AND variance IS NULL;");
 			PreparedStatement insert = conn.prepareStatement(
-					"INSERT INTO " + TABLE + " (timestamp, count_mean, tag) values (?, ?, ?);");
-			
+				"INSERT INTO " + TABLE + " (timestamp, count_mean, tag) values (?, ?, ?);"))
+		{
 			for (Pair2<String, Time> key : tag2time2count.keySet()) {
 				long timestamp = key.second.getTime();
 				String tag = key.first;
 				Double value = tag2time2count.get(key);
 				
-				select.setDouble(1, timestamp);
+				select.setLong(1, timestamp);
 				select.setString(2, tag);
 				
-				ResultSet rs = select.executeQuery();
-				if (rs.next()) {
-					// It already exists: update
-					if ( ! setOrAdd) value += rs.getDouble(1);					
-					update.setDouble(1, value);
-					update.setLong(2, timestamp);
-					update.setString(3, tag);
-					update.addBatch();
-				} else {
-					// It doesn't exist: insert
-					insert.setLong(1, timestamp);
-					insert.setDouble(2, value);
-					insert.setString(3, tag);
-					insert.addBatch();
+				try (ResultSet rs = select.executeQuery()) {
+					if (rs.next()) {
+						// It already exists: update
+						if ( ! setOrAdd) value += rs.getDouble(1);					
+						update.setDouble(1, value);
+						update.setLong(2, timestamp);
+						update.setString(3, tag);
+						update.addBatch();
+					} else {
+						// It doesn't exist: insert
+						insert.setLong(1, timestamp);
+						insert.setDouble(2, value);
+						insert.setString(3, tag);
+						insert.addBatch();
+					}
 				}
 								
 				if (++rowCount % BATCH_SIZE == 0) {
@@ -250,22 +369,97 @@ public class SQLStorage implements IDataLogStorage {
 					
 					insert.executeBatch();
 					insert.clearBatch();
-					
-					Log.d(DataLog.LOGTAG, "saving batch of " + BATCH_SIZE + " rows");
 				}
 			}
 			
 			// Final batch
 			update.executeBatch();
 			insert.executeBatch();
-			conn.commit();
-			Log.d(DataLog.LOGTAG, "saveHistory " + rowCount + " rows "+tag2time2count);			
-		} catch (SQLException e) {
-			Log.e(DataLog.LOGTAG, Utils.getRootCause(e));
-			throw Utils.runtime(e);
+		}
+	}
+
+	/**
+	 * Multi-row INSERTs, {@link #ROWS_PER_INSERT} rows per round-trip. Does not commit.
+	 * 
+	 * @param columns e.g. {@link #COLUMNS_COUNT}
+	 * @param onConflict e.g. {@link #ON_CONFLICT_ADD}, or "" for a plain insert
+	 * @param rows Each row has a value per column
+	 */
+	static void insertRows(Connection conn, String columns, String onConflict, List<Object[]> rows) throws SQLException {
+		if (rows.isEmpty()) return;
+		int nCols = columns.split(",").length;
+		PreparedStatement full = null;
+		try {
+			for (int i = 0; i < rows.size(); i += ROWS_PER_INSERT) {
+				int n = Math.min(ROWS_PER_INSERT, rows.size() - i);
+				// full-size statements are prepared once and reused
+				PreparedStatement ps;
+				if (n == ROWS_PER_INSERT) {
+					if (full == null) full = conn.prepareStatement(insertSql(columns, nCols, n, onConflict));
+					ps = full;
+				} else {
+					ps = conn.prepareStatement(insertSql(columns, nCols, n, onConflict));
+				}
+				try {
+					int p = 1;
+					for (int r = i; r < i + n; r++) {
+						for (Object v : rows.get(r)) {
+							ps.setObject(p++, v);
+						}
+					}
+					ps.executeUpdate();
+				} finally {
+					if (ps != full) ps.close();
+				}
+			}
 		} finally {
-			SqlUtils.close(conn);
+			if (full != null) full.close();
+		}
+	}
+
+	/**
+	 * @return e.g. "insert into stats ( timestamp, tag, count_mean ) values (?,?,?),(?,?,?);"
+	 */
+	static String insertSql(String columns, int nCols, int nRows, String onConflict) {
+		StringBuilder sql = new StringBuilder("insert into ").append(TABLE)
+				.append(" (").append(columns).append(") values ");
+		for (int r = 0; r < nRows; r++) {
+			if (r != 0) sql.append(',');
+			sql.append('(');
+			for (int c = 0; c < nCols; c++) {
+				if (c != 0) sql.append(',');
+				sql.append('?');
+			}
+			sql.append(')');
+		}
+		sql.append(onConflict).append(';');
+		return sql.toString();
+	}
+
+	/**
+	 * The save connection is kept open between saves (BoneCPPool is not currently available).
+	 */
+	private Connection getSaveConnection() throws SQLException {
+		if (saveConn != null && ! saveConn.isClosed()) {
+			return saveConn;
 		}
+		saveConn = config.dbUrl!=null? SqlUtils.getConnection(config) : SqlUtils.getConnection();
+		return saveConn;
+	}
+
+	/**
+	 * Roll back, and drop the connection (it may be broken) 
+	 */
+	private void rollback() {
+		Connection conn = saveConn;
+		saveConn = null;
+		if (conn == null) return;
+		try {
+			conn.rollback();
+		} catch (SQLException ex) {
+			Log.w(DataLog.LOGTAG, "rollback failed: "+ex);
+		}
+		SqlUtils.close(conn);
 	}
 
 	@Override
@@ -275,22 +469,22 @@ public class SQLStorage implements IDataLogStorage {
 
 	@Override
 	public StatReq<IDataStream> getData(String tag, Time start, Time end, KInterpolate fn, Dt bucketSize) {
-		return new StatReqSQL<IDataStream>(KStatReq.DATA, tag, start, end, fn, bucketSize);
+		return StatReqBatcher.dflt.add(new StatReqSQL<IDataStream>(KStatReq.DATA, tag, start, end, fn, bucketSize));
 	}
 	
 
 	public IFuture<MeanRate> getMean(Time start, Time end, String tag) {
-		return new StatReqSQL<MeanRate>(KStatReq.TOTAL, tag, start, end, null, null);		
+		return StatReqBatcher.dflt.add(new StatReqSQL<MeanRate>(KStatReq.TOTAL, tag, start, end, null, null));		
 	}
 	
 	@Override
 	public StatReq<IDataStream> getMeanData(String tag, Time start, Time end, KInterpolate fn, Dt bucketSize) {
-		return new StatReqSQL<IDataStream>(KStatReq.MEANDATA, tag, start, end, fn, bucketSize);
+		return StatReqBatcher.dflt.add(new StatReqSQL<IDataStream>(KStatReq.MEANDATA, tag, start, end, fn, bucketSize));
 	}
 
 	@Override
 	public StatReq<Double> getTotal(String tag, Time start, Time end) {
-		return new StatReqSQL<Double>(KStatReq.TOTAL, tag, start, end, null, null);
+		return StatReqBatcher.dflt.add(new StatReqSQL<Double>(KStatReq.TOTAL, tag, start, end, null, null));
 	}
 
 	@Override
@@ -326,6 +520,46 @@ public class SQLStorage implements IDataLogStorage {
 		return Double.parseDouble(obj[0].toString());
 	}
 
+	/**
+	 * Like {@link #getReader(String, Time, Time, Pattern, String)}, for several tags at once.
+	 * @return timestamp, tag, count_mean... rows, in time order.
+	 */
+	Iterator<Object[]> getReader(String server, Time s, Time e, Collection<String> tags) {
+		initStatDB();
+		String where = buildWhere(s, e, tags);
+		String order = " order by timestamp";
+		String select = "select " + COLUMNS_DISTR + " from " + TABLE + where + order + ";";
+		return SqlUtils.executeQuery(select, null, 0).iterator();
+	}
+
+	/**
+	 * Like {@link #selectSum(String, Time, Time, Pattern, String)}, for several tags at once.
+	 * @return tag to sum. Tags with no data are left out.
+	 */
+	Map<String, Double> selectSums(String server, Time s, Time e, Collection<String> tags) {
+		initStatDB();
+		String where = buildWhere(s, e, tags);
+		String select = "select tag, sum(count_mean)" + " from " + TABLE + where + " group by tag;";
+		Map<String, Double> sums = new HashMap();
+		for (Object[] row : SqlUtils.executeQuery(select, null, 0)) {
+			if (row[1] == null) continue;
+			sums.put((String) row[0], Double.parseDouble(row[1].toString()));
+		}
+		return sums;
+	}
+
+	private String buildWhere(Time s, Time e, Collection<String> tags) {
+		assert ! tags.isEmpty();
+		String where = buildWhere(s, e, null, tags.iterator().next());
+		if (tags.size() == 1) return where;
+		StringBuilder in = new StringBuilder();
+		for (String tag : tags) {
+			if (in.length() != 0) in.append(", ");
+			in.append(SqlUtils.sqlEncode(tag));
+		}
+		return where.substring(0, where.indexOf(" and tag = ")) + " and tag in (" + in + ")";
+	}
+
 	/**
 	 * There are 3 approaches to pattern matching in PostgreSQL:
 	 * 1. SQL "like" operator, which matches patterns of regular and wildcard characters. The pattern should match the entire string.
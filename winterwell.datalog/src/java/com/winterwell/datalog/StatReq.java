@@ -1,5 +1,8 @@
 package com.winterwell.datalog;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -22,6 +25,12 @@ import com.winterwell.utils.web.SimpleJson;
 
 /**
  * The data-fetch part of StatImpl. Provides cacheing and batched-data-fetch.
+ * <p>
+ * Subclasses which can answer several tags in one query override {@link #runBatch(List)}, and
+ * the storage's factory methods queue them with {@link StatReqBatcher}. Requests made together (e.g. for
+ * one dashboard) are then fetched together.
+ * 
+ * @testedby {@link StatReqBatcherTest}
  * @author daniel
  *
  * @param <X>
@@ -33,7 +42,13 @@ public class StatReq<X> implements IDataLogReq<X>, IHasJson {
 	public final X get() {
 		X value = getValue();
 		if (value != null) return value;
-		else if (error != null) {
+		if (error == null && batch != null) {
+			// wait for the batch (running it now if it hasn't started)
+			StatReqBatcher.dflt.await(this);
+			value = getValue();
+			if (value != null) return value;
+		}
+		if (error != null) {
 			// remote fetches can fail
 			throw Utils.runtime(error);
 		}
@@ -47,6 +62,27 @@ public class StatReq<X> implements IDataLogReq<X>, IHasJson {
 		throw new TodoException();
 	}
 
+	/**
+	 * Run several requests in one go. Only called with requests which share a {@link #batchKey()}.
+	 * Override this to fetch all their tags in one query -- the default runs them one by one.
+	 * @param batch includes this
+	 */
+	protected void runBatch(List<? extends StatReq> batch) {
+		for (StatReq req : batch) {
+			req.run();
+		}
+	}
+
+	/**
+	 * Requests with equal keys can be answered together by {@link #runBatch(List)}.
+	 * Subclasses should add in anything else they fetch from (e.g. the storage).
+	 * @return null if this cannot be batched (i.e. it uses a tagMatcher)
+	 */
+	protected Object batchKey() {
+		if (tag == null) return null;
+		return Arrays.asList(getClass(), cmd, start, end, interpolate, bucketSize, server);
+	}
+
 	/**
 	 * Double or ListDataStream
 	 */
@@ -73,6 +109,7 @@ public class StatReq<X> implements IDataLogReq<X>, IHasJson {
 	public int hashCode() {
 		final int prime = 31;
 		int result = 1;
+		result = prime * result + ((bucketSize == null) ? 0 : bucketSize.hashCode());
 		result = prime * result + ((cmd == null) ? 0 : cmd.hashCode());
 		result = prime * result + ((end == null) ? 0 : end.hashCode());
 		result = prime * result
@@ -94,6 +131,11 @@ public class StatReq<X> implements IDataLogReq<X>, IHasJson {
 		if (getClass() != obj.getClass())
 			return false;
 		StatReq other = (StatReq) obj;
+		if (bucketSize == null) {
+			if (other.bucketSize != null)
+				return false;
+		} else if (!bucketSize.equals(other.bucketSize))
+			return false;
 		if (cmd == null) {
 			if (other.cmd != null)
 				return false;
@@ -152,6 +194,11 @@ public class StatReq<X> implements IDataLogReq<X>, IHasJson {
 	 * latets bucket.
 	 */
 	transient StatReq key;
+
+	/**
+	 * Set if this is queued with {@link StatReqBatcher}. Done when the batch has run.
+	 */
+	transient volatile CompletableFuture<Void> batch;
 	
 	public StatReq(String cmd, String tag, Time start, Time end, KInterpolate interpolate, Dt bucketSize) {
 		this(cmd, tag, null, start, end, interpolate, bucketSize);
@@ -0,0 +1,276 @@
+package com.winterwell.datalog;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.winterwell.maths.timeseries.ListDataStream;
+import com.winterwell.utils.containers.Cache;
+import com.winterwell.utils.containers.Pair2;
+import com.winterwell.utils.log.Log;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.Period;
+import com.winterwell.utils.time.TUnit;
+import com.winterwell.utils.time.Time;
+
+/**
+ * Coalesces StatReqs into multi-tag backend queries.
+ * <p>
+ * A StatReq is queued here when it is made. The queue is run {@link DataLogConfig#statReqBatchWindow}
+ * later on a background thread -- or sooner, by the first get() (the common case: make all the requests
+ * for a page, then read them). Queued requests with the same {@link StatReq#batchKey()} (storage, cmd,
+ * time range, bucket size, server) are answered by one {@link StatReq#runBatch(List)} call. So a
+ * dashboard asking for 50 tags costs one query.
+ * <p>
+ * Results for time ranges which are over (i.e. end before the current bucket) are cached, keyed on
+ * the batch-key (which includes the storage) plus the tag. Each request gets its own copy of a cached
+ * data stream. Back-dated writes ({@link DataLogImpl#count(Time, double, Object...)}, and the storages'
+ * saves) drop the affected entries.
+ *
+ * @testedby {@link StatReqBatcherTest}
+ * @author daniel
+ */
+final class StatReqBatcher {
+
+	static final StatReqBatcher dflt = new StatReqBatcher();
+
+	private static final Dt DEFAULT_WINDOW = new Dt(10, TUnit.MILLISECOND);
+
+	/**
+	 * value can be Double or ListDataStream. Guarded by synchronized(cache), as is tag2keys.
+	 */
+	private final Cache<CacheKey, Object> cache = new Cache(1000).setStats("StatReqBatcher");
+
+	/**
+	 * For invalidating by tag. Keys the cache has dropped are pruned on put.
+	 */
+	private final Map<String, Set<CacheKey>> tag2keys = new HashMap();
+
+	/**
+	 * Incremented by each invalidate, so a batch which was running across a write doesn't cache its (old) results.
+	 */
+	private long writes;
+
+	/**
+	 * A finished-range request, as {@link StatReq#batchKey()} + tag
+	 */
+	static final class CacheKey {
+		final Object batchKey;
+		final String tag;
+		final Time start;
+		final Time end;
+
+		CacheKey(StatReq req) {
+			this.batchKey = req.batchKey();
+			this.tag = req.tag;
+			this.start = req.start;
+			this.end = req.end;
+		}
+
+		/**
+		 * @return true if a write to tag at time would change this
+		 */
+		boolean covers(Time time) {
+			return (start == null || ! time.isBefore(start)) && ! time.isAfter(end);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(batchKey, tag);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) return true;
+			if ( ! (obj instanceof CacheKey)) return false;
+			CacheKey other = (CacheKey) obj;
+			return Objects.equals(batchKey, other.batchKey) && Objects.equals(tag, other.tag);
+		}
+	}
+
+	private final List<StatReq> queue = new ArrayList();
+
+	private boolean flushScheduled;
+
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "StatReqBatcher");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/**
+	 * Queue a request -- or answer it from cache.
+	 * Requests which cannot be batched (see {@link StatReq#batchKey()}) are left to run() alone.
+	 * Call this once req is fully made (i.e. from a factory method, not a constructor).
+	 * @return req
+	 */
+	<R extends StatReq> R add(R req) {
+		if (req.batchKey() == null) return req;
+		if (fromCache(req)) return req;
+		req.batch = new CompletableFuture<Void>();
+		synchronized (queue) {
+			queue.add(req);
+			if (flushScheduled) return req;
+			flushScheduled = true;
+		}
+		scheduler.schedule(this::flush, getWindow().getMillisecs(), TimeUnit.MILLISECONDS);
+		return req;
+	}
+
+	/**
+	 * Wait for req's batch, running the queue now if it hasn't started.
+	 */
+	void await(StatReq req) {
+		CompletableFuture<Void> b = req.batch;
+		if (b == null) return;
+		if ( ! b.isDone()) {
+			flush();
+		}
+		// runBatch errors are given to the requests, so this does not throw
+		b.join();
+	}
+
+	/**
+	 * Run everything in the queue, one runBatch() per batch-key.
+	 */
+	void flush() {
+		List<StatReq> todo;
+		synchronized (queue) {
+			flushScheduled = false;
+			if (queue.isEmpty()) return;
+			todo = new ArrayList(queue);
+			queue.clear();
+		}
+		Map<Object, List<StatReq>> key2batch = new LinkedHashMap();
+		for (StatReq req : todo) {
+			key2batch.computeIfAbsent(req.batchKey(), k -> new ArrayList()).add(req);
+		}
+		for (List<StatReq> batch : key2batch.values()) {
+			run(batch);
+		}
+	}
+
+	private void run(List<StatReq> batch) {
+		Log.d(DataLog.LOGTAG, "runBatch "+batch.size()+" "+batch.get(0).batchKey());
+		long writes0;
+		synchronized (cache) {
+			writes0 = writes;
+		}
+		try {
+			batch.get(0).runBatch(batch);
+			synchronized (cache) {
+				if (writes == writes0) {
+					for (StatReq req : batch) {
+						CacheKey key = cacheKey(req);
+						if (key != null && req.v != null) put(key, copy(req.v));
+					}
+				}
+			}
+		} catch(Throwable ex) {
+			Log.w(DataLog.LOGTAG, ex);
+			// "give" this error to all affected (and drop any partial results)
+			for (StatReq req : batch) {
+				req.v = null;
+				req.error = ex;
+			}
+		} finally {
+			for (StatReq req : batch) {
+				req.batch.complete(null);
+			}
+		}
+	}
+
+	private boolean fromCache(StatReq req) {
+		CacheKey key = cacheKey(req);
+		if (key == null) return false;
+		Object v;
+		synchronized (cache) {
+			v = cache.get(key);
+		}
+		if (v == null) return false;
+		req.v = copy(v);
+		return true;
+	}
+
+	/** Call within synchronized(cache) */
+	private void put(CacheKey key, Object v) {
+		cache.put(key, v);
+		Set<CacheKey> keys = tag2keys.computeIfAbsent(key.tag, t -> new HashSet());
+		keys.removeIf(k -> ! cache.containsKey(k));
+		keys.add(key);
+	}
+
+	/**
+	 * Drop cached results which a write to tag at time would change.
+	 */
+	void invalidate(String tag, Time time) {
+		synchronized (cache) {
+			writes++;
+			Set<CacheKey> keys = tag2keys.get(tag);
+			if (keys == null) return;
+			keys.removeIf(k -> {
+				if ( ! k.covers(time)) return false;
+				cache.remove(k);
+				return true;
+			});
+			if (keys.isEmpty()) tag2keys.remove(tag);
+		}
+	}
+
+	/**
+	 * Drop cached results which these writes would change.
+	 * Called by the storages (which batch) after they write -- so a query in between can't leave old values cached.
+	 */
+	void invalidate(Map<Pair2<String, Time>, Double> tagTime2x) {
+		for (Pair2<String, Time> tagTime : tagTime2x.keySet()) {
+			invalidate(tagTime.first, tagTime.second);
+		}
+	}
+
+	/**
+	 * Drop cached results which writes to these tags at time would change.
+	 */
+	void invalidate(Collection<String> tags, Time time) {
+		for (String tag : tags) {
+			invalidate(tag, time);
+		}
+	}
+
+	/**
+	 * @return a copy, so callers can't change (or use up) the cached value. Doubles are immutable.
+	 */
+	static Object copy(Object v) {
+		if ( ! (v instanceof ListDataStream)) return v;
+		ListDataStream lds = (ListDataStream) v;
+		ListDataStream copy = lds.isEmpty()? new ListDataStream(lds.getDim()) : new ListDataStream(lds.getList(), lds.getDim());
+		copy.setLabels(lds.getLabels());
+		return copy;
+	}
+
+	/**
+	 * @return the key for req, or null if req's time range includes the current bucket, which is still changing.
+	 */
+	static CacheKey cacheKey(StatReq req) {
+		if (req.end == null) return null;
+		if ( ! (DataLog.dflt instanceof DataLogImpl)) return null;
+		Period bucket = ((DataLogImpl) DataLog.dflt).getCurrentBucket();
+		if (bucket == null || req.end.isAfter(bucket.first)) return null;
+		return new CacheKey(req);
+	}
+
+	private Dt getWindow() {
+		if ( ! (DataLog.dflt instanceof DataLogImpl)) return DEFAULT_WINDOW;
+		DataLogConfig config = ((DataLogImpl) DataLog.dflt).getConfig();
+		return config == null || config.statReqBatchWindow == null? DEFAULT_WINDOW : config.statReqBatchWindow;
+	}
+}
@@ -0,0 +1,274 @@
+package com.winterwell.datalog;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.regex.Pattern;
+
+import com.winterwell.datalog.DataLog.KInterpolate;
+import com.winterwell.depot.Desc;
+import com.winterwell.maths.timeseries.Datum;
+import com.winterwell.maths.timeseries.ListDataStream;
+import com.winterwell.utils.containers.ListMap;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.TUnit;
+import com.winterwell.utils.time.Time;
+
+/**
+ * A {@link ColumnarStorage} implementation of the StatReq.
+ * <p>
+ * Bucketing is done here as the data is read (so {@link #getValue()} does not wrap it in a BucketedDataStream):
+ * buckets start at start (or the first datum), counts are summed, means are averaged, and empty count-buckets
+ * are filled with zeros. Without a bucketSize, {@link KInterpolate#LINEAR_1DAY} adds ersatz start/end points.
+ *
+ * @testedby {@link ColumnarStorageTest}
+ * @author daniel
+ *
+ * @param <X>
+ */
+public class StatReqColumnar<X> extends StatReq<X> {
+
+	private final ColumnarStorage storage;
+
+	public StatReqColumnar(ColumnarStorage storage, String cmd, String tag, Time start, Time end, KInterpolate interpolate, Dt bucketSize) {
+		super(cmd, tag, start, end, interpolate, bucketSize);
+		this.storage = storage;
+	}
+
+	public StatReqColumnar(ColumnarStorage storage, String cmd, Pattern tagMatcher, Time start, Time end) {
+		super(cmd, tagMatcher, start, end);
+		this.storage = storage;
+	}
+
+	@Override
+	protected void run() {
+		byte kind = getKind();
+		List<Datum> data = new ArrayList<Datum>();
+		storage.scan(ColumnarStorage.tagFilter(tagMatcher, tag), getScanStart(), getScanEnd(), (t, k, time, row) -> {
+			if (kind != -1 && k != kind) return;
+			data.add(new Datum(new Time(time), row[0], t));
+		});
+		run2(data);
+	}
+
+	/**
+	 * One scan for all the tags in the batch.
+	 */
+	@Override
+	protected void runBatch(List<? extends StatReq> batch) {
+		if (batch.size() == 1) {
+			run();
+			return;
+		}
+		// the batch shares storage, cmd, start, end, interpolate & bucketSize
+		ListMap<String, Datum> tag2data = new ListMap();
+		for (StatReq req : batch) {
+			tag2data.put(req.tag, new ArrayList<Datum>());
+		}
+		byte kind = getKind();
+		storage.scan(tag2data::containsKey, getScanStart(), getScanEnd(), (t, k, time, row) -> {
+			if (kind != -1 && k != kind) return;
+			tag2data.add(t, new Datum(new Time(time), row[0], t));
+		});
+		for (StatReq req : batch) {
+			// copy, as run2() sorts & merges in place, and a tag can be asked for twice
+			((StatReqColumnar) req).run2(new ArrayList<Datum>(tag2data.get(req.tag)));
+		}
+	}
+
+	@Override
+	protected Object batchKey() {
+		Object key = super.batchKey();
+		return key == null ? null : Arrays.asList(storage, key);
+	}
+
+	/**
+	 * @return which rows to read: counts, means, or -1 for any
+	 */
+	private byte getKind() {
+		if (KStatReq.TOTAL.equals(cmd)) return ColumnarSegment.KIND_COUNT;
+		if (KStatReq.MEANDATA.equals(cmd)) return ColumnarSegment.KIND_MEAN;
+		return -1;
+	}
+
+	private boolean isLinear() {
+		return bucketSize == null && interpolate == KInterpolate.LINEAR_1DAY
+				&& tag != null && ! KStatReq.TOTAL.equals(cmd);
+	}
+
+	/**
+	 * LINEAR_1DAY reads up to a day either side of [start, end)
+	 */
+	private long getScanStart() {
+		if (start == null) return Long.MIN_VALUE;
+		return isLinear() ? start.getTime() - TUnit.DAY.millisecs : start.getTime();
+	}
+
+	private long getScanEnd() {
+		if (end == null) return Long.MAX_VALUE;
+		return isLinear() ? end.getTime() + TUnit.DAY.millisecs : end.getTime();
+	}
+
+	/**
+	 * @param data scanned rows for this request (unsorted). This is modified.
+	 */
+	private void run2(List<Datum> data) {
+		long s = start == null ? Long.MIN_VALUE : start.getTime();
+		long e = end == null ? Long.MAX_VALUE : end.getTime();
+		byte kind = getKind();
+		if (kind != ColumnarSegment.KIND_MEAN) {
+			Datum latest = latestBucket();
+			if (latest != null && latest.getTime().getTime() >= s && latest.getTime().getTime() < e) {
+				data.add(latest);
+			}
+		}
+
+		if (KStatReq.TOTAL.equals(cmd)) {
+			double sum = 0;
+			for (Datum d : data) sum += d.x();
+			v = (X) Double.valueOf(sum);
+			return;
+		}
+
+		data.sort(null);
+		mergeSameTime(data, kind == ColumnarSegment.KIND_MEAN);
+		List<Datum> out;
+		if (bucketSize != null) {
+			out = bucket(data, start, bucketSize.getMillisecs(), kind == ColumnarSegment.KIND_MEAN);
+		} else if (isLinear()) {
+			out = interpolate(data, start, end);
+		} else {
+			out = data;
+		}
+		ListDataStream lds = new ListDataStream(1);
+		v = (X) lds;
+		for (Datum d : out) {
+			add(this, d);
+		}
+	}
+
+	/**
+	 * @return the current (not yet saved) bucket, if this is the live storage. Can be null
+	 */
+	private Datum latestBucket() {
+		if (tag == null) return null;
+		if (server != null && ! Desc.LOCAL_SERVER.equals(server) && ! Desc.MY_SERVER().equals(server)) {
+			return null;
+		}
+		if ( ! (DataLog.dflt instanceof DataLogImpl)) return null;
+		DataLogImpl dl = (DataLogImpl) DataLog.dflt;
+		if (dl.storage != storage) return null;
+		return dl.currentBucket(tag, end);
+	}
+
+	/**
+	 * Sorted data: combine data for the same tag and time (e.g. from saveHistory)
+	 * by adding counts, or averaging means.
+	 */
+	private static void mergeSameTime(List<Datum> data, boolean means) {
+		int w = 0;
+		int n = 1;
+		for (int r = 0; r < data.size(); r++) {
+			Datum d = data.get(r);
+			if (w > 0) {
+				Datum prev = data.get(w - 1);
+				if (prev.getTime().equals(d.getTime()) && Objects.equals(prev.getLabel(), d.getLabel())) {
+					double x = means ? (prev.x() * n + d.x()) / (n + 1) : prev.x() + d.x();
+					data.set(w - 1, new Datum(prev.getTime(), x, prev.getLabel()));
+					n++;
+					continue;
+				}
+			}
+			data.set(w++, d);
+			n = 1;
+		}
+		data.subList(w, data.size()).clear();
+	}
+
+	/**
+	 * @param data sorted
+	 * @param start Can be null, in which case the first bucket starts at the first datum
+	 * @param size bucket size in millisecs
+	 * @param means true: average, false: sum (and fill gaps with 0)
+	 * @return buckets, labelled with the time of the bucket start
+	 */
+	static List<Datum> bucket(List<Datum> data, Time start, long size, boolean means) {
+		List<Datum> buckets = new ArrayList<Datum>();
+		if (data.isEmpty()) return buckets;
+		long origin = start == null ? data.get(0).getTime().getTime() : start.getTime();
+		long current = Long.MIN_VALUE;
+		double sum = 0;
+		int n = 0;
+		Object label = null;
+		for (Datum d : data) {
+			long b = Math.floorDiv(d.getTime().getTime() - origin, size);
+			if (b != current) {
+				if (n > 0) {
+					buckets.add(new Datum(new Time(origin + current * size), means ? sum / n : sum, label));
+					if ( ! means) {
+						for (long gap = current + 1; gap < b; gap++) {
+							buckets.add(new Datum(new Time(origin + gap * size), 0, label));
+						}
+					}
+				}
+				current = b;
+				sum = 0;
+				n = 0;
+				label = d.getLabel();
+			}
+			sum += d.x();
+			n++;
+			// a bucket is labelled if all its data had the same label (as BucketedDataStream does)
+			if (label != null && ! label.equals(d.getLabel())) label = null;
+		}
+		buckets.add(new Datum(new Time(origin + current * size), means ? sum / n : sum, label));
+		return buckets;
+	}
+
+	/**
+	 * Add ersatz points at start and end, linearly interpolated from the data either side
+	 * (which was fetched from up to a day outside [start, end)).
+	 * @param data sorted
+	 * @return data within [start, end), plus the ersatz points
+	 */
+	static List<Datum> interpolate(List<Datum> data, Time start, Time end) {
+		long s = start == null ? Long.MIN_VALUE : start.getTime();
+		long e = end == null ? Long.MAX_VALUE : end.getTime();
+		Datum before = null, after = null;
+		List<Datum> in = new ArrayList<Datum>();
+		for (Datum d : data) {
+			long t = d.getTime().getTime();
+			if (t < s) before = d;
+			else if (t >= e) {
+				if (after == null) after = d;
+			}
+			else in.add(d);
+		}
+		List<Datum> out = new ArrayList<Datum>(in.size() + 2);
+		if (start != null && before != null && (in.isEmpty() || ! in.get(0).getTime().equals(start))) {
+			Datum next = in.isEmpty() ? after : in.get(0);
+			if (next != null) out.add(interpolate(before, next, start));
+		}
+		out.addAll(in);
+		if (end != null && after != null) {
+			Datum prev = in.isEmpty() ? before : in.get(in.size() - 1);
+			if (prev != null) out.add(interpolate(prev, after, end));
+		}
+		return out;
+	}
+
+	private static Datum interpolate(Datum a, Datum b, Time t) {
+		long ta = a.getTime().getTime(), tb = b.getTime().getTime();
+		double f = (t.getTime() - ta) / (double) (tb - ta);
+		return new Datum(t, a.x() + f * (b.x() - a.x()), a.getLabel());
+	}
+
+	/**
+	 * Already bucketed by {@link #run()}
+	 */
+	@Override
+	protected X getValue() {
+		return v;
+	}
+}
@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Pattern;
 
 import com.winterwell.datalog.DataLog.KInterpolate;
@@ -11,8 +12,10 @@ import com.winterwell.depot.Desc;
 import com.winterwell.maths.timeseries.Datum;
 import com.winterwell.maths.timeseries.ListDataStream;
 import com.winterwell.utils.Printer;
+import com.winterwell.utils.containers.ListMap;
 import com.winterwell.utils.log.Log;
 import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.Period;
 import com.winterwell.utils.time.TUnit;
 import com.winterwell.utils.time.Time;
 
@@ -41,13 +44,9 @@ public class StatReqSQL<X> extends StatReq<X> {
 		SQLStorage storage = (SQLStorage) stat.storage;
 
 		// Find period
-		Time s = start;
-		Time e = end;
-		if (start == null) s = new Time(0);
-		if (end == null) e = new Time().plus(TUnit.HOUR);
-
-		if (s.getTime() < 0) s = new Time(0);
-		assert e.isAfter(s) : "Start time after end: " + s + " vs " + e;
+		Period p = getPeriod();
+		Time s = p.first;
+		Time e = p.second;
 
 		// Prepare object value
 		initV(this);
@@ -70,6 +69,71 @@ public class StatReqSQL<X> extends StatReq<X> {
 		}
 	}
 
+	/**
+	 * One query for all the tags in the batch.
+	 */
+	@Override
+	protected void runBatch(List<? extends StatReq> batch) {
+		if (batch.size() == 1) {
+			run();
+			return;
+		}
+		stat = (DataLogImpl) DataLog.dflt;
+		String srv = server == null? Desc.MY_SERVER() : server; // MY_SERVER() not LOCAL!
+		SQLStorage storage = (SQLStorage) stat.storage;
+		// the batch shares start, end & cmd
+		Period p = getPeriod();
+		ListMap<String, StatReqSQL> tag2req = new ListMap();
+		for (StatReq req : batch) {
+			initV(req);
+			tag2req.add(req.tag, (StatReqSQL) req);
+		}
+
+		if (cmd.equals(KStatReq.TOTAL)) {
+			Map<String, Double> sums = storage.selectSums(srv, p.first, p.second, tag2req.keySet());
+			for (StatReq req : batch) {
+				Double count = sums.get(req.tag);
+				((StatReqSQL) req).addDatum(p.first, count==null? 0 : count, req.tag);
+			}
+		}
+		else {
+			Iterator<Object[]> reader = storage.getReader(srv, p.first, p.second, tag2req.keySet());
+			while (reader.hasNext()) {
+				Object[] row = reader.next();
+				if (row.length < 3) {
+					Log.w(DataLog.LOGTAG, "getData bogus row: "+Printer.toString(row));
+					continue;
+				}
+				String tag = row[1].toString();
+				List<StatReqSQL> reqs = tag2req.get(tag);
+				if (reqs == null) continue;
+				for (StatReqSQL req : reqs) {
+					req.addDatum(new Time(row[0].toString()), Double.valueOf(row[2].toString()), tag);
+				}
+			}
+		}
+
+		if (Desc.LOCAL_SERVER.equals(srv) || Desc.MY_SERVER().equals(srv)) {
+			for (StatReq req : batch) {
+				((StatReqSQL) req).addLatestHistoricBucket();
+			}
+		}
+	}
+
+	/**
+	 * @return [start, end) with the nulls filled in: from 1970 up to the current bucket
+	 */
+	private Period getPeriod() {
+		Time s = start;
+		Time e = end;
+		if (start == null) s = new Time(0);
+		if (end == null) e = new Time().plus(TUnit.HOUR);
+
+		if (s.getTime() < 0) s = new Time(0);
+		assert e.isAfter(s) : "Start time after end: " + s + " vs " + e;
+		return new Period(s, e);
+	}
+
 	/**
 	 * Grab latest data from recent buckets, merge and sort it.
 	 * @param batchGet
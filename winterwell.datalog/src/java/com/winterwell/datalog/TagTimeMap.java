@@ -0,0 +1,105 @@
+package com.winterwell.datalog;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import com.winterwell.utils.containers.Pair2;
+import com.winterwell.utils.time.Time;
+
+/**
+ * The retro counts/sets of an {@link Epoch}: tag -> time -> value.
+ * <p>
+ * Indexed by tag, then ordered by time (epoch millisecs), so that reading one tag's data for a
+ * time range (see {@link DataLogImpl#currentHistoric(String, Time, Time)}) is a lookup + a
+ * sub-map, rather than a scan of every tag's data and a sort.
+ * Storage still takes the flat (tag,time) map -- see {@link #toPairMap()}.
+ *
+ * @testedby {@link TagTimeMapTest}
+ */
+final class TagTimeMap {
+
+	private final ConcurrentMap<String, ConcurrentSkipListMap<Long, Double>> tag2time2x
+		= new ConcurrentHashMap<String, ConcurrentSkipListMap<Long, Double>>();
+
+	private ConcurrentSkipListMap<Long, Double> time2x(String tag) {
+		return tag2time2x.computeIfAbsent(tag, k -> new ConcurrentSkipListMap<Long, Double>());
+	}
+
+	/**
+	 * Add dx to the value for (tag, at)
+	 */
+	void plus(String tag, Time at, double dx) {
+		time2x(tag).merge(at.getTime(), dx, Double::sum);
+	}
+
+	void put(String tag, Time at, double x) {
+		time2x(tag).put(at.getTime(), x);
+	}
+
+	void remove(String tag, Time at) {
+		ConcurrentSkipListMap<Long, Double> time2x = tag2time2x.get(tag);
+		if (time2x == null) return;
+		time2x.remove(at.getTime());
+	}
+
+	/**
+	 * @param tag
+	 * @param start Can be null. Inclusive.
+	 * @param end Can be null. Inclusive.
+	 * @return time (millisecs) -> value, in time order. A live view. Never null.
+	 */
+	NavigableMap<Long, Double> get(String tag, Time start, Time end) {
+		ConcurrentSkipListMap<Long, Double> time2x = tag2time2x.get(tag);
+		if (time2x == null) return Collections.emptyNavigableMap();
+		long s = start == null? Long.MIN_VALUE : start.getTime();
+		long e = end == null? Long.MAX_VALUE : end.getTime();
+		if (s > e) return Collections.emptyNavigableMap();
+		return time2x.subMap(s, true, e, true);
+	}
+
+	boolean isEmpty() {
+		for (ConcurrentSkipListMap<Long, Double> time2x : tag2time2x.values()) {
+			if ( ! time2x.isEmpty()) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return number of (tag,time) entries. Not constant-time.
+	 */
+	int size() {
+		int n = 0;
+		for (ConcurrentSkipListMap<Long, Double> time2x : tag2time2x.values()) {
+			n += time2x.size();
+		}
+		return n;
+	}
+
+	void clear() {
+		tag2time2x.clear();
+	}
+
+	/**
+	 * @return a flat copy, as {@link IDataLogStorage#saveHistory(Map)} wants it.
+	 */
+	Map<Pair2<String, Time>, Double> toPairMap() {
+		Map<Pair2<String, Time>, Double> map = new HashMap<Pair2<String, Time>, Double>();
+		for (Map.Entry<String, ConcurrentSkipListMap<Long, Double>> e : tag2time2x.entrySet()) {
+			String tag = e.getKey();
+			for (Map.Entry<Long, Double> tx : e.getValue().entrySet()) {
+				map.put(new Pair2<String, Time>(tag, new Time(tx.getKey())), tx.getValue());
+			}
+		}
+		return map;
+	}
+
+	@Override
+	public String toString() {
+		return "TagTimeMap[" + tag2time2x.keySet() + "]";
+	}
+}
@@ -0,0 +1,281 @@
+package com.winterwell.datalog.server;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.eclipse.jetty.util.ajax.JSON;
+
+import com.winterwell.utils.containers.Containers;
+import com.winterwell.utils.io.FileUtils;
+import com.winterwell.utils.log.Log;
+import com.winterwell.utils.threads.SafeExecutor;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.web.FakeBrowser;
+
+/**
+ * IP reputation: which IPs are bots (or other invalid traffic)? The data comes from Portal's /botip list.
+ * <p>
+ * Exact IPs go in a hash map, and CIDR ranges (e.g. "66.249.64.0/19") in a binary prefix trie,
+ * so a lookup is O(1) in the size of the list.
+ * <p>
+ * The index is immutable once built. Refreshes are stale-while-revalidate: a lookup which finds
+ * the index out of date kicks off a rebuild on a background thread, and carries on with the old index.
+ * The new index is swapped in when ready. So no request ever waits on the fetch.
+ *
+ * @testedby {@link BotIPIndexTest}
+ * @author daniel
+ */
+class BotIPIndex {
+
+	private static final String LOGTAG = "lg.botip";
+
+	/**
+	 * One node in a binary trie over address bits.
+	 */
+	static final class Node {
+		Node zero;
+		Node one;
+		/**
+		 * non-null if a range ends here
+		 */
+		String type;
+	}
+
+	/**
+	 * An immutable snapshot of the list.
+	 */
+	static final class Index {
+		final Map<String, String> ip2type = new HashMap<String, String>();
+		final Node v4 = new Node();
+		final Node v6 = new Node();
+		boolean hasRanges;
+
+		void add(String ip, String type) {
+			int slash = ip.indexOf('/');
+			if (slash == -1) {
+				ip2type.put(ip, type);
+				return;
+			}
+			byte[] addr = toBytes(ip.substring(0, slash));
+			int bits = addr == null ? -1 : toBits(ip.substring(slash + 1).trim(), addr.length * 8);
+			if (bits == -1) {
+				Log.w(LOGTAG, "skip bad range: " + ip);
+				return;
+			}
+			Node n = addr.length == 4 ? v4 : v6;
+			for (int i = 0; i < bits && i < addr.length * 8; i++) {
+				if (bit(addr, i)) {
+					if (n.one == null) n.one = new Node();
+					n = n.one;
+				} else {
+					if (n.zero == null) n.zero = new Node();
+					n = n.zero;
+				}
+			}
+			n.type = type;
+			hasRanges = true;
+		}
+
+		/**
+		 * @return type or null
+		 */
+		String get(String ip) {
+			String type = ip2type.get(ip);
+			if (type != null || ! hasRanges) return type;
+			byte[] addr = toBytes(ip);
+			if (addr == null) return null;
+			// longest matching prefix
+			Node n = addr.length == 4 ? v4 : v6;
+			String best = n.type;
+			for (int i = 0; i < addr.length * 8; i++) {
+				n = bit(addr, i) ? n.one : n.zero;
+				if (n == null) break;
+				if (n.type != null) best = n.type;
+			}
+			return best;
+		}
+
+		int size() {
+			return ip2type.size();
+		}
+	}
+
+	/**
+	 * @return the prefix length, or -1 if not a number from 0 to max
+	 */
+	static int toBits(String bits, int max) {
+		if (bits.isEmpty() || bits.length() > 3) return -1;
+		int n = 0;
+		for (int i = 0; i < bits.length(); i++) {
+			char c = bits.charAt(i);
+			if (c < '0' || c > '9') return -1;
+			n = n * 10 + (c - '0');
+		}
+		return n > max ? -1 : n;
+	}
+
+	/**
+	 * A url, or a local file (handy for testing).
+	 */
+	private final String source;
+	private final long refreshMillis;
+
+	private volatile Index index;
+	/**
+	 * When the last refresh started, or 0 for never
+	 */
+	private volatile long fetched;
+	private final AtomicBoolean refreshing = new AtomicBoolean();
+	private final SafeExecutor exec;
+
+	/**
+	 * @param source url or file path of the json list, as served by Portal's /botip/_list.json
+	 * @param refresh How often to re-fetch
+	 */
+	BotIPIndex(String source, Dt refresh) {
+		this.source = source;
+		this.refreshMillis = refresh.getMillisecs();
+		this.index = new Index();
+		exec = new SafeExecutor(Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "BotIPIndex");
+			t.setDaemon(true);
+			return t;
+		}));
+	}
+
+	/**
+	 * Is it a bot?
+	 * @param ips
+	 * @return e.g. "bot", or null
+	 */
+	String getInvalidType(List ips) {
+		assert ips != null;
+		Index idx = index;
+		maybeRefresh();
+		for (Object ip : ips) {
+			if (ip == null) continue;
+			String type = idx.get(ip.toString());
+			if (type != null) return type;
+		}
+		return null;
+	}
+
+	/**
+	 * If the index is stale, rebuild it in the background. Never blocks.
+	 */
+	void maybeRefresh() {
+		if (System.currentTimeMillis() - fetched < refreshMillis) return;
+		if ( ! refreshing.compareAndSet(false, true)) return;
+		// NB: set before fetching, so a failing source is retried after refreshMillis, not on every request
+		fetched = System.currentTimeMillis();
+		try {
+			exec.submit(() -> {
+				try {
+					refresh();
+				} finally {
+					refreshing.set(false);
+				}
+			});
+		} catch(Throwable ex) {
+			refreshing.set(false);
+			Log.e(LOGTAG, ex);
+		}
+	}
+
+	/**
+	 * Fetch and rebuild, then swap the new index in. On failure, the old index is kept.
+	 */
+	void refresh() {
+		try {
+			String json = fetch();
+			Map response = (Map) JSON.parse(json);
+			Map esres = (Map) response.get("cargo");
+			List<Map> hits = Containers.asList(esres.get("hits"));
+			Index idx = new Index();
+			for (Map botIP : hits) {
+				Object ip = botIP.get("ip");
+				if (ip == null) continue;
+				try {
+					idx.add(ip.toString().trim(), (String) botIP.get("type"));
+				} catch(Exception ex) {
+					// one bad line shouldn't lose the whole list
+					Log.w(LOGTAG, "skip bad entry: " + botIP + " " + ex);
+				}
+			}
+			index = idx;
+			Log.d(LOGTAG, "loaded " + hits.size() + " from " + source);
+		} catch(Throwable ex) {
+			// keep the old index (which could be empty). This will get checked again later.
+			Log.e(LOGTAG, source + " -> " + ex);
+		}
+	}
+
+	private String fetch() {
+		if (source.startsWith("http")) {
+			FakeBrowser fb = new FakeBrowser();
+			fb.setRequestMethod("GET");
+			return fb.getPage(source);
+		}
+		return FileUtils.read(new File(source));
+	}
+
+	/**
+	 * @param ip e.g. "1.2.3.4" or "::1"
+	 * @return 4 or 16 bytes, or null if not a literal IP
+	 */
+	static byte[] toBytes(String ip) {
+		ip = ip.trim();
+		if (ip.indexOf(':') == -1) {
+			return toBytes2_v4(ip);
+		}
+		try {
+			// NB: this does not do a DNS lookup, as ip contains a : so it can only be a literal
+			return InetAddress.getByName(ip).getAddress();
+		} catch(Exception ex) {
+			return null;
+		}
+	}
+
+	private static byte[] toBytes2_v4(String ip) {
+		byte[] addr = new byte[4];
+		int b = 0, v = 0, digits = 0;
+		for (int i = 0; i < ip.length(); i++) {
+			char c = ip.charAt(i);
+			if (c == '.') {
+				if (digits == 0 || b == 3) return null;
+				addr[b++] = (byte) v;
+				v = 0;
+				digits = 0;
+				continue;
+			}
+			if (c < '0' || c > '9') return null;
+			v = v * 10 + (c - '0');
+			digits++;
+			if (v > 255) return null;
+		}
+		if (digits == 0 || b != 3) return null;
+		addr[3] = (byte) v;
+		return addr;
+	}
+
+	private static boolean bit(byte[] addr, int i) {
+		return (addr[i >> 3] & (0x80 >> (i & 7))) != 0;
+	}
+
+	/**
+	 * @return the current index. For debug and test.
+	 */
+	Index getIndex() {
+		return index;
+	}
+
+	@Override
+	public String toString() {
+		return "BotIPIndex[" + source + " " + index.size() + " ips]";
+	}
+}
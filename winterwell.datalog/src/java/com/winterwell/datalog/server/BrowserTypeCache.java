@@ -0,0 +1,189 @@
+package com.winterwell.datalog.server;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.winterwell.datalog.DataLog;
+import com.winterwell.utils.log.Log;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.web.app.BrowserType;
+
+import ua_parser.Client;
+import ua_parser.Parser;
+
+/**
+ * User-agent string -> parsed {@link BrowserType}, for {@link LgServlet}.
+ * <p>
+ * ua_parser is regex heavy, but there are far fewer distinct user-agents than requests.
+ * So: a concurrent map, with entries expiring after a ttl, and a CLOCK-style sweep
+ * (drop entries not used since the last sweep) when it grows past max-size.
+ * A hit is a map lookup and a clock read -- it does not allocate.
+ * <p>
+ * Hits and misses are logged as "Cache_hit/ua" and "Cache_miss/ua", as {@link com.winterwell.utils.containers.Cache} does.
+ * <p>
+ * ua_parser Parsers are expensive to make (they load their regexes from yaml), and are not documented
+ * as thread-safe -- so they are pooled, and each parse has exclusive use of one.
+ *
+ * @testedby {@link BrowserTypeCacheTest}
+ * @author daniel
+ */
+class BrowserTypeCache {
+
+	private static final String LOGTAG = "lg.ua";
+
+	/**
+	 * NB: static arrays so the DataLog varargs calls do not allocate
+	 */
+	private static final String[] STAT_HIT = {"Cache_hit", "ua"};
+	private static final String[] STAT_MISS = {"Cache_miss", "ua"};
+
+	/**
+	 * A parsed user-agent. Immutable, apart from the used flag.
+	 */
+	static final class Entry {
+		/**
+		 * Please don't modify -- this is shared.
+		 */
+		final BrowserType bt;
+		/**
+		 * {@link BrowserType#getBrowserMake()}, {@link BrowserType#getOS()}, {@link BrowserType#isMobile()}
+		 * -- computed once here, as the BrowserType methods re-sniff on each call.
+		 */
+		final String browser;
+		final String os;
+		final boolean mobile;
+		final long expires;
+		/**
+		 * Set on a hit, cleared by the sweep. So one-off user-agents are the first to go.
+		 */
+		volatile boolean used;
+
+		Entry(BrowserType bt, long expires) {
+			this.bt = bt;
+			this.browser = bt.getBrowserMake();
+			this.os = bt.getOS();
+			this.mobile = bt.isMobile();
+			this.expires = expires;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Entry> ua2entry;
+	private final int maxSize;
+	private final long ttl;
+	private final AtomicBoolean sweeping = new AtomicBoolean();
+	private final BlockingQueue<Parser> parsers;
+
+	/**
+	 * @param maxSize
+	 * @param ttl How long to keep an entry for (in case ua_parser's take on it improves)
+	 */
+	BrowserTypeCache(int maxSize, Dt ttl) {
+		assert maxSize > 0 : maxSize;
+		this.maxSize = maxSize;
+		this.ttl = ttl.getMillisecs();
+		ua2entry = new ConcurrentHashMap<String, Entry>(Math.min(maxSize, 1024) * 2);
+		parsers = new ArrayBlockingQueue<Parser>(Math.max(2, Runtime.getRuntime().availableProcessors()));
+	}
+
+	/**
+	 * @param ua Can be null (which is not cached)
+	 * @return never null
+	 */
+	Entry get(String ua) {
+		if (ua == null) {
+			return new Entry(parse(null), 0);
+		}
+		long now = System.currentTimeMillis();
+		Entry e = ua2entry.get(ua);
+		if (e != null && e.expires > now) {
+			if ( ! e.used) e.used = true;
+			DataLog.count(1, STAT_HIT);
+			return e;
+		}
+		DataLog.count(1, STAT_MISS);
+		e = new Entry(parse(ua), now + ttl);
+		ua2entry.put(ua, e);
+		if (ua2entry.size() > maxSize) {
+			sweep(now, e);
+		}
+		return e;
+	}
+
+	/**
+	 * Uses ua_parser if it can
+	 * @param ua
+	 * @return a new BrowserType
+	 */
+	BrowserType parse(String ua) {
+		BrowserType bt = new BrowserType(ua);
+		Parser parser = null;
+		try {
+			parser = borrowParser();
+			Client uac = parser.parse(ua);
+			bt.setBrowserMake(uac.userAgent.family);
+			bt.setVersion(uac.userAgent.major);
+			bt.setOS(uac.os.family);
+		} catch(Throwable ex) {
+			Log.w(LOGTAG, ex);
+		} finally {
+			if (parser != null) releaseParser(parser);
+		}
+		return bt;
+	}
+
+	/**
+	 * @return a Parser for the caller's exclusive use. Please return it via {@link #releaseParser(Parser)}
+	 * @throws IOException
+	 */
+	Parser borrowParser() throws IOException {
+		Parser p = parsers.poll();
+		return p == null ? new Parser() : p;
+	}
+
+	void releaseParser(Parser parser) {
+		// if the pool is full, let this one go
+		parsers.offer(parser);
+	}
+
+	/**
+	 * Drop expired entries, and those not used since the last sweep. If nearly everything is in use,
+	 * drop down to 3/4 capacity anyway, so the sweep cost is amortised over many puts.
+	 * @param keep The entry just added
+	 */
+	private void sweep(long now, Entry keep) {
+		// one sweeper at a time -- everyone else carries on
+		if ( ! sweeping.compareAndSet(false, true)) return;
+		try {
+			Iterator<Entry> it = ua2entry.values().iterator();
+			while (it.hasNext()) {
+				Entry e = it.next();
+				if (e == keep) continue;
+				if (e.expires <= now || ! e.used) {
+					it.remove();
+				} else {
+					e.used = false;
+				}
+			}
+			int target = maxSize * 3 / 4;
+			it = ua2entry.values().iterator();
+			while (ua2entry.size() > target && it.hasNext()) {
+				if (it.next() != keep) it.remove();
+			}
+		} finally {
+			sweeping.set(false);
+		}
+	}
+
+	int size() {
+		return ua2entry.size();
+	}
+
+	@Override
+	public String toString() {
+		return "BrowserTypeCache[" + ua2entry.size() + "/" + maxSize + "]";
+	}
+}
@@ -7,6 +7,7 @@ import com.winterwell.datalog.DataLogConfig;
 import com.winterwell.datalog.IDataLogAdmin;
 import com.winterwell.utils.log.Log;
 import com.winterwell.utils.log.LogFile;
+import com.winterwell.utils.time.Dt;
 import com.winterwell.utils.time.TUnit;
 import com.winterwell.web.app.AMain;
 import com.winterwell.web.app.AppUtils;
@@ -64,7 +65,9 @@ public class DataLogServer extends AMain<DataLogConfig> {
 		
 		logFile = new LogFile(config.logFile)
 				// keep 6 weeks of log files so we can do 1 month reports
-				.setLogRotation(TUnit.DAY.dt, 6*7);
+				.setLogRotation(TUnit.DAY.dt, 6*7)
+				// every tracked event is logged (see LgServlet.doLogToFile) -- so write in batches
+				.setAsync(true);
 		// set the config
 		DataLog.init(config);
 		// usual setup
@@ -74,6 +77,26 @@ public class DataLogServer extends AMain<DataLogConfig> {
 		// register the tracking event
 		IDataLogAdmin admin = DataLog.getAdmin();
 		admin.registerDataspace(DataLog.getDataspace());
+		
+		// start loading the bot-IP list
+		LgServlet.botIPs.maybeRefresh();
+		
+		// async /lg?
+		if (config.ingestThreads > 0) {
+			LgServlet.ingest = new LgIngest(config.ingestQueueSize, config.ingestThreads);
+			Log.d("init", "async /lg ingest: "+LgServlet.ingest);
+		}
+	}
+	
+	@Override
+	public void stop() {
+		super.stop();
+		// finish off any queued /lg events
+		LgIngest _ingest = LgServlet.ingest;
+		if (_ingest != null) {
+			LgServlet.ingest = null;
+			_ingest.close(new Dt(10, TUnit.SECOND));
+		}
 	}
 	
 
@@ -0,0 +1,282 @@
+package com.winterwell.datalog.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.winterwell.utils.containers.ArrayMap;
+import com.winterwell.utils.containers.Cache;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.Time;
+
+/**
+ * Caches /data aggregation results, so that dashboards asking for the same breakdown every few seconds
+ * do not re-aggregate a month of events each time.
+ * <p>
+ * The time window is split at the start of the live interval-bucket:
+ * <ul>
+ * <li>history (from the first interval boundary after start, up to the split) -- fully in the past, so it won't change.
+ * This is cached and not re-queried (until it drops out of the LRU cache, or the split moves on).
+ * Starting it on a boundary means a relative start (e.g. "a month ago"), which moves a little on every request,
+ * still hits the cache.
+ * <li>the rest: the head (start up to that boundary) and live (split to end) -- queried each time, together,
+ * as one query with the history window left out. These are small windows, so this is cheap.
+ * </ul>
+ * and the two results are merged: bucket lists by key, numbers by adding (the breakdown reports are all sums).
+ * Merged terms buckets are re-sorted by count, and cut back to numTerms. Date-histogram buckets are put back
+ * in time order.
+ * <p>
+ * Late-arriving events (e.g. held in a DataLog bucket, or with an explicit time) are allowed for by
+ * putting the split a settle-time back from now.
+ *
+ * @testedby {@link DataQueryCacheTest}
+ * @author daniel
+ */
+class DataQueryCache {
+
+	/**
+	 * The key for example hits in a result
+	 */
+	static final String EXAMPLES = "examples";
+
+	/**
+	 * Runs the aggregation query.
+	 */
+	interface Query {
+		/**
+		 * @param start
+		 * @param end
+		 * @param gapStart Can be null. If set, leave out events from gapStart to gapEnd (inclusive).
+		 * @param gapEnd
+		 * @return aggregations, plus {@link DataQueryCache#EXAMPLES}. This must be a fresh map.
+		 */
+		Map run(Time start, Time end, Time gapStart, Time gapEnd);
+	}
+
+	private final Cache<String, Map> key2result;
+	private final Dt settle;
+
+	/**
+	 * @param capacity max number of cached history results
+	 * @param settle How long to allow for events to arrive in storage
+	 */
+	DataQueryCache(int capacity, Dt settle) {
+		this.key2result = new Cache<String, Map>(capacity).setStats("DataServlet");
+		this.settle = settle;
+	}
+
+	/**
+	 * @param spec The query, minus the time window, e.g. dataspace + breakdown + q + interval.
+	 * Must be normalised, as it is used as a key.
+	 * @param start
+	 * @param end
+	 * @param interval The histogram interval. The split between history and live is rounded down to this.
+	 * @param splittable false if the results cannot be merged (e.g. a dateRange breakdown). Then
+	 * only whole-history queries are cached.
+	 * @param numTerms max buckets in a merged terms breakdown. 0 for no limit.
+	 * @param numExamples max examples in the merged result
+	 * @param runQuery
+	 * @return aggregations, plus {@link #EXAMPLES}. Do not modify (it may be cached)
+	 */
+	Map get(String spec, Time start, Time end, Dt interval, boolean splittable, int numTerms, int numExamples,
+			Query runQuery)
+	{
+		long iv = interval.getMillisecs();
+		Time split = floor(new Time().minus(settle), iv);
+		// all live? nothing to cache
+		if ( ! start.isBefore(split)) {
+			return runQuery.run(start, end, null, null);
+		}
+		// all history?
+		// NB: the time filter is inclusive, so the live part starts 1ms after the split
+		Time liveStart = new Time(split.getTime() + 1);
+		if ( ! end.isAfter(liveStart)) {
+			return getHistory(spec, start, end, runQuery);
+		}
+		if ( ! splittable) {
+			return runQuery.run(start, end, null, null);
+		}
+		// cache from the first whole interval, so a start which drifts between requests gets the same key
+		Time historyStart = ceil(start, iv);
+		if ( ! historyStart.isBefore(split)) {
+			return runQuery.run(start, end, null, null);
+		}
+		Map history = getHistory(spec, historyStart, split, runQuery);
+		// the head (if any) and live, in one query
+		Map rest = historyStart.equals(start)?
+				runQuery.run(liveStart, end, null, null)
+				: runQuery.run(start, end, historyStart, split);
+		Map merged = (Map) merge(history, rest, numTerms);
+		// examples: the most recent first (the head's are few, and get mixed in with live's)
+		List egs = new ArrayList();
+		addExamples(egs, rest.get(EXAMPLES), numExamples);
+		addExamples(egs, history.get(EXAMPLES), numExamples);
+		merged.put(EXAMPLES, egs);
+		return merged;
+	}
+
+	private void addExamples(List egs, Object hits, int max) {
+		if ( ! (hits instanceof List)) return;
+		for (Object h : (List) hits) {
+			if (egs.size() >= max) return;
+			egs.add(h);
+		}
+	}
+
+	/**
+	 * NB: the key has the exact start -- the history must not include events from before it.
+	 */
+	private Map getHistory(String spec, Time start, Time end, Query runQuery) {
+		String key = spec + "|" + start.getTime() + "|" + end.getTime();
+		Map result = key2result.get(key);
+		if (result != null) {
+			return result;
+		}
+		result = runQuery.run(start, end, null, null);
+		key2result.put(key, result);
+		return result;
+	}
+
+	/**
+	 * Merge two aggregation results for adjacent time windows. Does not modify the inputs.
+	 * <p>
+	 * Numbers are added. Maps are merged key by key -- except "buckets" lists, where buckets with the same key
+	 * are merged (e.g. a date-histogram bucket split across the two windows) and new ones appended.
+	 * Terms buckets are then re-sorted by count, most first, and cut to numTerms. Date-histogram buckets
+	 * are sorted by time. Anything else: a's value wins.
+	 *
+	 * @param a
+	 * @param b
+	 * @param numTerms 0 for no limit
+	 * @return merged
+	 */
+	static Object merge(Object a, Object b, int numTerms) {
+		if (a == null) return b;
+		if (b == null) return a;
+		if (a instanceof Number && b instanceof Number) {
+			Number na = (Number) a, nb = (Number) b;
+			if (isIntegral(na) && isIntegral(nb)) {
+				return na.longValue() + nb.longValue();
+			}
+			return na.doubleValue() + nb.doubleValue();
+		}
+		if (a instanceof Map && b instanceof Map) {
+			Map<String, Object> ma = (Map) a, mb = (Map) b;
+			Map merged = new ArrayMap();
+			for (Map.Entry<String, Object> e : ma.entrySet()) {
+				String k = e.getKey();
+				Object bv = mb.get(k);
+				if ("buckets".equals(k) && e.getValue() instanceof List && bv instanceof List) {
+					merged.put(k, mergeBuckets((List) e.getValue(), (List) bv, numTerms));
+				} else {
+					merged.put(k, merge(e.getValue(), bv, numTerms));
+				}
+			}
+			for (Map.Entry<String, Object> e : mb.entrySet()) {
+				if ( ! ma.containsKey(e.getKey())) {
+					merged.put(e.getKey(), e.getValue());
+				}
+			}
+			return merged;
+		}
+		return a;
+	}
+
+	private static List mergeBuckets(List<Map> as, List<Map> bs, int numTerms) {
+		List<Map> merged = new ArrayList<Map>(as.size() + bs.size());
+		// bucket key -> index in merged
+		Map<Object, Integer> key2i = new HashMap<Object, Integer>();
+		for (Map bucket : as) {
+			key2i.put(bucket.get("key"), merged.size());
+			merged.add(bucket);
+		}
+		for (Map bucket : bs) {
+			Integer i = key2i.get(bucket.get("key"));
+			if (i == null) {
+				merged.add(bucket);
+			} else {
+				Map m = (Map) merge(merged.get(i), bucket, numTerms);
+				// not added up, if it's a number (e.g. a date-histogram key)
+				m.put("key", bucket.get("key"));
+				merged.set(i, m);
+			}
+		}
+		if ( ! isTerms(merged)) {
+			// b may have buckets from either side of a's (e.g. the head and live around the history)
+			if (isDateHistogram(merged)) {
+				merged.sort((x, y) -> Double.compare(((Number) x.get("key")).doubleValue(), ((Number) y.get("key")).doubleValue()));
+			}
+			return merged;
+		}
+		// as ES would: biggest first (stable, so ties keep their order)
+		merged.sort((x, y) -> Double.compare(getCount(y), getCount(x)));
+		if (numTerms > 0 && merged.size() > numTerms) {
+			return new ArrayList(merged.subList(0, numTerms));
+		}
+		return merged;
+	}
+
+	/**
+	 * @return false for date-histogram (which have key_as_string) and range (from/to) buckets
+	 */
+	private static boolean isTerms(List<Map> buckets) {
+		for (Map bucket : buckets) {
+			if (bucket.containsKey("key_as_string") || bucket.containsKey("from") || bucket.containsKey("to")) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isDateHistogram(List<Map> buckets) {
+		for (Map bucket : buckets) {
+			if ( ! bucket.containsKey("key_as_string") || ! (bucket.get("key") instanceof Number)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * doc_count is stripped by {@link com.winterwell.datalog.ESDataLogSearchBuilder#cleanJson(Map)}, so use
+	 * the count report -- or else the first number.
+	 */
+	private static double getCount(Map bucket) {
+		Object c = bucket.get("count");
+		if (c instanceof Number) return ((Number) c).doubleValue();
+		for (Map.Entry e : (Set<Map.Entry>) bucket.entrySet()) {
+			if ( ! "key".equals(e.getKey()) && e.getValue() instanceof Number) {
+				return ((Number) e.getValue()).doubleValue();
+			}
+		}
+		return 0;
+	}
+
+	private static boolean isIntegral(Number n) {
+		return n instanceof Long || n instanceof Integer || n instanceof Short || n instanceof Byte;
+	}
+
+	/**
+	 * @return t rounded down to a multiple of intervalMillis (from the epoch, so UTC days for a day interval)
+	 */
+	static Time floor(Time t, long intervalMillis) {
+		if (intervalMillis <= 0) return t;
+		long ms = t.getTime();
+		return new Time(ms - Math.floorMod(ms, intervalMillis));
+	}
+
+	/**
+	 * @return t rounded up to a multiple of intervalMillis
+	 */
+	static Time ceil(Time t, long intervalMillis) {
+		Time f = floor(t, intervalMillis);
+		return f.equals(t)? t : new Time(f.getTime() + intervalMillis);
+	}
+
+	@Override
+	public String toString() {
+		return "DataQueryCache[" + key2result.size() + "]";
+	}
+}
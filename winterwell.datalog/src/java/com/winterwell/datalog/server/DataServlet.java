@@ -9,6 +9,7 @@ import java.util.Map;
 import javax.servlet.http.HttpServletResponse;
 
 import com.winterwell.datalog.DataLog;
+import com.winterwell.datalog.DataLogConfig;
 import com.winterwell.datalog.DataLogImpl;
 import com.winterwell.datalog.DataLogSecurity;
 import com.winterwell.datalog.Dataspace;
@@ -63,6 +64,13 @@ public class DataServlet implements IServlet {
 	private static final IntField SIZE = new IntField("size");
 	public static final SField DATASPACE = new SField("dataspace");
 	private static final String LOGTAG = "DataServlet";
+	
+	/**
+	 * History results, which won't change. 
+	 * The settle time allows for events sat in a DataLog bucket before being saved.
+	 */
+	static final DataQueryCache cache = new DataQueryCache(
+			Dep.get(DataLogConfig.class).dataCacheSize, Dep.get(DataLogConfig.class).interval);
 
 	@Override
 	public void process(WebRequest state) throws IOException {						
@@ -111,7 +119,38 @@ public class DataServlet implements IServlet {
 //		ESStorage ess = Dep.get(ESStorage.class);
 		
 		ESHttpClient esc = ess.client(dataspace);
+		Dt interval = state.get(new DtField("interval"), TUnit.DAY.dt);
+		final List<String> fbreakdown = breakdown;
+		final int fsize = size;
+
+		// debug: run it direct, so we can show the curl
+		if (state.debug && isLoggedIn(state)) {
+			ESDataLogSearchBuilder essb = prepareSearch(esc, dataspace, fbreakdown, filter, numTerms, interval, start, end);
+			SearchRequest search = essb.prepareSearch();
+			Map aggregations = doSearch(state, essb, search, fsize);
+			aggregations.put("debug", search.getCurl());
+			JsonResponse jr = new JsonResponse(state, aggregations);		
+			WebUtils2.sendJson(jr, state);
+			return;
+		}
+		
+		// Search! (or use the cached results for the history)
+		String spec = dataspace+"|"+breakdown+"|"+filter.getRaw().trim()+"|"+numTerms+"|"+size+"|"+interval.getMillisecs();
+		boolean splittable = ! ESDataLogSearchBuilder.hasDateRange(breakdown);
+		Map aggregations = cache.get(spec, start, end, interval, splittable, numTerms, size, (s, e, gapStart, gapEnd) -> {
+			ESDataLogSearchBuilder essb = prepareSearch(esc, dataspace, fbreakdown, filter, numTerms, interval, s, e);
+			if (gapStart != null) essb.setExclude(gapStart, gapEnd);
+			return doSearch(state, essb, essb.prepareSearch(), fsize);
+		});
+		
+		// done
+		JsonResponse jr = new JsonResponse(state, aggregations);		
+		WebUtils2.sendJson(jr, state);
+	}
 
+	private ESDataLogSearchBuilder prepareSearch(ESHttpClient esc, Dataspace dataspace, List<String> breakdown, 
+			SearchQuery filter, int numTerms, Dt interval, Time start, Time end) 
+	{
 		// collect all the info together
 		ESDataLogSearchBuilder essb = new ESDataLogSearchBuilder(esc, dataspace);		
 		essb.setBreakdown(breakdown)
@@ -119,15 +158,18 @@ public class DataServlet implements IServlet {
 			.setNumResults(numTerms)
 			.setStart(start)
 			.setEnd(end);
-		Dt interval = state.get(new DtField("interval"), TUnit.DAY.dt);
 		essb.setInterval(interval);
-		
-		SearchRequest search = essb.prepareSearch();		
+		return essb;
+	}
+	
+	/**
+	 * @return cleaned aggregations, plus examples
+	 */
+	private Map doSearch(WebRequest state, ESDataLogSearchBuilder essb, SearchRequest search, int size) {
 		search.setDebug(true);
 //		search.setType(typeFromEventType(spec.eventType)); all types unless fixed
 		search.setSize(size);
 		
-		// Search!
 		SearchResponse sr = search.get();		
 		sr.check();
 		
@@ -139,14 +181,8 @@ public class DataServlet implements IServlet {
 		// strip out no0 filter wrappers
 		aggregations = essb.cleanJson(aggregations);
 		// also send eg data
-		aggregations.put("examples", sr.getHits());		
-		// debug?
-		if (state.debug && isLoggedIn(state)) {
-			aggregations.put("debug", search.getCurl());
-		}
-		// done
-		JsonResponse jr = new JsonResponse(state, aggregations);		
-		WebUtils2.sendJson(jr, state);
+		aggregations.put(DataQueryCache.EXAMPLES, sr.getHits());
+		return aggregations;
 	}
 
 	/**
@@ -0,0 +1,137 @@
+package com.winterwell.datalog.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.winterwell.datalog.DataLog;
+import com.winterwell.utils.containers.RingBuffer;
+import com.winterwell.utils.log.Log;
+import com.winterwell.utils.time.Dt;
+
+/**
+ * Asynchronous ingest for /lg. The servlet copies out a {@link LgRecord} and replies at once;
+ * a pool of worker threads then does the ua parsing, bot-IP lookup, file logging and storage.
+ * <p>
+ * The queue is a bounded {@link RingBuffer}. If it is full, the event is dropped and counted as
+ * "LgServlet_ingest/dropped" -- so overload costs us some events, rather than tying up every Jetty thread.
+ * <p>
+ * Switched on by {@link com.winterwell.datalog.DataLogConfig#ingestThreads}.
+ *
+ * @author daniel
+ */
+final class LgIngest {
+
+	private static final String LOGTAG = "lg.ingest";
+
+	/**
+	 * Max records a worker takes from the queue at a time
+	 */
+	static final int BATCH = 256;
+
+	/**
+	 * How long an idle worker sleeps between polls (it backs off up to this)
+	 */
+	private static final long MAX_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	private final RingBuffer<LgRecord> queue;
+	private final List<Thread> workers = new ArrayList<Thread>();
+	private volatile boolean stop;
+
+	LgIngest(int queueSize, int threads) {
+		assert threads > 0 : threads;
+		queue = new RingBuffer<LgRecord>(queueSize);
+		for (int i = 0; i < threads; i++) {
+			Thread t = new Thread(this::run, "LgIngest-" + i);
+			t.setDaemon(true);
+			workers.add(t);
+			t.start();
+		}
+	}
+
+	/**
+	 * Never blocks.
+	 * @param rec
+	 * @return false if the queue was full and rec was dropped
+	 */
+	boolean offer(LgRecord rec) {
+		if (stop) {
+			// shutting down -- just do it here
+			process(rec);
+			return true;
+		}
+		if (queue.offer(rec)) {
+			return true;
+		}
+		DataLog.count(1, "LgServlet_ingest", "dropped");
+		return false;
+	}
+
+	private void run() {
+		List<LgRecord> batch = new ArrayList<LgRecord>(BATCH);
+		long idle = 0;
+		while (true) {
+			int n = queue.drainTo(batch, BATCH);
+			if (n == 0) {
+				if (stop) return;
+				// back off: 50 microseconds up to 10 milliseconds
+				idle = idle == 0 ? 50000 : Math.min(idle * 2, MAX_IDLE_NANOS);
+				LockSupport.parkNanos(idle);
+				continue;
+			}
+			idle = 0;
+			for (LgRecord rec : batch) {
+				process(rec);
+			}
+			batch.clear();
+			DataLog.count(n, "LgServlet_ingest", "done");
+			DataLog.set(queue.size(), "LgServlet_ingest", "queue");
+		}
+	}
+
+	private void process(LgRecord rec) {
+		try {
+			LgServlet.doLog2(rec);
+			LgServlet.doLog3_callback(rec);
+		} catch (Throwable ex) {
+			Log.e(LOGTAG, rec + " -> " + ex);
+		}
+	}
+
+	/**
+	 * @return approximate number of queued records
+	 */
+	int size() {
+		return queue.size();
+	}
+
+	/**
+	 * Stop the workers, once they have cleared the queue.
+	 * @param timeout
+	 * @return true if the queue was cleared in time
+	 */
+	boolean close(Dt timeout) {
+		stop = true;
+		long end = System.currentTimeMillis() + timeout.getMillisecs();
+		for (Thread t : workers) {
+			LockSupport.unpark(t);
+			try {
+				t.join(Math.max(1, end - System.currentTimeMillis()));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		int left = queue.size();
+		if (left != 0) {
+			Log.w(LOGTAG, "closed with " + left + " events unprocessed");
+		}
+		return left == 0;
+	}
+
+	@Override
+	public String toString() {
+		return "LgIngest[" + queue + " workers:" + workers.size() + "]";
+	}
+}
@@ -0,0 +1,72 @@
+package com.winterwell.datalog.server;
+
+import java.util.Map;
+
+import com.winterwell.datalog.Dataspace;
+import com.winterwell.utils.time.Time;
+import com.winterwell.web.app.WebRequest;
+
+/**
+ * What {@link LgServlet#doLog(WebRequest, Dataspace, String, String, double, Time, Map, boolean)} needs
+ * from a request. This is copied out on the request thread, so the rest of the work
+ * (ua parsing, bot-IP lookup, file logging, storage) can happen after the reply has gone
+ * -- see {@link LgIngest}.
+ *
+ * @author daniel
+ */
+final class LgRecord {
+
+	final Dataspace dataspace;
+	final String gby;
+	final String tag;
+	final double count;
+	/**
+	 * Can be null
+	 */
+	final Time time;
+	/**
+	 * Can be null
+	 */
+	Map params;
+	final boolean stdTrackerParams;
+
+	/**
+	 * From the tracker cookie. This is set on the request thread, as it may set a cookie.
+	 */
+	final String trckId;
+	final String ua;
+	final String remoteAddr;
+	final String referer;
+	/**
+	 * DfP hack: a fallback for referer
+	 */
+	final String site;
+	/**
+	 * Optional url to GET once logged
+	 */
+	String callback;
+
+	LgRecord(WebRequest state, Dataspace dataspace, String gby, String tag, double count,
+			Time time, Map params, boolean stdTrackerParams)
+	{
+		assert dataspace != null;
+		assert tag != null : state;
+		this.dataspace = dataspace;
+		this.gby = gby;
+		this.tag = tag;
+		this.count = count;
+		this.time = time;
+		this.params = params;
+		this.stdTrackerParams = stdTrackerParams;
+		trckId = TrackingPixelServlet.getCreateCookieTrackerId(state);
+		ua = state.getUserAgent();
+		remoteAddr = state.getRemoteAddr();
+		referer = state.getReferer();
+		site = state.get("site");
+	}
+
+	@Override
+	public String toString() {
+		return "LgRecord[" + dataspace + " " + tag + " " + params + " ref:" + referer + " ip:" + remoteAddr + "]";
+	}
+}
@@ -1,7 +1,6 @@
 package com.winterwell.datalog.server;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
@@ -9,8 +8,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 
-import org.eclipse.jetty.util.ajax.JSON;
-
 import com.winterwell.datalog.DataLog;
 import com.winterwell.datalog.DataLogConfig;
 import com.winterwell.datalog.DataLogEvent;
@@ -22,7 +19,6 @@ import com.winterwell.utils.containers.ArrayMap;
 import com.winterwell.utils.containers.Containers;
 import com.winterwell.utils.log.Log;
 import com.winterwell.utils.threads.ICallable;
-import com.winterwell.utils.time.TUnit;
 import com.winterwell.utils.time.Time;
 import com.winterwell.utils.web.WebUtils;
 import com.winterwell.utils.web.WebUtils2;
@@ -40,7 +36,6 @@ import com.winterwell.web.fields.DoubleField;
 import com.winterwell.web.fields.JsonField;
 import com.winterwell.web.fields.SField;
 
-import ua_parser.Client;
 import ua_parser.Parser;
 
 
@@ -134,20 +129,19 @@ public class LgServlet {
 		}
 		ICallable<Time> ctime = state.get(DataLogFields.time);
 		Time time = ctime==null? null : ctime.call();
-		// log it!
-		DataLogEvent logged = doLog(state, ds, gby, tag, count, time, params, stdTrackerParams);
-				
+		LgRecord rec = new LgRecord(state, ds, gby, tag, count, time, params, stdTrackerParams);
 		// also fire a callback?
-		String cb = state.get(JsonResponse.CALLBACK);
-		if (cb!=null) {
-			try {
-				FakeBrowser fb = new FakeBrowser();
-				fb.setTimeOut(1000); // don't wait around - just call and go
-				fb.getPage(cb);
-			} catch(Exception ex) {
-				// oh well
-				Log.d("log.callback", cb+" from "+state+"-> "+ex);
-			}
+		rec.callback = state.get(JsonResponse.CALLBACK);
+		
+		// log it!
+		DataLogEvent logged = null;
+		LgIngest _ingest = ingest;
+		if (_ingest != null) {
+			// async: reply now, enrich and store later (or drop, if we are overloaded)
+			_ingest.offer(rec);
+		} else {
+			logged = doLog2(rec);
+			doLog3_callback(rec);
 		}
 		
 		// Reply		
@@ -198,10 +192,10 @@ public class LgServlet {
 	}
 
 	/**
-	 * TODO refactor as Map key:ip value=user-type eg "bot"
+	 * If set, {@link #fastLog(WebRequest)} queues events here instead of processing them on the request thread.
+	 * Set by {@link DataLogServer} if {@link DataLogConfig#ingestThreads} is on.
 	 */
-	static List<Map> userTypeForIPorXId;
-	static volatile Time userTypeForIPorXIdFetched;
+	static volatile LgIngest ingest;
 	
 	/**
 	 * 
@@ -217,13 +211,25 @@ public class LgServlet {
 	public static DataLogEvent doLog(WebRequest state, Dataspace dataspace, String gby, String tag, double count, 
 			Time time, Map params, boolean stdTrackerParams) 
 	{
-		assert dataspace != null;		
-		assert tag != null : state;
-		String trckId = TrackingPixelServlet.getCreateCookieTrackerId(state);
+		return doLog2(new LgRecord(state, dataspace, gby, tag, count, time, params, stdTrackerParams));
+	}
+	
+	/**
+	 * The work of {@link #doLog(WebRequest, Dataspace, String, String, double, Time, Map, boolean)}, 
+	 * which does not need the request -- so it can be run by {@link LgIngest}.
+	 * @param rec
+	 * @return event, or null if this was screened out (eg our own IPs)
+	 */
+	static DataLogEvent doLog2(LgRecord rec) {
+		Map params = rec.params;
+		Dataspace dataspace = rec.dataspace;
+		String tag = rec.tag;
 		// special vars
-		if (stdTrackerParams) {			
-			params = doLog2_addStdTrackerParams(state, params, trckId);
+		if (rec.stdTrackerParams) {			
+			params = doLog2_addStdTrackerParams(rec, params);
 		}
+		if (params==null) params = new ArrayMap();
+		rec.params = params;
 		
 		// HACK remove Hetzner from the ip param 
 		// TODO make this a config setting?? Or even better, the servers report their IP
@@ -252,99 +258,83 @@ public class LgServlet {
 		}
 		
 		// write to log file
-		doLogToFile(dataspace, tag, count, params, trckId, state);
+		doLogToFile(rec);
 				
 		// write to Stat / ES
 		// ...which dataspaces?
 		// Multiple dataspaces: Dan A reports a significant cost to per-user dataspaces
 		// -- he estimated one server per 4k ES indexes. c.f. #5403
-		DataLogEvent event = new DataLogEvent(dataspace, gby, count, new String[] { tag}, params);
-		if (time != null) event.setTime(time);
+		DataLogEvent event = new DataLogEvent(dataspace, rec.gby, rec.count, new String[] { tag}, params);
+		if (rec.time != null) event.setTime(rec.time);
 		DataLog.count(event);
 
 		return event;
 	}
 	
+	/**
+	 * GET {@link LgRecord#callback}, if set. Don't wait around -- just call and go.
+	 * @param rec
+	 */
+	static void doLog3_callback(LgRecord rec) {
+		String cb = rec.callback;
+		if (cb==null) return;
+		try {
+			FakeBrowser fb = new FakeBrowser();
+			fb.setTimeOut(1000); // don't wait around - just call and go
+			fb.getPage(cb);
+		} catch(Exception ex) {
+			// oh well
+			Log.d("log.callback", cb+" from "+rec+"-> "+ex);
+		}
+	}
+	
 	
 	/**
 	 * Is it a bot? works with Portal which holds the data
 	 * @param ips
-	 * @return
+	 * @return e.g. "bot", or null
 	 */
 	private static String getInvalidType(List ips) {
-		assert ips != null;
-		if (userTypeForIPorXId==null || userTypeForIPorXIdFetched==null || userTypeForIPorXIdFetched.isBefore(new Time().minus(10, TUnit.MINUTE))) {
-			//Needs to be set first -- will get caught in a loop otherwise as userTypeForIPorXId is still null
-			userTypeForIPorXIdFetched = new Time();			
-			FakeBrowser fb = new FakeBrowser();
-			fb.setRequestMethod("GET");
-
-			try {
-				//Right now, just set to point at local. TODO read in correct endpoint from state
-				String json= fb.getPage("https://portal.good-loop.com/botip/_list.json");
-				Map response = (Map) JSON.parse(json);
-				Map esres = (Map) response.get("cargo");
-				List<Map> hits = Containers.asList(esres.get("hits"));
-				
-				userTypeForIPorXId = hits;
-			}
-			catch(Exception ex) {
-				Log.e("lg.getInvalidType", ex);
-				userTypeForIPorXId = new ArrayList(); // paranoia: keep logging fast. This will get checked again in 10 minutes
-			}
-		}
-		//At this point, can safely assume that we have a valid list of IPs
-		for (Object userIP : ips) {
-			for(Map botIP : userTypeForIPorXId) {
-				String badIP = (String) botIP.get("ip");
-				if (userIP.equals(badIP)) return (String) botIP.get("type");
-			}
-		}
-		return null;
+		return botIPs.getInvalidType(ips);
 	}
 
-
-	static ua_parser.Parser parser;
-	
-
 	/**
 	 * Add ua (user agent), user, ip.
 	 * Adds nothing if this is a call from one of our servers.
 	 * 
-	 * @param state
+	 * @param rec
 	 * @param params Can be null
-	 * @param trckId
 	 * @return params, never null
 	 */
-	private static Map doLog2_addStdTrackerParams(WebRequest state, Map params, String trckId) {
+	private static Map doLog2_addStdTrackerParams(LgRecord rec, Map params) {
 		// TODO allow the caller to explicitly set some of these if they want to
 		if (params==null) params = new ArrayMap();
 		// Browser info
-		String ua = state.getUserAgent();
+		String ua = rec.ua;
 		if (FakeBrowser.HONEST_USER_AGENT.equals(ua)) {
 			return params; // dont add tracking params for our own server calls
 		}
 		params.putIfAbsent("ua", ua);
 		// Replace $user with tracking-id, and $
-		params.putIfAbsent("user", trckId);			
+		params.putIfAbsent("user", rec.trckId);			
 		// ip: $ip
-		params.putIfAbsent("ip", state.getRemoteAddr());
+		params.putIfAbsent("ip", rec.remoteAddr);
 			
-		BrowserType bt = getBrowserInfo(ua);
-		boolean mobile = bt.isMobile();		
+		BrowserTypeCache.Entry bt = browserTypes.get(ua);
+		boolean mobile = bt.mobile;		
 		params.putIfAbsent("mbl", mobile);		
 		// browser
-		String browser = bt.getBrowserMake(); //+"_"+bt.getVersion(); actually no version: its more useful to group by chrome vs firefox; the version is more noise than signal.
+		String browser = bt.browser; //+"_"+bt.getVersion(); actually no version: its more useful to group by chrome vs firefox; the version is more noise than signal.
 		// And we do also store the user-agent
 		// TODO s/_\d+//g in the old data to remove the version numbers
 		params.putIfAbsent("browser", browser);
 		// OS
-		String os = bt.getOS();
+		String os = bt.os;
 		params.putIfAbsent("os", os);
 		
 		// what page?
-		String ref = state.getReferer();
-		if (ref==null) ref = state.get("site"); // DfP hack
+		String ref = rec.referer;
+		if (ref==null) ref = rec.site; // DfP hack
 		// remove some gumpf (UTM codes)
 		String cref = WebUtils2.cleanUp(ref);
 		if (cref != null) {
@@ -359,33 +349,25 @@ public class LgServlet {
 
 	
 	/**
-	 * Uses ua_parser if it can
+	 * Uses ua_parser if it can. Cached -- see {@link BrowserTypeCache}
 	 * @param ua
-	 * @return
+	 * @return Please don't modify it, as it is shared. 
 	 */
 	public static BrowserType getBrowserInfo(String ua) {
-		BrowserType bt = new BrowserType(ua);
-		// browser
-		try {
-			ua_parser.Parser _parser = uaParser();
-			Client uac = _parser.parse(ua);			
-			bt.setBrowserMake(uac.userAgent.family);
-			bt.setVersion(uac.userAgent.major);
-			bt.setOS(uac.os.family);
-		} catch(Throwable ex) {
-			Log.w("lg", ex);
-		}
-		return bt;
+		return browserTypes.get(ua).bt;
 	}
 
 
+	/**
+	 * @return a parser for the caller's exclusive use (ua_parser is not documented as thread-safe).
+	 * Please return it via {@link #releaseUaParser(Parser)}, in a finally block.
+	 */
 	static Parser uaParser() throws IOException {
-		// The constructor loads files, so lets stash one copy and reuse it.
-		// Thread safety: not sure!
-		if (parser==null) {
-			parser = new Parser();
-		}
-		return parser;
+		return browserTypes.borrowParser();
+	}
+
+	static void releaseUaParser(Parser parser) {
+		browserTypes.releaseParser(parser);
 	}
 
 
@@ -436,10 +418,16 @@ public class LgServlet {
 	 */
 	static final List<String> OUR_IPS = Dep.get(DataLogConfig.class).ourSkippedIPs;
 	
-	private static void doLogToFile(Dataspace dataspace, String tag, double count, Map params, String trckId, WebRequest state) {
+	static final BrowserTypeCache browserTypes = new BrowserTypeCache(
+			DataLogConfig.uaCacheSize, DataLogConfig.uaCacheTTL);
+	
+	static final BotIPIndex botIPs = new BotIPIndex(DataLogConfig.botIPSource, DataLogConfig.botIPRefresh);
+	
+	private static void doLogToFile(LgRecord rec) {
+		Map params = rec.params;
 		String msg = params == null? "" : Printer.toString(params, ", ", ": ");
-		if (count != 1) msg += "\tcount:"+count;
-		msg += "\ttracker:"+trckId+"\tref:"+state.getReferer()+"\tip:"+state.getRemoteAddr();
+		if (rec.count != 1) msg += "\tcount:"+rec.count;
+		msg += "\ttracker:"+rec.trckId+"\tref:"+rec.referer+"\tip:"+rec.remoteAddr;
 		// Guard against giant objects getting put into log, which is almost
 		// certainly a careless error
 		if (msg.length() > Log.MAX_LENGTH) {
@@ -447,12 +435,12 @@ public class LgServlet {
 //			error = StrUtils.ellipsize(msg, 140)+" is too long for Log!";
 		}
 		// chop #tag down to tag (including embedded #, as in tr_#myapp)
-		tag = tag.replace("#", "");
-		tag = dataspace+"."+tag;
+		String tag = rec.tag.replace("#", "");
+		tag = rec.dataspace+"."+tag;
 		// Note: LogFile will force the report onto one line by converting [\r\n] to " "
 		// Add in referer and IP
 		// Tab-separating elements on this line is useless, as Report.toString() will immediately convert \t to space.
-		String msgPlus = msg+" ENDMSG "+state.getReferer()+" "+state.getRemoteAddr();
+		String msgPlus = msg+" ENDMSG "+rec.referer+" "+rec.remoteAddr;
 		
 		// error or warning?
 		if (tag.contains("error")) {
@@ -1,19 +1,174 @@
 package com.winterwell.datalog;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
 import org.junit.Test;
 
+import com.sun.net.httpserver.HttpServer;
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.io.FileUtils;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.TUnit;
 import com.winterwell.utils.time.Time;
 
 public class CallbackManagerTest {
 
 	@Test
-	public void test() {
+	public void test() throws Exception {
 		DataLogEvent dle = new DataLogEvent("minview", 1);
 		dle.time = new Time();
-		
+
 		CallbackManager cm = new CallbackManager();
 		Callback callback = new Callback("gl", "minview", "http://localas.good-loop.com");
 		cm.consume2_doCallback(dle, callback);
 	}
 
+	/**
+	 * A local webhook which records the bodies it gets
+	 * @param status reply with this
+	 * @param delay sleep this many millisecs first
+	 */
+	static HttpServer webhook(List<String> bodies, int status, long delay) throws Exception {
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", ex -> {
+			try (InputStream in = ex.getRequestBody()) {
+				bodies.add(new String(in.readAllBytes(), "UTF-8"));
+			}
+			Utils.sleep(delay);
+			ex.sendResponseHeaders(status, -1);
+			ex.close();
+		});
+		server.setExecutor(java.util.concurrent.Executors.newFixedThreadPool(4));
+		server.start();
+		return server;
+	}
+
+	static String url(HttpServer server) {
+		return "http://localhost:"+server.getAddress().getPort()+"/hook";
+	}
+
+	static DataLogEvent event(int i) {
+		DataLogEvent dle = new DataLogEvent("gl", 1, "minview", null);
+		dle.time = new Time();
+		return dle;
+	}
+
+	@Test
+	public void testBatchDelivery() throws Exception {
+		List<String> bodies = new CopyOnWriteArrayList();
+		HttpServer server = webhook(bodies, 200, 0);
+		try {
+			CallbackManager cm = new CallbackManager();
+			Callback cb = new Callback("gl", "minview", url(server));
+			cb.batch = true;
+			cm.callbacksForDataspace.add("gl", cb);
+			for(int i=0; i<20; i++) {
+				cm.send(event(i));
+			}
+			Map<String, Object> stats = waitFor(cm, cb, 20);
+			assertEquals(20L, stats.get("sent"));
+			// batched into arrays
+			assertTrue(bodies.size() < 20);
+			assertTrue(bodies.get(0).startsWith("["));
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	@Test
+	public void testRetryThenDeadLetter() throws Exception {
+		List<String> bodies = new CopyOnWriteArrayList();
+		HttpServer server = webhook(bodies, 500, 0);
+		File dead = File.createTempFile("callbacks-dead", ".txt");
+		FileUtils.delete(dead);
+		try {
+			CallbackManager cm = new CallbackManager();
+			cm.config().callbackRetries = 2;
+			cm.config().callbackRetryDelay = new Dt(10, TUnit.MILLISECOND);
+			cm.config().callbackDeadLetterFile = dead;
+			Callback cb = new Callback("gl", "minview", url(server));
+			cm.callbacksForDataspace.add("gl", cb);
+			cm.send(event(0));
+			for(int i=0; i<200 && ! dead.exists(); i++) {
+				Utils.sleep(10);
+			}
+			// 1 try + 2 retries
+			assertEquals(3, bodies.size());
+			assertTrue(FileUtils.read(dead).contains("minview"));
+			assertEquals(1L, cm.getEndpoint(cb).getStats().get("dead"));
+		} finally {
+			server.stop(0);
+			FileUtils.delete(dead);
+		}
+	}
+
+	@Test
+	public void testShutdownDeadLettersPendingRetries() throws Exception {
+		List<String> bodies = new CopyOnWriteArrayList();
+		HttpServer server = webhook(bodies, 500, 0);
+		File dead = File.createTempFile("callbacks-dead", ".txt");
+		FileUtils.delete(dead);
+		try {
+			CallbackManager cm = new CallbackManager();
+			cm.config().callbackRetryDelay = new Dt(1, TUnit.HOUR);
+			cm.config().callbackDeadLetterFile = dead;
+			Callback cb = new Callback("gl", "minview", url(server));
+			cm.callbacksForDataspace.add("gl", cb);
+			cm.send(event(0));
+			for(int i=0; i<200 && (Long) cm.getEndpoint(cb).getStats().get("failed") == 0; i++) {
+				Utils.sleep(10);
+			}
+			assertEquals(0L, cm.getEndpoint(cb).getStats().get("dead"));
+			// the retry is an hour off
+			cm.shutdown();
+			assertEquals(1L, cm.getEndpoint(cb).getStats().get("dead"));
+			assertTrue(FileUtils.read(dead).contains("shutdown"));
+			assertEquals(1, bodies.size());
+		} finally {
+			server.stop(0);
+			FileUtils.delete(dead);
+		}
+	}
+
+	@Test
+	public void testSlowEndpointDoesNotBlockOthers() throws Exception {
+		List<String> slowBodies = new CopyOnWriteArrayList();
+		List<String> fastBodies = new CopyOnWriteArrayList();
+		HttpServer slow = webhook(slowBodies, 200, 2000);
+		HttpServer fast = webhook(fastBodies, 200, 0);
+		try {
+			CallbackManager cm = new CallbackManager();
+			Callback slowCb = new Callback("gl", "minview", url(slow));
+			Callback fastCb = new Callback("gl", "minview", url(fast));
+			cm.callbacksForDataspace.add("gl", slowCb);
+			cm.callbacksForDataspace.add("gl", fastCb);
+			for(int i=0; i<5; i++) {
+				cm.send(event(i));
+			}
+			Map<String, Object> stats = waitFor(cm, fastCb, 5);
+			assertEquals(5L, stats.get("sent"));
+			// the slow one is still going
+			assertTrue((Long) cm.getEndpoint(slowCb).getStats().get("sent") < 5);
+		} finally {
+			slow.stop(0);
+			fast.stop(0);
+		}
+	}
+
+	private Map<String, Object> waitFor(CallbackManager cm, Callback cb, long n) {
+		for(int i=0; i<150; i++) {
+			Map<String, Object> stats = cm.getEndpoint(cb).getStats();
+			if (((Long) stats.get("sent")) >= n) return stats;
+			Utils.sleep(10);
+		}
+		return cm.getEndpoint(cb).getStats();
+	}
 }
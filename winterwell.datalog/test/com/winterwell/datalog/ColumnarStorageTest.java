@@ -0,0 +1,227 @@
+package com.winterwell.datalog;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.winterwell.datalog.GorillaCodec.BitReader;
+import com.winterwell.datalog.GorillaCodec.BitWriter;
+import com.winterwell.maths.stats.distributions.d1.IDistribution1D;
+import com.winterwell.maths.stats.distributions.d1.MeanVar1D;
+import com.winterwell.maths.timeseries.Datum;
+import com.winterwell.maths.timeseries.IDataStream;
+import com.winterwell.maths.timeseries.ListDataStream;
+import com.winterwell.utils.containers.Pair2;
+import com.winterwell.utils.io.FileUtils;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.Period;
+import com.winterwell.utils.time.TUnit;
+import com.winterwell.utils.time.Time;
+
+public class ColumnarStorageTest {
+
+	static final Time DAY = new Time(2020, 3, 1);
+
+	/**
+	 * temp dirs to clean up
+	 */
+	final List<File> dirs = new ArrayList();
+
+	@After
+	public void cleanUp() {
+		for (File dir : dirs) {
+			FileUtils.deleteDir(dir);
+		}
+	}
+
+	ColumnarStorage newStorage() throws Exception {
+		File dir = File.createTempFile("columnar", "");
+		FileUtils.delete(dir);
+		dirs.add(dir);
+		DataLogConfig config = new DataLogConfig();
+		config.columnarDir = dir;
+		return new ColumnarStorage(config);
+	}
+
+	/**
+	 * Save a count for each 15 minute bucket, starting at DAY
+	 */
+	void save(ColumnarStorage storage, int buckets, String tag, double x) {
+		for (int i = 0; i < buckets; i++) {
+			Time s = DAY.plus(new Dt(15 * i, TUnit.MINUTE));
+			Map<String, Double> tag2count = new HashMap();
+			tag2count.put(tag, x);
+			storage.save(new Period(s, s.plus(new Dt(15, TUnit.MINUTE))), tag2count, new HashMap());
+		}
+	}
+
+	@Test
+	public void testCodec() {
+		long[] times = {1000, 1000 + 900000, 1000 + 1800000, 1000 + 1800001, 1000 + 2700000,
+				5000000000L, 5000000064L, 4000000000L, Long.MAX_VALUE / 2};
+		double[] xs = {1, 1, 2.5, -2.5, 1e300, Double.NaN, 0, 0.1, Double.NEGATIVE_INFINITY};
+		BitWriter w = new BitWriter();
+		GorillaCodec.writeTimes(times, times.length, w);
+		GorillaCodec.writeValues(xs, xs.length, w);
+		ByteBuffer bb = ByteBuffer.allocate(w.size() + 3);
+		bb.put(new byte[3]);
+		w.writeTo(bb);
+		BitReader r = new BitReader(bb, 3);
+		assertArrayEquals(times, GorillaCodec.readTimes(r, times.length));
+		assertArrayEquals(xs, GorillaCodec.readValues(r, xs.length), 0);
+
+		// regular saves are cheap
+		long[] regular = new long[1000];
+		double[] same = new double[1000];
+		for (int i = 0; i < regular.length; i++) {
+			regular[i] = DAY.getTime() + i * 900000L;
+			same[i] = 7;
+		}
+		BitWriter w2 = new BitWriter();
+		GorillaCodec.writeTimes(regular, regular.length, w2);
+		GorillaCodec.writeValues(same, same.length, w2);
+		assert w2.size() < 300 : w2.size();
+	}
+
+	@Test
+	public void testSaveAndGet() throws Exception {
+		ColumnarStorage storage = newStorage();
+		save(storage, 8, "hello", 2);
+		Map<String, IDistribution1D> tag2mean = new HashMap();
+		MeanVar1D mv = new MeanVar1D();
+		mv.train1(1.0);
+		mv.train1(2.0);
+		tag2mean.put("world", mv);
+		storage.save(new Period(DAY, DAY.plus(new Dt(15, TUnit.MINUTE))), new HashMap(), tag2mean);
+
+		Time end = DAY.plus(TUnit.DAY);
+		assertEquals(16.0, storage.getTotal("hello", DAY, end).get(), 0);
+		// end is exclusive, and saves are at the bucket middle
+		assertEquals(2.0, storage.getTotal("hello", DAY, DAY.plus(new Dt(10, TUnit.MINUTE))).get(), 0);
+		assertEquals(0.0, storage.getTotal("nope", DAY, end).get(), 0);
+
+		ListDataStream data = (ListDataStream) storage.getData("hello", DAY, end, null, null).get();
+		assertEquals(8, data.size());
+		assertEquals(DAY.plus(new Dt(450, TUnit.SECOND)), data.get(0).getTime());
+
+		ListDataStream means = (ListDataStream) storage.getMeanData("world", DAY, end, null, null).get();
+		assertEquals(1, means.size());
+		assertEquals(1.5, means.get(0).x(), 0.0001);
+		assertEquals(1.5, storage.getMean(DAY, end, "world").get().x.getMean(), 0.0001);
+
+		// rows
+		Iterator<Object[]> rows = storage.getReader(null, DAY, end, Pattern.compile("w.*"), null);
+		Object[] row = rows.next();
+		assertEquals("world", row[1]);
+		assertEquals(6, row.length);
+		assert ! rows.hasNext();
+	}
+
+	@Test
+	public void testBuckets() throws Exception {
+		ColumnarStorage storage = newStorage();
+		save(storage, 8, "hello", 2);
+		// a gap, then 4 more
+		for (int i = 12; i < 16; i++) {
+			Time s = DAY.plus(new Dt(15 * i, TUnit.MINUTE));
+			Map<String, Double> tag2count = new HashMap();
+			tag2count.put("hello", 1.0);
+			storage.save(new Period(s, s.plus(new Dt(15, TUnit.MINUTE))), tag2count, new HashMap());
+		}
+		ListDataStream data = (ListDataStream) storage.getData("hello", DAY, DAY.plus(TUnit.DAY), null, TUnit.HOUR.dt).get();
+		assertEquals(4, data.size());
+		assertEquals(8.0, data.get(0).x(), 0);
+		assertEquals(8.0, data.get(1).x(), 0);
+		assertEquals(0.0, data.get(2).x(), 0);
+		assertEquals(4.0, data.get(3).x(), 0);
+		assertEquals(DAY.plus(TUnit.HOUR), data.get(1).getTime());
+
+		ListDataStream nonZero = (ListDataStream) storage.getData("hello", DAY, DAY.plus(TUnit.DAY),
+				DataLog.KInterpolate.SKIP_ZEROS, TUnit.HOUR.dt).get();
+		assertEquals(3, nonZero.size());
+	}
+
+	@Test
+	public void testBatch() throws Exception {
+		ColumnarStorage storage = newStorage();
+		save(storage, 8, "hello", 2);
+		save(storage, 4, "world", 1);
+		Time end = DAY.plus(TUnit.DAY);
+		// made together, so fetched by one scan
+		StatReq<Double> hello = storage.getTotal("hello", DAY, end);
+		StatReq<Double> world = storage.getTotal("world", DAY, end);
+		StatReq<Double> nope = storage.getTotal("nope", DAY, end);
+		StatReq<IDataStream> data = storage.getData("world", DAY, end, null, TUnit.HOUR.dt);
+		assertEquals(16.0, hello.get(), 0);
+		assertEquals(4.0, world.get(), 0);
+		assertEquals(0.0, nope.get(), 0);
+		assertEquals(4.0, ((ListDataStream) data.get()).get(0).x(), 0);
+	}
+
+	@Test
+	public void testLinear() {
+		List<Datum> data = new ArrayList();
+		data.add(new Datum(new Time(0), 0, "x"));
+		data.add(new Datum(new Time(100), 10, "x"));
+		data.add(new Datum(new Time(200), 20, "x"));
+		List<Datum> out = StatReqColumnar.interpolate(data, new Time(50), new Time(150));
+		assertEquals(3, out.size());
+		assertEquals(5.0, out.get(0).x(), 0.0001);
+		assertEquals(new Time(50), out.get(0).getTime());
+		assertEquals(15.0, out.get(2).x(), 0.0001);
+	}
+
+	@Test
+	public void testCompactAndHistory() throws Exception {
+		ColumnarStorage storage = newStorage();
+		save(storage, 20, "hello", 2);
+		Time t = DAY.plus(new Dt(450, TUnit.SECOND));
+		Map<Pair2<String, Time>, Double> history = new HashMap();
+		history.put(new Pair2("hello", t), 3.0);
+		storage.saveHistory(history);
+		ColumnarSegment seg = storage.getSegment(storage.segmentStart(DAY.getTime()));
+		assertEquals(21, seg.getChunkCount());
+		long size = seg.file.length();
+
+		seg.compact();
+		assertEquals(1, seg.getChunkCount());
+		assert seg.file.length() < size / 4 : seg.file.length() + " vs " + size;
+		assertEquals(43.0, storage.getTotal("hello", DAY, DAY.plus(TUnit.DAY)).get(), 0);
+		ListDataStream data = (ListDataStream) storage.getData("hello", DAY, DAY.plus(TUnit.DAY), null, null).get();
+		assertEquals(20, data.size());
+		assertEquals(5.0, data.get(0).x(), 0);
+
+		// appends after compaction still work
+		save(storage, 1, "hello", 1);
+		assertEquals(44.0, storage.getTotal("hello", DAY, DAY.plus(TUnit.DAY)).get(), 0);
+	}
+
+	@Test
+	public void testTornWrite() throws Exception {
+		ColumnarStorage storage = newStorage();
+		save(storage, 2, "hello", 2);
+		ColumnarSegment seg = storage.getSegment(storage.segmentStart(DAY.getTime()));
+		long good = seg.file.length();
+		// a half-written chunk
+		try (FileOutputStream out = new FileOutputStream(seg.file, true)) {
+			out.write(new byte[] {0x43, 0x48, 0x4e, 0x4b, 0, 0, 1, 0, 1, 2, 3});
+		}
+		assertEquals(4.0, storage.getTotal("hello", DAY, DAY.plus(TUnit.DAY)).get(), 0);
+		save(storage, 1, "hello", 2);
+		assertEquals(6.0, storage.getTotal("hello", DAY, DAY.plus(TUnit.DAY)).get(), 0);
+		assert seg.file.length() > good;
+		assertEquals(3, seg.getChunkCount());
+	}
+}
@@ -0,0 +1,104 @@
+package com.winterwell.datalog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.winterwell.maths.stats.distributions.d1.MeanVar1D;
+
+public class CounterStoreTest {
+
+	@Test
+	public void testInternedSlots() {
+		CounterStore cs = new CounterStore();
+		CounterStore.Slot foo = cs.slot("foo");
+		CounterStore.Slot foobar = cs.slot(foo, "bar");
+		assertEquals("foo/bar", foobar.tag);
+		assertSame(foobar, cs.slot("foo", "bar"));
+		// whitespace variants map to the same slot
+		assertSame(foobar, cs.slot("foo", " bar  "));
+		// non-String bits go via toString()
+		CounterStore.Slot one = cs.slot("foo", 1);
+		assertSame(one, cs.slot("foo", "1"));
+		assertEquals(3, cs.size());
+	}
+
+	@Test
+	public void testSwap() {
+		CounterStore cs = new CounterStore();
+		cs.slot("foo").cells[0].add(1);
+		cs.slot("foo", "bar").cells[0].add(2);
+		cs.slot("foo", "bar").cells[0].add(3);
+		assertEquals(5.0, cs.getCount(0, "foo/bar"), 0);
+		assertNull(cs.getCount(0, "nope"));
+
+		CounterStore.Bucket b = cs.swap(0);
+		assertEquals(1.0, b.tag2count.get("foo"), 0);
+		assertEquals(5.0, b.tag2count.get("foo/bar"), 0);
+		// the new bucket is empty, but keeps the slots
+		assertNull(cs.getCount(0, "foo/bar"));
+		assertTrue(cs.getLive(0).isEmpty());
+		assertEquals(2, cs.size());
+
+		cs.slot("foo").cells[0].set(7);
+		CounterStore.Bucket b2 = cs.swap(0);
+		assertEquals(7.0, b2.tag2count.get("foo"), 0);
+		assertNull(b2.tag2count.get("foo/bar"));
+	}
+
+	@Test
+	public void testDist() {
+		CounterStore cs = new CounterStore();
+		CounterStore.Slot s = cs.slot("speed");
+		MeanVar1D mv = new MeanVar1D();
+		assertSame(mv, s.cells[0].initDist(mv));
+		assertSame(mv, s.cells[0].initDist(new MeanVar1D()));
+		assertSame(mv, cs.getDist(0, "speed"));
+		CounterStore.Bucket b = cs.swap(0);
+		assertSame(mv, b.tag2dist.get("speed"));
+		assertNull(cs.getDist(0, "speed"));
+	}
+
+	@Test
+	public void testPrune() {
+		CounterStore cs = new CounterStore();
+		CounterStore.Slot oneOff = cs.slot("oneoff");
+		oneOff.cells[0].add(1);
+		cs.slot("regular").cells[0].add(1);
+		cs.swap(0);
+		for(int i=0; i<CounterStore.PRUNE_AFTER; i++) {
+			cs.slot("regular").cells[0].add(1);
+			cs.swap(0);
+		}
+		assertEquals(1, cs.size());
+		// a late write to the pruned slot is not lost
+		oneOff.cells[0].add(2);
+		CounterStore.Bucket b = cs.swap(0);
+		assertEquals(2.0, b.tag2count.get("oneoff"), 0);
+		// re-interning gives a fresh slot
+		assertTrue(oneOff != cs.slot("oneoff"));
+	}
+
+	@Test
+	public void testMultiThreaded() throws InterruptedException {
+		CounterStore cs = new CounterStore();
+		ExecutorService exe = Executors.newFixedThreadPool(8);
+		for(int i=0; i<8000; i++) {
+			final int n = i;
+			exe.submit(() -> cs.slot("test", "t"+(n % 10)).cells[0].add(1));
+		}
+		exe.shutdown();
+		exe.awaitTermination(10, TimeUnit.SECONDS);
+		CounterStore.Bucket b = cs.swap(0);
+		for(int i=0; i<10; i++) {
+			assertEquals(800.0, b.tag2count.get("test/t"+i), 0);
+		}
+	}
+}
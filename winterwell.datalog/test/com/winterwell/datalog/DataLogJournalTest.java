@@ -0,0 +1,91 @@
+package com.winterwell.datalog;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.winterwell.maths.timeseries.Datum;
+import com.winterwell.utils.io.FileUtils;
+import com.winterwell.utils.time.Time;
+
+public class DataLogJournalTest {
+
+	/**
+	 * A journalled DataLogImpl, with columnar storage, all in a temp dir
+	 */
+	static DataLogConfig newConfig() throws Exception {
+		File dir = File.createTempFile("journal", "");
+		FileUtils.delete(dir);
+		DataLogConfig config = new DataLogConfig();
+		config.journalDir = new File(dir, "journal");
+		config.columnarDir = new File(dir, "columnar");
+		config.storageClass = ColumnarStorage.class;
+		config.journalChunkSize = 4096; // small, to test growing
+		return config;
+	}
+
+	@Test
+	public void testReplayAfterCrash() throws Exception {
+		DataLogConfig config = newConfig();
+		DataLogImpl dl = new DataLogImpl(config);
+		for (int i = 0; i < 1000; i++) {
+			dl.count(1, "hello", "world");
+		}
+		dl.mean(2, "temp");
+		dl.mean(4, "temp");
+		dl.set(7, "gauge");
+		Time at = new Time(2012, 7, 18);
+		dl.count(at, 3, "retro", "x");
+		// "crash" -- no save
+		DataLogImpl dl2 = new DataLogImpl(config);
+		assertEquals(1000, dl2.get("hello").x, 0);
+		assertEquals(1000, dl2.get("hello", "world").x, 0);
+		assertEquals(3, dl2.getMean("temp").x.getMean(), 0.0001);
+		assertEquals(7, dl2.get("gauge").x, 0);
+		List<Datum> retro = dl2.currentHistoric("retro/x", null, null);
+		assertEquals(1, retro.size());
+		assertEquals(3, retro.get(0).x(), 0);
+		assertEquals(at, retro.get(0).getTime());
+	}
+
+	@Test
+	public void testRestartTwiceNoDoubleCount() throws Exception {
+		DataLogConfig config = newConfig();
+		DataLogImpl dl = new DataLogImpl(config);
+		dl.count(5, "a");
+		// roll over without saving, so both journals hold data
+		Epoch old = dl.doSave2_rollover();
+		dl.count(2, "a");
+
+		DataLogImpl dl2 = new DataLogImpl(config);
+		assertEquals(7, dl2.get("a").x, 0);
+		dl2.count(1, "a");
+		// and again -- the older journal was copied into the newer one, so must not be replayed twice
+		DataLogImpl dl3 = new DataLogImpl(config);
+		assertEquals(8, dl3.get("a").x, 0);
+		assert old != null;
+	}
+
+	@Test
+	public void testSaveEmptiesJournal() throws Exception {
+		DataLogConfig config = newConfig();
+		DataLogImpl dl = new DataLogImpl(config);
+		dl.count(5, "a");
+		dl.doSave();
+		dl.count(2, "b");
+
+		DataLogImpl dl2 = new DataLogImpl(config);
+		assertEquals(0, dl2.get("a").x, 0);
+		assertEquals(2, dl2.get("b").x, 0);
+		// once more, through several saves
+		dl2.doSave();
+		dl2.doSave();
+		dl2.count(1, "c");
+		DataLogImpl dl3 = new DataLogImpl(config);
+		assertEquals(0, dl3.get("b").x, 0);
+		assertEquals(1, dl3.get("c").x, 0);
+	}
+}
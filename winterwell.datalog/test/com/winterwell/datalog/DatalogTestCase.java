@@ -1,9 +1,5 @@
 package com.winterwell.datalog;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-
-import com.winterwell.maths.stats.distributions.d1.IDistribution1D;
 import com.winterwell.maths.timeseries.Datum;
 import com.winterwell.maths.timeseries.ListDataStream;
 import com.winterwell.utils.io.DBOptions;
@@ -79,12 +75,10 @@ public class DatalogTestCase {
 		Time te1 = new Time(e1);
 		Period period = new Period(ts1, te1);
 		
-		Map<String, Double> old = si.tag2count;		
-		Map<String, IDistribution1D> oldMean = si.tag2dist;	
+		Epoch oldEpoch = si.doSave2_rollover();
+		CounterStore.Bucket old = si.counters.swap(oldEpoch.parity);
 		
-		si.save(period, old, oldMean);
-		si.tag2count = new ConcurrentHashMap();
-		si.tag2dist = new ConcurrentHashMap();
+		si.save(period, old.tag2count, old.tag2dist);
 		return period;
 	}
 	
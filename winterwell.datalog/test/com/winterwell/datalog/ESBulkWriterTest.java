@@ -0,0 +1,163 @@
+package com.winterwell.datalog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.winterwell.es.client.ESHttpRequest;
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.containers.ArrayMap;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.TUnit;
+
+public class ESBulkWriterTest {
+
+	static final Dataspace DS = new Dataspace("test");
+
+	/**
+	 * Records the batches instead of calling ES
+	 */
+	static class FakeWriter extends ESBulkWriter {
+		final List<Integer> sizes = Collections.synchronizedList(new ArrayList<Integer>());
+		/**
+		 * The first n calls throw
+		 */
+		final AtomicInteger failCalls = new AtomicInteger();
+		/**
+		 * The first call reports this many items as retryable
+		 */
+		volatile int retryItems;
+		/**
+		 * If set, calls wait for this
+		 */
+		volatile CountDownLatch gate;
+
+		FakeWriter(DataLogConfig config) {
+			super(null, config);
+			backoff = 1;
+		}
+
+		@Override
+		List<ESHttpRequest> send3_bulk(Dataspace dataspace, List<ESHttpRequest> reqs) {
+			if (gate != null) {
+				try {
+					gate.await();
+				} catch (InterruptedException e) {
+					throw Utils.runtime(e);
+				}
+			}
+			sizes.add(reqs.size());
+			if (failCalls.getAndDecrement() > 0) {
+				throw new IllegalStateException("test: network down");
+			}
+			int n = retryItems;
+			retryItems = 0;
+			return reqs.subList(reqs.size() - n, reqs.size());
+		}
+	}
+
+	static DataLogConfig config(int maxActions, long maxBytes) {
+		DataLogConfig config = new DataLogConfig();
+		config.bulkMaxActions = maxActions;
+		config.bulkMaxBytes = maxBytes;
+		config.bulkRetries = 2;
+		return config;
+	}
+
+	@Test
+	public void testSendsAtMaxActions() {
+		FakeWriter w = new FakeWriter(config(3, 1000000));
+		for (int i = 0; i < 7; i++) {
+			w.add(DS, null, new ArrayMap("k", "v"));
+		}
+		assertTrue(w.awaitIdle(new Dt(10, TUnit.SECOND)));
+		assertEquals(Arrays.asList(3, 3), w.sizes);
+		// the part-batch goes on flush
+		w.flush();
+		assertTrue(w.awaitIdle(new Dt(10, TUnit.SECOND)));
+		assertEquals(Arrays.asList(3, 3, 1), w.sizes);
+	}
+
+	@Test
+	public void testSendsAtMaxBytes() {
+		// each doc is 9 bytes, so the 3rd takes it over 20
+		FakeWriter w = new FakeWriter(config(1000, 20));
+		for (int i = 0; i < 5; i++) {
+			w.add(DS, null, new ArrayMap("k", "v"));
+		}
+		assertTrue(w.awaitIdle(new Dt(10, TUnit.SECOND)));
+		assertEquals(Arrays.asList(3), w.sizes);
+	}
+
+	@Test
+	public void testRetries() {
+		// some items fail: just those are re-sent
+		FakeWriter w = new FakeWriter(config(5, 1000000));
+		w.retryItems = 2;
+		for (int i = 0; i < 5; i++) {
+			w.add(DS, null, null);
+		}
+		assertTrue(w.awaitIdle(new Dt(10, TUnit.SECOND)));
+		assertEquals(Arrays.asList(5, 2), w.sizes);
+
+		// the call fails: the lot are re-sent
+		w = new FakeWriter(config(5, 1000000));
+		w.failCalls.set(1);
+		for (int i = 0; i < 5; i++) {
+			w.add(DS, null, null);
+		}
+		assertTrue(w.awaitIdle(new Dt(10, TUnit.SECOND)));
+		assertEquals(Arrays.asList(5, 5), w.sizes);
+
+		// it keeps failing: give up after bulkRetries retries
+		w = new FakeWriter(config(5, 1000000));
+		w.failCalls.set(100);
+		for (int i = 0; i < 5; i++) {
+			w.add(DS, null, null);
+		}
+		assertTrue(w.awaitIdle(new Dt(10, TUnit.SECOND)));
+		assertEquals(Arrays.asList(5, 5, 5), w.sizes);
+	}
+
+	@Test
+	public void testAwaitIdle() {
+		FakeWriter w = new FakeWriter(config(1, 1000000));
+		assertTrue(w.awaitIdle(new Dt(10, TUnit.MILLISECOND)));
+		CountDownLatch gate = new CountDownLatch(1);
+		w.gate = gate;
+		w.add(DS, null, null);
+		assertFalse(w.awaitIdle(new Dt(50, TUnit.MILLISECOND)));
+		gate.countDown();
+		assertTrue(w.awaitIdle(new Dt(10, TUnit.SECOND)));
+		assertEquals(Arrays.asList(1), w.sizes);
+	}
+
+	@Test
+	public void testEstimateBytes() {
+		assertEquals(0, ESBulkWriter.estimateBytes(null));
+		assertEquals(5, ESBulkWriter.estimateBytes("foo"));
+		// {"k":"v"} is 9 chars
+		long kv = ESBulkWriter.estimateBytes(new ArrayMap("k", "v"));
+		assertEquals(9, kv);
+		long nested = ESBulkWriter.estimateBytes(new ArrayMap("k", Arrays.asList("a", "b"), "n", 1.5));
+		assertTrue(nested > kv);
+	}
+
+	@Test
+	public void testIsRetryable() {
+		assertTrue(ESBulkWriter.isRetryable(429));
+		assertTrue(ESBulkWriter.isRetryable(503));
+		assertTrue(ESBulkWriter.isRetryable(409));
+		assertFalse(ESBulkWriter.isRetryable(400));
+		assertFalse(ESBulkWriter.isRetryable(404));
+	}
+}
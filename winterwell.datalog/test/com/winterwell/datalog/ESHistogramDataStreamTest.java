@@ -0,0 +1,95 @@
+package com.winterwell.datalog;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.winterwell.datalog.DataLog.KInterpolate;
+import com.winterwell.maths.timeseries.ListDataStream;
+import com.winterwell.utils.containers.ArrayMap;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.TUnit;
+import com.winterwell.utils.time.Time;
+
+public class ESHistogramDataStreamTest {
+
+	static final long HOUR = TUnit.HOUR.millisecs;
+
+	/**
+	 * As ES returns them: sum sub-aggregations, with empty buckets in the gaps
+	 */
+	static List<Map> sums(double... xs) {
+		List<Map> buckets = new ArrayList();
+		for (int i = 0; i < xs.length; i++) {
+			buckets.add(new ArrayMap("key", i * HOUR, "doc_count", xs[i]==0? 0 : 1,
+					"count", new ArrayMap("value", xs[i])));
+		}
+		return buckets;
+	}
+
+	/**
+	 * stats sub-aggregations. NaN for an empty bucket
+	 */
+	static List<Map> means(double... xs) {
+		List<Map> buckets = new ArrayList();
+		for (int i = 0; i < xs.length; i++) {
+			Double avg = Double.isNaN(xs[i])? null : xs[i];
+			buckets.add(new ArrayMap("key", i * HOUR, "doc_count", avg==null? 0 : 1,
+					"count", new ArrayMap("count", avg==null? 0 : 1, "avg", avg)));
+		}
+		return buckets;
+	}
+
+	static ListDataStream list(List<Map> buckets, boolean means, Time start, Time end, KInterpolate fn) {
+		return new ESHistogramDataStream(buckets, "count", means, "hello",
+				start, end, new Dt(1, TUnit.HOUR), fn).list();
+	}
+
+	@Test
+	public void testCounts() {
+		ListDataStream data = list(sums(2, 0, 0, 5), false, null, null, null);
+		assertEquals(4, data.size());
+		assertEquals(0.0, data.get(1).x(), 0);
+		assertEquals(5.0, data.get(3).x(), 0);
+		assertEquals(new Time(3 * HOUR), data.get(3).getTime());
+		assertEquals("hello", data.get(0).getLabel());
+
+		ListDataStream nonZero = list(sums(2, 0, 0, 5), false, null, null, KInterpolate.SKIP_ZEROS);
+		assertEquals(2, nonZero.size());
+	}
+
+	@Test
+	public void testStartEnd() {
+		// a bucket which overlaps start is in, one which starts at end is out
+		ListDataStream data = list(sums(1, 2, 3, 4), false, new Time(HOUR / 2), new Time(3 * HOUR), null);
+		assertEquals(3, data.size());
+		assertEquals(1.0, data.get(0).x(), 0);
+		assertEquals(3.0, data.get(2).x(), 0);
+	}
+
+	@Test
+	public void testMeans() {
+		double nan = Double.NaN;
+		ListDataStream data = list(means(1, nan, nan, 4), true, null, null, null);
+		assertEquals(2, data.size());
+
+		ListDataStream linear = list(means(1, nan, nan, 4), true, null, null, KInterpolate.LINEAR_1DAY);
+		assertEquals(4, linear.size());
+		assertEquals(2.0, linear.get(1).x(), 0.0001);
+		assertEquals(3.0, linear.get(2).x(), 0.0001);
+
+		// the data either side of [start, end) is used, but not returned
+		ListDataStream edges = list(means(1, nan, nan, 4), true, new Time(HOUR), new Time(3 * HOUR), KInterpolate.LINEAR_1DAY);
+		assertEquals(2, edges.size());
+		assertEquals(new Time(HOUR), edges.get(0).getTime());
+		assertEquals(2.0, edges.get(0).x(), 0.0001);
+
+		// nothing after the gap
+		ListDataStream open = list(means(1, nan, nan), true, null, null, KInterpolate.LINEAR_1DAY);
+		assertEquals(1, open.size());
+	}
+}
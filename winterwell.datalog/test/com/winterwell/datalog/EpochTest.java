@@ -0,0 +1,63 @@
+package com.winterwell.datalog;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.TUnit;
+
+public class EpochTest {
+
+	/**
+	 * Counts racing with rollovers must land in exactly one bucket.
+	 */
+	@Test
+	public void testNoLostCounts() throws InterruptedException {
+		DataLogConfig config = new DataLogConfig();
+		config.interval = new Dt(5, TUnit.SECOND);
+		config.storageClass = CSVStorage.class;
+		DataLogImpl dl = new DataLogImpl(config);
+
+		ExecutorService exe = Executors.newFixedThreadPool(8);
+		for(int i=0; i<8; i++) {
+			exe.submit(() -> {
+				for(int j=0; j<100000; j++) {
+					dl.count(1, "epochtest", "x");
+				}
+			});
+		}
+		exe.shutdown();
+		double total = 0;
+		int rollovers = 0;
+		while( ! exe.isTerminated()) {
+			Epoch old = dl.doSave2_rollover();
+			CounterStore.Bucket b = dl.counters.swap(old.parity);
+			total += b.tag2count.getOrDefault("epochtest/x", 0.0);
+			rollovers++;
+		}
+		exe.awaitTermination(1, TimeUnit.SECONDS);
+		Epoch old = dl.doSave2_rollover();
+		total += dl.counters.swap(old.parity).tag2count.getOrDefault("epochtest/x", 0.0);
+		assertEquals(800000.0, total, 0);
+		assert rollovers > 1 : rollovers;
+	}
+
+	@Test
+	public void testEnterExit() {
+		DataLogConfig config = new DataLogConfig();
+		config.storageClass = CSVStorage.class;
+		DataLogImpl dl = new DataLogImpl(config);
+		Epoch e0 = Epoch.enter(dl);
+		assertEquals(0, e0.parity);
+		e0.exit();
+		Epoch old = dl.doSave2_rollover();
+		assertEquals(e0, old);
+		assertEquals(1, dl.epoch.parity);
+		assertEquals(0, dl.epoch.next().parity);
+	}
+}
@@ -302,6 +302,68 @@ public class SQLStorageTest extends DatalogTestCase {
 		assertTrue(storage.selectSum(null, s, e, null, smarch) >= 3.0);
 	}
 
+	@Test
+	public void testInsertSql() {
+		String sql = SQLStorage.insertSql(SQLStorage.COLUMNS_COUNT, 3, 2, SQLStorage.ON_CONFLICT_ADD);
+		assertEquals("insert into stats ( timestamp, tag, count_mean ) values (?,?,?),(?,?,?)"
+				+ " on conflict (tag, timestamp, (variance is null)) do update set count_mean = stats.count_mean + excluded.count_mean;", sql);
+	}
+
+	/**
+	 * A tag can have a count and a mean: the mean must not overwrite the count (or vice versa)
+	 */
+	@Test
+	public void testCountAndMeanForOneTag() {
+		Time start = new Time();
+		Period p = new Period(start, start.plus(TUnit.SECOND.dt));
+		String tag = "countAndMean" + Utils.getRandomString(10);
+		Map<String, Double> tag2count = new HashMap<String, Double>();
+		tag2count.put(tag, 4.0);
+		Map<String, IDistribution1D> tag2mean = new HashMap<>();
+		MeanVar1D mv = new MeanVar1D();
+		mv.train1(1.0);
+		mv.train1(2.0);
+		tag2mean.put(tag, mv);
+
+		SQLStorage storage = new SQLStorage();
+		storage.init(newStatConfig());
+		storage.save(p, tag2count, tag2mean);
+		storage.save(p, tag2count, tag2mean);
+
+		// one count row (added to) and one mean row (set)
+		Iterator<Object[]> stream = storage.getReader(null, p.first, p.second, null, tag);
+		double count = -1, mean = -1;
+		int rows = 0;
+		while (stream.hasNext()) {
+			Object[] row = stream.next();
+			rows++;
+			if (row[3] == null) count = ((Number) row[2]).doubleValue();
+			else mean = ((Number) row[2]).doubleValue();
+		}
+		assertEquals(2, rows);
+		assertEquals(8.0, count);
+		assertEquals(1.5, mean);
+	}
+	
+	@Test
+	public void testSaveManyTags() {
+		Time start = new Time();
+		Period p = new Period(start, start.plus(10, TUnit.SECOND));
+		Map<String, Double> tag2count = new HashMap<String, Double>();
+		// more than one multi-row insert
+		for(int i=0; i<SQLStorage.ROWS_PER_INSERT + 10; i++) {
+			tag2count.put("many"+i, 1.0);
+		}
+		SQLStorage storage = new SQLStorage();
+		storage.init(newStatConfig());
+		storage.save(p, tag2count, new HashMap());
+		assertEquals(1.0, storage.selectSum(null, p.first, p.second, null, "many7"));
+		assertEquals(1.0, storage.selectSum(null, p.first, p.second, null, "many"+(SQLStorage.ROWS_PER_INSERT + 9)));
+		// saving again adds
+		storage.save(p, tag2count, new HashMap());
+		assertEquals(2.0, storage.selectSum(null, p.first, p.second, null, "many7"));
+	}
+
 	private DataLogConfig newStatConfig() {
 		return new DataLogConfig();
 	}
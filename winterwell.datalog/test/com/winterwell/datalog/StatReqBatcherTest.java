@@ -0,0 +1,159 @@
+package com.winterwell.datalog;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Test;
+
+import com.winterwell.maths.timeseries.Datum;
+import com.winterwell.maths.timeseries.ListDataStream;
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.time.TUnit;
+import com.winterwell.utils.time.Time;
+
+public class StatReqBatcherTest {
+
+	/**
+	 * total = tag length. Records the batch sizes it sees.
+	 */
+	static class TestReq extends StatReq<Double> {
+		final List<Integer> batches;
+
+		TestReq(List<Integer> batches, String tag, Time start, Time end) {
+			super(KStatReq.TOTAL, tag, start, end, null, null);
+			this.batches = batches;
+		}
+
+		@Override
+		protected void run() {
+			runBatch(Arrays.asList(this));
+		}
+
+		@Override
+		protected void runBatch(List<? extends StatReq> batch) {
+			batches.add(batch.size());
+			for (StatReq req : batch) {
+				if ("boom".equals(req.tag)) throw new IllegalStateException("boom");
+				req.v = (double) req.tag.length();
+			}
+		}
+	}
+
+	/**
+	 * Another "storage"
+	 */
+	static class OtherReq extends TestReq {
+		OtherReq(List<Integer> batches, String tag, Time start, Time end) {
+			super(batches, tag, start, end);
+		}
+	}
+
+	/** as the storage factory methods do */
+	static TestReq req(List<Integer> batches, String tag, Time start, Time end) {
+		return StatReqBatcher.dflt.add(new TestReq(batches, tag, start, end));
+	}
+
+	@Test
+	public void testOneQueryForManyTags() {
+		List<Integer> batches = new CopyOnWriteArrayList();
+		Time end = new Time();
+		Time start = end.minus(TUnit.DAY);
+		List<TestReq> reqs = new ArrayList();
+		for (int i = 0; i < 50; i++) {
+			reqs.add(req(batches, "tag"+i, start, end));
+		}
+		// a different time range is a different batch
+		TestReq other = req(batches, "other", start.minus(TUnit.DAY), end);
+
+		assertEquals(4.0, reqs.get(0).get(), 0);
+		assertEquals(5.0, reqs.get(49).get(), 0);
+		assertEquals(5.0, other.get(), 0);
+		assertEquals(Arrays.asList(50, 1), batches);
+	}
+
+	@Test
+	public void testRunsInBackground() {
+		List<Integer> batches = new CopyOnWriteArrayList();
+		Time end = new Time();
+		TestReq a = req(batches, "a", null, end);
+		TestReq b = req(batches, "bb", null, end);
+		for (int i = 0; i < 100 && ! b.isDone(); i++) {
+			Utils.sleep(10);
+		}
+		assert a.isDone() && b.isDone();
+		assertEquals(Arrays.asList(2), batches);
+		assertEquals(2.0, b.get(), 0);
+	}
+
+	@Test
+	public void testErrorGoesToAll() {
+		List<Integer> batches = new CopyOnWriteArrayList();
+		Time end = new Time();
+		TestReq ok = req(batches, "ok", null, end);
+		TestReq boom = req(batches, "boom", null, end);
+		StatReqBatcher.dflt.flush();
+		try {
+			ok.get();
+			assert false;
+		} catch (IllegalStateException ex) {
+			// expected
+		}
+		try {
+			boom.get();
+			assert false;
+		} catch (IllegalStateException ex) {
+			// expected
+		}
+		assertEquals(Arrays.asList(2), batches);
+	}
+
+	@Test
+	public void testFinishedRangeCache() {
+		DataLogConfig config = new DataLogConfig();
+		config.storageClass = CSVStorage.class;
+		DataLogImpl dl = new DataLogImpl(config);
+		IDataLog old = DataLog.dflt;
+		DataLog.dflt = dl;
+		try {
+			List<Integer> batches = new CopyOnWriteArrayList();
+			Time end = dl.getCurrentBucket().first.minus(TUnit.DAY);
+			Time start = end.minus(TUnit.WEEK);
+			String tag = "cached" + Utils.getRandomString(6).toLowerCase();
+			assertEquals(tag.length(), req(batches, tag, start, end).get(), 0);
+			// cached
+			TestReq again = req(batches, tag, start, end);
+			assert again.isDone();
+			assertEquals(Arrays.asList(1), batches);
+			// not for another storage
+			assertEquals(tag.length(), StatReqBatcher.dflt.add(new OtherReq(batches, tag, start, end)).get(), 0);
+			assertEquals(Arrays.asList(1, 1), batches);
+			// a write outside the range leaves it
+			dl.count(end.plus(TUnit.HOUR), 1, tag);
+			assert req(batches, tag, start, end).isDone();
+			// a back-dated write drops it
+			dl.count(start.plus(TUnit.DAY), 1, tag);
+			TestReq after = req(batches, tag, start, end);
+			assert ! after.isDone();
+			after.get();
+			assertEquals(Arrays.asList(1, 1, 1), batches);
+		} finally {
+			DataLog.dflt = old;
+		}
+	}
+
+	@Test
+	public void testCachedDataIsCopied() {
+		ListDataStream lds = new ListDataStream(1);
+		lds.add(new Datum(new Time(), 1, null));
+		ListDataStream copy = (ListDataStream) StatReqBatcher.copy(lds);
+		assert copy != lds;
+		assertEquals(lds.getList(), copy.getList());
+		copy.add(new Datum(new Time().plus(TUnit.HOUR), 2, null));
+		assertEquals(1, lds.size());
+		assertEquals(2.0, StatReqBatcher.copy(2.0));
+	}
+}
@@ -3,15 +3,11 @@ package com.winterwell.datalog;
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertTrue;
 
-import java.util.concurrent.ConcurrentHashMap;
-
 import org.junit.Test;
 
-import com.winterwell.maths.stats.distributions.d1.MeanVar1D;
 import com.winterwell.maths.timeseries.Datum;
 import com.winterwell.maths.timeseries.ListDataStream;
 import com.winterwell.utils.Utils;
-import com.winterwell.utils.containers.Pair2;
 import com.winterwell.utils.io.SqlUtils;
 import com.winterwell.utils.time.Period;
 import com.winterwell.utils.time.TUnit;
@@ -67,10 +63,8 @@ public class StatReqSQLTest extends DatalogTestCase {
 		Time end = start.plus(TUnit.SECOND.dt);
 		Period p = new Period(start, end);
 		
-		MeanVar1D mv = new MeanVar1D();
-		mv.train1(1.0);
-		mv.train1(2.0);
-		si.tag2dist.put("bob", mv);
+		si.mean(1.0, "bob");
+		si.mean(2.0, "bob");
 		
 		ListDataStream stream = (ListDataStream) si.getData(p.first, p.second, null, null, "bob").get();
 		assertEquals(1.5, stream.get(0).x(), 0.0001);
@@ -91,7 +85,7 @@ public class StatReqSQLTest extends DatalogTestCase {
 		
 		Utils.sleep(6000);
 		si.doSave();
-		assertTrue(si.tagTime2count.isEmpty());
+		assertTrue(si.epoch.tagTime2count.isEmpty());
 		
 		double oct_x = si.getTotal(null, null, oct).get();
 		double mar_x = si.getTotal(null, null, mar).get();
@@ -100,7 +94,7 @@ public class StatReqSQLTest extends DatalogTestCase {
 		assertTrue(mar_x >= 3.0);
 		
 		si.count(t1, 3.0, mar);
-		assertTrue(!si.tagTime2count.isEmpty());
+		assertTrue(!si.epoch.tagTime2count.isEmpty());
 		double mar_x2 = si.getTotal(null, null, mar).get();
 		assertTrue(mar_x2 + "", mar_x2 >= 6.0);
 	}
@@ -123,7 +117,7 @@ public class StatReqSQLTest extends DatalogTestCase {
 			Time t = new Time(2013, 01, i);
 			si.count(t, 1, tag);
 		}
-		storage.save(period, si.tag2count, si.tag2dist);
+		storage.save(period, si.counters.getCounts(si.epoch.parity), si.counters.getDists(si.epoch.parity));
 		
 		StatReqSQL statreq = new StatReqSQL(KStatReq.DATA, tag, start.minus(1, TUnit.SECOND), end.plus(1, TUnit.SECOND), null, null);
 		StatReq.initV(statreq);
@@ -174,8 +168,8 @@ public class StatReqSQLTest extends DatalogTestCase {
 		Time end = start.plus(12, TUnit.MINUTE);
 		si.count(end, 5, tag);
 		SQLStorage storage = (SQLStorage) si.storage;
-		storage.saveHistory(si.tagTime2count);
-		si.tagTime2count = new ConcurrentHashMap<Pair2<String,Time>, Double>();
+		storage.saveHistory(si.epoch.tagTime2count.toPairMap());
+		si.epoch.tagTime2count.clear();
 		
 		statreq = new StatReqSQL(KStatReq.DATA, tag, start.minus(1, TUnit.SECOND), start.plus(15, TUnit.MINUTE), null, null);
 		StatReq.initV(statreq);
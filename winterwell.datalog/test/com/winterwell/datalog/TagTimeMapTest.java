@@ -0,0 +1,80 @@
+package com.winterwell.datalog;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.NavigableMap;
+
+import org.junit.Test;
+
+import com.winterwell.utils.containers.Pair2;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.Period;
+import com.winterwell.utils.time.TUnit;
+import com.winterwell.utils.time.Time;
+
+public class TagTimeMapTest {
+
+	@Test
+	public void testRangeIsOrdered() {
+		TagTimeMap map = new TagTimeMap();
+		Time t0 = new Time(2012, 7, 18);
+		for (int i = 9; i >= 0; i--) {
+			map.plus("hello", t0.plus(i, TUnit.DAY), i);
+			map.plus("hello/world", t0.plus(i, TUnit.DAY), 100);
+		}
+		map.plus("hello", t0, 5);
+		NavigableMap<Long, Double> range = map.get("hello", t0.plus(2, TUnit.DAY), t0.plus(5, TUnit.DAY));
+		// inclusive at both ends
+		assertEquals(4, range.size());
+		assertEquals(Arrays.asList(2.0, 3.0, 4.0, 5.0), new ArrayList(range.values()));
+		assertEquals(5.0, map.get("hello", null, t0).get(t0.getTime()), 0);
+		assertEquals(0, map.get("nope", null, null).size());
+		assertEquals(20, map.size());
+	}
+
+	@Test
+	public void testSetRemovesCount() {
+		TagTimeMap counts = new TagTimeMap();
+		Time at = new Time(2012, 8, 18);
+		counts.plus("hello2/world2", at, 7);
+		counts.remove("hello2/world2", at);
+		assert counts.isEmpty();
+
+		counts.plus("a", at, 1);
+		Map<Pair2<String, Time>, Double> flat = counts.toPairMap();
+		assertEquals(1.0, flat.get(new Pair2("a", at)), 0);
+		counts.clear();
+		assert counts.isEmpty();
+	}
+
+	/**
+	 * The arithmetic DataLogImpl.getBucket() must match stepping bucket by bucket
+	 */
+	@Test
+	public void testGetBucket() {
+		DataLogConfig config = new DataLogConfig();
+		config.interval = new Dt(15, TUnit.MINUTE);
+		config.storageClass = CSVStorage.class;
+		DataLogImpl dl = new DataLogImpl(config);
+		dl.start = new Time(2020, 1, 1, 12, 0, 0);
+		Dt dt = config.interval;
+
+		Period p = dl.getBucket(dl.start);
+		assertEquals(new Period(dl.start, dl.start.plus(dt)), p);
+		// the past: [start, end)
+		Time past = dl.start.minus(dt);
+		assertEquals(new Period(past, dl.start), dl.getBucket(past));
+		assertEquals(new Period(past, dl.start), dl.getBucket(dl.start.minus(1, TUnit.MILLISECOND)));
+		Time longAgo = new Time(2010, 3, 4, 5, 6, 7);
+		Period old = dl.getBucket(longAgo);
+		assert old.contains(longAgo) : old;
+		assertEquals(0, (dl.start.getTime() - old.first.getTime()) % dt.getMillisecs());
+		// the future: (start, end]
+		Time future = dl.start.plus(dt);
+		assertEquals(new Period(dl.start, future), dl.getBucket(future));
+		assertEquals(new Period(future, future.plus(dt)), dl.getBucket(future.plus(1, TUnit.MILLISECOND)));
+	}
+}
@@ -0,0 +1,97 @@
+package com.winterwell.datalog.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.io.FileUtils;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.TUnit;
+
+public class BotIPIndexTest {
+
+	static final String LIST = "{\"cargo\":{\"hits\":["
+			+ "{\"ip\":\"1.2.3.4\",\"type\":\"bot\"},"
+			+ "{\"ip\":\"66.249.64.0/19\",\"type\":\"crawler\"},"
+			+ "{\"ip\":\"66.249.70.0/24\",\"type\":\"bot\"},"
+			+ "{\"ip\":\"2001:db8::/32\",\"type\":\"bot\"}"
+			+ "]}}";
+
+	@Test
+	public void testIndex() {
+		BotIPIndex.Index idx = new BotIPIndex.Index();
+		idx.add("1.2.3.4", "bot");
+		idx.add("66.249.64.0/19", "crawler");
+		idx.add("66.249.70.0/24", "bot");
+		idx.add("2001:db8::/32", "bot");
+		assertEquals("bot", idx.get("1.2.3.4"));
+		assertNull(idx.get("1.2.3.5"));
+		assertEquals("crawler", idx.get("66.249.64.1"));
+		assertEquals("crawler", idx.get("66.249.95.255"));
+		assertNull(idx.get("66.249.96.0"));
+		// longest prefix wins
+		assertEquals("bot", idx.get("66.249.70.12"));
+		assertEquals("bot", idx.get("2001:db8:1::1"));
+		assertNull(idx.get("2001:db9::1"));
+		// junk is not a match
+		assertNull(idx.get("66.249.64"));
+		assertNull(idx.get("not an ip"));
+	}
+
+	@Test
+	public void testToBytes() {
+		assertEquals("[1, 2, 3, 4]", Arrays.toString(BotIPIndex.toBytes("1.2.3.4")));
+		assertEquals(16, BotIPIndex.toBytes("::1").length);
+		assertNull(BotIPIndex.toBytes("1.2.3.256"));
+		assertNull(BotIPIndex.toBytes("1..3.4"));
+		assertNull(BotIPIndex.toBytes("1.2.3.4.5"));
+	}
+
+	@Test
+	public void testRefreshFromFile() throws Exception {
+		File f = File.createTempFile("botip", ".json");
+		FileUtils.write(f, LIST);
+		BotIPIndex bots = new BotIPIndex(f.getAbsolutePath(), new Dt(10, TUnit.MINUTE));
+		// nothing loaded yet -- the first call does not wait
+		assertNull(bots.getInvalidType(Arrays.asList("1.2.3.4")));
+		for(int i=0; i<100 && bots.getIndex().size()==0; i++) {
+			Utils.sleep(10);
+		}
+		assertEquals("bot", bots.getInvalidType(Arrays.asList("5.6.7.8", "1.2.3.4")));
+		assertEquals("crawler", bots.getInvalidType(Arrays.asList("66.249.65.1")));
+		assertNull(bots.getInvalidType(Arrays.asList("5.6.7.8")));
+		FileUtils.delete(f);
+	}
+
+	@Test
+	public void testBadRangeIsSkipped() throws Exception {
+		File f = File.createTempFile("botip", ".json");
+		FileUtils.write(f, "{\"cargo\":{\"hits\":["
+				+ "{\"ip\":\"1.2.3.4\",\"type\":\"bot\"},"
+				+ "{\"ip\":\"66.249.64.0/x9\",\"type\":\"bot\"},"
+				+ "{\"ip\":\"66.249.64.0/99\",\"type\":\"bot\"},"
+				+ "{\"ip\":\"66.249.64.0/\",\"type\":\"bot\"},"
+				+ "{\"ip\":\"66.249.70.0/24\",\"type\":\"crawler\"}"
+				+ "]}}");
+		BotIPIndex bots = new BotIPIndex(f.getAbsolutePath(), new Dt(10, TUnit.MINUTE));
+		bots.refresh();
+		// the good lines still load
+		assertEquals("bot", bots.getInvalidType(Arrays.asList("1.2.3.4")));
+		assertEquals("crawler", bots.getInvalidType(Arrays.asList("66.249.70.1")));
+		assertNull(bots.getInvalidType(Arrays.asList("66.249.64.1")));
+		FileUtils.delete(f);
+	}
+
+	@Test
+	public void testBadSourceKeepsOldIndex() {
+		BotIPIndex bots = new BotIPIndex("/no/such/file.json", new Dt(10, TUnit.MINUTE));
+		bots.refresh();
+		assertEquals(0, bots.getIndex().size());
+		assertNull(bots.getInvalidType(Arrays.asList("1.2.3.4")));
+	}
+}
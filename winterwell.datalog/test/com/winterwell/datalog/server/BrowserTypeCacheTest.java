@@ -0,0 +1,77 @@
+package com.winterwell.datalog.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.TUnit;
+import com.winterwell.web.app.BrowserType;
+
+public class BrowserTypeCacheTest {
+
+	/**
+	 * Skips ua_parser, and counts the parses
+	 */
+	static class CountingCache extends BrowserTypeCache {
+		final AtomicInteger parses = new AtomicInteger();
+
+		CountingCache(int maxSize, Dt ttl) {
+			super(maxSize, ttl);
+		}
+
+		@Override
+		BrowserType parse(String ua) {
+			parses.incrementAndGet();
+			return new BrowserType(ua);
+		}
+	}
+
+	static final String CHROME = "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/83.0.4103.61 Safari/537.36";
+
+	@Test
+	public void testHit() {
+		CountingCache cache = new CountingCache(10, TUnit.HOUR.dt);
+		BrowserTypeCache.Entry e = cache.get(CHROME);
+		assertEquals("chrome", e.browser);
+		assertEquals("linux", e.os);
+		assertSame(e, cache.get(CHROME));
+		assertSame(e, cache.get(new String(CHROME)));
+		assertEquals(1, cache.parses.get());
+		// null is allowed, but not cached
+		cache.get(null);
+		cache.get(null);
+		assertEquals(3, cache.parses.get());
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void testExpiry() {
+		CountingCache cache = new CountingCache(10, new Dt(10, TUnit.MILLISECOND));
+		BrowserTypeCache.Entry e = cache.get(CHROME);
+		Utils.sleep(20);
+		assertNotSame(e, cache.get(CHROME));
+		assertEquals(2, cache.parses.get());
+	}
+
+	@Test
+	public void testSweep() {
+		CountingCache cache = new CountingCache(100, TUnit.HOUR.dt);
+		cache.get(CHROME);
+		for(int i=0; i<1000; i++) {
+			cache.get("ua"+i);
+			// keep chrome hot
+			cache.get(CHROME);
+			assertTrue(cache.size() <= 100);
+		}
+		int before = cache.parses.get();
+		cache.get(CHROME);
+		assertEquals(before, cache.parses.get());
+	}
+}
@@ -0,0 +1,174 @@
+package com.winterwell.datalog.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.winterwell.utils.containers.ArrayMap;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.TUnit;
+import com.winterwell.utils.time.Time;
+
+public class DataQueryCacheTest {
+
+	@Test
+	public void testMerge() {
+		Map a = new ArrayMap(
+			"all", 10.0,
+			"by_time", new ArrayMap("buckets", Arrays.asList(
+					new ArrayMap("key", 1, "key_as_string", "1", "count", 4.0),
+					new ArrayMap("key", 2, "key_as_string", "2", "count", 6.0)
+			)));
+		Map b = new ArrayMap(
+			"all", 3.0,
+			"by_time", new ArrayMap("buckets", Arrays.asList(
+					new ArrayMap("key", 2, "key_as_string", "2", "count", 1.0),
+					new ArrayMap("key", 3, "key_as_string", "3", "count", 2.0)
+			)));
+		Map m = (Map) DataQueryCache.merge(a, b, 2);
+		assertEquals(13.0, m.get("all"));
+		List<Map> buckets = (List) ((Map) m.get("by_time")).get("buckets");
+		assertEquals(3, buckets.size());
+		assertEquals(4.0, buckets.get(0).get("count"));
+		assertEquals(7.0, buckets.get(1).get("count"));
+		assertEquals(2, buckets.get(1).get("key"));
+		assertEquals(3, buckets.get(2).get("key"));
+		// date buckets are not re-ordered or cut
+		// inputs untouched
+		assertEquals(10.0, a.get("all"));
+		assertEquals(6.0, ((Map) ((List) ((Map) a.get("by_time")).get("buckets")).get(1)).get("count"));
+		// a bucket from before a's window goes first
+		Map head = new ArrayMap("by_time", new ArrayMap("buckets", Arrays.asList(
+				new ArrayMap("key", 0, "key_as_string", "0", "count", 1.0))));
+		List<Map> buckets2 = (List) ((Map) ((Map) DataQueryCache.merge(a, head, 2)).get("by_time")).get("buckets");
+		assertEquals(0, buckets2.get(0).get("key"));
+		assertEquals(2, buckets2.get(2).get("key"));
+	}
+
+	@Test
+	public void testFloor() {
+		Time t = new Time(2020, 6, 15, 13, 45, 0);
+		assertEquals(new Time(2020, 6, 15), DataQueryCache.floor(t, TUnit.DAY.millisecs));
+		assertEquals(new Time(2020, 6, 15, 13, 0, 0), DataQueryCache.floor(t, TUnit.HOUR.millisecs));
+	}
+
+	@Test
+	public void testHistoryIsCached() {
+		DataQueryCache cache = new DataQueryCache(10, new Dt(15, TUnit.MINUTE));
+		List<Time[]> queries = new ArrayList();
+		Time end = new Time();
+		Time start = end.minus(TUnit.WEEK);
+		for(int i=0; i<3; i++) {
+			Map r = cache.get("spec", start, end, TUnit.DAY.dt, true, 0, 10, (s, e, gs, ge) -> {
+				queries.add(new Time[] {s, e, gs, ge});
+				return new ArrayMap("all", 1.0, DataQueryCache.EXAMPLES, Arrays.asList("eg"+queries.size()));
+			});
+			// history + the rest
+			assertEquals(2.0, r.get("all"));
+		}
+		// 1 history query, then head+live only
+		assertEquals(4, queries.size());
+		Time[] history = queries.get(0);
+		assertEquals(DataQueryCache.ceil(start, TUnit.DAY.millisecs), history[0]);
+		assertEquals(null, history[2]);
+		Time[] rest = queries.get(3);
+		assertEquals(start, rest[0]);
+		assertEquals(end, rest[1]);
+		// the gap is the cached history
+		assertEquals(history[0], rest[2]);
+		assertEquals(history[1], rest[3]);
+	}
+
+	/**
+	 * A relative start (e.g. "a week ago") moves on a bit each request -- the history should still be cached.
+	 */
+	@Test
+	public void testMovingStartHitsCache() {
+		Time now = new Time();
+		List<Time> events = new ArrayList();
+		for (int h = 0; h < 24*10; h++) {
+			events.add(now.minus(new Dt(h, TUnit.HOUR)));
+		}
+		List<Time[]> queries = new ArrayList();
+		DataQueryCache.Query runQuery = (s, e, gs, ge) -> {
+			queries.add(new Time[] {s, e, gs, ge});
+			return new ArrayMap("all", count(events, s, e, gs, ge));
+		};
+		DataQueryCache cache = new DataQueryCache(10, new Dt(15, TUnit.MINUTE));
+		for (int i = 0; i < 3; i++) {
+			Time end = now.plus(new Dt(i * 10, TUnit.MILLISECOND));
+			Time start = end.minus(TUnit.WEEK);
+			Map r = cache.get("spec", start, end, TUnit.DAY.dt, true, 0, 10, runQuery);
+			assertEquals(count(events, start, end, null, null), r.get("all"));
+		}
+		// 1 history query, then 1 query per request
+		assertEquals(4, queries.size());
+	}
+
+	static double count(List<Time> events, Time s, Time e, Time gs, Time ge) {
+		double n = 0;
+		for (Time t : events) {
+			if (t.isBefore(s) || t.isAfter(e)) continue;
+			if (gs != null && ! t.isBefore(gs) && ! t.isAfter(ge)) continue;
+			n++;
+		}
+		return n;
+	}
+
+	@Test
+	public void testAllHistory() {
+		DataQueryCache cache = new DataQueryCache(10, new Dt(15, TUnit.MINUTE));
+		Time end = new Time().minus(TUnit.WEEK);
+		Time start = end.minus(TUnit.WEEK);
+		Map r1 = cache.get("spec", start, end, TUnit.DAY.dt, false, 0, 10, (s, e, gs, ge) -> new ArrayMap("all", 1.0));
+		Map r2 = cache.get("spec", start, end, TUnit.DAY.dt, false, 0, 10, (s, e, gs, ge) -> new ArrayMap("all", 2.0));
+		assertSame(r1, r2);
+	}
+
+	@Test
+	public void testMergeTermsResortedAndCut() {
+		Map a = new ArrayMap("by_evt", new ArrayMap("buckets", Arrays.asList(
+				new ArrayMap("key", "view", "count", 10.0),
+				new ArrayMap("key", "click", "count", 5.0))));
+		Map b = new ArrayMap("by_evt", new ArrayMap("buckets", Arrays.asList(
+				new ArrayMap("key", "click", "count", 8.0),
+				new ArrayMap("key", "close", "count", 7.0))));
+		Map m = (Map) DataQueryCache.merge(a, b, 2);
+		List<Map> buckets = (List) ((Map) m.get("by_evt")).get("buckets");
+		assertEquals(2, buckets.size());
+		assertEquals("click", buckets.get(0).get("key"));
+		assertEquals(13.0, buckets.get(0).get("count"));
+		assertEquals("view", buckets.get(1).get("key"));
+	}
+
+	/**
+	 * A start which is not on an interval boundary: the cached answer must not include earlier events.
+	 */
+	@Test
+	public void testUnalignedStartSameAsUncached() {
+		// an event every hour for the last 3 days, each with count 1
+		Time now = new Time();
+		List<Time> events = new ArrayList();
+		for (int h = 0; h < 72; h++) {
+			events.add(now.minus(new Dt(h, TUnit.HOUR)));
+		}
+		DataQueryCache.Query runQuery = (s, e, gs, ge) -> new ArrayMap("all", count(events, s, e, gs, ge));
+		DataQueryCache cache = new DataQueryCache(10, new Dt(15, TUnit.MINUTE));
+		Time start = DataQueryCache.floor(now.minus(TUnit.DAY), TUnit.DAY.millisecs).plus(new Dt(7, TUnit.HOUR));
+		Map uncached = runQuery.run(start, now, null, null);
+		for (int i = 0; i < 2; i++) {
+			Map cached = cache.get("spec", start, now, TUnit.DAY.dt, true, 0, 10, runQuery);
+			assertEquals(uncached.get("all"), cached.get("all"));
+		}
+		// another start in the same day does not get the first one's history
+		Time start2 = start.plus(new Dt(2, TUnit.HOUR));
+		Map cached2 = cache.get("spec", start2, now, TUnit.DAY.dt, true, 0, 10, runQuery);
+		assertEquals(runQuery.run(start2, now, null, null).get("all"), cached2.get("all"));
+	}
+}
@@ -64,7 +64,11 @@ public class LgServletTest {
 	@Test
 	public void testParser() throws IOException {
 		Parser p = LgServlet.uaParser();
-		Client c = p.parse("Mozilla/5.0 (Windows NT 6.1; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/67.0.3396.99 Safari/537.36");
-		assert "Chrome 67".equals(c.userAgent.family+" "+c.userAgent.major);
+		try {
+			Client c = p.parse("Mozilla/5.0 (Windows NT 6.1; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/67.0.3396.99 Safari/537.36");
+			assert "Chrome 67".equals(c.userAgent.family+" "+c.userAgent.major);
+		} finally {
+			LgServlet.releaseUaParser(p);
+		}
 	}
 }
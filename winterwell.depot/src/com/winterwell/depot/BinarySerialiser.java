@@ -0,0 +1,712 @@
+package com.winterwell.depot;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import com.winterwell.utils.ReflectionUtils;
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.log.Log;
+import com.winterwell.utils.web.XStreamUtils;
+
+/**
+ * A compact binary format, for {@link Desc.KSerialiser#BINARY}. Much smaller and faster
+ * than XStream for numeric data (e.g. distributions, matrices).
+ * <p>
+ * What gets written:
+ * <ul>
+ * <li>Boxed primitives, Strings and enums.
+ * <li>Arrays. Primitive arrays are copied in bulk, so a double[] costs 8 bytes per entry.
+ * <li>The standard java.util lists, sets and maps.
+ * <li>{@link #register(Class...)}ed classes, field by field. The stream carries the field names
+ * (once per class), so adding or dropping a field does not break old files.
+ * <li>Anything else is embedded as XStream xml.
+ * </ul>
+ * Shared and cyclic references are preserved.
+ * <p>
+ * Compression (if on) is deflate at its fastest level -- which is much quicker than the gzip default,
+ * for not much less squashing.
+ *
+ * @testedby {@link BinarySerialiserTest}
+ * @author daniel
+ */
+public final class BinarySerialiser {
+
+	private static final String LOGTAG = "depot.binary";
+
+	/** "WWB1" */
+	static final int MAGIC = 0x57574231;
+
+	static final int FLAG_DEFLATE = 1;
+
+	private static final int BUF = 64*1024;
+
+	// value tags
+	private static final byte NULL = 0, TRUE = 1, FALSE = 2, BYTE = 3, SHORT = 4, CHAR = 5, INT = 6,
+			LONG = 7, FLOAT = 8, DOUBLE = 9, STRING = 10, ENUM = 11,
+			BYTE_ARR = 16, SHORT_ARR = 17, CHAR_ARR = 18, INT_ARR = 19, LONG_ARR = 20,
+			FLOAT_ARR = 21, DOUBLE_ARR = 22, BOOL_ARR = 23, OBJ_ARR = 24,
+			COLLECTION = 32, MAP = 33, OBJECT = 34, REF = 35, XSTREAM = 36;
+
+	/**
+	 * java.util classes which we write element by element. These all have a no-arg constructor.
+	 */
+	private static final Set<Class> COLLECTIONS = new HashSet(Arrays.asList(
+			ArrayList.class, LinkedList.class, HashSet.class, LinkedHashSet.class, TreeSet.class));
+	private static final Set<Class> MAPS = new HashSet(Arrays.asList(
+			HashMap.class, LinkedHashMap.class, TreeMap.class));
+
+	private static final Set<Class> registered = ConcurrentHashMap.newKeySet();
+
+	private static final Map<Class, Schema> schemas = new ConcurrentHashMap();
+
+	/**
+	 * The no-arg constructor, or empty if there isn't one
+	 */
+	private static final Map<Class, Optional<Constructor>> constructors = new ConcurrentHashMap();
+
+	/**
+	 * Write these classes field-by-field (otherwise they would go via XStream).
+	 * Only the exact class is registered -- not sub-classes.
+	 * <p>
+	 * Suitable classes: plain data, whose transient fields can be left null/0 on load.
+	 * Classes which need custom handling (e.g. a readResolve, or a non-transient
+	 * cache) should not be registered.
+	 */
+	public static void register(Class... klasses) {
+		for (Class k : klasses) {
+			assert ! k.isInterface() && ! k.isArray() && ! k.isPrimitive() : k;
+			registered.add(k);
+		}
+	}
+
+	/**
+	 * @param x Can be null
+	 * @param out This is flushed but not closed
+	 * @param compress If true, use fast deflate compression
+	 */
+	public static void serialise(Object x, OutputStream out, boolean compress) throws IOException {
+		DataOutputStream header = new DataOutputStream(out);
+		header.writeInt(MAGIC);
+		header.writeByte(compress? FLAG_DEFLATE : 0);
+		Deflater deflater = null;
+		OutputStream body = out;
+		if (compress) {
+			deflater = new Deflater(Deflater.BEST_SPEED);
+			body = new DeflaterOutputStream(out, deflater, BUF);
+		}
+		try {
+			DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(body, BUF));
+			new Writer(dout).write(x);
+			dout.flush();
+			if (deflater != null) {
+				((DeflaterOutputStream) body).finish();
+			}
+			out.flush();
+		} finally {
+			if (deflater != null) deflater.end();
+		}
+	}
+
+	/**
+	 * @param in This is not closed
+	 * @return the object
+	 */
+	public static Object deserialise(InputStream in) throws IOException {
+		DataInputStream header = new DataInputStream(in);
+		int magic = header.readInt();
+		if (magic != MAGIC) {
+			throw new IOException("Not a "+BinarySerialiser.class.getSimpleName()+" stream: "+Integer.toHexString(magic));
+		}
+		int flags = header.readByte();
+		Inflater inflater = null;
+		InputStream body = in;
+		if ((flags & FLAG_DEFLATE) != 0) {
+			inflater = new Inflater();
+			body = new InflaterInputStream(in, inflater, BUF);
+		}
+		try {
+			DataInputStream din = new DataInputStream(new BufferedInputStream(body, BUF));
+			return new Reader(din).read();
+		} finally {
+			if (inflater != null) inflater.end();
+		}
+	}
+
+	/**
+	 * The (local) fields of a registered class.
+	 */
+	private static final class Schema {
+		final Field[] fields;
+		final String[] names;
+		/** JVM type codes: Z B C S I J F D, or L for any object */
+		final char[] codes;
+
+		Schema(Class k) {
+			List<Field> fs = new ArrayList();
+			for(Field f : ReflectionUtils.getAllFields(k)) {
+				if (ReflectionUtils.isTransient(f)) continue;
+				fs.add(f);
+			}
+			fields = fs.toArray(new Field[0]);
+			names = new String[fields.length];
+			codes = new char[fields.length];
+			Set<String> seen = new HashSet();
+			for (int i = 0; i < fields.length; i++) {
+				Field f = fields[i];
+				// a sub-class field can hide a super-class one of the same name
+				String name = f.getName();
+				names[i] = seen.add(name)? name : f.getDeclaringClass().getName()+"#"+name;
+				codes[i] = code(f.getType());
+			}
+		}
+
+		static char code(Class t) {
+			if ( ! t.isPrimitive()) return 'L';
+			if (t==boolean.class) return 'Z';
+			if (t==long.class) return 'J';
+			return Character.toUpperCase(t.getName().charAt(0));
+		}
+
+		Field field(String name, char code) {
+			for (int i = 0; i < names.length; i++) {
+				if (names[i].equals(name)) {
+					return codes[i]==code? fields[i] : null;
+				}
+			}
+			return null;
+		}
+	}
+
+	private static Schema schema(Class k) {
+		return schemas.computeIfAbsent(k, Schema::new);
+	}
+
+	private static Object newInstance(Class k) {
+		Optional<Constructor> c = constructors.computeIfAbsent(k, BinarySerialiser::newInstance2_constructor);
+		try {
+			if (c.isPresent()) {
+				return c.get().newInstance();
+			}
+			// make an instance without running a constructor, as XStream does
+			return XStreamUtils.xstream().getReflectionProvider().newInstance(k);
+		} catch (Exception ex) {
+			throw Utils.runtime(ex);
+		}
+	}
+
+	private static Optional<Constructor> newInstance2_constructor(Class k) {
+		try {
+			Constructor c = k.getDeclaredConstructor();
+			c.setAccessible(true);
+			return Optional.of(c);
+		} catch (NoSuchMethodException ex) {
+			return Optional.empty();
+		}
+	}
+
+	private static final class Writer {
+		final DataOutputStream out;
+		final IdentityHashMap<Object, Integer> refs = new IdentityHashMap();
+		final Map<Class, Integer> classIds = new HashMap();
+		final byte[] buf = new byte[BUF];
+
+		Writer(DataOutputStream out) {
+			this.out = out;
+		}
+
+		void write(Object x) throws IOException {
+			if (x==null) {
+				out.writeByte(NULL);
+				return;
+			}
+			Class k = x.getClass();
+			// immutable values: no back-references
+			if (k==String.class) {
+				out.writeByte(STRING);
+				writeString((String) x);
+				return;
+			}
+			if (k==Double.class) {
+				out.writeByte(DOUBLE);
+				out.writeDouble((Double) x);
+				return;
+			}
+			if (k==Integer.class) {
+				out.writeByte(INT);
+				out.writeInt((Integer) x);
+				return;
+			}
+			if (k==Long.class) {
+				out.writeByte(LONG);
+				out.writeLong((Long) x);
+				return;
+			}
+			if (k==Boolean.class) {
+				out.writeByte((Boolean) x? TRUE : FALSE);
+				return;
+			}
+			if (k==Float.class) {
+				out.writeByte(FLOAT);
+				out.writeFloat((Float) x);
+				return;
+			}
+			if (k==Short.class) {
+				out.writeByte(SHORT);
+				out.writeShort((Short) x);
+				return;
+			}
+			if (k==Byte.class) {
+				out.writeByte(BYTE);
+				out.writeByte((Byte) x);
+				return;
+			}
+			if (k==Character.class) {
+				out.writeByte(CHAR);
+				out.writeChar((Character) x);
+				return;
+			}
+			if (x instanceof Enum) {
+				out.writeByte(ENUM);
+				writeClass(((Enum) x).getDeclaringClass(), false);
+				writeString(((Enum) x).name());
+				return;
+			}
+			// shared or cyclic?
+			Integer ref = refs.get(x);
+			if (ref != null) {
+				out.writeByte(REF);
+				writeVarInt(ref);
+				return;
+			}
+			refs.put(x, refs.size());
+
+			if (k.isArray()) {
+				writeArray(x, k);
+			} else if (COLLECTIONS.contains(k) && ! (x instanceof SortedSet && ((SortedSet) x).comparator()!=null)) {
+				Collection c = (Collection) x;
+				out.writeByte(COLLECTION);
+				writeClass(k, false);
+				writeVarInt(c.size());
+				for (Object o : c) {
+					write(o);
+				}
+			} else if (MAPS.contains(k) && ! (x instanceof SortedMap && ((SortedMap) x).comparator()!=null)) {
+				Map<?,?> m = (Map) x;
+				out.writeByte(MAP);
+				writeClass(k, false);
+				writeVarInt(m.size());
+				for (Map.Entry e : m.entrySet()) {
+					write(e.getKey());
+					write(e.getValue());
+				}
+			} else if (registered.contains(k)) {
+				writeObject(x, k);
+			} else {
+				// fallback
+				out.writeByte(XSTREAM);
+				writeString(XStreamUtils.serialiseToXml(x));
+			}
+		}
+
+		private void writeObject(Object x, Class k) throws IOException {
+			out.writeByte(OBJECT);
+			writeClass(k, true);
+			Schema schema = schema(k);
+			Field[] fields = schema.fields;
+			try {
+				for (int i = 0; i < fields.length; i++) {
+					Field f = fields[i];
+					switch(schema.codes[i]) {
+					case 'D': out.writeDouble(f.getDouble(x)); break;
+					case 'I': out.writeInt(f.getInt(x)); break;
+					case 'J': out.writeLong(f.getLong(x)); break;
+					case 'Z': out.writeBoolean(f.getBoolean(x)); break;
+					case 'F': out.writeFloat(f.getFloat(x)); break;
+					case 'S': out.writeShort(f.getShort(x)); break;
+					case 'B': out.writeByte(f.getByte(x)); break;
+					case 'C': out.writeChar(f.getChar(x)); break;
+					default: write(f.get(x));
+					}
+				}
+			} catch (IllegalAccessException ex) {
+				throw Utils.runtime(ex);
+			}
+		}
+
+		private void writeArray(Object x, Class k) throws IOException {
+			Class ct = k.getComponentType();
+			if (ct==double.class) {
+				out.writeByte(DOUBLE_ARR);
+				double[] a = (double[]) x;
+				writeVarInt(a.length);
+				for (int i = 0; i < a.length; i += BUF/8) {
+					int n = Math.min(BUF/8, a.length - i);
+					ByteBuffer.wrap(buf).asDoubleBuffer().put(a, i, n);
+					out.write(buf, 0, n*8);
+				}
+			} else if (ct==int.class) {
+				out.writeByte(INT_ARR);
+				int[] a = (int[]) x;
+				writeVarInt(a.length);
+				for (int i = 0; i < a.length; i += BUF/4) {
+					int n = Math.min(BUF/4, a.length - i);
+					ByteBuffer.wrap(buf).asIntBuffer().put(a, i, n);
+					out.write(buf, 0, n*4);
+				}
+			} else if (ct==long.class) {
+				out.writeByte(LONG_ARR);
+				long[] a = (long[]) x;
+				writeVarInt(a.length);
+				for (int i = 0; i < a.length; i += BUF/8) {
+					int n = Math.min(BUF/8, a.length - i);
+					ByteBuffer.wrap(buf).asLongBuffer().put(a, i, n);
+					out.write(buf, 0, n*8);
+				}
+			} else if (ct==float.class) {
+				out.writeByte(FLOAT_ARR);
+				float[] a = (float[]) x;
+				writeVarInt(a.length);
+				for (int i = 0; i < a.length; i += BUF/4) {
+					int n = Math.min(BUF/4, a.length - i);
+					ByteBuffer.wrap(buf).asFloatBuffer().put(a, i, n);
+					out.write(buf, 0, n*4);
+				}
+			} else if (ct==byte.class) {
+				out.writeByte(BYTE_ARR);
+				byte[] a = (byte[]) x;
+				writeVarInt(a.length);
+				out.write(a);
+			} else if (ct==short.class) {
+				out.writeByte(SHORT_ARR);
+				short[] a = (short[]) x;
+				writeVarInt(a.length);
+				for (short v : a) out.writeShort(v);
+			} else if (ct==char.class) {
+				out.writeByte(CHAR_ARR);
+				char[] a = (char[]) x;
+				writeVarInt(a.length);
+				for (char v : a) out.writeChar(v);
+			} else if (ct==boolean.class) {
+				out.writeByte(BOOL_ARR);
+				boolean[] a = (boolean[]) x;
+				writeVarInt(a.length);
+				for (boolean v : a) out.writeBoolean(v);
+			} else {
+				out.writeByte(OBJ_ARR);
+				Object[] a = (Object[]) x;
+				writeClass(ct, false);
+				writeVarInt(a.length);
+				for (Object o : a) {
+					write(o);
+				}
+			}
+		}
+
+		/**
+		 * A class is written in full once per stream, then by number.
+		 * @param withSchema If true, also write the field names and types.
+		 */
+		private void writeClass(Class k, boolean withSchema) throws IOException {
+			Integer id = classIds.get(k);
+			if (id != null) {
+				writeVarInt(id+1);
+				return;
+			}
+			classIds.put(k, classIds.size());
+			writeVarInt(0);
+			writeString(k.getName());
+			if ( ! withSchema) {
+				writeVarInt(0);
+				return;
+			}
+			Schema schema = schema(k);
+			writeVarInt(schema.names.length+1);
+			for (int i = 0; i < schema.names.length; i++) {
+				writeString(schema.names[i]);
+				out.writeByte(schema.codes[i]);
+			}
+		}
+
+		private void writeString(String s) throws IOException {
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			writeVarInt(bytes.length);
+			out.write(bytes);
+		}
+
+		private void writeVarInt(int v) throws IOException {
+			assert v >= 0 : v;
+			while ((v & ~0x7F) != 0) {
+				out.writeByte((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			out.writeByte(v);
+		}
+	}
+
+	/**
+	 * A class as written in the stream, matched up with the local class.
+	 */
+	private static final class ClassDef {
+		final Class klass;
+		/** null if no schema. Else the local field for each stream field (null if it has gone) */
+		final Field[] fields;
+		final char[] codes;
+
+		ClassDef(Class klass, Field[] fields, char[] codes) {
+			this.klass = klass;
+			this.fields = fields;
+			this.codes = codes;
+		}
+	}
+
+	private static final class Reader {
+		final DataInputStream in;
+		final List<Object> refs = new ArrayList();
+		final List<ClassDef> classes = new ArrayList();
+		final byte[] buf = new byte[BUF];
+
+		Reader(DataInputStream in) {
+			this.in = in;
+		}
+
+		Object read() throws IOException {
+			byte tag = in.readByte();
+			switch(tag) {
+			case NULL: return null;
+			case TRUE: return Boolean.TRUE;
+			case FALSE: return Boolean.FALSE;
+			case BYTE: return in.readByte();
+			case SHORT: return in.readShort();
+			case CHAR: return in.readChar();
+			case INT: return in.readInt();
+			case LONG: return in.readLong();
+			case FLOAT: return in.readFloat();
+			case DOUBLE: return in.readDouble();
+			case STRING: return readString();
+			case ENUM:
+				Class ek = readClass().klass;
+				return Enum.valueOf(ek, readString());
+			case REF: return refs.get(readVarInt());
+			case COLLECTION:
+				ClassDef cd = readClass();
+				Collection c = (Collection) newInstance(cd.klass);
+				refs.add(c);
+				int cn = readVarInt();
+				for (int i = 0; i < cn; i++) {
+					c.add(read());
+				}
+				return c;
+			case MAP:
+				ClassDef md = readClass();
+				Map m = (Map) newInstance(md.klass);
+				refs.add(m);
+				int mn = readVarInt();
+				for (int i = 0; i < mn; i++) {
+					Object k = read();
+					m.put(k, read());
+				}
+				return m;
+			case OBJECT: return readObject();
+			case XSTREAM:
+				int ref = refs.size();
+				refs.add(null);
+				Object x = XStreamUtils.serialiseFromXml(readString());
+				refs.set(ref, x);
+				return x;
+			default:
+				if (tag >= BYTE_ARR && tag <= OBJ_ARR) {
+					return readArray(tag);
+				}
+				throw new IOException("Bad tag: "+tag);
+			}
+		}
+
+		private Object readObject() throws IOException {
+			ClassDef cd = readClass();
+			Object x = newInstance(cd.klass);
+			refs.add(x);
+			Field[] fields = cd.fields;
+			try {
+				for (int i = 0; i < fields.length; i++) {
+					Field f = fields[i];
+					switch(cd.codes[i]) {
+					case 'D': double d = in.readDouble(); if (f!=null) f.setDouble(x, d); break;
+					case 'I': int n = in.readInt(); if (f!=null) f.setInt(x, n); break;
+					case 'J': long l = in.readLong(); if (f!=null) f.setLong(x, l); break;
+					case 'Z': boolean z = in.readBoolean(); if (f!=null) f.setBoolean(x, z); break;
+					case 'F': float fl = in.readFloat(); if (f!=null) f.setFloat(x, fl); break;
+					case 'S': short s = in.readShort(); if (f!=null) f.setShort(x, s); break;
+					case 'B': byte b = in.readByte(); if (f!=null) f.setByte(x, b); break;
+					case 'C': char ch = in.readChar(); if (f!=null) f.setChar(x, ch); break;
+					default:
+						Object v = read();
+						if (f==null) break;
+						try {
+							f.set(x, v);
+						} catch(IllegalArgumentException ex) {
+							// the field's type has changed since saving
+							Log.w(LOGTAG, "Skipping "+f+" = "+v+": "+ex);
+						}
+					}
+				}
+			} catch (IllegalAccessException ex) {
+				throw Utils.runtime(ex);
+			}
+			return x;
+		}
+
+		private Object readArray(byte tag) throws IOException {
+			if (tag==OBJ_ARR) {
+				Class ct = readClass().klass;
+				int len = readVarInt();
+				Object[] a = (Object[]) java.lang.reflect.Array.newInstance(ct, len);
+				refs.add(a);
+				for (int i = 0; i < len; i++) {
+					a[i] = read();
+				}
+				return a;
+			}
+			int len = readVarInt();
+			switch(tag) {
+			case DOUBLE_ARR:
+				double[] da = new double[len];
+				refs.add(da);
+				for (int i = 0; i < len; i += BUF/8) {
+					int n = Math.min(BUF/8, len - i);
+					in.readFully(buf, 0, n*8);
+					ByteBuffer.wrap(buf).asDoubleBuffer().get(da, i, n);
+				}
+				return da;
+			case INT_ARR:
+				int[] ia = new int[len];
+				refs.add(ia);
+				for (int i = 0; i < len; i += BUF/4) {
+					int n = Math.min(BUF/4, len - i);
+					in.readFully(buf, 0, n*4);
+					ByteBuffer.wrap(buf).asIntBuffer().get(ia, i, n);
+				}
+				return ia;
+			case LONG_ARR:
+				long[] la = new long[len];
+				refs.add(la);
+				for (int i = 0; i < len; i += BUF/8) {
+					int n = Math.min(BUF/8, len - i);
+					in.readFully(buf, 0, n*8);
+					ByteBuffer.wrap(buf).asLongBuffer().get(la, i, n);
+				}
+				return la;
+			case FLOAT_ARR:
+				float[] fa = new float[len];
+				refs.add(fa);
+				for (int i = 0; i < len; i += BUF/4) {
+					int n = Math.min(BUF/4, len - i);
+					in.readFully(buf, 0, n*4);
+					ByteBuffer.wrap(buf).asFloatBuffer().get(fa, i, n);
+				}
+				return fa;
+			case BYTE_ARR:
+				byte[] ba = new byte[len];
+				refs.add(ba);
+				in.readFully(ba);
+				return ba;
+			case SHORT_ARR:
+				short[] sa = new short[len];
+				refs.add(sa);
+				for (int i = 0; i < len; i++) sa[i] = in.readShort();
+				return sa;
+			case CHAR_ARR:
+				char[] ca = new char[len];
+				refs.add(ca);
+				for (int i = 0; i < len; i++) ca[i] = in.readChar();
+				return ca;
+			case BOOL_ARR:
+				boolean[] za = new boolean[len];
+				refs.add(za);
+				for (int i = 0; i < len; i++) za[i] = in.readBoolean();
+				return za;
+			default:
+				throw new IOException("Bad array tag: "+tag);
+			}
+		}
+
+		private ClassDef readClass() throws IOException {
+			int id = readVarInt();
+			if (id != 0) {
+				return classes.get(id - 1);
+			}
+			String name = readString();
+			Class k;
+			try {
+				k = Class.forName(name, true, Thread.currentThread().getContextClassLoader());
+			} catch (ClassNotFoundException ex) {
+				throw Utils.runtime(ex);
+			}
+			int nf = readVarInt() - 1;
+			ClassDef cd;
+			if (nf < 0) {
+				cd = new ClassDef(k, null, null);
+			} else {
+				// match the saved fields to the current ones by name
+				Schema schema = schema(k);
+				Field[] fields = new Field[nf];
+				char[] codes = new char[nf];
+				for (int i = 0; i < nf; i++) {
+					String fname = readString();
+					codes[i] = (char) in.readByte();
+					fields[i] = schema.field(fname, codes[i]);
+				}
+				cd = new ClassDef(k, fields, codes);
+			}
+			classes.add(cd);
+			return cd;
+		}
+
+		private String readString() throws IOException {
+			int len = readVarInt();
+			byte[] bytes = len <= buf.length? buf : new byte[len];
+			in.readFully(bytes, 0, len);
+			return new String(bytes, 0, len, StandardCharsets.UTF_8);
+		}
+
+		private int readVarInt() throws IOException {
+			int v = 0;
+			for (int shift = 0; ; shift += 7) {
+				int b = in.readByte();
+				v |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) return v;
+				if (shift > 28) throw new IOException("Bad varint");
+			}
+		}
+	}
+}
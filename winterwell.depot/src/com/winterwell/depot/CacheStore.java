@@ -0,0 +1,508 @@
+package com.winterwell.depot;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.winterwell.datalog.DataLog;
+import com.winterwell.depot.merge.Diff;
+import com.winterwell.utils.containers.ArrayMap;
+import com.winterwell.utils.containers.Pair2;
+import com.winterwell.utils.log.Log;
+import com.winterwell.utils.time.Dt;
+
+/**
+ * A strongly-held, size-limited cache of artifacts, in front of the real store.
+ * Without this, an artifact which is only weakly held (by {@link DescCache}) gets re-loaded and
+ * de-serialised once it has been garbage collected.
+ * <p>
+ * Two tiers:<br>
+ * 1. On-heap: the artifacts themselves. Admission is TinyLFU-style: new artifacts go into a
+ * small LRU window. When the window is full, its oldest competes with the main area's oldest,
+ * and the one that has been asked for more often (as counted by a small frequency sketch) stays.
+ * So a scan of one-off gets can't flush out the popular artifacts.<br>
+ * 2. Optional off-heap: artifacts evicted from the heap tier are kept as serialised bytes
+ * (see {@link BinarySerialiser}) in direct buffers. A hit here costs a de-serialise, but no I/O, and
+ * the bytes don't burden the garbage collector.
+ * <p>
+ * If a Desc has a max-age, then its cache entry expires after that long.
+ * <p>
+ * Sizes are estimates from {@link SizeEstimator}.
+ *
+ * @see DepotConfig#cacheMaxBytes
+ * @testedby {@link CacheStoreTest}
+ * @author daniel
+ */
+public class CacheStore implements IStore {
+
+	private static final String LOGTAG = "depot.cache";
+
+	/**
+	 * The window gets this fraction of the heap budget
+	 */
+	private static final double WINDOW = 0.01;
+
+	final IStore base;
+
+	private final long maxBytes;
+	private final long windowMaxBytes;
+	private final long offHeapMaxBytes;
+
+	private static final class Entry {
+		final Object value;
+		final long bytes;
+		/** 0 for never */
+		final long expires;
+
+		Entry(Object value, long bytes, long expires) {
+			this.value = value;
+			this.bytes = bytes;
+			this.expires = expires;
+		}
+
+		boolean isExpired(long now) {
+			return expires != 0 && now > expires;
+		}
+	}
+
+	/**
+	 * Access-ordered, so the first entry is the least-recently used.
+	 * All the tiers are guarded by synchronized(this).
+	 */
+	private final LinkedHashMap<Desc, Entry> window = new LinkedHashMap(16, 0.75f, true);
+	private final LinkedHashMap<Desc, Entry> main = new LinkedHashMap(256, 0.75f, true);
+	/**
+	 * Entry.value is a read-only ByteBuffer
+	 */
+	private final LinkedHashMap<Desc, Entry> offHeap = new LinkedHashMap(256, 0.75f, true);
+	private long windowBytes, mainBytes, offHeapBytes;
+	/**
+	 * Loads in progress: desc -> token. A put or remove of desc drops its token -- so a load which
+	 * started before the write doesn't then cache the old value over the new one.
+	 */
+	private final HashMap<Desc, Object> loading = new HashMap();
+
+	private final FrequencySketch sketch;
+
+	private final LongAdder hitHeap = new LongAdder();
+	private final LongAdder hitOffHeap = new LongAdder();
+	private final LongAdder miss = new LongAdder();
+
+	/**
+	 * @param base The store to cache
+	 * @param maxBytes Budget for the on-heap tier
+	 * @param offHeapMaxBytes Budget for the off-heap tier. 0 for none.
+	 */
+	public CacheStore(IStore base, long maxBytes, long offHeapMaxBytes) {
+		this.base = base;
+		assert maxBytes > 0 : maxBytes;
+		this.maxBytes = maxBytes;
+		this.windowMaxBytes = Math.max(1, (long) (maxBytes * WINDOW));
+		this.offHeapMaxBytes = offHeapMaxBytes;
+		// guess at ~1k per artifact
+		long n = (maxBytes + offHeapMaxBytes) / 1024;
+		sketch = new FrequencySketch((int) Math.max(256, Math.min(n, 1 << 22)));
+	}
+
+	/**
+	 * Skip artifacts which are cheap to load, or not really artifacts
+	 */
+	private boolean isCacheable(Desc desc) {
+		return desc.range==null && ! desc.symlink && desc.getType()!=File.class;
+	}
+
+	@Override
+	public <X> X get(Desc<X> desc) {
+		if ( ! isCacheable(desc)) {
+			return base.get(desc);
+		}
+		ByteBuffer bytes = null;
+		Object token = new Object();
+		synchronized (this) {
+			sketch.increment(desc.hashCode());
+			long now = System.currentTimeMillis();
+			Entry e = get2_heap(desc, now);
+			if (e!=null) {
+				hitHeap.increment();
+				DataLog.count(1, "Depot", "cache_hit", "heap");
+				return (X) e.value;
+			}
+			e = offHeap.get(desc);
+			if (e!=null) {
+				if (e.isExpired(now)) {
+					removeOffHeap(desc);
+				} else {
+					bytes = ((ByteBuffer) e.value).duplicate();
+				}
+			}
+			loading.put(desc, token);
+		}
+		try {
+			// de-serialise off-heap bytes?
+			if (bytes!=null) {
+				try {
+					byte[] ba = new byte[bytes.remaining()];
+					bytes.get(ba);
+					X x = (X) BinarySerialiser.deserialise(new ByteArrayInputStream(ba));
+					hitOffHeap.increment();
+					DataLog.count(1, "Depot", "cache_hit", "offheap");
+					admit(desc, x, token);
+					return x;
+				} catch(Exception ex) {
+					Log.w(LOGTAG, "Dropping unreadable off-heap copy of "+desc+": "+ex);
+					synchronized (this) {
+						removeOffHeap(desc);
+					}
+				}
+			}
+			miss.increment();
+			DataLog.count(1, "Depot", "cache_miss");
+			X x = base.get(desc);
+			if (x!=null) {
+				admit(desc, x, token);
+			}
+			return x;
+		} finally {
+			synchronized (this) {
+				loading.remove(desc, token);
+			}
+		}
+	}
+
+	private Entry get2_heap(Desc desc, long now) {
+		Entry e = main.get(desc);
+		if (e==null) e = window.get(desc);
+		if (e==null) return null;
+		if (e.isExpired(now)) {
+			removeHeap(desc);
+			return null;
+		}
+		return e;
+	}
+
+	@Override
+	public <X> void put(Desc<X> desc, X artifact) {
+		base.put(desc, artifact);
+		if (isCacheable(desc)) {
+			admit(desc, artifact, null);
+		}
+	}
+
+	@Override
+	public <X> boolean putDiff(Desc<X> desc, X artifact, Diff diff) {
+		if ( ! base.putDiff(desc, artifact, diff)) {
+			return false;
+		}
+		if (isCacheable(desc)) {
+			admit(desc, artifact, null);
+		}
+		return true;
+	}
+
+	@Override
+	public void storeBatch(List<Pair2<Desc, Object>> add, List<Desc> remove) {
+		base.storeBatch(add, remove);
+		synchronized (this) {
+			for (Desc desc : remove) {
+				removeHeap(desc);
+				removeOffHeap(desc);
+				loading.remove(desc);
+			}
+		}
+		for (Pair2<Desc, Object> desc_obj : add) {
+			if (isCacheable(desc_obj.first)) {
+				admit(desc_obj.first, desc_obj.second, null);
+			}
+		}
+	}
+
+	@Override
+	public void remove(Desc desc) {
+		base.remove(desc);
+		synchronized (this) {
+			removeHeap(desc);
+			removeOffHeap(desc);
+			loading.remove(desc);
+		}
+	}
+
+	/**
+	 * Put into the window (replacing any older copy), then rebalance.
+	 * @param token null for a write. Else from {@link #loading}: if that has been dropped, then
+	 * desc was written during the load, and artifact is out of date -- so it is not admitted.
+	 */
+	private void admit(Desc desc, Object artifact, Object token) {
+		long bytes = SizeEstimator.estimate(artifact);
+		Dt maxAge = desc.maxAge;
+		Entry e = new Entry(artifact, bytes, maxAge==null? 0 : System.currentTimeMillis() + maxAge.getMillisecs());
+		List<Pair2<Desc, Entry>> demoted = new ArrayList();
+		synchronized (this) {
+			if (token==null) {
+				loading.remove(desc);
+			} else if ( ! loading.remove(desc, token)) {
+				return;
+			}
+			removeHeap(desc);
+			removeOffHeap(desc);
+			if (bytes > maxBytes) {
+				// too big for the heap tier
+				demoted.add(new Pair2(desc, e));
+			} else {
+				window.put(desc, e);
+				windowBytes += bytes;
+				admit2_rebalance(demoted);
+			}
+		}
+		// serialise outside the lock
+		if (offHeapMaxBytes > 0) {
+			for (Pair2<Desc, Entry> de : demoted) {
+				admit3_offHeap(de.first, de.second);
+			}
+		}
+	}
+
+	/**
+	 * Move window overflow into main -- if TinyLFU says so.
+	 * @param demoted Evicted from the heap -- for the off-heap tier
+	 */
+	private void admit2_rebalance(List<Pair2<Desc, Entry>> demoted) {
+		while (windowBytes > windowMaxBytes && ! window.isEmpty()) {
+			Map.Entry<Desc, Entry> candidate = first(window);
+			window.remove(candidate.getKey());
+			windowBytes -= candidate.getValue().bytes;
+			// make room in main -- if the candidate is more popular than the victims
+			int candidateFreq = sketch.frequency(candidate.getKey().hashCode());
+			boolean admit = true;
+			List<Map.Entry<Desc, Entry>> victims = new ArrayList();
+			long free = maxBytes - windowMaxBytes - mainBytes;
+			Iterator<Map.Entry<Desc, Entry>> it = main.entrySet().iterator();
+			while (free < candidate.getValue().bytes && it.hasNext()) {
+				Map.Entry<Desc, Entry> victim = it.next();
+				if (sketch.frequency(victim.getKey().hashCode()) >= candidateFreq) {
+					admit = false;
+					break;
+				}
+				victims.add(victim);
+				free += victim.getValue().bytes;
+			}
+			if ( ! admit || free < candidate.getValue().bytes) {
+				demoted.add(new Pair2(candidate.getKey(), candidate.getValue()));
+				continue;
+			}
+			for (Map.Entry<Desc, Entry> victim : victims) {
+				main.remove(victim.getKey());
+				mainBytes -= victim.getValue().bytes;
+				demoted.add(new Pair2(victim.getKey(), victim.getValue()));
+			}
+			main.put(candidate.getKey(), candidate.getValue());
+			mainBytes += candidate.getValue().bytes;
+		}
+	}
+
+	private void admit3_offHeap(Desc desc, Entry e) {
+		ByteBuffer bb;
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			BinarySerialiser.serialise(e.value, out, false);
+			bb = ByteBuffer.allocateDirect(out.size());
+			bb.put(out.toByteArray());
+			bb.flip();
+		} catch(Throwable ex) {
+			Log.w(LOGTAG, "Can't keep "+desc+" off-heap: "+ex);
+			return;
+		}
+		long bytes = bb.capacity();
+		if (bytes > offHeapMaxBytes) return;
+		synchronized (this) {
+			// has a fresh copy arrived meanwhile?
+			if (window.containsKey(desc) || main.containsKey(desc)) return;
+			removeOffHeap(desc);
+			while (offHeapBytes + bytes > offHeapMaxBytes && ! offHeap.isEmpty()) {
+				removeOffHeap(first(offHeap).getKey());
+			}
+			offHeap.put(desc, new Entry(bb.asReadOnlyBuffer(), bytes, e.expires));
+			offHeapBytes += bytes;
+		}
+	}
+
+	private void removeHeap(Desc desc) {
+		Entry e = window.remove(desc);
+		if (e!=null) windowBytes -= e.bytes;
+		e = main.remove(desc);
+		if (e!=null) mainBytes -= e.bytes;
+	}
+
+	private void removeOffHeap(Desc desc) {
+		Entry e = offHeap.remove(desc);
+		if (e!=null) offHeapBytes -= e.bytes;
+	}
+
+	private static <K,V> Map.Entry<K,V> first(LinkedHashMap<K,V> map) {
+		return map.entrySet().iterator().next();
+	}
+
+	/**
+	 * Empty the cache
+	 */
+	public synchronized void clear() {
+		loading.clear();
+		window.clear();
+		main.clear();
+		offHeap.clear();
+		windowBytes = mainBytes = offHeapBytes = 0;
+	}
+
+	/**
+	 * @return hit counts per tier, entries and bytes
+	 */
+	public synchronized Map<String,Long> getStats() {
+		return new ArrayMap(
+				"hit_heap", hitHeap.sum(), "hit_offheap", hitOffHeap.sum(), "miss", miss.sum(),
+				"heap_entries", (long) (window.size() + main.size()), "heap_bytes", windowBytes + mainBytes,
+				"offheap_entries", (long) offHeap.size(), "offheap_bytes", offHeapBytes);
+	}
+
+	synchronized boolean isOnHeap(Desc desc) {
+		return window.containsKey(desc) || main.containsKey(desc);
+	}
+
+	synchronized boolean isOffHeap(Desc desc) {
+		return offHeap.containsKey(desc);
+	}
+
+	@Override
+	public String getRaw(Desc desc) {
+		return base.getRaw(desc);
+	}
+
+	@Override
+	public void flush() {
+		base.flush();
+	}
+
+	@Override
+	public boolean contains(Desc desc) {
+		synchronized (this) {
+			if (isOnHeap(desc) || isOffHeap(desc)) return true;
+		}
+		return base.contains(desc);
+	}
+
+	@Override
+	public Set<Desc> loadKeys(Desc partialDesc) {
+		return base.loadKeys(partialDesc);
+	}
+
+	@Override
+	public MetaData getMetaData(Desc desc) {
+		return base.getMetaData(desc);
+	}
+
+	@Override
+	public File getLocalPath(Desc desc) throws UnsupportedOperationException {
+		return base.getLocalPath(desc);
+	}
+
+	@Override
+	public void init() {
+		base.init();
+	}
+
+	@Override
+	public String toString() {
+		return "CacheStore->"+base;
+	}
+
+
+	/**
+	 * A count-min sketch of 4-bit counters -- so popularity is cheap to track, even for artifacts
+	 * which aren't in the cache. The counts are halved every so often, so old popularity fades.
+	 * Not thread-safe: CacheStore guards it.
+	 */
+	static final class FrequencySketch {
+
+		private static final long[] SEEDS = {
+				0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+		/** 16 counters per long */
+		private final long[] table;
+		private final int mask;
+		private final int sampleSize;
+		private int additions;
+
+		FrequencySketch(int expectedEntries) {
+			int n = Integer.highestOneBit(Math.max(expectedEntries, 16) - 1) << 1;
+			table = new long[n];
+			mask = n - 1;
+			sampleSize = 10 * n;
+		}
+
+		/**
+		 * @return estimated count, in [0, 15]
+		 */
+		int frequency(int hash) {
+			hash = spread(hash);
+			int freq = Integer.MAX_VALUE;
+			for (int i = 0; i < 4; i++) {
+				int index = index(hash, i);
+				int shift = offset(hash, i) << 2;
+				freq = Math.min(freq, (int) ((table[index] >>> shift) & 0xfL));
+			}
+			return freq;
+		}
+
+		void increment(int hash) {
+			hash = spread(hash);
+			boolean added = false;
+			for (int i = 0; i < 4; i++) {
+				int index = index(hash, i);
+				int shift = offset(hash, i) << 2;
+				long mask4 = 0xfL << shift;
+				if ((table[index] & mask4) != mask4) {
+					table[index] += 1L << shift;
+					added = true;
+				}
+			}
+			if (added && ++additions == sampleSize) {
+				reset();
+			}
+		}
+
+		/**
+		 * Halve all the counters
+		 */
+		private void reset() {
+			for (int i = 0; i < table.length; i++) {
+				table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+			}
+			additions /= 2;
+		}
+
+		private static int spread(int hash) {
+			hash *= 0x9e3779b9;
+			return hash ^ (hash >>> 16);
+		}
+
+		private int index(int hash, int i) {
+			long h = (hash + SEEDS[i]) * SEEDS[i];
+			h += h >>> 32;
+			return ((int) h) & mask;
+		}
+
+		/**
+		 * Which of the 16 counters in a long
+		 */
+		private static int offset(int hash, int i) {
+			return ((hash >>> (i << 3)) + i) & 15;
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package com.winterwell.depot;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.winterwell.depot.merge.Diff;
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.io.FileUtils;
+import com.winterwell.utils.log.Log;
+import com.winterwell.utils.web.XStreamUtils;
+
+/**
+ * The diffs saved since an artifact's last full snapshot, kept next to it as artifact-file.deltas.
+ * Used by {@link FileStore} when {@link DepotConfig#deltas} is on.
+ * <p>
+ * Each record is [int length][Diff xml]. Records are only ever appended, so a crash can at worst leave
+ * an incomplete last record -- which is ignored.
+ *
+ * @testedby {@link DeltaLogTest}
+ * @author daniel
+ */
+final class DeltaLog {
+
+	private static final String LOGTAG = "depot.delta";
+
+	static final String SUFFIX = ".deltas";
+
+	final File file;
+
+	DeltaLog(File artifactFile) {
+		this.file = new File(artifactFile.getPath()+SUFFIX);
+	}
+
+	boolean exists() {
+		return file.exists();
+	}
+
+	long length() {
+		return file.length();
+	}
+
+	/**
+	 * @return the bytes written
+	 */
+	int append(Diff diff) {
+		byte[] xml = XStreamUtils.serialiseToXml(diff).getBytes(StandardCharsets.UTF_8);
+		byte[] rec = new byte[4 + xml.length];
+		ByteBuffer.wrap(rec).putInt(xml.length).put(xml);
+		try (FileOutputStream out = new FileOutputStream(file, true)) {
+			out.write(rec);
+		} catch (IOException ex) {
+			throw Utils.runtime(ex);
+		}
+		return rec.length;
+	}
+
+	/**
+	 * @return the diffs, oldest first. Empty if there is no log.
+	 */
+	List<Diff> read() {
+		List<Diff> diffs = new ArrayList();
+		if ( ! file.exists()) return diffs;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			while (true) {
+				byte[] xml = read2_record(in);
+				if (xml==null) break;
+				diffs.add(XStreamUtils.serialiseFromXml(new String(xml, StandardCharsets.UTF_8)));
+			}
+		} catch (IOException ex) {
+			throw Utils.runtime(ex);
+		}
+		return diffs;
+	}
+
+	/**
+	 * @return the number of complete records
+	 */
+	int count() {
+		if ( ! file.exists()) return 0;
+		int n = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			while (true) {
+				int len = read2_length(in);
+				if (len < 0 || in.skipBytes(len) < len) break;
+				n++;
+			}
+		} catch (IOException ex) {
+			throw Utils.runtime(ex);
+		}
+		return n;
+	}
+
+	private static int read2_length(DataInputStream in) throws IOException {
+		try {
+			return in.readInt();
+		} catch (EOFException ex) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return null at the end (or at an incomplete record)
+	 */
+	private byte[] read2_record(DataInputStream in) throws IOException {
+		int len = read2_length(in);
+		if (len < 0) return null;
+		byte[] bytes = new byte[len];
+		try {
+			in.readFully(bytes);
+		} catch (EOFException ex) {
+			Log.w(LOGTAG, "Ignoring incomplete record at the end of "+file);
+			return null;
+		}
+		return bytes;
+	}
+
+	void delete() {
+		FileUtils.delete(file);
+	}
+
+	@Override
+	public String toString() {
+		return "DeltaLog["+file+"]";
+	}
+}
@@ -11,6 +11,8 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Supplier;
 import java.util.logging.Level;
 
@@ -21,6 +23,7 @@ import com.winterwell.utils.Printer;
 import com.winterwell.utils.ReflectionUtils;
 import com.winterwell.utils.Utils;
 import com.winterwell.utils.WrappedException;
+import com.winterwell.utils.containers.ArrayMap;
 import com.winterwell.utils.gui.GuiUtils;
 import com.winterwell.utils.io.ConfigBuilder;
 import com.winterwell.utils.io.FileUtils;
@@ -42,6 +45,7 @@ import com.winterwell.utils.time.StopWatch;
  * Actual storage is delegated to a chain of IStores:
  * 
  * 1. {@link SlowStorage} introduces a delay in persistence to ease the I/O load.
+ * 1b. (optional) {@link CacheStore} keeps artifacts in memory, so they aren't re-loaded once garbage collected.
  * 2. {@link RemoteStore} gets & puts between servers.
  * 3. {@link FileStore} handles the save/load to file.
  * <p>
@@ -325,6 +329,7 @@ public class Depot implements Closeable, Flushable, IStore, INotSerializable
 	@Override
 	public void close() {
 		flush();
+		flights.close();
 		if (base instanceof Closeable) {
 			FileUtils.close((Closeable) base);
 		}
@@ -348,7 +353,7 @@ public class Depot implements Closeable, Flushable, IStore, INotSerializable
 	 * <p>
 	 * <b>Thread Safety</b>: if desc1 equals desc2, then get(desc1) == get(desc2).
 	 * To ensure this, get() locks on the desc during object-loading (which can involve
-	 * a remote call!).
+	 * a remote call!). Artifacts which are already in memory are returned without locking.
 	 * 
 	 * @param desc If the get is successful, this will be bound to the returned
 	 *            artifact.
@@ -358,10 +363,13 @@ public class Depot implements Closeable, Flushable, IStore, INotSerializable
 	 *         return null!! This is to make non backwards compatible code
 	 *         changes more graceful.
 	 */
-	public <X2> X2 get(Desc<X2> desc) throws WrappedException {		
+	public <X2> X2 get(Desc<X2> desc) throws WrappedException {
+		// Fast path: already in memory? No lock needed
+		X2 x = get2_fast(desc);
+		if (x!=null) return x;
+		
 		StopWatch sw = new StopWatch();
 		// get it
-		X2 x;
 		locker.lock(desc);
 		try {			
 			x = get2(desc);		
@@ -394,9 +402,74 @@ public class Depot implements Closeable, Flushable, IStore, INotSerializable
 			locker.unlock(desc);
 		}
 		DataLog.mean(sw.getTime(), "Depot.get");
+		reportStats();
 		return x;
 	}
 	
+	/**
+	 * The optimistic lock-free part of get(): artifacts which are bound to desc, or in the DescCache.
+	 * Thread safety: the artifact is returned only if desc is (or has just been, lock-free) bound to it
+	 * -- see {@link DescCache#bindCached(Object, Desc)}. Anything else goes via the locked get2().
+	 * 
+	 * @return the artifact, or null for "take the slow path"
+	 */
+	private <X2> X2 get2_fast(Desc<X2> desc) {
+		if (desc.symlink) return null;
+		X2 x = get3_bound(desc);
+		if (x==null) {
+			x = get3_cached(desc);
+			if (x==null) return null;
+			if ( ! ((DescCache)Desc.getDescCache()).bindCached(x, desc)) {
+				return null;
+			}
+		}
+		// It's own version of Desc should be bound too (the slow path would bind it)
+		if (x instanceof IHasDesc) {
+			Desc myDesc = ((IHasDesc) x).getDesc();
+			if (myDesc!=null && myDesc!=desc && ! myDesc.symlink && myDesc.getBoundValue()!=x) {
+				return null;
+			}
+		}
+		return x;
+	}
+	
+	/**
+	 * Cache hits. Counted in striped counters, as get() is hot and may be called from many threads.
+	 * Passed on to DataLog by {@link #reportStats()}.
+	 */
+	private final LongAdder hitBound = new LongAdder();
+	private final LongAdder hitCached = new LongAdder();
+	/**
+	 * How much of hitBound & hitCached has been reported
+	 */
+	private final AtomicLong reportedBound = new AtomicLong();
+	private final AtomicLong reportedCached = new AtomicLong();
+	
+	/**
+	 * Pass the cache-hit counts on to DataLog. Called on the slow path and flush(), so the hot path does not.
+	 */
+	void reportStats() {
+		reportStats2(hitBound, reportedBound, "bound");
+		reportStats2(hitCached, reportedCached, "DescCache");
+	}
+
+	private void reportStats2(LongAdder hits, AtomicLong reported, String kind) {
+		long n = hits.sum();
+		long prev = reported.get();
+		// only move forwards (and only one thread reports each delta)
+		if (n <= prev || ! reported.compareAndSet(prev, n)) return;
+		DataLog.count(n - prev, "Depot", "cache_hit", kind);
+	}
+	
+	/**
+	 * @return cache hits, via bound Descs and via the DescCache, and getWithFactory() computations
+	 */
+	public Map<String,Long> getStats() {
+		return new ArrayMap("hit_bound", hitBound.sum(), "hit_cached", hitCached.sum(),
+				"computed", flights.computed.sum(), "coalesced", flights.coalesced.sum(),
+				"compute_ms", flights.computeMillis.sum(), "refresh_ahead", flights.refreshes.sum());
+	}
+	
 	/**
 	 * 
 	 * @param x Can be null
@@ -441,7 +514,7 @@ public class Depot implements Closeable, Flushable, IStore, INotSerializable
 			return (X2) get((Desc)bv);
 		}
 		assert ReflectionUtils.isa(bv.getClass(), desc.getType()) : bv.getClass()+" not a "+desc.getType()+" for "+desc;
-		DataLog.count(1,"Depot","cache_hit","bound");
+		hitBound.increment();
 //		Log.v("depot.got.bound", desc); //verbose get log (normally ignored)
 		return bv;
 	}
@@ -459,7 +532,7 @@ public class Depot implements Closeable, Flushable, IStore, INotSerializable
 			}
 		}
 		assert ReflectionUtils.isa(bv.getClass(), desc.getType()) : bv.getClass()+" not a "+desc.getType()+" for "+desc;
-		DataLog.count(1,"Depot","cache_hit","DescCache");
+		hitCached.increment();
 //		Log.v("depot.got.cache", desc); //verbose get log (normally ignored)				
 		return bv;		
 	}
@@ -696,6 +769,7 @@ public class Depot implements Closeable, Flushable, IStore, INotSerializable
 	
 	
 	public synchronized void flush() {
+		reportStats();
 		base.flush();
 	}
 	
@@ -763,7 +837,9 @@ public class Depot implements Closeable, Flushable, IStore, INotSerializable
 	}
 
 	/**
-	 * Convenience for using Depot to cache expensive-to-calculate stuff
+	 * Convenience for using Depot to cache expensive-to-calculate stuff.
+	 * Concurrent calls for the same artifact share one calculation -- see {@link #getWithFactory(Desc, Supplier)}.
+	 * @param forceRecalc If true, calculate and put, even if there is a cached value. 
 	 * @param klass
 	 * @param tag
 	 * @param name
@@ -774,18 +850,18 @@ public class Depot implements Closeable, Flushable, IStore, INotSerializable
 		Desc<X> desc = new Desc(name, klass);
 		desc.setTag(tag);
 		Depot depot = Depot.getDefault();
+		Supplier<X> factory = () -> {
+			try {
+				return callable.call();
+			} catch (Exception e) {
+				throw Utils.runtime(e);
+			}
+		};
 		// cached?
 		if ( ! forceRecalc) {
-			X v = depot.get(desc);
-			if (v!=null) return v;
-		}
-		try {
-			X v = callable.call();
-			depot.put(desc, v);
-			return v;
-		} catch (Exception e) {
-			throw Utils.runtime(e);
+			return depot.getWithFactory(desc, factory);
 		}
+		return depot.recalc(desc, factory);
 	}
 
 	/**
@@ -840,19 +916,107 @@ public class Depot implements Closeable, Flushable, IStore, INotSerializable
 	}
 
 	/**
-	 * Convenience for get-if-present, else make-store-and-return
+	 * Convenience for get-if-present, else make-store-and-return.
+	 * <p>
+	 * Single-flight: if several threads miss at once, only one runs the factory, and the others wait
+	 * for (and share) its result.
+	 * <p>
+	 * Refresh-ahead: if {@link DepotConfig#refreshAhead} is set, and desc has a max-age, then an old
+	 * artifact is returned as-is but recomputed in the background; an expired one is recomputed before returning.
 	 * @param desc
 	 * @param factory
 	 * @return
 	 */
 	public <Y> Y getWithFactory(Desc<Y> desc, Supplier<Y> factory) {
 		Y got = get(desc);
-		if (got!=null) return got;
-		got = factory.get();
-		put(desc, got);
-		return got;
+		if (got!=null) {
+			if (config.refreshAhead <= 0 || desc.maxAge==null) {
+				return got;
+			}
+			long age = System.currentTimeMillis() - getBorn(desc, got);
+			long maxAge = desc.maxAge.getMillisecs();
+			if (age < maxAge * config.refreshAhead) {
+				return got;
+			}
+			if (age < maxAge) {
+				// serve the old value while a fresh one is made
+				Desc<Y> desc2 = new Desc(desc);
+				flights.runAsync(desc2, () -> recalc2(desc2, factory));
+				return got;
+			}
+			// expired
+			return recalc(desc, factory);
+		}
+		Y v = flights.run(desc, () -> {
+			// did someone finish while we were getting?
+			Y v2 = get(desc);
+			if (v2!=null) return v2;
+			return recalc2(desc, factory);
+		});
+		return getWithFactory2_bind(desc, v);
 	}
 
+	/**
+	 * Compute and put -- or if another thread is already doing so, wait for its result.
+	 */
+	<Y> Y recalc(Desc<Y> desc, Supplier<Y> factory) {
+		Y v = flights.run(desc, () -> recalc2(desc, factory));
+		return getWithFactory2_bind(desc, v);
+	}
+
+	private <Y> Y recalc2(Desc<Y> desc, Supplier<Y> factory) {
+		Y v = factory.get();
+		put(desc, v);
+		born.put(v, System.currentTimeMillis());
+		return v;
+	}
+
+	/**
+	 * If we waited on another thread's computation, then desc isn't bound yet.
+	 * A get() will bind it (and will normally be a cache hit).
+	 * Or desc may still be bound to the old version (if we waited on a refresh), so move it on.
+	 */
+	private <Y> Y getWithFactory2_bind(Desc<Y> desc, Y v) {
+		if (v==null || desc.getBoundValue()==v) return v;
+		if (desc.getBoundValue()!=null) {
+			locker.lock(desc);
+			try {
+				desc.bind(v);
+			} finally {
+				locker.unlock(desc);
+			}
+			return v;
+		}
+		Y v2 = get(desc);
+		return v2==null? v : v2;
+	}
+
+	/**
+	 * When was this artifact made? Used for refresh-ahead. Weak keys, so this doesn't keep artifacts alive.
+	 */
+	private final WeakKeyMap<Object, Long> born = new WeakKeyMap(true);
+
+	/**
+	 * @return when the artifact was made (as far as we know) 
+	 */
+	private long getBorn(Desc desc, Object artifact) {
+		Long t = born.get(artifact);
+		if (t!=null) return t;
+		// from the store -- use the file time
+		long t2 = System.currentTimeMillis();
+		try {
+			MetaData md = base.getMetaData(desc);
+			File f = md==null? null : md.getFile();
+			if (f!=null && f.exists()) t2 = f.lastModified();
+		} catch(Throwable ex) {
+			Log.w(TAG, "getBorn "+desc+" "+ex);
+		}
+		born.put(artifact, t2);
+		return t2;
+	}
+
+	final SingleFlight flights = new SingleFlight();
+
 	public void clearCache() {
 		DescCache dc = (DescCache)Desc.getDescCache();
 		dc.clear();
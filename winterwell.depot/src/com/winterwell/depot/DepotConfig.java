@@ -47,6 +47,12 @@ public class DepotConfig {
 	@Option
 	String remoteUser = "winterwell";
 
+	@Option(description="How many files RemoteStore transfers at once, e.g. for prefetch() or a batch of puts")
+	int remoteThreads = 4;
+
+	@Option(description="If set, RemoteStore uses this directory as the remote depot -- e.g. a peer's depot, mounted here -- instead of ssh.")
+	File remoteMount;
+
 	@Option
 	String httpName;
 	@Option
@@ -73,6 +79,19 @@ public class DepotConfig {
 	
 	@Option
 	Dt batch;
+
+	@Option(description="Memory budget (estimated bytes) for artifacts waiting in write-behind. Over this, the oldest get saved early. 0 for no limit.")
+	long writeBehindMaxBytes = 128L * 1024 * 1024;
+
+	@Option(description="How many threads do the write-behind saves")
+	int writeBehindThreads = 2;
+
+	@Option(description="Memory budget (estimated bytes) for a strongly-held cache of artifacts, so they needn't be re-loaded "
+			+ "once garbage collected. 0 (the default) for no cache. See CacheStore")
+	long cacheMaxBytes;
+
+	@Option(description="With cacheMaxBytes: budget for a 2nd tier which keeps artifacts evicted from the cache as serialised bytes, off-heap. 0 for none.")
+	long cacheOffHeapMaxBytes;
 	
 	@Option
 	File dir;
@@ -80,6 +99,19 @@ public class DepotConfig {
 	@Option(description="Set this to store certain tags in a different directory. Only applies if FileStorage is used")
 	Map<String,String> dir4tag;
 	
+	@Option(description="If true (the default), FileStore keeps an index of keys for each tag/type, so loadKeys() doesn't have to walk the directory.")
+	boolean keyIndex = true;
+
+	@Option(description="If true, FileStore saves Depot.update() edits as diffs appended to a log next to the artifact, "
+			+ "instead of re-writing the whole artifact. The log is folded into a fresh snapshot in the background.")
+	boolean deltas;
+
+	@Option(description="With deltas: make a fresh snapshot after this many diffs")
+	int deltaMaxCount = 100;
+
+	@Option(description="With deltas: make a fresh snapshot once the diff log is this fraction of the snapshot's size")
+	double deltaMaxRatio = 0.5;
+
 	@Option
 	KErrorPolicy errorPolicy = KErrorPolicy.DELETE_CAUSE; // !!
 
@@ -89,6 +121,10 @@ public class DepotConfig {
 	@Option(description="How long a locally cached file can be used for. Can be over-ridden for a specific Desc.")
 	public Dt maxAge = TUnit.MONTH.dt;
 
+	@Option(description="In [0,1). For Depot.getWithFactory() with a Desc.maxAge: once an artifact is this fraction of its max-age, "
+			+ "return it but recompute it in the background. Past max-age, it is recomputed before returning. 0 (the default) for off.")
+	double refreshAhead;
+
 	@Option
 	public boolean https  = true;
 
@@ -123,9 +159,15 @@ public class DepotConfig {
 		// init
 		s.init();
 		
+		// Cache? (under the write-behind, so pending edits stay in SlowStorage)
+		if (cacheMaxBytes > 0) {
+			s = new CacheStore(s, cacheMaxBytes, cacheOffHeapMaxBytes);
+		}
+		
 		// SlowStorage?
 		if (writeBehind!=null) {
-			SlowStorage wb = new SlowStorage(s, writeBehind, depot);
+			SlowStorage wb = new SlowStorage(s, writeBehind, depot, Math.max(1, writeBehindThreads));
+			wb.setMaxBytes(writeBehindMaxBytes);
 			if (writeBehindJitter!=0) {
 				if ( ! MathUtils.isProb(writeBehindJitter)) {
 					Log.e("DepotConfig", "Invalid jitter "+writeBehindJitter);
@@ -145,6 +187,10 @@ public class DepotConfig {
 		return s;
 	}
 
+	public File getDir() {
+		return dir;
+	}
+
 	public DepotConfig setDir(File dir) {
 		this.dir = dir;
 		return this;
@@ -1,10 +1,9 @@
 package com.winterwell.depot;
 
 import java.lang.ref.WeakReference;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import com.winterwell.utils.containers.ListMap;
 import com.winterwell.utils.log.Log;
@@ -65,31 +64,28 @@ class DescCache implements IDescCache {
 	 * <p>
 	 * Note: For most classes of interest, a Desc can never hold a strong reference to 
 	 * the object it describes.
+	 * <p>
+	 * Keyed by identity: two equals() artifacts are still different artifacts.
 	 */
-	static Map<Object, Desc> sharedObject2Desc =
-	// new MapMaker().weakKeys().concurrencyLevel(4).makeMap();
-	Collections.synchronizedMap(new WeakHashMap<Object, Desc>());
+	static final WeakKeyMap<Object, Desc> sharedObject2Desc = new WeakKeyMap(true);
 
 	/**
 	 * This does not keep Descs (weak keys) or artifacts (WeakRef wrappers) alive.
-	 * @see WeakHashMap
+	 * Keyed by equals(), so any equals Desc finds the binding.
 	 */
-	static Map<Desc,WeakReference> desc2bound =
-			Collections.synchronizedMap(new WeakHashMap());
+	static final WeakKeyMap<Desc,WeakReference> desc2bound = new WeakKeyMap(false);
 	
 	/**
 	 * What's in the cache? For debugging use only.
 	 */
 	public Map<Class,List> getCurrentUsage() {
-		Desc[] keys = desc2bound.keySet().toArray(new Desc[0]);
+		// weakly consistent -- this does not block bind/unbind
 		ListMap usage = new ListMap();
-		for (Desc desc : keys) {
-			WeakReference bnd = desc2bound.get(desc);
-			if (bnd==null) continue;
+		desc2bound.forEach((desc, bnd) -> {
 			Object obj = bnd.get();
 			Class klass = desc.getType();
 			usage.add(klass, obj);
-		}
+		});
 		return usage;
 	}
 
@@ -176,6 +172,29 @@ class DescCache implements IDescCache {
 		return true;
 	}
 
+	private static final AtomicReferenceFieldUpdater<Desc, WeakReference> BOUND_VALUE
+		= AtomicReferenceFieldUpdater.newUpdater(Desc.class, WeakReference.class, "boundValue");
+
+	/**
+	 * Lock-free bind, for the fast path of {@link Depot#get(Desc)}: artifact is already in the cache
+	 * under an equals() Desc, so only desc's own link needs setting. 
+	 * This is optimistic: it checks afterwards that a locked put/remove did not sneak in.
+	 * 
+	 * @return true if desc is now bound to artifact. false if the cache changed under us, or desc
+	 * is already bound (in which case use the locked {@link #bind(Object, Desc)}).
+	 */
+	<X> boolean bindCached(X artifact, Desc<X> desc) {
+		WeakReference old = desc.boundValue;
+		if (old!=null && old.get()!=null) return false;
+		WeakReference ref = new WeakReference(artifact);
+		if ( ! BOUND_VALUE.compareAndSet(desc, old, ref)) return false;
+		// validate
+		if (getArtifact(desc) == artifact) return true;
+		// undo (unless someone else has since bound it)
+		BOUND_VALUE.compareAndSet(desc, ref, old);
+		return false;
+	}
+
 	public void clear() {
 		desc2bound.clear();
 		sharedObject2Desc.clear();
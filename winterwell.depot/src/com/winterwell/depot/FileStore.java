@@ -12,7 +12,13 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -20,11 +26,15 @@ import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 import com.winterwell.datalog.DataLog;
+import com.winterwell.depot.merge.Diff;
+import com.winterwell.depot.merge.Merger;
 import com.winterwell.utils.IFn;
 import com.winterwell.utils.StrUtils;
 import com.winterwell.utils.Utils;
 import com.winterwell.utils.io.FileUtils;
 import com.winterwell.utils.log.Log;
+import com.winterwell.utils.threads.EqualsLocker;
+import com.winterwell.utils.threads.SafeExecutor;
 import com.winterwell.utils.time.Period;
 import com.winterwell.utils.time.Time;
 import com.winterwell.utils.web.XStreamUtils;
@@ -39,6 +49,11 @@ public class FileStore implements IStore {
 
 	private static final String LOGTAG = "depot.file";
 
+	/**
+	 * Holds the {@link KeyIndex} files, under the depot dir
+	 */
+	static final String KEY_INDEX_DIR = ".keyindex";
+
 	@Override
 	public MetaData getMetaData(Desc desc) {
 		MetaData md = getMetaData2(desc);
@@ -130,6 +145,153 @@ public class FileStore implements IStore {
 
 	@Override
 	public <X> void put(Desc<X> desc, X artifact) {
+		if ( ! useDeltas(desc)) {
+			put2(desc, artifact);
+			return;
+		}
+		File storeHere = getLocalPath(desc);
+		deltaLocker.lock(storeHere);
+		try {
+			// A fresh snapshot replaces any diffs. Drop them first: a crash before the snapshot 
+			// is in place loses those edits -- but replaying them onto the new snapshot would be worse.
+			new DeltaLog(storeHere).delete();
+			deltaCounts.remove(storeHere);
+			put2(desc, artifact);
+		} finally {
+			deltaLocker.unlock(storeHere);
+		}
+	}
+
+	/**
+	 * Append the diff to the artifact's {@link DeltaLog}, if {@link DepotConfig#deltas} is on.
+	 * Once the log passes {@link DepotConfig#deltaMaxCount} or {@link DepotConfig#deltaMaxRatio}, 
+	 * a fresh snapshot is made in the background.
+	 */
+	@Override
+	public <X> boolean putDiff(Desc<X> desc, X artifact, Diff diff) {
+		if ( ! useDeltas(desc)) return false;
+		File storeHere = getLocalPath(desc);
+		deltaLocker.lock(storeHere);
+		try {
+			// nothing to diff against?
+			if ( ! storeHere.exists()) return false;
+			if (diff==null) return true;
+			DeltaLog log = new DeltaLog(storeHere);
+			// before the append, so a count read from the log doesn't include this diff
+			AtomicInteger count = getDeltaCount(storeHere, log);
+			int bytes = log.append(diff);
+			// so the MetaData time (and maxAge) reflect the edit
+			storeHere.setLastModified(System.currentTimeMillis());
+			DataLog.count(bytes, "Depot", "delta_bytes");
+			int n = count.incrementAndGet();
+			if (n >= depotConfig.deltaMaxCount || log.length() > depotConfig.deltaMaxRatio * storeHere.length()) {
+				compactLater(desc);
+			}
+			return true;
+		} finally {
+			deltaLocker.unlock(storeHere);
+		}
+	}
+
+	/**
+	 * Only plain artifacts: not Files, sym-links, ranged data, or arrays (which the mergers turn into lists).
+	 */
+	boolean useDeltas(Desc desc) {
+		return depotConfig.deltas && desc.range==null && ! desc.symlink 
+				&& desc.getType()!=File.class && ! desc.getType().isArray();
+	}
+
+	private AtomicInteger getDeltaCount(File storeHere, DeltaLog log) {
+		AtomicInteger n = deltaCounts.get(storeHere);
+		if (n!=null) return n;
+		n = new AtomicInteger(log.count());
+		AtomicInteger old = deltaCounts.putIfAbsent(storeHere, n);
+		return old==null? n : old;
+	}
+
+	private void compactLater(Desc desc) {
+		File storeHere = getLocalPath(desc);
+		if ( ! compacting.add(storeHere)) {
+			return; // already queued
+		}
+		// copy, so the compaction doesn't touch the caller's metadata or binding
+		Desc copy = new Desc(desc);
+		getCompactor().submit(() -> {
+			// clear this first: a diff appended once compact() has read the log needs another compaction
+			compacting.remove(storeHere);
+			try {
+				compact(copy);
+			} catch(Throwable ex) {
+				Log.e(LOGTAG, "Compaction failed for "+copy+": "+ex);
+			}
+		});
+	}
+
+	/**
+	 * Fold the diffs into a fresh snapshot. This uses what's stored (not the in-memory artifact,
+	 * which may have unsaved edits).
+	 */
+	void compact(Desc desc) {
+		File storeHere = getLocalPath(desc);
+		deltaLocker.lock(storeHere);
+		try {
+			DeltaLog log = new DeltaLog(storeHere);
+			if ( ! log.exists()) return;
+			Object v = get(desc);
+			if (v==null) return;
+			Log.d(LOGTAG, "Compacting "+log+" ("+log.length()+" bytes) into "+storeHere);
+			put(desc, v);
+			DataLog.count(1, "Depot", "delta_compaction");
+		} finally {
+			deltaLocker.unlock(storeHere);
+		}
+	}
+
+	/**
+	 * Wait for the compactions queued so far. The compactor is single-threaded, so a no-op
+	 * submitted now runs after them. For tests.
+	 */
+	static void awaitCompactions() throws InterruptedException, ExecutionException {
+		getCompactor().submit(() -> {}).get();
+	}
+
+	private static ExecutorService getCompactor() {
+		if (compactor!=null) return compactor;
+		synchronized (FileStore.class) {
+			if (compactor==null) {
+				compactor = new SafeExecutor(Executors.newSingleThreadExecutor(r -> {
+					Thread t = new Thread(r, "depot-compact");
+					t.setDaemon(true);
+					return t;
+				}));
+			}
+			return compactor;
+		}
+	}
+
+	/**
+	 * With deltas: so a diff append, a compaction and a load don't interleave. Shared by all FileStores in this JVM.
+	 */
+	private static final EqualsLocker<File> deltaLocker = new EqualsLocker();
+
+	/**
+	 * artifact file to number of diffs -- so we needn't count the log on each append
+	 */
+	private static final Map<File, AtomicInteger> deltaCounts = new ConcurrentHashMap();
+
+	/**
+	 * artifact files with a compaction queued
+	 */
+	private static final Set<File> compacting = ConcurrentHashMap.newKeySet();
+
+	private static volatile ExecutorService compactor;
+
+	/**
+	 * For replaying diffs. Uses the standard mergers, as Depot does.
+	 */
+	private final Merger merger = new Merger();
+
+	private <X> void put2(Desc<X> desc, X artifact) {
 		// Probably a bug
 		assert ! (artifact instanceof InputStream)
 				&& ! (artifact instanceof OutputStream) : artifact;
@@ -164,17 +326,22 @@ public class FileStore implements IStore {
 			try {
 				File tmpFile = File.createTempFile("depot", ".xml");
 				strm = new FileOutputStream(tmpFile);
-				if (desc.gzip) strm = new GZIPOutputStream(strm); 
-				if (desc.ser==Desc.KSerialiser.JAVA) {
-					// use java serialisation (good for some forms of dense data)
-					ObjectOutputStream objStrm = new ObjectOutputStream(strm);
-					objStrm.writeObject(artifact);			
-					objStrm.close();	
+				if (desc.ser==Desc.KSerialiser.BINARY) {
+					// compact binary (which does its own, faster, compression)
+					BinarySerialiser.serialise(artifact, strm, desc.gzip);
 				} else {
-					// xstream by default
-					Writer w = FileUtils.getWriter(strm);
-					XStreamUtils.serialiseToXml(w, artifact);
-					w.close();
+					if (desc.gzip) strm = new GZIPOutputStream(strm); 
+					if (desc.ser==Desc.KSerialiser.JAVA) {
+						// use java serialisation (good for some forms of dense data)
+						ObjectOutputStream objStrm = new ObjectOutputStream(strm);
+						objStrm.writeObject(artifact);			
+						objStrm.close();	
+					} else {
+						// xstream by default
+						Writer w = FileUtils.getWriter(strm);
+						XStreamUtils.serialiseToXml(w, artifact);
+						w.close();
+					}
 				}
 				FileUtils.close(strm);
 				// move it into place
@@ -194,12 +361,16 @@ public class FileStore implements IStore {
 			md = new MetaData(desc);
 		} 
 		md.file = storeHere;
-		FileUtils.save(md, index);		
+		FileUtils.save(md, index);
+		KeyIndex ki = getKeyIndex(desc);
+		if (ki!=null) ki.put(md);
 	}
 	
 
 	@Override
 	public boolean contains(Desc config) {
+		// Not the KeyIndex: the artifact file is what counts (the index may be behind a delete,
+		// or not know of a file put there by other means, e.g. RemoteStore's fetch)
 		return getLocalPath(config).exists();
 	}
 	
@@ -238,7 +409,7 @@ public class FileStore implements IStore {
 				Pattern.compile("(\\d+)__(\\d+)"); // : null;
 		List<File> bits = new ArrayList();
 		for(String f : listing) {
-			if (f.endsWith(".meta")) continue;
+			if (f.endsWith(".meta") || f.endsWith(DeltaLog.SUFFIX) || f.endsWith(RemoteTransfer.PART)) continue;
 			if (s_e!=null) {
 				Matcher m = s_e.matcher(f);
 				boolean ok = m.find();
@@ -321,12 +492,32 @@ public class FileStore implements IStore {
 		}
 		
 		File f = getLocalPath(config);
+		if ( ! useDeltas(config)) {
+			return get2(f, config);
+		}
+		deltaLocker.lock(f);
+		try {
+			X2 x = get2(f, config);
+			if (x==null) return x;
+			// replay any diffs
+			DeltaLog log = new DeltaLog(f);
+			List<Diff> diffs = log.read();
+			for (Diff diff : diffs) {
+				x = (X2) merger.applyDiff(x, diff);
+			}
+			deltaCounts.putIfAbsent(f, new AtomicInteger(diffs.size()));
+			return x;
+		} finally {
+			deltaLocker.unlock(f);
+		}
+	}
+
+	private <X2> X2 get2(File f, Desc<X2> config) {
 		if ( ! f.exists()) {
 			Log.report(LOGTAG, "No artifact: " + config
 					+ " at " + f.getAbsolutePath(), Level.FINE);		
 			return null;
 		}
-				
 		// de-serialise
 		return get2_deserialise(f, config);
 	}
@@ -342,6 +533,9 @@ public class FileStore implements IStore {
 		InputStream in = null;
 		try {
 			in = new FileInputStream(f);
+			if (config.ser==Desc.KSerialiser.BINARY) {
+				return (X2) BinarySerialiser.deserialise(in);
+			}
 			if (config.gzip) in = new GZIPInputStream(in); 
 			if (config.ser==Desc.KSerialiser.JAVA) {
 				// use java serialisation (good for some forms of dense data)
@@ -387,6 +581,14 @@ public class FileStore implements IStore {
 		File mf = getMetaFile(f);
 		FileUtils.delete(mf);
 
+		DeltaLog log = new DeltaLog(f);
+		if (log.exists()) {
+			log.delete();
+			deltaCounts.remove(f);
+		}
+
+		KeyIndex ki = getKeyIndex(config);
+		if (ki!=null) ki.remove(config.getId());
 	}
 	
 	@Override
@@ -396,32 +598,91 @@ public class FileStore implements IStore {
 
 	@Override
 	public Set<Desc> loadKeys(Desc partialDesc) {
-		String tag = partialDesc.getTag();
-		Class type = partialDesc.getType();
-		// Have a reliable starting form, suitable for directory structuring.
-		File highDir = new File(dir, tag+'/'+type.getSimpleName());
-		
+		KeyIndex ki = getKeyIndex(partialDesc);
+		if (ki!=null) {
+			return ki.find(partialDesc);
+		}
+		// no index: walk the directory
 		// safety check
+		File highDir = new File(dir, partialDesc.getTag()+'/'+partialDesc.getType().getSimpleName());
 		File lp = getLocalPath(partialDesc);
 		String rp = FileUtils.getRelativePath(lp, highDir);
 		assert rp != null;
 		
+		Set<Desc> descs = new HashSet();
+		for (MetaData md : loadKeys2_walk(partialDesc.getTag(), partialDesc.getType())) {
+			Desc d = md.getDesc();
+			if (partialDesc.partialMatch(d)) {
+				descs.add(d);
+			}
+		}
+		return descs;
+	}
+
+	/**
+	 * Load every .meta file for this tag/type. Slow for a big depot!
+	 */
+	List<MetaData> loadKeys2_walk(String tag, Class type) {
+		// Have a reliable starting form, suitable for directory structuring.
+		File highDir = new File(dir, tag+'/'+type.getSimpleName());
+		if ( ! highDir.isDirectory()) {
+			return new ArrayList();
+		}
+		
 		// Sadly, we can't go from an artifact to it's Desc
 		// Find meta-data files
 		List<File> files = FileUtils.find(highDir, ".+\\.meta");
-		Set<Desc> descs = new HashSet();
+		List<MetaData> mds = new ArrayList(files.size());
 		for (File file : files) {
 			try {
 				MetaData md = FileUtils.load(file);
-				Desc d = md.getDesc();
-				if (partialDesc.partialMatch(d)) {
-					descs.add(d);
-				}
+				mds.add(md);
 			} catch(Exception ex) {
 				Log.w(LOGTAG, ex);
 			}
 		}
-		return descs;
+		return mds;
+	}
+
+	/**
+	 * The key indexes, shared by all FileStores in this JVM.
+	 */
+	private static final Map<File, KeyIndex> keyIndexes = new ConcurrentHashMap();
+
+	/**
+	 * @param desc Only the tag and type are used
+	 * @return the index for desc's tag/type, or null if switched off (see DepotConfig#keyIndex)
+	 */
+	KeyIndex getKeyIndex(Desc desc) {
+		if ( ! depotConfig.keyIndex) return null;
+		String tag = desc.getTag();
+		Class type = desc.getType();
+		File f = new File(dir, KEY_INDEX_DIR+"/"+FileUtils.filenameEncode(tag+"/"+type.getName())+".idx");
+		return keyIndexes.computeIfAbsent(f, k -> new KeyIndex(k, () -> loadKeys2_walk(tag, type)));
+	}
+
+	/**
+	 * Re-create the key index for this tag/type from the .meta files, e.g. after
+	 * files have been copied in by hand.
+	 * @param partialDesc Only the tag and type are used
+	 */
+	public void rebuildKeyIndex(Desc partialDesc) {
+		KeyIndex ki = getKeyIndex(partialDesc);
+		if (ki!=null) ki.rebuild();
+	}
+
+	/**
+	 * Add an artifact's .meta file -- which was written by other means (e.g. a fetch) -- to the index.
+	 */
+	void updateKeyIndex(Desc desc) {
+		KeyIndex ki = getKeyIndex(desc);
+		if (ki==null) return;
+		try {
+			MetaData md = FileUtils.load(getMetaFile(getLocalPath(desc)));
+			ki.put(md);
+		} catch(Exception ex) {
+			Log.w(LOGTAG, ex);
+		}
 	}
 
 	/**
@@ -429,13 +690,19 @@ public class FileStore implements IStore {
 	 * @return null if it doesn't exist
 	 */
 	MetaData getMetaData2(Desc desc) {
-		File storeHere = getLocalPath(desc);
-		File index = getMetaFile(storeHere);
-		if ( ! index.exists()) {
-			return null;
-		}
+		KeyIndex ki = getKeyIndex(desc);
 		try {
-			MetaData md = FileUtils.load(index);
+			MetaData md = ki==null? null : ki.get(desc.getId());
+			if (md==null) {
+				// Not indexed -- but it may have been put there by other means (e.g. RemoteStore's fetch)
+				File storeHere = getLocalPath(desc);
+				File index = getMetaFile(storeHere);
+				if ( ! index.exists()) {
+					return null;
+				}
+				md = FileUtils.load(index);
+				if (ki!=null) ki.put(md);
+			}
 			
 			// HACK: Poke maxAge if set! This allows the user making the request to specify a max-age
 			if (desc.maxAge!=null) md.getDesc().setMaxAge(desc.maxAge);
@@ -5,6 +5,7 @@ import java.io.Flushable;
 import java.util.List;
 import java.util.Set;
 
+import com.winterwell.depot.merge.Diff;
 import com.winterwell.utils.containers.Pair2;
 
 /**
@@ -75,6 +76,19 @@ public interface IStore extends Flushable {
 		// do nothing by default
 	}
 
+	/**
+	 * Save an edit as a diff against what is stored, rather than re-writing the whole artifact.
+	 * Optional: by default this does nothing and returns false.
+	 * @param desc
+	 * @param artifact The edited artifact, i.e. stored + diff
+	 * @param diff From the stored version to artifact. null for no change.
+	 * @return true if saved. false if the caller should put() artifact instead.
+	 * @see FileStore
+	 */
+	default <X> boolean putDiff(Desc<X> desc, X artifact, Diff diff) {
+		return false;
+	}
+
 	/**
 	 * Allows for efficient processing by e.g. ElasticSearch
 	 * @param add
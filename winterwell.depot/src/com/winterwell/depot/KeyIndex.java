@@ -0,0 +1,444 @@
+package com.winterwell.depot;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import com.winterwell.utils.Key;
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.io.FileUtils;
+import com.winterwell.utils.log.Log;
+import com.winterwell.utils.web.XStreamUtils;
+
+/**
+ * An append-only index of the keys (and their MetaData) for one tag/type in a {@link FileStore}.
+ * This saves {@link FileStore#loadKeys(Desc)} from walking the directory and loading every .meta file.
+ * <p>
+ * Each record holds the Desc id, name, server, version, property keys, artifact size and modified time
+ * -- enough to rule most Descs out of a {@link Desc#partialMatch(Desc)} -- plus the MetaData xml,
+ * which is only parsed for the candidates.
+ * <p>
+ * The file is memory-mapped for reading. Puts and removes are appended. The .meta files are
+ * still written, and remain the source of truth: {@link #rebuild()} recreates the index from them.
+ * <p>
+ * Several FileStores (or processes) can share an index file: each checks the file length
+ * before a query, and reads in any records appended by others. The file starts with a generation
+ * number, which changes when the file is replaced (by {@link #compact()} or {@link #rebuild()}) --
+ * and then the others re-read it from the start.
+ *
+ * @testedby {@link KeyIndexTest}
+ * @author daniel
+ */
+final class KeyIndex {
+
+	private static final String LOGTAG = "depot.keyindex";
+
+	private static final byte PUT = 1, REMOVE = 2;
+
+	/**
+	 * [int MAGIC][long generation]
+	 */
+	private static final int MAGIC = 0x4b495831, HEADER = 12;
+
+	/**
+	 * Rewrite the file (on load, or after an append) if it has at least this many dead records,
+	 * and they outnumber the live ones.
+	 */
+	static int COMPACT_MIN = 1000;
+
+	final File file;
+
+	/**
+	 * Walks the directory for the MetaData -- used to (re)build the index.
+	 */
+	private final Supplier<List<MetaData>> walker;
+
+	/**
+	 * id to live record
+	 */
+	private final Map<String, Entry> entries = new HashMap();
+
+	/**
+	 * How far into the file have we read?
+	 */
+	private long readTo = HEADER;
+
+	/**
+	 * Of the file we have read. 0 for none.
+	 */
+	private long generation;
+
+	private int deadRecords;
+
+	private static final class Entry {
+		final String name;
+		final String server;
+		final String version;
+		final Set<String> propKeys;
+		final long size;
+		final long modified;
+		/** mapped region + offset, or in-memory bytes, for the MetaData xml */
+		final ByteBuffer xmlRegion;
+		final int xmlOffset;
+		final int xmlLength;
+
+		Entry(String name, String server, String version, Set<String> propKeys, long size, long modified,
+				ByteBuffer xmlRegion, int xmlOffset, int xmlLength) {
+			this.name = name;
+			this.server = server;
+			this.version = version;
+			this.propKeys = propKeys;
+			this.size = size;
+			this.modified = modified;
+			this.xmlRegion = xmlRegion;
+			this.xmlOffset = xmlOffset;
+			this.xmlLength = xmlLength;
+		}
+
+		byte[] xml() {
+			byte[] xml = new byte[xmlLength];
+			ByteBuffer bb = xmlRegion.duplicate();
+			bb.position(xmlOffset);
+			bb.get(xml);
+			return xml;
+		}
+
+		MetaData getMetaData() {
+			return XStreamUtils.serialiseFromXml(new String(xml(), StandardCharsets.UTF_8));
+		}
+
+		/**
+		 * @return false if this definitely does not match. true if it might.
+		 */
+		boolean mightMatch(Desc partialDesc) {
+			if (partialDesc.getName()!=null && ! partialDesc.getName().equals(name)) return false;
+			if (partialDesc.server!=null && ! partialDesc.server.equals(server)) return false;
+			Number v = partialDesc.getVersion();
+			if (v!=null && ! v.toString().equals(version)) return false;
+			for(Key k : (Collection<Key>) partialDesc.getKeys()) {
+				// a non-null property must be present to match
+				if (partialDesc.get(k)!=null && ! propKeys.contains(k.getName())) return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Load the index, or build it if there isn't one.
+	 * @param file
+	 * @param walker Finds all the MetaData for this tag/type (for building the index).
+	 */
+	KeyIndex(File file, Supplier<List<MetaData>> walker) {
+		this.file = file;
+		this.walker = walker;
+		if ( ! file.exists()) {
+			rebuild();
+			return;
+		}
+		refresh();
+		if (readTo < file.length()) {
+			// A torn write at the end (e.g. a crash mid-append) -- cut it off, or later appends would be lost
+			Log.w(LOGTAG, "Truncating incomplete record at "+readTo+" in "+file);
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.setLength(readTo);
+			} catch (IOException ex) {
+				throw Utils.runtime(ex);
+			}
+		}
+		compactIfMostlyDead();
+	}
+
+	/**
+	 * Every re-save of an artifact leaves a dead record -- so a long-running server needs this
+	 * as it goes, not just on load.
+	 */
+	private void compactIfMostlyDead() {
+		if (deadRecords > COMPACT_MIN && deadRecords > entries.size()) {
+			compact();
+		}
+	}
+
+	/**
+	 * Rewrite the file with just the live records.
+	 */
+	private void compact() {
+		Log.d(LOGTAG, "Compacting "+file+": "+entries.size()+" live, "+deadRecords+" dead records");
+		File tmp = new File(file.getPath()+".tmp");
+		try (FileOutputStream out = new FileOutputStream(tmp)) {
+			out.write(header());
+			for (Map.Entry<String, Entry> me : entries.entrySet()) {
+				Entry e = me.getValue();
+				out.write(record(PUT, me.getKey(), e.size, e.modified, e.name, e.server, e.version, e.propKeys, e.xml()));
+			}
+		} catch (IOException ex) {
+			throw Utils.runtime(ex);
+		}
+		FileUtils.move(tmp, file);
+		// a new generation, so this re-reads from the start
+		refresh();
+	}
+
+	/**
+	 * Throw the index away, and make it afresh from the .meta files.
+	 */
+	synchronized void rebuild() {
+		List<MetaData> mds = walker.get();
+		Log.d(LOGTAG, "Building "+file+" from "+mds.size()+" .meta files");
+		file.getParentFile().mkdirs();
+		File tmp = new File(file.getPath()+".tmp");
+		try (FileOutputStream out = new FileOutputStream(tmp)) {
+			out.write(header());
+			for (MetaData md : mds) {
+				out.write(record(md));
+			}
+		} catch (IOException ex) {
+			throw Utils.runtime(ex);
+		}
+		FileUtils.move(tmp, file);
+		refresh();
+	}
+
+	synchronized void put(MetaData md) {
+		append(record(md));
+	}
+
+	synchronized void remove(String id) {
+		if ( ! contains(id)) return;
+		append(record(REMOVE, id, 0, 0, null, null, null, null, null));
+	}
+
+	synchronized boolean contains(String id) {
+		refresh();
+		return entries.containsKey(id);
+	}
+
+	/**
+	 * @return a fresh MetaData, or null if the id is not indexed
+	 */
+	synchronized MetaData get(String id) {
+		refresh();
+		Entry e = entries.get(id);
+		return e==null? null : e.getMetaData();
+	}
+
+	/**
+	 * @return fresh Descs which partialMatch() partialDesc
+	 */
+	synchronized Set<Desc> find(Desc partialDesc) {
+		refresh();
+		Set<Desc> descs = new HashSet();
+		for (Entry e : entries.values()) {
+			if ( ! e.mightMatch(partialDesc)) continue;
+			try {
+				Desc d = e.getMetaData().getDesc();
+				if (partialDesc.partialMatch(d)) {
+					descs.add(d);
+				}
+			} catch(Exception ex) {
+				Log.w(LOGTAG, ex);
+			}
+		}
+		return descs;
+	}
+
+	synchronized int size() {
+		refresh();
+		return entries.size();
+	}
+
+	private void append(byte[] record) {
+		// read in anything another index (or process) has appended first
+		refresh();
+		try (FileOutputStream out = new FileOutputStream(file, true)) {
+			out.write(record);
+		} catch (IOException ex) {
+			throw Utils.runtime(ex);
+		}
+		if (file.length() != readTo + record.length) {
+			// someone else appended (or replaced the file) at the same time -- so re-read the lot
+			Log.d(LOGTAG, "Concurrent append to "+file);
+			generation = 0;
+			refresh();
+		} else {
+			// Parse our own record from the heap. Mapping it would cost a mapping per put.
+			parse(ByteBuffer.wrap(record));
+			readTo += record.length;
+		}
+		compactIfMostlyDead();
+	}
+
+	/**
+	 * Map and read any new records at the end of the file -- or all of it, if it has been replaced
+	 * since we last looked.
+	 * An incomplete last record is left for next time (another process may be mid-write).
+	 */
+	private void refresh() {
+		long gen;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			FileChannel channel = raf.getChannel();
+			// size and header via the one handle, so they're from the same file
+			long len = channel.size();
+			gen = readGeneration(channel);
+			if (gen != 0) {
+				if (gen != generation) {
+					if (generation != 0) Log.d(LOGTAG, "Re-reading replaced "+file);
+					entries.clear();
+					deadRecords = 0;
+					readTo = HEADER;
+					generation = gen;
+				}
+				if (len <= readTo) return;
+				// map from readTo (not the whole file), so existing entries keep their regions
+				MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, readTo, len - readTo);
+				readTo += parse(region);
+				return;
+			}
+		} catch (FileNotFoundException ex) {
+			// deleted? fall through to rebuild
+		} catch (IOException ex) {
+			throw Utils.runtime(ex);
+		}
+		Log.w(LOGTAG, "No valid header in "+file+" - rebuilding");
+		rebuild();
+	}
+
+	/**
+	 * @return the file's generation, or 0 if it has no valid header
+	 */
+	private static long readGeneration(FileChannel channel) throws IOException {
+		ByteBuffer bb = ByteBuffer.allocate(HEADER);
+		while (bb.hasRemaining()) {
+			if (channel.read(bb, bb.position()) < 0) return 0;
+		}
+		return bb.getInt(0)==MAGIC? bb.getLong(4) : 0;
+	}
+
+	private static byte[] header() {
+		long gen = 0;
+		while (gen == 0) {
+			gen = Utils.getRandom().nextLong();
+		}
+		return ByteBuffer.allocate(HEADER).putInt(MAGIC).putLong(gen).array();
+	}
+
+	/**
+	 * @return the position after the last complete record
+	 */
+	private int parse(ByteBuffer region) {
+		int pos = 0;
+		while (pos + 4 <= region.limit()) {
+			int len = region.getInt(pos);
+			if (len <= 0 || pos + 4 + len > region.limit()) break;
+			region.position(pos + 4);
+			byte op = region.get();
+			String id = readString(region);
+			if (op==REMOVE) {
+				if (entries.remove(id) != null) deadRecords++;
+				deadRecords++;
+			} else {
+				long size = region.getLong();
+				long modified = region.getLong();
+				String name = readString(region);
+				String server = readString(region);
+				String version = readString(region);
+				int nk = region.getShort();
+				Set<String> keys = new HashSet(nk);
+				for (int i = 0; i < nk; i++) {
+					keys.add(readString(region));
+				}
+				int xmlLength = region.getInt();
+				Entry e = new Entry(name, server, version, keys, size, modified, region, region.position(), xmlLength);
+				if (entries.put(id, e) != null) deadRecords++;
+			}
+			pos += 4 + len;
+		}
+		return pos;
+	}
+
+	private static String readString(ByteBuffer bb) {
+		int n = bb.getInt();
+		if (n < 0) return null;
+		byte[] bytes = new byte[n];
+		bb.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static byte[] record(MetaData md) {
+		Desc desc = md.getDesc();
+		File f = md.getFile();
+		Set<String> keys = new HashSet();
+		for (Key k : (Collection<Key>) desc.getKeys()) {
+			keys.add(k.getName());
+		}
+		byte[] xml = XStreamUtils.serialiseToXml(md).getBytes(StandardCharsets.UTF_8);
+		return record(PUT, desc.getId(), f==null? -1 : f.length(), f==null? 0 : f.lastModified(),
+				desc.getName(), desc.server, desc.getVersion()==null? null : desc.getVersion().toString(),
+				keys, xml);
+	}
+
+	/**
+	 * [int length][byte op][id] then for PUT: [long size][long modified][name][server][version]
+	 * [short n][n property keys][int length][MetaData xml]. Strings are [int length][utf8], with -1 for null.
+	 */
+	private static byte[] record(byte op, String id, long size, long modified,
+			String name, String server, String version, Set<String> keys, byte[] xml)
+	{
+		try {
+			ByteArrayOutputStream bout = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bout);
+			out.writeInt(0); // length, filled in below
+			out.writeByte(op);
+			writeString(out, id);
+			if (op==PUT) {
+				out.writeLong(size);
+				out.writeLong(modified);
+				writeString(out, name);
+				writeString(out, server);
+				writeString(out, version);
+				out.writeShort(keys.size());
+				for (String k : keys) {
+					writeString(out, k);
+				}
+				out.writeInt(xml.length);
+				out.write(xml);
+			}
+			out.flush();
+			byte[] bytes = bout.toByteArray();
+			ByteBuffer.wrap(bytes).putInt(0, bytes.length - 4);
+			return bytes;
+		} catch (IOException ex) {
+			// can't happen with a byte array
+			throw Utils.runtime(ex);
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s==null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	@Override
+	public String toString() {
+		return "KeyIndex["+file+" "+entries.size()+"]";
+	}
+}
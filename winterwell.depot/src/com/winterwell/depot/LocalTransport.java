@@ -0,0 +1,86 @@
+package com.winterwell.depot;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.io.FileUtils;
+
+/**
+ * "Remote" paths are on this machine, and the host is ignored. For a peer's depot which is mounted here
+ * (so a new node can warm from it at disk speed) -- see {@link DepotConfig#remoteMount}. Also the loopback
+ * stand-in for testing.
+ *
+ * @testedby {@link RemoteTransferTest}
+ * @author daniel
+ */
+final class LocalTransport implements RemoteTransport {
+
+	@Override
+	public Stat stat(String userAtHost, File remotePath) {
+		if ( ! remotePath.isFile()) return null;
+		return new Stat(remotePath.length(), RemoteTransfer.md5(remotePath));
+	}
+
+	@Override
+	public byte[] read(String userAtHost, File remotePath, long offset, int len) {
+		try (RandomAccessFile raf = new RandomAccessFile(remotePath, "r")) {
+			long n = Math.max(0, Math.min(len, raf.length() - offset));
+			byte[] bytes = new byte[(int) n];
+			raf.seek(offset);
+			raf.readFully(bytes);
+			return bytes;
+		} catch (IOException ex) {
+			throw Utils.runtime(ex);
+		}
+	}
+
+	@Override
+	public void write(String userAtHost, File remotePath, long offset, byte[] bytes) {
+		if (offset==0) {
+			remotePath.getParentFile().mkdirs();
+		} else if (remotePath.length() != offset) {
+			throw new IllegalStateException("Bad offset "+offset+" for "+remotePath+" of length "+remotePath.length());
+		}
+		try (FileOutputStream out = new FileOutputStream(remotePath, offset!=0)) {
+			out.write(bytes);
+		} catch (IOException ex) {
+			throw Utils.runtime(ex);
+		}
+	}
+
+	@Override
+	public void rename(String userAtHost, File from, File to) {
+		try {
+			Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException ex) {
+			throw Utils.runtime(ex);
+		}
+	}
+
+	@Override
+	public void delete(String userAtHost, File remotePath) {
+		FileUtils.delete(remotePath);
+	}
+
+	@Override
+	public List<String> list(String userAtHost, File remoteDir) {
+		List<String> paths = new ArrayList();
+		if ( ! remoteDir.isDirectory()) return paths;
+		for (File f : FileUtils.find(remoteDir, File::isFile)) {
+			paths.add(FileUtils.getRelativePath(f, remoteDir));
+		}
+		return paths;
+	}
+
+	@Override
+	public String toString() {
+		return "LocalTransport";
+	}
+}
@@ -2,17 +2,19 @@ package com.winterwell.depot;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 
-import com.winterwell.bob.tasks.RemoteTask;
-import com.winterwell.bob.tasks.SCPTask;
+import com.winterwell.depot.merge.Diff;
 import com.winterwell.utils.IFn;
+import com.winterwell.utils.containers.Pair2;
 import com.winterwell.utils.io.FileUtils;
 import com.winterwell.utils.log.Log;
-import com.winterwell.utils.time.Dt;
-import com.winterwell.utils.time.TUnit;
 
 /**
  * This has a local FileStore, combined with an SCP feature.
@@ -29,6 +31,11 @@ import com.winterwell.utils.time.TUnit;
  * remove
  * 1. remove local ONLY??
  * 
+ * Transfers are done by {@link RemoteTransfer}: chunked, resumable, checksummed, and skipped if the
+ * file is already up to date. Over ssh -- or from a mounted peer, see {@link DepotConfig#remoteMount}.
+ * Use {@link #prefetch(Desc)} to warm a fresh node.
+ * 
+ * @testedby {@link RemoteTransferTest}
  * @author daniel
  *
  */
@@ -43,11 +50,11 @@ public class RemoteStore implements IStore {
 		return localStore.getRaw(desc);
 	}
 	
-	private static final Dt MAX_SCP_TIME = new Dt(45, TUnit.MINUTE);
-
 	private static final String LOGTAG = "remotestore";
 
 	final FileStore localStore;
+
+	final RemoteTransfer transfer;
 	
 	File remoteDir = new File("/home/winterwell/datastore/");
 
@@ -77,6 +84,12 @@ public class RemoteStore implements IStore {
 		localStore = new FileStore(config);
 		this.remoteUser = config.remoteUser;
 		this.defaultRemoteHost = config.defaultRemoteHost;
+		if (config.remoteMount != null) {
+			remoteDir = config.remoteMount;
+			transfer = new RemoteTransfer(new LocalTransport(), config.remoteThreads);
+		} else {
+			transfer = new RemoteTransfer(new SshTransport(), config.remoteThreads);
+		}
 	}
 
 	public <X> void put(com.winterwell.depot.Desc<X> desc, X artifact) {
@@ -85,9 +98,7 @@ public class RemoteStore implements IStore {
 		File localPath = localStore.getFilingFn().apply(desc);
 		
 		// Local only?
-		if (localOnly(desc) || desc.getServer().equals(Desc.ANY_SERVER)
-			|| Desc.LOCAL_SERVER.equals(desc.serverHint))
-		{
+		if (putLocalOnly(desc)) {
 			return;
 		}
 		// TODO Are we the target server?
@@ -95,14 +106,50 @@ public class RemoteStore implements IStore {
 		File remotePath = getRemotePath(desc);						
 		String userAtHost = getRemoteUserAtHost(desc);
 
-		// Create remote dirs -- this is done by SCPTask!
-		// ??We could remember which dirs exist to avoid extra calls
-		
-		// upload!		
-		SCPTask scp = new SCPTask(localPath, userAtHost, remotePath.getPath());
-		scp.setAtomic(true);
-		scp.run();		
-		scp.close();
+		// upload! (this makes any remote dirs)
+		transfer.upload(userAtHost, localPath, remotePath);
+	}
+
+	/**
+	 * Saves locally, then uploads in parallel.
+	 */
+	@Override
+	public void storeBatch(List<Pair2<Desc, Object>> add, List<Desc> remove) {
+		for (Desc desc : remove) {
+			remove(desc);
+		}
+		List<Callable<Boolean>> uploads = new ArrayList();
+		for (Pair2<Desc, Object> desc_obj : add) {
+			Desc desc = desc_obj.first;
+			localStore.put(desc, desc_obj.second);
+			if (putLocalOnly(desc)) continue;
+			File localPath = localStore.getFilingFn().apply(desc);
+			File remotePath = getRemotePath(desc);
+			String userAtHost = getRemoteUserAtHost(desc);
+			uploads.add(() -> transfer.upload(userAtHost, localPath, remotePath));
+		}
+		if (uploads.isEmpty()) return;
+		List<Boolean> done = transfer.runAll(uploads);
+		if (done.contains(null)) {
+			throw new IllegalStateException("Upload failed for "+Collections.frequency(done, null)+" of "+done.size()+" artifacts - see log");
+		}
+	}
+	
+	/**
+	 * Diffs are only kept for local-only artifacts: remote copies need the whole artifact, 
+	 * and a fetch could replace the local snapshot under its diffs.
+	 */
+	@Override
+	public <X> boolean putDiff(Desc<X> desc, X artifact, Diff diff) {
+		if ( ! localOnly(desc)) {
+			return false;
+		}
+		return localStore.putDiff(desc, artifact, diff);
+	}
+
+	private boolean putLocalOnly(Desc desc) {
+		return localOnly(desc) || desc.getServer().equals(Desc.ANY_SERVER)
+				|| Desc.LOCAL_SERVER.equals(desc.serverHint);
 	}
 	
 	/**
@@ -156,14 +203,13 @@ public class RemoteStore implements IStore {
 		File remotePath = getRemotePath(desc);
 		File remotedDir = remotePath.getParentFile();
 		// ...remote ls!
-		RemoteTask ls = new RemoteTask(getRemoteUserAtHost(desc),
-									"ls "+remotedDir.getPath());
-		// timeout if it's not working (fast enough)
-		ls.setMaxTime(TUnit.MINUTE.dt);
-		ls.run();
-		String listing = ls.getOutput();
-//		System.out.println(listing);
-		String[] pieces = listing.split("\\s+");
+		String userAtHost = getRemoteUserAtHost(desc);
+		List<String> listing = new ArrayList();
+		for (String path : transfer.transport.list(userAtHost, remotedDir)) {
+			// just this dir
+			if (path.indexOf('/') == -1) listing.add(path);
+		}
+		String[] pieces = listing.toArray(new String[0]);
 		// which bits do we want?
 		List<File> remoteFiles = localStore.getRangedData3_bitsFilter(remotedDir, pieces, desc.range);
 		
@@ -171,12 +217,16 @@ public class RemoteStore implements IStore {
 		File localDir = localStore.getFilingFn().apply(desc).getParentFile();
 		localDir.mkdirs();
 		List<File> localFiles = new ArrayList();
+		List<Callable<Boolean>> fetches = new ArrayList();
 		for (File rmf : remoteFiles) {
-			// TODO skip files we already have (but what about ones which have been edited?)
+			// NB: files we already have are skipped, unless they've been edited
 			File localPath = new File(localDir, rmf.getName());
-			fetchFile(rmf, localPath, desc);
+			fetches.add(() -> transfer.fetch(userAtHost, rmf, localPath));
 			localFiles.add(localPath);
 		}
+		if (transfer.runAll(fetches).contains(null)) {
+			throw new IllegalStateException("Could not fetch all of "+desc+" - see log");
+		}
 		
 		// Deserialise		
 		List<X> bits = new ArrayList();
@@ -225,6 +275,7 @@ public class RemoteStore implements IStore {
 			File localMetaPath = localStore.getMetaFile(localPath);
 			
 			fetchFile(remoteMetaPath, localMetaPath, desc);
+			localStore.updateKeyIndex(desc);
 			// update meta-data
 //			MetaData md = getMetaData(desc);
 //			md.loadTime = new Time();			
@@ -263,6 +314,7 @@ public class RemoteStore implements IStore {
 			// fetch & load
 			fetchFile(remoteMetaPath, localMetaPath, desc);			
 			MetaData meta = FileUtils.load(localMetaPath);
+			localStore.updateKeyIndex(desc);
 			return meta;
 		} catch(Throwable ex) {
 			MetaData md = new MetaData(desc);
@@ -274,36 +326,80 @@ public class RemoteStore implements IStore {
 	}
 	
 	
+	/**
+	 * Does nothing if localPath is already up to date.
+	 */
 	void fetchFile(File remotePath, File localPath, Desc desc) throws RuntimeException {
 		if (desc.range!=null) {
 //			Hopefully, this is fetching one of the remote bits, & all OK 
 		}
 		assert remotePath.isAbsolute() : remotePath;
-				
-		localPath.getParentFile().mkdirs();
 		assert ! localPath.isDirectory() : localPath;		
 		
 		// download!
-		SCPTask scp = new SCPTask(getRemoteUserAtHost(desc),
-									remotePath.getPath(), 
-									localPath);
-		scp.setAtomic(true);
-		scp.setVerbosity(Level.OFF);
-		// timeout if it's not working (fast enough)
-		// WARNING: this does limit the maximum file size we can handle!!
-		scp.setMaxTime(MAX_SCP_TIME);
-		scp.run();
-		scp.close();			
+		transfer.fetch(getRemoteUserAtHost(desc), remotePath, localPath);
 			
 		assert localPath.exists() : localPath+" "+remotePath;
 	}
 
 	@Override
 	public Set<Desc> loadKeys(Desc partialDesc) throws UnsupportedOperationException {
-		Log.w(LOGTAG, "Only loading local keys for "+partialDesc);
+		Log.w(LOGTAG, "Only loading local keys for "+partialDesc+" - see prefetch()");
 		return localStore.loadKeys(partialDesc);
 	}
 
+	/**
+	 * Copy everything the remote server has which matches partialDesc, in parallel.
+	 * E.g. to warm up a new node. Artifacts which are already up to date are skipped,
+	 * so this is also a cheap way to re-sync.
+	 * 
+	 * @param partialDesc Must have a tag and type, and the server to copy from
+	 * @return the artifacts which are now local (after this, loadKeys() will find them).
+	 * Failures are logged and left out.
+	 */
+	public Set<Desc> prefetch(Desc partialDesc) {
+		String userAtHost = getRemoteUserAtHost(partialDesc);
+		// the same starting dir as FileStore.loadKeys2_walk()
+		String highPath = partialDesc.getTag()+'/'+partialDesc.getType().getSimpleName();
+		File remoteHighDir = new File(remoteDir, highPath);
+		File localHighDir = new File(localStore.dir, highPath);
+		Set<String> remoteFiles = new HashSet(transfer.transport.list(userAtHost, remoteHighDir));
+		// one job per artifact: meta-data, then (if it matches) the file
+		List<Callable<Desc>> jobs = new ArrayList();
+		for (String path : remoteFiles) {
+			if ( ! path.endsWith(".meta")) continue;
+			String artifactPath = path.substring(0, path.length() - ".meta".length());
+			jobs.add(() -> {
+				File localMetaPath = new File(localHighDir, path);
+				transfer.fetch(userAtHost, new File(remoteHighDir, path), localMetaPath);
+				MetaData md = FileUtils.load(localMetaPath);
+				Desc desc = md.getDesc();
+				File localPath = new File(localHighDir, artifactPath);
+				if ( ! partialDesc.partialMatch(desc)) {
+					// don't leave stray meta-data about
+					if ( ! localPath.exists()) FileUtils.delete(localMetaPath);
+					return null;
+				}
+				if (remoteFiles.contains(artifactPath)) {
+					transfer.fetch(userAtHost, new File(remoteHighDir, artifactPath), localPath);
+				}
+				localStore.updateKeyIndex(desc);
+				return desc;
+			});
+		}
+		Set<Desc> descs = new HashSet(transfer.runAll(jobs));
+		descs.remove(null);
+		Log.d(LOGTAG, "Prefetched "+descs.size()+" of "+jobs.size()+" "+partialDesc+" from "+userAtHost+" "+transfer.getStats());
+		return descs;
+	}
+
+	/**
+	 * @return counts of files fetched, uploaded, skipped (up to date), resumed, and bytes moved
+	 */
+	public Map<String, Long> getStats() {
+		return transfer.getStats();
+	}
+
 	@Override
 	public String toString() {
 		return "RemoteStore->"+localStore;
@@ -320,11 +416,7 @@ public class RemoteStore implements IStore {
 		File remotePath = getRemotePath(config);						
 		String userAtHost = getRemoteUserAtHost(config);
 		try {
-			RemoteTask delTask = new RemoteTask(userAtHost,
-					"rm "+remotePath);
-			// timeout if it's not working (fast enough)
-			delTask.setMaxTime(TUnit.MINUTE.dt);
-			delTask.run();
+			transfer.transport.delete(userAtHost, remotePath);
 			return;
 		} catch(Throwable ex) {
 			Log.report(LOGTAG, "Couldn't delete "+remotePath+": "+ex, Level.INFO);
@@ -0,0 +1,285 @@
+package com.winterwell.depot;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.winterwell.datalog.DataLog;
+import com.winterwell.depot.RemoteTransport.Stat;
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.io.FileUtils;
+import com.winterwell.utils.log.Log;
+import com.winterwell.utils.threads.SafeExecutor;
+
+/**
+ * Copies files to and from other servers for {@link RemoteStore}:
+ * <ul>
+ * <li>Conditional: a file whose size & md5 already match the other side's is not sent.
+ * <li>Chunked & resumable: bytes go into file.[md5].part, chunk by chunk, so an interrupted
+ * transfer carries on from where it got to. The part is named for the version it's a copy of,
+ * so a changed source starts afresh.
+ * <li>Checked: the finished part must match the source's md5 before it (atomically) replaces the file.
+ * <li>Parallel: {@link #runAll(List)} runs jobs on a pool, over the one pooled {@link RemoteTransport}.
+ * </ul>
+ *
+ * @testedby {@link RemoteTransferTest}
+ * @author daniel
+ */
+final class RemoteTransfer {
+
+	private static final String LOGTAG = "remotestore";
+
+	static final String PART = ".part";
+
+	final RemoteTransport transport;
+
+	/**
+	 * Bytes per call to the transport
+	 */
+	int chunkSize = 4 * 1024 * 1024;
+
+	private final int threads;
+
+	private volatile ExecutorService pool;
+
+	final LongAdder fetched = new LongAdder();
+	final LongAdder uploaded = new LongAdder();
+	/**
+	 * Already up to date
+	 */
+	final LongAdder skipped = new LongAdder();
+	final LongAdder resumed = new LongAdder();
+	final LongAdder bytes = new LongAdder();
+
+	RemoteTransfer(RemoteTransport transport, int threads) {
+		this.transport = transport;
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * @return true if fetched, false if localPath was already up to date
+	 * @throws RuntimeException wrapping a FileNotFoundException if the remote file does not exist
+	 */
+	boolean fetch(String userAtHost, File remotePath, File localPath) {
+		Stat rs = transport.stat(userAtHost, remotePath);
+		if (rs==null) {
+			throw Utils.runtime(new FileNotFoundException(userAtHost+":"+remotePath));
+		}
+		if (localPath.isFile() && localPath.length()==rs.size && md5(localPath).equals(rs.md5)) {
+			// mark it as freshly checked, for MetaData.isValid()
+			localPath.setLastModified(System.currentTimeMillis());
+			skipped.increment();
+			DataLog.count(1, "Depot", "remote_skip");
+			return false;
+		}
+		localPath.getParentFile().mkdirs();
+		File part = new File(localPath.getPath()+"."+rs.md5+PART);
+		if ( ! fetch2_chunks(userAtHost, remotePath, part, rs)) {
+			// a bad resume? try once from scratch
+			Log.w(LOGTAG, "Checksum mismatch for "+remotePath+" - retrying");
+			FileUtils.delete(part);
+			if ( ! fetch2_chunks(userAtHost, remotePath, part, rs)) {
+				FileUtils.delete(part);
+				throw new IllegalStateException("Checksum mismatch: "+userAtHost+":"+remotePath+" "+rs);
+			}
+		}
+		try {
+			Files.move(part.toPath(), localPath.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException ex) {
+			throw Utils.runtime(ex);
+		}
+		fetched.increment();
+		return true;
+	}
+
+	/**
+	 * @return true if part now matches rs
+	 */
+	private boolean fetch2_chunks(String userAtHost, File remotePath, File part, Stat rs) {
+		long offset = part.length();
+		if (offset > rs.size) {
+			FileUtils.delete(part);
+			offset = 0;
+		}
+		if (offset > 0) {
+			resumed.increment();
+			Log.d(LOGTAG, "Resuming "+remotePath+" from "+offset+" of "+rs.size);
+		}
+		try (FileOutputStream out = new FileOutputStream(part, true)) {
+			while (offset < rs.size) {
+				byte[] chunk = transport.read(userAtHost, remotePath, offset, (int) Math.min(chunkSize, rs.size - offset));
+				if (chunk.length==0) {
+					// it shrank under us
+					break;
+				}
+				out.write(chunk);
+				offset += chunk.length;
+				bytes.add(chunk.length);
+				DataLog.count(chunk.length, "Depot", "remote_bytes");
+			}
+		} catch (IOException ex) {
+			throw Utils.runtime(ex);
+		}
+		return md5(part).equals(rs.md5);
+	}
+
+	/**
+	 * @return true if uploaded, false if the remote copy was already up to date
+	 */
+	boolean upload(String userAtHost, File localPath, File remotePath) {
+		String md5 = md5(localPath);
+		long size = localPath.length();
+		Stat rs = transport.stat(userAtHost, remotePath);
+		if (rs!=null && rs.size==size && rs.md5.equals(md5)) {
+			skipped.increment();
+			DataLog.count(1, "Depot", "remote_skip");
+			return false;
+		}
+		File part = new File(remotePath.getPath()+"."+md5+PART);
+		boolean ok;
+		try {
+			ok = upload2_chunks(userAtHost, localPath, part, size, md5, true);
+		} catch(RuntimeException ex) {
+			// e.g. the part changed under a resume, so an append was refused
+			Log.w(LOGTAG, "Resumed upload of "+remotePath+" failed: "+ex);
+			ok = false;
+		}
+		if ( ! ok) {
+			Log.w(LOGTAG, "Retrying upload of "+remotePath+" from scratch");
+			if ( ! upload2_chunks(userAtHost, localPath, part, size, md5, false)) {
+				transport.delete(userAtHost, part);
+				throw new IllegalStateException("Checksum mismatch: "+userAtHost+":"+part+" v "+localPath);
+			}
+		}
+		transport.rename(userAtHost, part, remotePath);
+		uploaded.increment();
+		return true;
+	}
+
+	/**
+	 * @param resume If false, start from scratch
+	 * @return true if the remote part now matches md5
+	 */
+	private boolean upload2_chunks(String userAtHost, File localPath, File part, long size, String md5, boolean resume) {
+		long offset = 0;
+		if (resume) {
+			Stat ps = transport.stat(userAtHost, part);
+			if (ps!=null && ps.size <= size) {
+				offset = ps.size;
+			}
+			if (offset > 0) {
+				resumed.increment();
+				Log.d(LOGTAG, "Resuming upload of "+localPath+" from "+offset+" of "+size);
+			}
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(localPath, "r")) {
+			raf.seek(offset);
+			// do at least one write, so an empty file gets made
+			do {
+				byte[] chunk = new byte[(int) Math.min(chunkSize, size - offset)];
+				raf.readFully(chunk);
+				transport.write(userAtHost, part, offset, chunk);
+				offset += chunk.length;
+				bytes.add(chunk.length);
+				DataLog.count(chunk.length, "Depot", "remote_bytes");
+			} while (offset < size);
+		} catch (IOException ex) {
+			throw Utils.runtime(ex);
+		}
+		Stat ps = transport.stat(userAtHost, part);
+		return ps!=null && md5.equals(ps.md5);
+	}
+
+	/**
+	 * Run jobs in parallel, and wait for them all.
+	 * Do not call this from inside a job (it could deadlock the pool).
+	 * @return results, in order. null for a job which failed (the exception will have been logged).
+	 */
+	<X> List<X> runAll(List<Callable<X>> jobs) {
+		ExecutorService exec = getPool();
+		List<Future<X>> futures = new ArrayList(jobs.size());
+		for (Callable<X> job : jobs) {
+			futures.add(exec.submit(job));
+		}
+		List<X> results = new ArrayList(jobs.size());
+		for (Future<X> f : futures) {
+			try {
+				results.add(f.get());
+			} catch (ExecutionException ex) {
+				// already reported by SafeExecutor
+				results.add(null);
+			} catch (InterruptedException ex) {
+				throw Utils.runtime(ex);
+			}
+		}
+		return results;
+	}
+
+	private ExecutorService getPool() {
+		if (pool!=null) return pool;
+		synchronized (this) {
+			if (pool==null) {
+				pool = new SafeExecutor(Executors.newFixedThreadPool(threads, r -> {
+					Thread t = new Thread(r, "depot-transfer");
+					t.setDaemon(true);
+					return t;
+				}));
+			}
+			return pool;
+		}
+	}
+
+	Map<String, Long> getStats() {
+		Map<String, Long> stats = new HashMap();
+		stats.put("fetched", fetched.sum());
+		stats.put("uploaded", uploaded.sum());
+		stats.put("skipped", skipped.sum());
+		stats.put("resumed", resumed.sum());
+		stats.put("bytes", bytes.sum());
+		return stats;
+	}
+
+	/**
+	 * Note: {@link FileUtils#getMD5Hash(File)} counts each byte twice, so doesn't match md5sum.
+	 * @return hex md5, as md5sum would give
+	 */
+	static String md5(File file) {
+		try (InputStream in = new FileInputStream(file)) {
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			byte[] buf = new byte[64 * 1024];
+			int n;
+			while ((n = in.read(buf)) != -1) {
+				md.update(buf, 0, n);
+			}
+			StringBuilder sb = new StringBuilder(32);
+			for (byte b : md.digest()) {
+				sb.append(Integer.toHexString((b & 0xFF) | 0x100).substring(1));
+			}
+			return sb.toString();
+		} catch (Exception ex) {
+			throw Utils.runtime(ex);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "RemoteTransfer["+transport+"]";
+	}
+}
@@ -0,0 +1,62 @@
+package com.winterwell.depot;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * The low-level file operations {@link RemoteTransfer} needs from another server.
+ * Paths are on the remote machine. Implementations must be thread-safe: calls are made in parallel.
+ *
+ * @see SshTransport
+ * @see LocalTransport
+ * @author daniel
+ */
+interface RemoteTransport {
+
+	/**
+	 * What the remote server has -- enough to tell if a copy is up to date.
+	 */
+	static final class Stat {
+		final long size;
+		/** hex md5 of the whole file */
+		final String md5;
+
+		Stat(long size, String md5) {
+			this.size = size;
+			this.md5 = md5;
+		}
+
+		@Override
+		public String toString() {
+			return "Stat[size="+size+", md5="+md5+"]";
+		}
+	}
+
+	/**
+	 * @return null if there is no such file
+	 */
+	Stat stat(String userAtHost, File remotePath);
+
+	/**
+	 * @return up to len bytes from offset. Shorter (possibly empty) at the end of the file.
+	 */
+	byte[] read(String userAtHost, File remotePath, long offset, int len);
+
+	/**
+	 * Write bytes at offset, which must be the current length of the file. 0 creates (or truncates) the
+	 * file, and any missing directories.
+	 */
+	void write(String userAtHost, File remotePath, long offset, byte[] bytes);
+
+	/**
+	 * Replace to with from.
+	 */
+	void rename(String userAtHost, File from, File to);
+
+	void delete(String userAtHost, File remotePath);
+
+	/**
+	 * @return paths relative to remoteDir, of every file below it. Empty if there is no such directory.
+	 */
+	List<String> list(String userAtHost, File remoteDir);
+}
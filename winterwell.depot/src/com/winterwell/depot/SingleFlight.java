@@ -0,0 +1,145 @@
+package com.winterwell.depot;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import com.winterwell.datalog.DataLog;
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.log.Log;
+import com.winterwell.utils.threads.SafeExecutor;
+
+/**
+ * At most one computation per Desc at a time. If a computation is already running,
+ * callers wait for its result rather than starting their own -- so a cache-miss storm
+ * costs one computation, not N.
+ * <p>
+ * Used by {@link Depot#getWithFactory(Desc, Supplier)} and {@link Depot#calc(boolean, Class, String, String, java.util.concurrent.Callable)}.
+ *
+ * @testedby {@link SingleFlightTest}
+ * @author daniel
+ */
+final class SingleFlight {
+
+	private static final String LOGTAG = "depot.singleflight";
+
+	private static final class Flight extends CompletableFuture<Object> {
+		/**
+		 * The thread running the computation, if it's a caller. null for a background refresh --
+		 * which the thread that started it can safely wait for.
+		 */
+		final Thread owner;
+
+		Flight(Thread owner) {
+			this.owner = owner;
+		}
+	}
+
+	private final ConcurrentHashMap<Desc, Flight> flights = new ConcurrentHashMap();
+
+	/**
+	 * For refresh-ahead. Made on first use.
+	 */
+	private volatile ExecutorService refresher;
+
+	final LongAdder computed = new LongAdder();
+	final LongAdder coalesced = new LongAdder();
+	final LongAdder computeMillis = new LongAdder();
+	final LongAdder refreshes = new LongAdder();
+
+	/**
+	 * Run fn -- unless a computation for desc is already running, in which case wait for that one.
+	 * @return the result of fn (or of the other caller's fn)
+	 */
+	<X> X run(Desc<X> desc, Supplier<X> fn) {
+		Flight mine = new Flight(Thread.currentThread());
+		Flight f = flights.putIfAbsent(desc, mine);
+		if (f==null) {
+			return (X) run2_compute(desc, mine, fn);
+		}
+		if (f.owner == Thread.currentThread()) {
+			// waiting would deadlock
+			throw new IllegalStateException("Recursive computation of "+desc);
+		}
+		coalesced.increment();
+		DataLog.count(1, "Depot", "coalesced");
+		try {
+			return (X) f.get();
+		} catch (ExecutionException | CompletionException ex) {
+			throw Utils.runtime(ex.getCause());
+		} catch (InterruptedException ex) {
+			throw Utils.runtime(ex);
+		}
+	}
+
+	/**
+	 * Start fn in the background, unless a computation for desc is already running.
+	 * @return true if this started a computation
+	 */
+	boolean runAsync(Desc desc, Supplier fn) {
+		Flight mine = new Flight(null);
+		if (flights.putIfAbsent(desc, mine) != null) {
+			return false;
+		}
+		refreshes.increment();
+		getRefresher().submit(() -> {
+			try {
+				run2_compute(desc, mine, fn);
+			} catch(Throwable ex) {
+				// the stale value stays in place
+				Log.w(LOGTAG, "Refresh failed for "+desc+": "+ex);
+			}
+		});
+		return true;
+	}
+
+	private Object run2_compute(Desc desc, Flight mine, Supplier fn) {
+		long t0 = System.currentTimeMillis();
+		try {
+			Object v = fn.get();
+			mine.complete(v);
+			return v;
+		} catch(Throwable ex) {
+			mine.completeExceptionally(ex);
+			throw Utils.runtime(ex);
+		} finally {
+			flights.remove(desc, mine);
+			long ms = System.currentTimeMillis() - t0;
+			computed.increment();
+			computeMillis.add(ms);
+			DataLog.mean(ms, "Depot", "compute_time");
+		}
+	}
+
+	/**
+	 * @return true if a computation for desc is running
+	 */
+	boolean isRunning(Desc desc) {
+		return flights.containsKey(desc);
+	}
+
+	private ExecutorService getRefresher() {
+		if (refresher!=null) return refresher;
+		synchronized (this) {
+			if (refresher==null) {
+				refresher = new SafeExecutor(Executors.newFixedThreadPool(2, r -> {
+					Thread t = new Thread(r, "depot-refresh");
+					t.setDaemon(true);
+					return t;
+				}));
+			}
+			return refresher;
+		}
+	}
+
+	synchronized void close() {
+		if (refresher==null) return;
+		refresher.shutdown();
+		refresher = null;
+	}
+}
@@ -0,0 +1,155 @@
+package com.winterwell.depot;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A rough, quick estimate of how much memory an artifact holds, for {@link SlowStorage}'s budget.
+ * <p>
+ * Walks the object graph. For big graphs, it stops after {@link #MAX_VISITS} objects, and adds
+ * on the average object size for each one it didn't get to.
+ * Primitive arrays and Strings are costed exactly. Collections and Maps are walked via their public API
+ * -- other java.* internals are not looked inside.
+ *
+ * @author daniel
+ */
+final class SizeEstimator {
+
+	static final int MAX_VISITS = 10000;
+
+	private static final int HEADER = 16, REF = 8;
+
+	private static final Map<Class, Field[]> fields4class = new ConcurrentHashMap();
+
+	/**
+	 * @param x Can be null
+	 * @return approximate bytes
+	 */
+	static long estimate(Object x) {
+		if (x==null) return 0;
+		IdentityHashMap<Object,Boolean> seen = new IdentityHashMap();
+		Todo todo = new Todo();
+		todo.push(x);
+		long bytes = 0, rootBytes = 0;
+		int visits = 0;
+		while ( ! todo.isEmpty() && visits < MAX_VISITS) {
+			Object o = todo.pop();
+			if (seen.put(o, Boolean.TRUE) != null) continue;
+			visits++;
+			try {
+				bytes += estimate2_shallow(o, todo);
+			} catch(RuntimeException ex) {
+				// e.g. a collection being edited by another thread -- just skip it
+			}
+			if (visits==1) rootBytes = bytes;
+		}
+		long unvisited = todo.size() + todo.dropped;
+		if (unvisited > 0 && visits > 1) {
+			// assume the rest are like the (non-root) ones we saw
+			bytes += (bytes - rootBytes) * unvisited / (visits - 1);
+		}
+		return bytes;
+	}
+
+	/**
+	 * A stack which stops growing at MAX_VISITS, but counts what it dropped.
+	 */
+	private static final class Todo extends ArrayDeque<Object> {
+		private static final long serialVersionUID = 1L;
+		long dropped;
+
+		@Override
+		public void push(Object e) {
+			if (size() < MAX_VISITS) super.push(e);
+			else dropped++;
+		}
+	}
+
+	private static long estimate2_shallow(Object o, Todo todo) {
+		Class k = o.getClass();
+		if (k==String.class) {
+			return HEADER + 24 + 2L*((String) o).length();
+		}
+		if (k.isArray()) {
+			Class ct = k.getComponentType();
+			if (ct.isPrimitive()) {
+				return HEADER + (long) java.lang.reflect.Array.getLength(o) * primitiveSize(ct);
+			}
+			Object[] arr = (Object[]) o;
+			for (Object v : arr) {
+				if (v!=null) todo.push(v);
+			}
+			return HEADER + (long) REF * arr.length;
+		}
+		if (o instanceof Collection) {
+			Collection c = (Collection) o;
+			for (Object v : c) {
+				if (v!=null) todo.push(v);
+			}
+			// entries + backing array
+			return HEADER*2 + (long) (REF + HEADER) * c.size();
+		}
+		if (o instanceof Map) {
+			Map<?,?> m = (Map) o;
+			for (Map.Entry e : m.entrySet()) {
+				if (e.getKey()!=null) todo.push(e.getKey());
+				if (e.getValue()!=null) todo.push(e.getValue());
+			}
+			return HEADER*2 + (long) (REF*3 + HEADER) * m.size();
+		}
+		// don't pry into the JDK's internals
+		if (k.getName().startsWith("java.")) {
+			return HEADER + REF*2;
+		}
+		long bytes = HEADER;
+		for (Field f : fields(k)) {
+			Class t = f.getType();
+			if (t.isPrimitive()) {
+				bytes += primitiveSize(t);
+				continue;
+			}
+			bytes += REF;
+			try {
+				Object v = f.get(o);
+				if (v!=null) todo.push(v);
+			} catch (IllegalAccessException e) {
+				// skip it
+			}
+		}
+		return bytes;
+	}
+
+	private static Field[] fields(Class k) {
+		Field[] fs = fields4class.get(k);
+		if (fs!=null) return fs;
+		List<Field> list = new ArrayList();
+		for (Class c = k; c != null && c != Object.class; c = c.getSuperclass()) {
+			for (Field f : c.getDeclaredFields()) {
+				if (Modifier.isStatic(f.getModifiers())) continue;
+				try {
+					f.setAccessible(true);
+					list.add(f);
+				} catch (RuntimeException ex) {
+					// can't get at it -- skip
+				}
+			}
+		}
+		fs = list.toArray(new Field[0]);
+		fields4class.put(k, fs);
+		return fs;
+	}
+
+	private static int primitiveSize(Class t) {
+		if (t==long.class || t==double.class) return 8;
+		if (t==int.class || t==float.class) return 4;
+		if (t==short.class || t==char.class) return 2;
+		return 1;
+	}
+}
@@ -7,20 +7,23 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import com.winterwell.datalog.DataLog;
-import com.winterwell.utils.ReflectionUtils;
+import com.winterwell.depot.merge.Diff;
 import com.winterwell.utils.Utils;
+import com.winterwell.utils.containers.ArrayMap;
 import com.winterwell.utils.containers.Pair2;
 import com.winterwell.utils.log.Log;
 import com.winterwell.utils.threads.Actor;
 import com.winterwell.utils.threads.SlowActor;
 import com.winterwell.utils.time.Dt;
 import com.winterwell.utils.time.RateCounter;
-import com.winterwell.utils.time.TUnit;
-import com.winterwell.utils.time.TimeUtils;
 
 /**
  * A write-behind system -- shove stuff in, & it doesn't get saved for a while.
@@ -28,6 +31,12 @@ import com.winterwell.utils.time.TimeUtils;
  * NB: Often, an artifact will be repeatedly modified. Such artifacts will get saved
  * once every {@link #delay}
  * <p>
+ * Memory: pending artifacts are costed (roughly, see {@link SizeEstimator}). If they go over
+ * {@link #setMaxBytes(long)}, the oldest-dirty ones are saved early.
+ * <p>
+ * Saves are done by a few writer threads, each handling the Descs which hash to it --
+ * so saves for a given Desc stay in order.
+ * <p>
  * Use-case: efficient database, network, & file-system access. 
  * @author daniel
  *
@@ -40,7 +49,9 @@ implements IStore, Flushable, Closeable
 
 	@Override
 	public void flush() {
-		actor.flush();
+		for (SlowStorageActor actor : actors) {
+			actor.flush();
+		}
 	}
 	
 	@Override
@@ -53,11 +64,25 @@ implements IStore, Flushable, Closeable
 		return "SlowStorage[base=" + base + ", delay=" + delay + "]";
 	}
 
+	/**
+	 * One writer thread
+	 */
 	public SlowStorage(IStore base, Dt delay, Depot depot) {
+		this(base, delay, depot, 1);
+	}
+	
+	/**
+	 * @param writers Number of writer threads. Each Desc always goes to the same writer.
+	 */
+	public SlowStorage(IStore base, Dt delay, Depot depot, int writers) {
 		this.base = base;
 		this.delay = delay;
 		this.depot = depot;
- 		this.batched = new HashSet();
+		assert writers > 0 : writers;
+		actors = new SlowStorageActor[writers];
+		for (int i = 0; i < actors.length; i++) {
+			actors[i] = new SlowStorageActor();
+		}
 	}
 
 	final IStore base;
@@ -90,17 +115,67 @@ implements IStore, Flushable, Closeable
 
 	private static final String LOGTAG = "SlowStorage";
 
-	private static final int MB = (int) Math.pow(2, 20); // 1k * 1k -- a big megabyte
-
 	/**
 	 * Dummy Desc to trigger batch save
 	 */
 	private static final Desc SAVE_BATCH = new Desc("SAVE_BATCH", String.class);
 	
-	final ConcurrentHashMap<Desc, Object> map = new ConcurrentHashMap();
+	final ConcurrentHashMap<Desc, Pending> map = new ConcurrentHashMap();
+	
+	/**
+	 * A pending artifact (or {@link #NULL} for a remove), with its estimated size.
+	 * A fresh Pending is made for every put.
+	 */
+	static final class Pending {
+		final Object value;
+		final long bytes;
+		/**
+		 * When this Desc was first put (since it was last saved)
+		 */
+		final long dirtySince;
+		/**
+		 * Set once an early save has been requested.
+		 */
+		volatile boolean early;
+		
+		Pending(Object value, long bytes, long dirtySince) {
+			this.value = value;
+			this.bytes = bytes;
+			this.dirtySince = dirtySince;
+		}
+	}
+	
+	/**
+	 * Sum of the {@link Pending#bytes} in map
+	 */
+	final AtomicLong pendingBytes = new AtomicLong();
 	
+	/**
+	 * 0 for no limit
+	 */
+	private long maxBytes;
 	
+	/**
+	 * Only one thread picks the oldest for an early save at a time.
+	 */
+	private final AtomicBoolean flushingEarly = new AtomicBoolean();
 	
+	private final LongAdder saves = new LongAdder();
+	private final LongAdder earlySaves = new LongAdder();
+	/**
+	 * Milliseconds from first put to saved, summed over saves
+	 */
+	private final LongAdder saveLatency = new LongAdder();
+	
+	/**
+	 * If the pending artifacts go over this, the oldest-dirty get saved early. 
+	 * @param maxBytes 0 for no limit
+	 */
+	public void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+	
+
 	@Override
 	public final void remove(Desc desc) {
 		// put NULL into map
@@ -109,38 +184,27 @@ implements IStore, Flushable, Closeable
 
 	@Override
 	public boolean contains(Desc desc) {
-		Object v = map.get(desc);
-		if (v!=null) {
-			return v==NULL? false : true;
+		Pending p = map.get(desc);
+		if (p!=null) {
+			return p.value==NULL? false : true;
 		}
 		return base.contains(desc);
 	}
 
 	@Override
 	public final <X> void put(Desc<X> desc, X artifact) {
-		map.put(desc, artifact);
+		long bytes = artifact==NULL? 0 : SizeEstimator.estimate(artifact);
+		long now = System.currentTimeMillis();
+		Pending[] prev = new Pending[1];
+		map.compute(desc, (k, old) -> {
+			prev[0] = old;
+			// dirty since the first put -- so a busy artifact can't put off its early save
+			return new Pending(artifact, bytes, old==null? now : old.dirtySince);
+		});
+		pendingBytes.addAndGet(bytes - (prev[0]==null? 0 : prev[0].bytes));
 		// Note: Races don't matter here -- the message is just "do something with desc"
 		
 		Dt dt = delay;
-		// Can we afford a long delay? 
-		// A crude defence against out-of-memory issues.
-		// TODO a SoftReference based map (with save-on-evict) might be better. 
-		long freeMem = ReflectionUtils.getAvailableMemory();		
-		if (freeMem < 20 * MB) { // 20mb
-			Runtime rt = Runtime.getRuntime();
-			long totalMem = rt.totalMemory();
-//			int s = getQ().size();
-//			int m = map.size();
-			Log.w(LOGTAG, "Instant storage with "+(freeMem/MB)+"mb of "+(totalMem/MB)+"mb");
-			dt = TimeUtils.NO_TIME_AT_ALL; //TUnit.MILLISECOND.dt;
-		} if (freeMem < 100 * MB) { // 100mb
-//			int s = getQ().size();
-//			int m = map.size();
-			Runtime rt = Runtime.getRuntime();
-			long totalMem = rt.totalMemory();
-//			Log.w(LOGTAG, "Fast storage with "+(freeMem/MB)+"mb of "+(totalMem/MB)+"mb");
-			dt = TUnit.SECOND.dt;
-		}
 		// jitter
 		if (delayJitter!=0) {
 			double jitter = 1 + ((Utils.getRandom().nextDouble() - 0.5) * delayJitter);
@@ -148,15 +212,51 @@ implements IStore, Flushable, Closeable
 			dt = dt.multiply(jitter);
 		}
 		// post ourselves a note to deal with it
-		actor.sendDelayed(desc, null, dt);		
+		actor(desc).sendDelayed(desc, null, dt);
+		
+		// over budget?
+		if (maxBytes > 0 && pendingBytes.get() > maxBytes) {
+			saveEarly();
+		}
+	}
+	
+	SlowStorageActor actor(Desc desc) {
+		return actors[(desc.hashCode() & Integer.MAX_VALUE) % actors.length];
+	}
+	
+	/**
+	 * Send the oldest-dirty artifacts for an immediate save, until we're back under 3/4 of the budget.
+	 */
+	private void saveEarly() {
+		if ( ! flushingEarly.compareAndSet(false, true)) return;
+		try {
+			long excess = pendingBytes.get() - maxBytes*3/4;
+			if (excess <= 0) return;
+			List<Map.Entry<Desc,Pending>> oldest = new ArrayList(map.entrySet());
+			oldest.sort((a, b) -> Long.compare(a.getValue().dirtySince, b.getValue().dirtySince));
+			int n = 0;
+			for (Map.Entry<Desc, Pending> e : oldest) {
+				if (excess <= 0) break;
+				Pending p = e.getValue();
+				excess -= p.bytes;
+				if (p.early) continue;
+				p.early = true;
+				actor(e.getKey()).send(e.getKey(), null);
+				n++;
+			}
+			earlySaves.add(n);
+			Log.d(LOGTAG, "Over budget: "+pendingBytes.get()+" > "+maxBytes+" bytes. Saving "+n+" early.");
+		} finally {
+			flushingEarly.set(false);
+		}
 	}
 
 	@Override
 	public final <X> X get(Desc<X> desc) {
-		Object v = map.get(desc);
-		if (v!=null) {
+		Pending p = map.get(desc);
+		if (p!=null) {
 			DataLog.count(1,"Depot","cache_hit","SlowStorage");
-			return v==NULL? null : (X) v;
+			return p.value==NULL? null : (X) p.value;
 		}
 		return base.get(desc);
 	}
@@ -177,8 +277,6 @@ implements IStore, Flushable, Closeable
 		return base.getMetaData(desc);
 	}
 
-	HashSet<Desc> batched;
-		
 	/**
 	 * Count failed saves. This is reset to null after any successful save. So it should always be low
 	 *  - unless the underlying storage is down.
@@ -204,12 +302,52 @@ implements IStore, Flushable, Closeable
 		this.delayJitter = writeBehindJitter;
 	}
 	
-	final SlowStorageActor actor = new SlowStorageActor();
+	final SlowStorageActor[] actors;
+	
+	/**
+	 * @return queue depth, pending artifacts, estimated pending bytes, saves, early saves, 
+	 * and the mean milliseconds from put to save.
+	 */
+	public Map<String,Long> getStats() {
+		long q = 0;
+		for (SlowStorageActor actor : actors) {
+			q += actor.getQ().size();
+		}
+		long n = saves.sum();
+		return new ArrayMap("queue", q, "pending", (long) map.size(), "pending_bytes", pendingBytes.get(),
+				"saves", n, "early_saves", earlySaves.sum(), "save_latency_ms", n==0? 0L : saveLatency.sum() / n);
+	}
 	
+	/**
+	 * A writer thread. Each handles the Descs which hash to it, see {@link SlowStorage#actor(Desc)}.
+	 */
 	class SlowStorageActor extends SlowActor<Desc> {
 
+		final HashSet<Desc> batched = new HashSet();
+
+		/**
+		 * Synchronised with {@link #consume(Desc, Actor)}, so a save in progress is finished first.
+		 * Then save whatever is still pending -- the actor thread may have taken a message
+		 * off the queue, but not yet started on it.
+		 */
 		@Override
-		protected void consume(Desc desc, Actor sender) {
+		public synchronized void flush() {
+			super.flush();
+			for (Desc desc : map.keySet()) {
+				if (actor(desc) != this) continue;
+				if (batch!=null) {
+					batched.add(desc);
+				} else {
+					consume(desc, null);
+				}
+			}
+			if ( ! batched.isEmpty()) {
+				consume(SAVE_BATCH, null);
+			}
+		}
+
+		@Override
+		protected synchronized void consume(Desc desc, Actor sender) {
 			// Too many errors? 
 			RateCounter ec = errorCount;
 			if (ec!=null && ec.get() > 10) {
@@ -257,13 +395,14 @@ implements IStore, Flushable, Closeable
 		
 
 		private void consume2_saveOne(Desc desc) {
-			consume3(desc, null, null);
-			// Remove any other requests for msg
+			// Remove any other requests for msg.
+			// NB: before the save, so a put during the save keeps its request
 			for(Packet p : getQ().toArray(new Packet[0])) {
 				if (desc.equals(p.msg)) {
 					getQ().remove(p);
 				}
 			}
+			consume3(desc, null, null);
 		}
 
 		
@@ -276,7 +415,8 @@ implements IStore, Flushable, Closeable
 		private void consume3(Desc desc, List<Pair2<Desc, Object>> add, List<Desc> remove) {
 			// The messages slowly sent are the Descs for the items to save, whilst the items themselves are stashed in map.
 			// Save or remove?
-			Object v = map.get(desc); 
+			Pending p = map.get(desc);
+			Object v = p==null? null : p.value;
 			// NB: We only modify the map at the end, and only if it stays the same
 			if (v==null) {
 				Log.w(LOGTAG, "null?! Artifact already saved in race? "+desc);
@@ -289,18 +429,31 @@ implements IStore, Flushable, Closeable
 				}
 			} else {
 				// merge? NB: dec.before is normally null
+				boolean saved = false;
 				if (desc.getBefore() != null) {
 					Object latest = base.get(desc);
 					if (latest!=null) {
+						// What's stored is latest, so this diff is the edit to save
+						// (the merge is latest + diff)
+						Diff diff = depot.merger.diff(desc.getBefore(), v);
 						Object vMerge = depot.merger.doMerge(desc.getBefore(), v, latest);
 						v = vMerge;
-						// update the binding
-						desc.bind(vMerge);
+						// update the binding (which needs the Depot lock)
+						Depot.locker.lock(desc);
+						try {
+							desc.bind(vMerge);
+						} finally {
+							Depot.locker.unlock(desc);
+						}
+						// Store just the changes, if the store can
+						saved = base.putDiff(desc, v, diff);
 					}
 				}
 				
 				// Store it!
-				if (add!=null) {				
+				if (saved) {
+					// done
+				} else if (add!=null) {				
 					add.add(new Pair2<>(desc, v));
 				} else {
 					base.put(desc, v);
@@ -313,7 +466,13 @@ implements IStore, Flushable, Closeable
 			}
 			// Modify the map if as expected. 
 			// Do nothing to the map if someone has just reset a fresh value.
-			map.remove(desc, v);
+			if (p!=null && map.remove(desc, p)) {
+				pendingBytes.addAndGet(-p.bytes);
+				long ms = System.currentTimeMillis() - p.dirtySince;
+				saves.increment();
+				saveLatency.add(ms);
+				DataLog.mean(ms, "Depot", "save_latency", "SlowStorage");
+			}
 		}
 		
 
@@ -322,27 +481,29 @@ implements IStore, Flushable, Closeable
 			List<Pair2<Desc,Object>> add = new ArrayList();
 			List<Desc> remove = new ArrayList();
 
-			for(Desc desc : batched) {
-				consume3(desc, add, remove);
-			}
-			// save
-			base.storeBatch(add, remove);
-
 			// Remove any other requests for msg
+			// NB: before the save, so a put during the save keeps its request
 			for(Packet p : getQ().toArray(new Packet[0])) {
 				if (batched.contains(p.msg)) {
 					getQ().remove(p);
 				}
 			}
+			
+			for(Desc desc : batched) {
+				consume3(desc, add, remove);
+			}
+			// save
+			base.storeBatch(add, remove);
 			batched.clear();
 		}		
 	}
 
 	/**
 	 * @deprecated low level access for debug only
+	 * @return the first writer
 	 */
 	public SlowActor getActor() {
-		return actor;
+		return actors[0];
 	}
 
 }
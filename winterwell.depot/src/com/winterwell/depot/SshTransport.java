@@ -0,0 +1,165 @@
+package com.winterwell.depot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.winterwell.utils.StrUtils;
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.TUnit;
+
+/**
+ * Runs small shell commands over ssh.
+ * <p>
+ * All the sessions to a host share one connection (ssh ControlMaster), which is kept open for a while after use.
+ * So the handshake and login are paid once, and parallel transfers are multiplexed over the one pipe --
+ * rather than a fresh scp connection per file.
+ * <p>
+ * Each call moves at most one chunk, so a timeout is per chunk, and doesn't limit the file size.
+ *
+ * @author daniel
+ */
+final class SshTransport implements RemoteTransport {
+
+	private static final Dt MAX_CALL_TIME = new Dt(5, TUnit.MINUTE);
+
+	/**
+	 * For the process streams. Not the common pool: these block, for as long as the remote command runs.
+	 */
+	private static final ExecutorService pumps = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "depot-ssh-io");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final String controlPath = new File(System.getProperty("java.io.tmpdir"), "depot-ssh-%r@%h:%p").getPath();
+
+	@Override
+	public Stat stat(String userAtHost, File remotePath) {
+		String p = quote(remotePath);
+		String out = new String(run(userAtHost, "if [ -f "+p+" ]; then stat -c %s "+p+" && md5sum "+p+"; fi", null),
+				StandardCharsets.UTF_8).trim();
+		if (out.isEmpty()) return null;
+		String[] bits = out.split("\\s+");
+		return new Stat(Long.parseLong(bits[0]), bits[1]);
+	}
+
+	@Override
+	public byte[] read(String userAtHost, File remotePath, long offset, int len) {
+		return run(userAtHost, "tail -c +"+(offset+1)+" "+quote(remotePath)+" | head -c "+len, null);
+	}
+
+	@Override
+	public void write(String userAtHost, File remotePath, long offset, byte[] bytes) {
+		String p = quote(remotePath);
+		String cmd = offset==0?
+				"mkdir -p "+quote(remotePath.getParentFile())+" && cat > "+p
+				: "[ $(stat -c %s "+p+") = "+offset+" ] && cat >> "+p;
+		run(userAtHost, cmd, bytes);
+	}
+
+	@Override
+	public void rename(String userAtHost, File from, File to) {
+		run(userAtHost, "mv -f "+quote(from)+" "+quote(to), null);
+	}
+
+	@Override
+	public void delete(String userAtHost, File remotePath) {
+		run(userAtHost, "rm -f "+quote(remotePath), null);
+	}
+
+	@Override
+	public List<String> list(String userAtHost, File remoteDir) {
+		String d = quote(remoteDir);
+		String out = new String(run(userAtHost, "if [ -d "+d+" ]; then cd "+d+" && find . -type f; fi", null),
+				StandardCharsets.UTF_8);
+		List<String> paths = new ArrayList();
+		for (String line : StrUtils.splitLines(out)) {
+			if (line.isEmpty()) continue;
+			paths.add(line.startsWith("./")? line.substring(2) : line);
+		}
+		return paths;
+	}
+
+	/**
+	 * @param stdin Can be null
+	 * @return stdout
+	 */
+	private byte[] run(String userAtHost, String command, byte[] stdin) {
+		List<String> cmd = new ArrayList(Arrays.asList("ssh",
+				// no password prompt - just fail if one is needed
+				"-o", "BatchMode=yes",
+				"-o", "StrictHostKeyChecking=no", "-o", "UserKnownHostsFile=/dev/null",
+				// share the connection
+				"-o", "ControlMaster=auto", "-o", "ControlPath="+controlPath, "-o", "ControlPersist=120"));
+		cmd.add(userAtHost);
+		cmd.add(command);
+		long deadline = System.currentTimeMillis() + MAX_CALL_TIME.getMillisecs();
+		try {
+			Process proc = new ProcessBuilder(cmd).start();
+			// pump all the streams in the background, so none of them can block the timeout below
+			CompletableFuture<byte[]> out = CompletableFuture.supplyAsync(() -> readAll(proc.getInputStream()), pumps);
+			CompletableFuture<byte[]> err = CompletableFuture.supplyAsync(() -> readAll(proc.getErrorStream()), pumps);
+			pumps.execute(() -> {
+				try (OutputStream in = proc.getOutputStream()) {
+					if (stdin!=null) in.write(stdin);
+				} catch (IOException ex) {
+					// the command quit without reading it all -- its exit value says why
+				}
+			});
+			if ( ! proc.waitFor(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS)) {
+				proc.destroyForcibly();
+				throw new IOException("Timeout: "+userAtHost+" "+command);
+			}
+			if (proc.exitValue() != 0) {
+				String msg;
+				try {
+					msg = new String(err.get(1, TimeUnit.SECONDS), StandardCharsets.UTF_8).trim();
+				} catch (TimeoutException | ExecutionException ex) {
+					msg = "";
+				}
+				throw new IOException("Failed ("+proc.exitValue()+"): "+userAtHost+" "+command+" "+msg);
+			}
+			// bounded too, in case something on the far side still holds the pipe open
+			try {
+				return out.get(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+			} catch (TimeoutException ex) {
+				throw new IOException("Timeout reading output: "+userAtHost+" "+command);
+			}
+		} catch (IOException | InterruptedException | ExecutionException ex) {
+			throw Utils.runtime(ex);
+		}
+	}
+
+	private static byte[] readAll(InputStream in) {
+		try {
+			return in.readAllBytes();
+		} catch (IOException ex) {
+			throw Utils.runtime(ex);
+		}
+	}
+
+	/**
+	 * Single-quote for the remote shell
+	 */
+	static String quote(File path) {
+		return "'"+path.getPath().replace("'", "'\\''")+"'";
+	}
+
+	@Override
+	public String toString() {
+		return "SshTransport";
+	}
+}
@@ -0,0 +1,206 @@
+package com.winterwell.depot;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+import com.winterwell.utils.log.Log;
+
+/**
+ * A concurrent weak-key map, for {@link DescCache}. Like a synchronized WeakHashMap, but:
+ * <ul>
+ * <li>Backed by a {@link ConcurrentHashMap}, so reads don't lock, and writes only contend
+ * on the same bin.
+ * <li>Entries for collected keys are removed by one background thread (via a {@link ReferenceQueue}),
+ * rather than by whoever happens to call next.
+ * <li>Keys are matched by identity, or by equals() -- see {@link #WeakKeyMap(boolean)}.
+ * </ul>
+ * Values are held strongly, so they should not refer to their key.
+ * <p>
+ * Iteration ({@link #forEach(BiConsumer)}) and {@link #size()} are weakly consistent: they do
+ * not stop other threads.
+ *
+ * @testedby {@link WeakKeyMapTest}
+ * @author daniel
+ */
+final class WeakKeyMap<K, V> {
+
+	/**
+	 * Collected keys from all WeakKeyMaps. Drained by {@link #CLEANER}.
+	 */
+	private static final ReferenceQueue<Object> QUEUE = new ReferenceQueue<Object>();
+
+	private static final Thread CLEANER = new Thread(WeakKeyMap::clean, "WeakKeyMap.cleaner");
+	static {
+		CLEANER.setDaemon(true);
+		CLEANER.start();
+	}
+
+	private static void clean() {
+		while (true) {
+			try {
+				WeakKey wk = (WeakKey) QUEUE.remove();
+				wk.map.backing.remove(wk);
+			} catch (InterruptedException e) {
+				return;
+			} catch (Throwable ex) {
+				Log.e(Depot.TAG, ex);
+			}
+		}
+	}
+
+	/**
+	 * Common to the stored and the look-up keys, so that they can be equals().
+	 */
+	private interface IKey {
+		Object key();
+	}
+
+	private static final class WeakKey extends WeakReference<Object> implements IKey {
+		final WeakKeyMap map;
+		private final int hash;
+
+		WeakKey(Object key, WeakKeyMap map) {
+			super(key, QUEUE);
+			this.map = map;
+			this.hash = map.hash(key);
+		}
+
+		@Override
+		public Object key() {
+			return get();
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (obj == this) return true;
+			if ( ! (obj instanceof IKey)) return false;
+			Object k = get();
+			// a collected key only equals itself (so the cleaner can remove it)
+			return k != null && map.same(k, ((IKey) obj).key());
+		}
+	}
+
+	/**
+	 * A short-lived strong key, for get/remove.
+	 */
+	private static final class LookupKey implements IKey {
+		final Object key;
+		private final int hash;
+
+		LookupKey(Object key, WeakKeyMap map) {
+			this.key = key;
+			this.hash = map.hash(key);
+		}
+
+		@Override
+		public Object key() {
+			return key;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if ( ! (obj instanceof WeakKey)) return false;
+			return obj.equals(this);
+		}
+	}
+
+	private final ConcurrentHashMap<IKey, V> backing = new ConcurrentHashMap<IKey, V>();
+	private final boolean identity;
+
+	/**
+	 * @param identity true: keys match by == (as for artifacts, where equals() objects may be
+	 * different artifacts). false: keys match by equals() (as for Descs).
+	 */
+	WeakKeyMap(boolean identity) {
+		this.identity = identity;
+	}
+
+	int hash(Object key) {
+		return identity? System.identityHashCode(key) : key.hashCode();
+	}
+
+	boolean same(Object a, Object b) {
+		return identity? a == b : a.equals(b);
+	}
+
+	/**
+	 * @param key Can be null (which is never mapped), as with WeakHashMap
+	 */
+	public V get(K key) {
+		if (key == null) return null;
+		return backing.get(new LookupKey(key, this));
+	}
+
+	public V put(K key, V value) {
+		assert key != null && value != null;
+		// remove-then-put would open a gap, so replace the value in place if there's a mapping
+		LookupKey lk = new LookupKey(key, this);
+		while (true) {
+			V old = backing.get(lk);
+			if (old == null) {
+				old = backing.putIfAbsent(new WeakKey(key, this), value);
+				if (old == null) return null;
+			}
+			if (backing.replace(lk, old, value)) return old;
+		}
+	}
+
+	/**
+	 * @param key Can be null (a no-op)
+	 */
+	public V remove(K key) {
+		if (key == null) return null;
+		return backing.remove(new LookupKey(key, this));
+	}
+
+	/**
+	 * @return Approximate (it includes collected-but-not-yet-cleaned keys). Does not lock.
+	 */
+	public int size() {
+		return backing.size();
+	}
+
+	public void clear() {
+		backing.clear();
+	}
+
+	/**
+	 * Weakly consistent: does not block writers, and skips collected keys.
+	 */
+	public void forEach(BiConsumer<? super K, ? super V> fn) {
+		for (Map.Entry<IKey, V> e : backing.entrySet()) {
+			Object k = e.getKey().key();
+			if (k == null) continue;
+			fn.accept((K) k, e.getValue());
+		}
+	}
+
+	/**
+	 * @return a snapshot of the (live) keys
+	 */
+	public List<K> keys() {
+		List<K> keys = new ArrayList<K>(backing.size());
+		forEach((k, v) -> keys.add(k));
+		return keys;
+	}
+
+	@Override
+	public String toString() {
+		return "WeakKeyMap[" + backing.size() + (identity? " identity]" : "]");
+	}
+}
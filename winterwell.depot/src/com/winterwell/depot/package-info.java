@@ -6,7 +6,7 @@
  * <ul>
  * <li>Depot is a Desc-artifact map with get & put.
  * <li>Desc (artifact descriptions) can be bound to artifacts.
- * <li>RemoteStore handles the scp-ing.
+ * <li>RemoteStore handles copying between servers (see RemoteTransfer).
  * </ul>
  */
 package com.winterwell.depot;
\ No newline at end of file
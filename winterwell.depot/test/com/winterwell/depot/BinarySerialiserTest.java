@@ -0,0 +1,192 @@
+package com.winterwell.depot;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.winterwell.utils.io.FileUtils;
+import com.winterwell.utils.time.Time;
+import com.winterwell.utils.web.XStreamUtils;
+
+public class BinarySerialiserTest {
+
+	/**
+	 * A stand-in for a numeric artifact, e.g. a distribution
+	 */
+	static class Dummy {
+		String name;
+		double mean;
+		int n;
+		double[] weights;
+		double[][] matrix;
+		Dummy next;
+		transient Object cache = "cache";
+		Time created;
+		Map<String, Integer> index = new HashMap();
+
+		Dummy(String name) {
+			this.name = name;
+		}
+	}
+
+	static {
+		BinarySerialiser.register(Dummy.class);
+	}
+
+	static Object roundTrip(Object x, boolean compress) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BinarySerialiser.serialise(x, out, compress);
+		return BinarySerialiser.deserialise(new ByteArrayInputStream(out.toByteArray()));
+	}
+
+	@Test
+	public void testValuesAndArrays() throws Exception {
+		assertEquals(null, roundTrip(null, false));
+		assertEquals("hello ünïcode", roundTrip("hello ünïcode", false));
+		assertEquals(1.5, roundTrip(1.5, false));
+		assertEquals(7L, roundTrip(7L, true));
+		assertEquals(TimeUnit.DAYS, roundTrip(TimeUnit.DAYS, false));
+		double[] big = new double[100000];
+		for (int i = 0; i < big.length; i++) big[i] = i * 0.5;
+		assertArrayEquals(big, (double[]) roundTrip(big, false), 0);
+		assertArrayEquals(big, (double[]) roundTrip(big, true), 0);
+		int[] ints = {1, -2, 3};
+		assertArrayEquals(ints, (int[]) roundTrip(ints, false));
+		List list = new ArrayList();
+		list.add("a");
+		list.add(new long[] {1, 2});
+		list.add(null);
+		List list2 = (List) roundTrip(list, false);
+		assertEquals(3, list2.size());
+		assertArrayEquals(new long[] {1, 2}, (long[]) list2.get(1));
+	}
+
+	@Test
+	public void testRegisteredObjectAndFallback() throws Exception {
+		Dummy d = new Dummy("d");
+		d.mean = 2.5;
+		d.n = 3;
+		d.weights = new double[] {0.1, 0.2};
+		d.matrix = new double[][] {{1, 2}, {3, 4}};
+		d.created = new Time(2012, 7, 18); // not registered, so via xstream
+		d.index.put("x", 1);
+		d.next = new Dummy("e");
+		d.next.next = d; // a cycle
+
+		Dummy d2 = (Dummy) roundTrip(d, true);
+		assertEquals("d", d2.name);
+		assertEquals(2.5, d2.mean, 0);
+		assertEquals(3, d2.n);
+		assertArrayEquals(d.weights, d2.weights, 0);
+		assertArrayEquals(d.matrix[1], d2.matrix[1], 0);
+		assertEquals(d.created, d2.created);
+		assertEquals(1, (int) d2.index.get("x"));
+		assertEquals("e", d2.next.name);
+		assert d2.next.next == d2;
+		// transient: not saved -- and Dummy has no no-arg constructor, so left null (as XStream does)
+		assertEquals(null, d2.cache);
+	}
+
+	@Test
+	public void testFileStore() {
+		File testDir = new File("test/temp").getAbsoluteFile();
+		FileStore fs = new FileStore(new DepotConfig().setDir(testDir));
+		Desc<double[]> desc = new Desc("BinarySerialiserTest", double[].class);
+		desc.setTag("test");
+		desc.setSerialiser(Desc.KSerialiser.BINARY);
+		desc.gzip = true;
+		double[] data = {1, 2, 3};
+		fs.put(desc, data);
+		assert fs.getLocalPath(desc).getName().endsWith(".binz") : fs.getLocalPath(desc);
+
+		Desc<double[]> desc2 = new Desc("BinarySerialiserTest", double[].class);
+		desc2.setTag("test");
+		desc2.setSerialiser(Desc.KSerialiser.BINARY);
+		desc2.gzip = true;
+		assertArrayEquals(data, fs.get(desc2), 0);
+		fs.remove(desc2);
+	}
+
+	/**
+	 * Not a test as such: compare round-trip time and size with XStream (+gzip).
+	 */
+	@Test
+	public void testBenchmark() throws Exception {
+		Random r = new Random(42);
+		List<Dummy> data = new ArrayList();
+		for (int i = 0; i < 50; i++) {
+			Dummy d = new Dummy("d" + i);
+			d.mean = r.nextGaussian();
+			d.weights = new double[1000];
+			for (int j = 0; j < d.weights.length; j++) d.weights[j] = r.nextDouble();
+			d.matrix = new double[20][20];
+			for (double[] row : d.matrix) for (int j = 0; j < row.length; j++) row[j] = r.nextGaussian();
+			data.add(d);
+		}
+		int reps = 10;
+		// warm up
+		benchBinary(data, false, 2);
+		benchXml(data, false, 2);
+
+		long t0 = System.nanoTime();
+		int binSize = benchBinary(data, false, reps);
+		long t1 = System.nanoTime();
+		int binzSize = benchBinary(data, true, reps);
+		long t2 = System.nanoTime();
+		int xmlSize = benchXml(data, false, reps);
+		long t3 = System.nanoTime();
+		int xmlzSize = benchXml(data, true, reps);
+		long t4 = System.nanoTime();
+		System.out.println("binary:       " + binSize + " bytes\t" + (t1 - t0) / (reps * 1000000) + " ms/round-trip");
+		System.out.println("binary+zip:   " + binzSize + " bytes\t" + (t2 - t1) / (reps * 1000000) + " ms/round-trip");
+		System.out.println("xstream:      " + xmlSize + " bytes\t" + (t3 - t2) / (reps * 1000000) + " ms/round-trip");
+		System.out.println("xstream+gzip: " + xmlzSize + " bytes\t" + (t4 - t3) / (reps * 1000000) + " ms/round-trip");
+		assert binSize < xmlSize;
+		assert binzSize < xmlzSize;
+	}
+
+	private int benchBinary(List<Dummy> data, boolean compress, int reps) throws Exception {
+		int size = 0;
+		for (int i = 0; i < reps; i++) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			BinarySerialiser.serialise(data, out, compress);
+			size = out.size();
+			List<Dummy> data2 = (List) BinarySerialiser.deserialise(new ByteArrayInputStream(out.toByteArray()));
+			assert data2.size() == data.size();
+		}
+		return size;
+	}
+
+	private int benchXml(List<Dummy> data, boolean gzip, int reps) throws Exception {
+		int size = 0;
+		for (int i = 0; i < reps; i++) {
+			String xml = XStreamUtils.serialiseToXml(data);
+			byte[] bytes = xml.getBytes(StandardCharsets.UTF_8);
+			if (gzip) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				java.util.zip.GZIPOutputStream zout = new java.util.zip.GZIPOutputStream(out);
+				zout.write(bytes);
+				zout.close();
+				bytes = out.toByteArray();
+				java.util.zip.GZIPInputStream zin = new java.util.zip.GZIPInputStream(new ByteArrayInputStream(bytes));
+				xml = FileUtils.read(zin);
+			}
+			size = bytes.length;
+			List<Dummy> data2 = XStreamUtils.serialiseFromXml(xml);
+			assert data2.size() == data.size();
+		}
+		return size;
+	}
+}
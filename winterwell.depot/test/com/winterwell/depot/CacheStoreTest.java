@@ -0,0 +1,156 @@
+package com.winterwell.depot;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.TUnit;
+
+public class CacheStoreTest {
+
+	/**
+	 * Counts loads
+	 */
+	static class CountingStore extends SlowStorageTest.MemStore {
+		final AtomicInteger gets = new AtomicInteger();
+
+		@Override
+		public <X> X get(Desc<X> desc) {
+			gets.incrementAndGet();
+			return super.get(desc);
+		}
+	}
+
+	static Desc<double[]> desc(String name) {
+		Desc<double[]> d = new Desc(name, double[].class);
+		d.setTag("test");
+		return d;
+	}
+
+	@Test
+	public void testHitAndMiss() {
+		CountingStore base = new CountingStore();
+		CacheStore cache = new CacheStore(base, 1000000, 0);
+		double[] x = {1, 2, 3};
+		cache.put(desc("x"), x);
+		assert cache.get(desc("x")) == x;
+		assertEquals(0, base.gets.get());
+
+		base.map.put(desc("y"), new double[] {4});
+		double[] y = cache.get(desc("y"));
+		assert cache.get(desc("y")) == y;
+		assertEquals(1, base.gets.get());
+
+		cache.remove(desc("x"));
+		assertEquals(null, cache.get(desc("x")));
+		Map<String, Long> stats = cache.getStats();
+		assertEquals(2L, (long) stats.get("hit_heap"));
+		assertEquals(2L, (long) stats.get("miss"));
+	}
+
+	@Test
+	public void testScanDoesNotEvictPopular() {
+		CountingStore base = new CountingStore();
+		// room for about 10 of these
+		CacheStore cache = new CacheStore(base, 100000, 0);
+		for (int i = 0; i < 200; i++) {
+			base.map.put(desc("a" + i), new double[1000]);
+		}
+		// 5 popular artifacts
+		for (int rep = 0; rep < 20; rep++) {
+			for (int i = 0; i < 5; i++) {
+				cache.get(desc("a" + i));
+			}
+		}
+		// a scan of one-offs
+		for (int i = 5; i < 200; i++) {
+			cache.get(desc("a" + i));
+		}
+		for (int i = 0; i < 5; i++) {
+			assert cache.isOnHeap(desc("a" + i)) : i + " " + cache.getStats();
+		}
+		assert cache.getStats().get("heap_bytes") <= 100000 : cache.getStats();
+	}
+
+	@Test
+	public void testOffHeapTier() {
+		CountingStore base = new CountingStore();
+		CacheStore cache = new CacheStore(base, 20000, 1000000);
+		for (int i = 0; i < 10; i++) {
+			double[] v = new double[1000];
+			v[0] = i;
+			cache.put(desc("b" + i), v);
+		}
+		// none have been asked for -- so on a tie, the incumbents stay on-heap
+		assert cache.isOnHeap(desc("b0")) : cache.getStats();
+		assert cache.isOffHeap(desc("b9")) : cache.getStats();
+		assert ! cache.isOnHeap(desc("b9")) : cache.getStats();
+		double[] b9 = cache.get(desc("b9"));
+		assertEquals(0, base.gets.get());
+		assertEquals(9, b9[0], 0);
+		assertEquals(1000, b9.length);
+		assertEquals(1L, (long) cache.getStats().get("hit_offheap"));
+	}
+
+	@Test
+	public void testMaxAge() {
+		CountingStore base = new CountingStore();
+		CacheStore cache = new CacheStore(base, 1000000, 1000000);
+		Desc<double[]> desc = desc("old");
+		desc.setMaxAge(new Dt(50, TUnit.MILLISECOND));
+		cache.put(desc, new double[] {1});
+		assertArrayEquals(new double[] {1}, cache.get(desc), 0);
+		assertEquals(0, base.gets.get());
+		Utils.sleep(100);
+		cache.get(desc);
+		assertEquals(1, base.gets.get());
+	}
+
+	/**
+	 * A put lands while a miss is loading the old value: the old value must not then be cached.
+	 */
+	@Test
+	public void testPutRacesMiss() throws Exception {
+		CountDownLatch loaded = new CountDownLatch(1);
+		CountDownLatch written = new CountDownLatch(1);
+		CountingStore base = new CountingStore() {
+			@Override
+			public <X> X get(Desc<X> desc) {
+				X x = super.get(desc);
+				if (gets.get() == 1) {
+					loaded.countDown();
+					try {
+						written.await(5, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+						throw Utils.runtime(e);
+					}
+				}
+				return x;
+			}
+		};
+		CacheStore cache = new CacheStore(base, 1000000, 1000000);
+		double[] v1 = {1};
+		double[] v2 = {2};
+		base.map.put(desc("race"), v1);
+		AtomicReference<double[]> got = new AtomicReference();
+		Thread t = new Thread(() -> got.set(cache.get(desc("race"))));
+		t.start();
+		assert loaded.await(5, TimeUnit.SECONDS);
+		cache.put(desc("race"), v2);
+		written.countDown();
+		t.join(5000);
+		// the racing get may see the old value -- but mustn't cache it
+		assert got.get() == v1;
+		assert cache.get(desc("race")) == v2;
+		assertEquals(1, base.gets.get());
+	}
+}
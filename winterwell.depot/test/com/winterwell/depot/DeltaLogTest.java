@@ -0,0 +1,134 @@
+package com.winterwell.depot;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.winterwell.depot.merge.Diff;
+import com.winterwell.depot.merge.Merger;
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.io.FileUtils;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.TUnit;
+
+public class DeltaLogTest {
+
+	static DepotConfig newConfig() throws Exception {
+		File dir = File.createTempFile("deltas", "");
+		FileUtils.delete(dir);
+		DepotConfig config = new DepotConfig().setDir(dir);
+		config.deltas = true;
+		// these test artifacts are tiny -- so only compact by count
+		config.deltaMaxRatio = 1000;
+		return config;
+	}
+
+	static Desc<Map> desc(String name) {
+		Desc<Map> d = new Desc(name, Map.class);
+		d.setTag("test");
+		d.setServer(Desc.LOCAL_SERVER);
+		return d;
+	}
+
+	static Map<String, Double> counts(double a, double b) {
+		Map<String, Double> m = new HashMap();
+		m.put("a", a);
+		m.put("b", b);
+		return m;
+	}
+
+	@Test
+	public void testDiffsReplayedOnLoad() throws Exception {
+		FileStore fs = new FileStore(newConfig());
+		Merger merger = new Merger();
+		Desc<Map> desc = desc("replay");
+		fs.put(desc, counts(1, 1));
+		File snapshot = fs.getLocalPath(desc);
+		long snapshotSize = snapshot.length();
+
+		assert fs.putDiff(desc, counts(2, 1), merger.diff(counts(1, 1), counts(2, 1)));
+		assert fs.putDiff(desc, counts(2, 5), merger.diff(counts(2, 1), counts(2, 5)));
+		// no change = nothing to do
+		assert fs.putDiff(desc, counts(2, 5), null);
+
+		assertEquals(snapshotSize, snapshot.length());
+		DeltaLog log = new DeltaLog(snapshot);
+		assertEquals(2, log.count());
+		assertEquals(counts(2, 5), fs.get(desc("replay")));
+
+		// a full put replaces the diffs
+		fs.put(desc, counts(7, 7));
+		assert ! log.exists();
+		assertEquals(counts(7, 7), fs.get(desc("replay")));
+	}
+
+	@Test
+	public void testNoSnapshotNoDiff() throws Exception {
+		FileStore fs = new FileStore(newConfig());
+		Diff diff = new Merger().diff(counts(1, 1), counts(2, 1));
+		assert ! fs.putDiff(desc("new"), counts(2, 1), diff);
+	}
+
+	@Test
+	public void testCompaction() throws Exception {
+		DepotConfig config = newConfig();
+		config.deltaMaxCount = 3;
+		FileStore fs = new FileStore(config);
+		Merger merger = new Merger();
+		Desc<Map> desc = desc("compact");
+		fs.put(desc, counts(0, 0));
+		for (int i = 1; i <= 3; i++) {
+			fs.putDiff(desc, counts(i, 0), merger.diff(counts(i - 1, 0), counts(i, 0)));
+		}
+		FileStore.awaitCompactions();
+		DeltaLog log = new DeltaLog(fs.getLocalPath(desc));
+		assert ! log.exists();
+		assertEquals(counts(3, 0), fs.get(desc("compact")));
+	}
+
+	@Test
+	public void testIncompleteRecordIgnored() throws Exception {
+		FileStore fs = new FileStore(newConfig());
+		Merger merger = new Merger();
+		Desc<Map> desc = desc("torn");
+		fs.put(desc, counts(1, 1));
+		fs.putDiff(desc, counts(2, 1), merger.diff(counts(1, 1), counts(2, 1)));
+		File f = new DeltaLog(fs.getLocalPath(desc)).file;
+		// a crash half way through an append
+		try (FileOutputStream out = new FileOutputStream(f, true)) {
+			out.write(new byte[] {0, 0, 1, 0, '<', 'D'});
+		}
+		assertEquals(counts(2, 1), fs.get(desc("torn")));
+	}
+
+	@Test
+	public void testDepotUpdate() throws Exception {
+		DepotConfig config = newConfig();
+		config.writeBehind = new Dt(10, TUnit.MILLISECOND);
+		Depot depot = Depot.newInstance("DeltaLogTest", config);
+		Desc<Map> desc = desc("update" + Utils.getRandomString(4));
+		Map<String, Double> m = counts(1, 1);
+		depot.put(desc, m);
+		depot.flush();
+		File snapshot = depot.getLocalPath(desc);
+		String xml = FileUtils.read(snapshot);
+
+		desc.markForMerge();
+		m.put("a", 10.0);
+		depot.update(desc, m);
+		depot.flush();
+
+		// the snapshot was not re-written: the edit is in the log
+		assertEquals(xml, FileUtils.read(snapshot));
+		assert new DeltaLog(snapshot).exists();
+		FileStore fs = new FileStore(config);
+		Desc<Map> desc2 = new Desc(desc);
+		assertEquals(counts(10, 1), fs.get(desc2));
+		depot.close();
+	}
+}
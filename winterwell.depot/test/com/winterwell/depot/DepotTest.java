@@ -51,6 +51,52 @@ public class DepotTest {
 		assert Desc.descCache.getArtifact(desc) == null;
 	}
 
+	@Test
+	public void testGetFastPath() throws InterruptedException {
+		Depot depot = Depot.getDefault();
+		List<String> list1 = new ArrayList(Arrays.asList("a","b"));
+		String name = "fastpath"+Utils.getRandomString(4);
+		Desc desc = new Desc(name, List.class);
+		desc.setTag("test");
+		depot.put(desc, list1);
+		long bound = depot.getStats().get("hit_bound");
+		long cached = depot.getStats().get("hit_cached");
+
+		assert depot.get(desc) == list1;
+		assert depot.getStats().get("hit_bound") > bound;
+
+		// A fresh equals() desc is served from the DescCache -- and bound
+		Desc desc2 = new Desc(name, List.class);
+		desc2.setTag("test");
+		assert desc2.getBoundValue() == null;
+		assert depot.get(desc2) == list1;
+		assert desc2.getBoundValue() == list1;
+		assert depot.getStats().get("hit_cached") > cached;
+
+		// lots of threads at once
+		AtomicInteger wrong = new AtomicInteger();
+		List<Thread> threads = new ArrayList();
+		for(int t=0; t<8; t++) {
+			Thread th = new Thread(() -> {
+				for(int i=0; i<10000; i++) {
+					Desc d = new Desc(name, List.class);
+					d.setTag("test");
+					if (depot.get(d) != list1) wrong.incrementAndGet();
+				}
+			});
+			th.start();
+			threads.add(th);
+		}
+		for (Thread th : threads) th.join();
+		assert wrong.get() == 0 : wrong;
+
+		// After a remove, the fast path must not serve the old value
+		depot.remove(desc);
+		Desc desc3 = new Desc(name, List.class);
+		desc3.setTag("test");
+		assert depot.get(desc3) == null;
+	}
+
 //	@Test This is really a test of remote fetching, not core depot code
 	public void testMediumSizeFile() throws InterruptedException {
 		Depot depot = Depot.getDefault();
@@ -0,0 +1,151 @@
+package com.winterwell.depot;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.winterwell.utils.io.FileUtils;
+
+public class KeyIndexTest {
+
+	static FileStore newFileStore(boolean keyIndex) throws Exception {
+		File dir = File.createTempFile("keyindex", "");
+		FileUtils.delete(dir);
+		DepotConfig config = new DepotConfig().setDir(dir);
+		config.keyIndex = keyIndex;
+		return new FileStore(config);
+	}
+
+	static Desc<String> desc(String name, int a) {
+		Desc<String> d = new Desc(name, String.class);
+		d.setTag("test");
+		d.put("a", a);
+		return d;
+	}
+
+	@Test
+	public void testPutRemoveLoadKeys() throws Exception {
+		FileStore fs = newFileStore(true);
+		for (int i = 0; i < 20; i++) {
+			fs.put(desc("n" + i, i % 2), "artifact" + i);
+		}
+		Desc<String> partial = new Desc(null, String.class);
+		partial.setTag("test");
+		partial.put("a", 1);
+		Set<Desc> odd = fs.loadKeys(partial);
+		assertEquals(10, odd.size());
+		assert odd.contains(desc("n3", 1));
+
+		assert fs.contains(desc("n3", 1));
+		fs.remove(desc("n3", 1));
+		assert ! fs.contains(desc("n3", 1));
+		assertEquals(9, fs.loadKeys(partial).size());
+		assertEquals(null, fs.getMetaData2(desc("n3", 1)));
+		assertEquals(desc("n5", 1), fs.getMetaData2(desc("n5", 1)).getDesc());
+
+		// reload from disk
+		KeyIndex ki = fs.getKeyIndex(partial);
+		KeyIndex ki2 = new KeyIndex(ki.file, () -> { throw new AssertionError("should not walk"); });
+		assertEquals(19, ki2.size());
+		assert ! ki2.contains(desc("n3", 1).getId());
+	}
+
+	@Test
+	public void testBuildFromExistingDepot() throws Exception {
+		// an old depot, with no index
+		FileStore old = newFileStore(false);
+		for (int i = 0; i < 5; i++) {
+			old.put(desc("n" + i, i), "artifact" + i);
+		}
+		DepotConfig config = new DepotConfig().setDir(old.getDepotDir());
+		FileStore fs = new FileStore(config);
+		Desc<String> partial = new Desc(null, String.class);
+		partial.setTag("test");
+		assertEquals(5, fs.loadKeys(partial).size());
+		assert new File(fs.getDepotDir(), FileStore.KEY_INDEX_DIR).isDirectory();
+	}
+
+	@Test
+	public void testTornWrite() throws Exception {
+		FileStore fs = newFileStore(true);
+		fs.put(desc("x", 1), "x");
+		File f = fs.getKeyIndex(desc("x", 1)).file;
+		// a crash half way through a record
+		try (FileOutputStream out = new FileOutputStream(f, true)) {
+			out.write(new byte[] {0, 0, 1, 0, 1, 2});
+		}
+		KeyIndex ki = new KeyIndex(f, () -> { throw new AssertionError(); });
+		assertEquals(1, ki.size());
+		ki.put(fs.getMetaData(desc("y", 1)));
+		KeyIndex ki2 = new KeyIndex(f, () -> { throw new AssertionError(); });
+		assertEquals(2, ki2.size());
+	}
+
+	/**
+	 * Another index on the same file replaces it (as compact and rebuild do)
+	 */
+	@Test
+	public void testFileReplacedByAnother() throws Exception {
+		FileStore fs = newFileStore(true);
+		for (int i = 0; i < 20; i++) {
+			fs.put(desc("n" + i, i % 2), "artifact" + i);
+		}
+		File f = fs.getKeyIndex(desc("n0", 0)).file;
+		KeyIndex other = new KeyIndex(f, () -> { throw new AssertionError("should not walk"); });
+		assertEquals(20, other.size());
+
+		List<MetaData> few = Arrays.asList(fs.getMetaData(desc("n0", 0)), fs.getMetaData(desc("n1", 1)));
+		new KeyIndex(f, () -> few).rebuild();
+		assertEquals(2, other.size());
+		assert other.contains(desc("n1", 1).getId());
+		assert ! other.contains(desc("n5", 1).getId());
+
+		// and appends to the new file are picked up
+		for (int i = 20; i < 60; i++) {
+			fs.put(desc("n" + i, i % 2), "artifact" + i);
+		}
+		assertEquals(42, other.size());
+	}
+
+	/**
+	 * Re-saves leave dead records -- these get compacted as we go, not just on load.
+	 */
+	@Test
+	public void testCompactOnAppend() throws Exception {
+		int old = KeyIndex.COMPACT_MIN;
+		KeyIndex.COMPACT_MIN = 10;
+		try {
+			FileStore fs = newFileStore(true);
+			fs.put(desc("keep", 1), "x");
+			Desc<String> busy = desc("busy", 1);
+			fs.put(busy, "v0");
+			KeyIndex ki = fs.getKeyIndex(busy);
+			long len = ki.file.length();
+			for (int i = 1; i < 100; i++) {
+				fs.put(busy, "v" + i);
+			}
+			assert ki.file.length() < len * 10 : ki.file.length() + " v " + len;
+			assertEquals(2, ki.size());
+			KeyIndex ki2 = new KeyIndex(ki.file, () -> { throw new AssertionError("should not walk"); });
+			assertEquals(2, ki2.size());
+			assert ki2.contains(busy.getId());
+		} finally {
+			KeyIndex.COMPACT_MIN = old;
+		}
+	}
+
+	@Test
+	public void testContainsChecksTheFile() throws Exception {
+		FileStore fs = newFileStore(true);
+		fs.put(desc("gone", 1), "x");
+		assert fs.contains(desc("gone", 1));
+		FileUtils.delete(fs.getLocalPath(desc("gone", 1)));
+		assert ! fs.contains(desc("gone", 1));
+	}
+}
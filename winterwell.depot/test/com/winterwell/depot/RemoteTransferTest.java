@@ -0,0 +1,192 @@
+package com.winterwell.depot;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.io.FileUtils;
+
+public class RemoteTransferTest {
+
+	/**
+	 * The loopback stand-in, counting the chunks it sends
+	 */
+	static class CountingTransport implements RemoteTransport {
+		final LocalTransport base = new LocalTransport();
+		final AtomicInteger reads = new AtomicInteger();
+		final AtomicInteger writes = new AtomicInteger();
+
+		@Override
+		public Stat stat(String userAtHost, File remotePath) {
+			return base.stat(userAtHost, remotePath);
+		}
+		@Override
+		public byte[] read(String userAtHost, File remotePath, long offset, int len) {
+			reads.incrementAndGet();
+			return base.read(userAtHost, remotePath, offset, len);
+		}
+		@Override
+		public void write(String userAtHost, File remotePath, long offset, byte[] bytes) {
+			writes.incrementAndGet();
+			base.write(userAtHost, remotePath, offset, bytes);
+		}
+		@Override
+		public void rename(String userAtHost, File from, File to) {
+			base.rename(userAtHost, from, to);
+		}
+		@Override
+		public void delete(String userAtHost, File remotePath) {
+			base.delete(userAtHost, remotePath);
+		}
+		@Override
+		public List<String> list(String userAtHost, File remoteDir) {
+			return base.list(userAtHost, remoteDir);
+		}
+	}
+
+	static File newDir(String name) throws Exception {
+		File dir = File.createTempFile(name, "");
+		FileUtils.delete(dir);
+		dir.mkdirs();
+		return dir;
+	}
+
+	@Test
+	public void testFetchSkipsUpToDate() throws Exception {
+		File src = new File(newDir("peer"), "a/b.txt");
+		src.getParentFile().mkdirs();
+		FileUtils.write(src, Utils.getRandomString(10000));
+		File local = new File(newDir("node"), "x/b.txt");
+		RemoteTransfer rt = new RemoteTransfer(new LocalTransport(), 2);
+		rt.chunkSize = 1000;
+
+		assert rt.fetch("me@peer", src, local);
+		assertEquals(FileUtils.read(src), FileUtils.read(local));
+		assert ! rt.fetch("me@peer", src, local);
+		assertEquals(1L, rt.skipped.sum());
+
+		FileUtils.write(src, "edited");
+		assert rt.fetch("me@peer", src, local);
+		assertEquals("edited", FileUtils.read(local));
+		// no leftovers
+		assertEquals(1, local.getParentFile().list().length);
+	}
+
+	@Test
+	public void testFetchResumes() throws Exception {
+		File src = new File(newDir("peer"), "b.txt");
+		String txt = Utils.getRandomString(10000);
+		FileUtils.write(src, txt);
+		File local = new File(newDir("node"), "b.txt");
+		CountingTransport ct = new CountingTransport();
+		RemoteTransfer rt = new RemoteTransfer(ct, 2);
+		rt.chunkSize = 1000;
+
+		// an interrupted earlier fetch
+		File part = new File(local.getPath()+"."+RemoteTransfer.md5(src)+RemoteTransfer.PART);
+		FileUtils.write(part, txt.substring(0, 3000));
+		assert rt.fetch("me@peer", src, local);
+		assertEquals(txt, FileUtils.read(local));
+		assertEquals(7, ct.reads.get());
+		assertEquals(1L, rt.resumed.sum());
+		assert ! part.exists();
+
+		// a corrupt part: caught by the checksum, and re-done
+		FileUtils.write(part, "garbage");
+		FileUtils.delete(local);
+		assert rt.fetch("me@peer", src, local);
+		assertEquals(txt, FileUtils.read(local));
+	}
+
+	@Test
+	public void testUploadResumes() throws Exception {
+		File src = new File(newDir("node"), "c.txt");
+		String txt = Utils.getRandomString(10000);
+		FileUtils.write(src, txt);
+		File remote = new File(newDir("peer"), "y/c.txt");
+		CountingTransport ct = new CountingTransport();
+		RemoteTransfer rt = new RemoteTransfer(ct, 2);
+		rt.chunkSize = 1000;
+
+		File part = new File(remote.getPath()+"."+RemoteTransfer.md5(src)+RemoteTransfer.PART);
+		part.getParentFile().mkdirs();
+		FileUtils.write(part, txt.substring(0, 4000));
+		assert rt.upload("me@peer", src, remote);
+		assertEquals(txt, FileUtils.read(remote));
+		assertEquals(6, ct.writes.get());
+		assert ! part.exists();
+		// up to date
+		assert ! rt.upload("me@peer", src, remote);
+		assertEquals(6, ct.writes.get());
+	}
+
+	@Test
+	public void testUploadRestartsIfResumeRefused() throws Exception {
+		File src = new File(newDir("node"), "d.txt");
+		String txt = Utils.getRandomString(10000);
+		FileUtils.write(src, txt);
+		File remote = new File(newDir("peer"), "d.txt");
+		File part = new File(remote.getPath()+"."+RemoteTransfer.md5(src)+RemoteTransfer.PART);
+		FileUtils.write(part, txt.substring(0, 4000));
+		// the part grows (e.g. another uploader) between the stat and the append
+		CountingTransport ct = new CountingTransport() {
+			@Override
+			public Stat stat(String userAtHost, File remotePath) {
+				Stat s = super.stat(userAtHost, remotePath);
+				if (s!=null && remotePath.equals(part) && writes.get()==0) {
+					return new Stat(2000, s.md5);
+				}
+				return s;
+			}
+		};
+		RemoteTransfer rt = new RemoteTransfer(ct, 2);
+		rt.chunkSize = 1000;
+		assert rt.upload("me@peer", src, remote);
+		assertEquals(txt, FileUtils.read(remote));
+		// one refused append, then 10 from the start
+		assertEquals(11, ct.writes.get());
+	}
+
+	@Test
+	public void testPrefetchWarmsNewNode() throws Exception {
+		File peerDir = newDir("peer");
+		FileStore peer = new FileStore(new DepotConfig().setDir(peerDir));
+		for (int i = 0; i < 20; i++) {
+			peer.put(desc("warm" + i, i % 2), "artifact " + i);
+		}
+		DepotConfig config = new DepotConfig().setDir(newDir("node"));
+		config.remoteMount = peerDir;
+		RemoteStore node = new RemoteStore(config);
+
+		Desc<String> partial = new Desc(null, String.class);
+		partial.setTag("test");
+		partial.setServer("peer.example.com");
+		partial.put("a", 1);
+		Set<Desc> got = node.prefetch(partial);
+		assertEquals(10, got.size());
+		assert got.contains(desc("warm3", 1));
+		assertEquals(10, node.getLocalStore().loadKeys(partial).size());
+		assertEquals("artifact 3", node.getLocalStore().get(desc("warm3", 1)));
+		assertEquals(null, node.getLocalStore().get(desc("warm4", 0)));
+		assert ! new File(node.getLocalPath(desc("warm4", 0)).getPath()+".meta").exists();
+
+		// again: the ones we have are not copied
+		long skipped = node.getStats().get("skipped");
+		assertEquals(10, node.prefetch(partial).size());
+		assertEquals(skipped + 20, (long) node.getStats().get("skipped"));
+	}
+
+	static Desc<String> desc(String name, int a) {
+		Desc<String> d = new Desc(name, String.class);
+		d.setTag("test");
+		d.setServer("peer.example.com");
+		d.put("a", a);
+		return d;
+	}
+}
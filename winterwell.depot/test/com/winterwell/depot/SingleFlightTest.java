@@ -0,0 +1,134 @@
+package com.winterwell.depot;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.io.FileUtils;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.TUnit;
+
+public class SingleFlightTest {
+
+	static Depot newDepot(double refreshAhead) throws Exception {
+		File dir = File.createTempFile("singleflight", "");
+		FileUtils.delete(dir);
+		DepotConfig config = new DepotConfig().setDir(dir);
+		config.refreshAhead = refreshAhead;
+		return Depot.newInstance("SingleFlightTest", config);
+	}
+
+	@Test
+	public void testMissStormComputesOnce() throws Exception {
+		Depot depot = newDepot(0);
+		String salt = Utils.getRandomString(4);
+		AtomicInteger calls = new AtomicInteger();
+		ExecutorService exec = Executors.newFixedThreadPool(20);
+		Future<String>[] futures = new Future[20];
+		for (int i = 0; i < futures.length; i++) {
+			futures[i] = exec.submit(() -> {
+				Desc<String> desc = new Desc("storm" + salt, String.class);
+				desc.setTag("test");
+				return depot.getWithFactory(desc, () -> {
+					calls.incrementAndGet();
+					Utils.sleep(200);
+					return "artifact " + salt;
+				});
+			});
+		}
+		String first = futures[0].get();
+		for (Future<String> f : futures) {
+			assert f.get() == first;
+		}
+		exec.shutdown();
+		exec.awaitTermination(1, TimeUnit.SECONDS);
+		assertEquals(1, calls.get());
+		Map<String, Long> stats = depot.getStats();
+		assertEquals(1L, (long) stats.get("computed"));
+		assert stats.get("coalesced") > 0 : stats;
+		depot.close();
+	}
+
+	@Test
+	public void testFailureIsShared() throws Exception {
+		Depot depot = newDepot(0);
+		Desc<String> desc = new Desc("fail" + Utils.getRandomString(4), String.class);
+		desc.setTag("test");
+		try {
+			depot.getWithFactory(desc, () -> {
+				throw new IllegalStateException("boom");
+			});
+			assert false;
+		} catch (IllegalStateException ex) {
+			// expected
+		}
+		// not cached -- so the next call tries again
+		assertEquals("ok", depot.getWithFactory(desc, () -> "ok"));
+		depot.close();
+	}
+
+	@Test
+	public void testRefreshAhead() throws Exception {
+		Depot depot = newDepot(0.5);
+		String salt = Utils.getRandomString(4);
+		AtomicInteger calls = new AtomicInteger();
+		Desc<String> desc = new Desc("refresh" + salt, String.class);
+		desc.setTag("test");
+		desc.setMaxAge(new Dt(400, TUnit.MILLISECOND));
+		String v1 = depot.getWithFactory(desc, () -> "v" + calls.incrementAndGet());
+		assertEquals("v1", v1);
+		// fresh: no recompute
+		assertEquals("v1", depot.getWithFactory(desc, () -> "v" + calls.incrementAndGet()));
+		// old: the old value is served, and a new one made in the background
+		Utils.sleep(250);
+		assertEquals("v1", depot.getWithFactory(desc, () -> "v" + calls.incrementAndGet()));
+		for (int i = 0; i < 50 && calls.get() < 2; i++) {
+			Utils.sleep(10);
+		}
+		Utils.sleep(50);
+		assertEquals(2, calls.get());
+		Desc<String> desc2 = new Desc("refresh" + salt, String.class);
+		desc2.setTag("test");
+		assertEquals("v2", depot.get(desc2));
+		assertEquals(1L, (long) depot.getStats().get("refresh_ahead"));
+		depot.close();
+	}
+
+	/**
+	 * The thread which started a refresh-ahead comes back after expiry, while the refresh is still running:
+	 * it should wait for the refresh, not be taken for a recursive call.
+	 */
+	@Test
+	public void testExpiredDuringOwnRefresh() throws Exception {
+		Depot depot = newDepot(0.5);
+		String salt = Utils.getRandomString(4);
+		AtomicInteger calls = new AtomicInteger();
+		Desc<String> desc = new Desc("refresh2" + salt, String.class);
+		desc.setTag("test");
+		desc.setMaxAge(new Dt(200, TUnit.MILLISECOND));
+		assertEquals("v1", depot.getWithFactory(desc, () -> "v" + calls.incrementAndGet()));
+		Utils.sleep(120);
+		// old: starts a slow refresh
+		assertEquals("v1", depot.getWithFactory(desc, () -> {
+			Utils.sleep(400);
+			return "v" + calls.incrementAndGet();
+		}));
+		Utils.sleep(150);
+		// expired, with the refresh still running -- same thread
+		Desc<String> desc2 = new Desc("refresh2" + salt, String.class);
+		desc2.setTag("test");
+		desc2.setMaxAge(new Dt(200, TUnit.MILLISECOND));
+		assertEquals("v2", depot.getWithFactory(desc2, () -> "v" + calls.incrementAndGet()));
+		assertEquals(2, calls.get());
+		depot.close();
+	}
+}
@@ -0,0 +1,128 @@
+package com.winterwell.depot;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Test;
+
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.TUnit;
+
+public class SlowStorageTest {
+
+	/**
+	 * Just a map -- which records the order of puts
+	 */
+	static class MemStore implements IStore {
+		final Map<Desc, Object> map = new ConcurrentHashMap();
+		final List<Desc> puts = new CopyOnWriteArrayList();
+
+		@Override
+		public String getRaw(Desc desc) {
+			return null;
+		}
+		@Override
+		public void remove(Desc desc) {
+			map.remove(desc);
+		}
+		@Override
+		public void flush() {
+		}
+		@Override
+		public boolean contains(Desc desc) {
+			return map.containsKey(desc);
+		}
+		@Override
+		public <X> void put(Desc<X> desc, X artifact) {
+			map.put(desc, artifact);
+			puts.add(desc);
+		}
+		@Override
+		public <X> X get(Desc<X> desc) {
+			return (X) map.get(desc);
+		}
+		@Override
+		public Set<Desc> loadKeys(Desc partialDesc) {
+			return Collections.EMPTY_SET;
+		}
+		@Override
+		public MetaData getMetaData(Desc desc) {
+			return null;
+		}
+		@Override
+		public File getLocalPath(Desc desc) {
+			return null;
+		}
+	}
+
+	static Desc<double[]> desc(int i) {
+		Desc<double[]> d = new Desc("SlowStorageTest" + i, double[].class);
+		d.setTag("test");
+		return d;
+	}
+
+	@Test
+	public void testOverBudgetSavesOldestEarly() {
+		MemStore base = new MemStore();
+		// a long delay -- so only the budget will trigger saves
+		SlowStorage ss = new SlowStorage(base, new Dt(1, TUnit.HOUR), null, 2);
+		ss.setMaxBytes(500000);
+		for (int i = 0; i < 10; i++) {
+			ss.put(desc(i), new double[10000]); // ~80k each
+			Utils.sleep(2); // so they have different dirty times
+		}
+		for (int i = 0; i < 100 && base.puts.size() < 4; i++) {
+			Utils.sleep(20);
+		}
+		// the oldest went early
+		assert base.contains(desc(0)) : base.puts;
+		assert base.contains(desc(1)) : base.puts;
+		assert ! base.contains(desc(9)) : base.puts;
+		assert ss.pendingBytes.get() <= 500000 : ss.getStats();
+		Map<String, Long> stats = ss.getStats();
+		assert stats.get("early_saves") > 0 : stats;
+		assertEquals(stats.get("saves"), (Long) (long) base.puts.size());
+		// and the rest get saved on flush
+		ss.flush();
+		assertEquals(10, base.map.size());
+		assertEquals(0, ss.pendingBytes.get());
+	}
+
+	@Test
+	public void testLastPutWinsPerKey() {
+		MemStore base = new MemStore();
+		SlowStorage ss = new SlowStorage(base, new Dt(1, TUnit.MILLISECOND), null, 4);
+		for (int v = 0; v < 200; v++) {
+			for (int i = 0; i < 10; i++) {
+				ss.put(desc(i), new double[] {v});
+			}
+		}
+		for (int i = 0; i < 200 && ss.getStats().get("pending") > 0; i++) {
+			Utils.sleep(20);
+		}
+		ss.flush();
+		for (int i = 0; i < 10; i++) {
+			assertEquals(199, ((double[]) base.get(desc(i)))[0], 0);
+		}
+		assertEquals(0, ss.pendingBytes.get());
+	}
+
+	@Test
+	public void testEstimateSize() {
+		assertEquals(16 + 8000, SizeEstimator.estimate(new double[1000]));
+		assert SizeEstimator.estimate(Collections.nCopies(100, "hello")) > 100;
+		// big lists are extrapolated, not walked in full
+		List<Object> big = new java.util.ArrayList();
+		for (int i = 0; i < 100000; i++) big.add(new double[10]);
+		long bytes = SizeEstimator.estimate(big);
+		assert bytes > 100000L * 80 && bytes < 100000L * 200 : bytes;
+	}
+}
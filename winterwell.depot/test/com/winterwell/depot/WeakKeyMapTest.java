@@ -0,0 +1,85 @@
+package com.winterwell.depot;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class WeakKeyMapTest {
+
+	@Test
+	public void testIdentityVsEquals() {
+		WeakKeyMap<Object, String> byId = new WeakKeyMap(true);
+		WeakKeyMap<Object, String> byEq = new WeakKeyMap(false);
+		String a = new String("hello");
+		String b = new String("hello");
+		byId.put(a, "A");
+		byEq.put(a, "A");
+		assertEquals("A", byId.get(a));
+		assertEquals(null, byId.get(b));
+		assertEquals("A", byEq.get(b));
+
+		assertEquals("A", byEq.put(b, "B"));
+		assertEquals(1, byEq.size());
+		assertEquals("B", byEq.get(a));
+		assertEquals("B", byEq.remove(a));
+		assertEquals(null, byEq.get(b));
+		assertEquals(0, byEq.size());
+		// null keys are allowed for get and remove (as DescCache.unbind() does)
+		assertEquals(null, byEq.get(null));
+		assertEquals(null, byId.remove(null));
+	}
+
+	@Test
+	public void testCollectedKeysAreCleaned() throws InterruptedException {
+		WeakKeyMap<Object, String> map = new WeakKeyMap(true);
+		List<Object> keep = new ArrayList();
+		for (int i = 0; i < 1000; i++) {
+			Object k = new Object();
+			map.put(k, "v" + i);
+			if (i % 10 == 0) keep.add(k);
+		}
+		assertEquals(1000, map.size());
+		for (int i = 0; i < 50 && map.size() > keep.size(); i++) {
+			System.gc();
+			Thread.sleep(20);
+		}
+		assertEquals(keep.size(), map.size());
+		for (Object k : keep) {
+			assert map.get(k) != null;
+		}
+		AtomicInteger cnt = new AtomicInteger();
+		map.forEach((k, v) -> cnt.incrementAndGet());
+		assertEquals(keep.size(), cnt.get());
+	}
+
+	@Test
+	public void testConcurrentPutGet() throws InterruptedException {
+		WeakKeyMap<Object, Integer> map = new WeakKeyMap(false);
+		// held here, so the keys stay alive (interning alone doesn't: the string table is weak)
+		String[] keys = new String[100];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = "k" + i;
+		}
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			final int tn = t;
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < 10000; i++) {
+					String k = keys[i % keys.length];
+					map.put(k, tn);
+					map.get(k);
+					if (i % 7 == 0) map.remove(k);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assert map.size() <= 100 : map.size();
+	}
+}
@@ -49,6 +49,39 @@ public class DataLogConfig extends DBOptions implements IInit, ISiteConfig {
 	
 	public int maxDataPoints = 10000;
 
+	@Option(description="ESStorage: send a _bulk request once a batch has this many items")
+	public int bulkMaxActions = 1000;
+	
+	@Option(description="ESStorage: send a _bulk request once a batch is roughly this many bytes")
+	public long bulkMaxBytes = 5*1024*1024;
+	
+	@Option(description="ESStorage: max concurrent _bulk requests. Beyond this, saves wait.")
+	public int bulkMaxInFlight = 4;
+	
+	@Option(description="ESStorage: how many times to retry failed _bulk items (e.g. on 429 too-many-requests)")
+	public int bulkRetries = 3;
+
+	@Option(description="LgServlet: if >0, /lg replies at once and this many worker threads do the parsing, file-logging and storage. 0 = do it all on the request thread.")
+	public int ingestThreads = 0;
+
+	@Option(description="LgServlet: max queued /lg events when ingestThreads>0. Beyond this, events are dropped (and counted).")
+	public int ingestQueueSize = 64*1024;
+
+	@Option(description="LgServlet: max number of parsed user-agents to cache")
+	public int uaCacheSize = 10000;
+
+	@Option(description="LgServlet: how long to cache a parsed user-agent for")
+	public Dt uaCacheTTL = TUnit.HOUR.dt;
+
+	@Option(description="LgServlet: url (or local file) for the bot-IP list, in Portal's /botip/_list.json format")
+	public String botIPSource = "https://portal.good-loop.com/botip/_list.json";
+
+	@Option(description="LgServlet: how often to re-fetch the bot-IP list")
+	public Dt botIPRefresh = new Dt(10, TUnit.MINUTE);
+
+	@Option(description="DataServlet: max number of cached /data results (for time windows which are fully in the past)")
+	public int dataCacheSize = 1000;
+
 	/**
 	 * Bucket size. Also the gap between saves.
 	 */
@@ -72,6 +105,10 @@ public class DataLogConfig extends DBOptions implements IInit, ISiteConfig {
 	public List<String> namespaceConfigs = Arrays.asList("default", "gl");
 
 	public Dt filePeriod = TUnit.DAY.dt;
+
+	@Option(description="ColumnarStorage: directory for the segment files (one sub-directory per namespace). "
+			+ "If unset, datalog-columnar in the Depot directory, alongside CSVStorage's files.")
+	public File columnarDir;
 	
 	@Option
 	public Class storageClass;
@@ -101,9 +138,45 @@ public class DataLogConfig extends DBOptions implements IInit, ISiteConfig {
 
 	Map<String, Object> tagHandlers = new HashMap();
 
+	@Option(description="StatReqs made within this window of each other are fetched together, in one query per storage")
+	public Dt statReqBatchWindow = new Dt(10, TUnit.MILLISECOND);
+
+	@Option(description="If set, counts are also written to a memory-mapped journal here, which is replayed on restart. This makes a long interval safe.")
+	public File journalDir;
+
+	@Option(description="Journal: how often to force the journal to disk (it survives a JVM crash regardless)")
+	public Dt journalCheckpoint = new Dt(1, TUnit.SECOND);
+
+	@Option(description="Journal: the file is mapped (and grows) in chunks of this many bytes")
+	public int journalChunkSize = 8*1024*1024;
+
 	@Option
 	public boolean noCallbacks;
 
+	@Option(description="CallbackManager: max concurrent POSTs per callback url")
+	public int callbackThreads = 2;
+
+	@Option(description="CallbackManager: max queued events per callback url. Beyond this, events go to the dead-letter file.")
+	public int callbackQueueSize = 10000;
+
+	@Option(description="CallbackManager: POST the adserver webhook's events as json arrays. Only set this if the receiver accepts them.")
+	public boolean callbackBatch;
+
+	@Option(description="CallbackManager: max events per POST, for callbacks which accept batches")
+	public int callbackBatchSize = 50;
+
+	@Option(description="CallbackManager: how many times to retry a failed POST (with exponential backoff)")
+	public int callbackRetries = 5;
+
+	@Option(description="CallbackManager: delay before the first retry. This doubles with each retry.")
+	public Dt callbackRetryDelay = new Dt(1, TUnit.SECOND);
+
+	@Option(description="CallbackManager: timeout for a callback POST")
+	public Dt callbackTimeout = new Dt(10, TUnit.SECOND);
+
+	@Option(description="CallbackManager: undeliverable events are appended here (one json per line)")
+	public File callbackDeadLetterFile = new File(FileUtils.getWorkingDirectory(), "callbacks-dead.txt");
+
 	
 	@Option(description="Switch off logging of system stats such as mem_free, cpu_java, etc")
 	public boolean noSystemStats;
@@ -162,7 +162,9 @@ public final class Desc<X> implements IProperties, Serializable, Comparable<Desc
 	@Deprecated // When we simplify Desc, this will likely go.
 	public static enum KSerialiser {
 		JAVA, 
-		/** The default, ie null = XStream */ XSTREAM
+		/** The default, ie null = XStream */ XSTREAM,
+		/** Compact binary, for big numeric artifacts. See BinarySerialiser in winterwell.depot */
+		BINARY
 	}
 
 	/**
@@ -429,8 +431,12 @@ public final class Desc<X> implements IProperties, Serializable, Comparable<Desc
 		// save format
 		if (ser == KSerialiser.JAVA)
 			sb.append(".ser");
-		if (gzip)
+		if (ser == KSerialiser.BINARY) {
+			// its compression is deflate, inside the format -- not gzip
+			sb.append(gzip? ".binz" : ".bin");
+		} else if (gzip) {
 			sb.append(".gz");
+		}
 		id = sb.toString();		
 		return id;
 	}
@@ -664,6 +670,18 @@ public final class Desc<X> implements IProperties, Serializable, Comparable<Desc
 		}
 	}
 
+	/**
+	 * @deprecated When we simplify Desc, this will likely go.
+	 * @param ser How the artifact is saved. null for the default (XStream).
+	 * This is part of the id.
+	 */
+	@Deprecated
+	public Desc<X> setSerialiser(KSerialiser ser) {
+		checkUnset();
+		this.ser = ser;
+		return this;
+	}
+
 	/**
 	 * @param tag
 	 *            Typically the Eclipse project name
@@ -0,0 +1,135 @@
+package com.winterwell.utils.containers;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free, multi-producer multi-consumer queue.
+ * <p>
+ * Each slot carries a sequence number which says whether it is ready to be written
+ * (seq == position) or read (seq == position+1), so producers and consumers only ever
+ * race on a compare-and-set of the tail or head counter. Nothing is allocated per item.
+ * <p>
+ * When full, {@link #offer(Object)} fails fast rather than blocking -- the caller decides
+ * whether to drop or retry.
+ *
+ * @testedby {@link RingBufferTest}
+ * @author daniel
+ */
+public final class RingBuffer<X> {
+
+	private final int mask;
+	private final AtomicReferenceArray<X> items;
+	private final AtomicLongArray seqs;
+	/**
+	 * next position to read
+	 */
+	private final AtomicLong head = new AtomicLong();
+	/**
+	 * next position to write
+	 */
+	private final AtomicLong tail = new AtomicLong();
+
+	/**
+	 * @param capacity Rounded up to a power of 2 (and at least 2, which the sequence scheme needs).
+	 */
+	public RingBuffer(int capacity) {
+		assert capacity > 0 : capacity;
+		int n = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+		mask = n - 1;
+		items = new AtomicReferenceArray<X>(n);
+		seqs = new AtomicLongArray(n);
+		for (int i = 0; i < n; i++) {
+			seqs.set(i, i);
+		}
+	}
+
+	/**
+	 * @param x Must not be null
+	 * @return false if the buffer is full
+	 */
+	public boolean offer(X x) {
+		assert x != null;
+		long pos = tail.get();
+		while (true) {
+			int i = (int) (pos & mask);
+			long dif = seqs.get(i) - pos;
+			if (dif == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					items.lazySet(i, x);
+					// publish
+					seqs.set(i, pos + 1);
+					return true;
+				}
+			} else if (dif < 0) {
+				// the slot still holds an item from the last lap
+				return false;
+			}
+			pos = tail.get();
+		}
+	}
+
+	/**
+	 * @return the oldest item, or null if empty
+	 */
+	public X poll() {
+		long pos = head.get();
+		while (true) {
+			int i = (int) (pos & mask);
+			long dif = seqs.get(i) - (pos + 1);
+			if (dif == 0) {
+				if (head.compareAndSet(pos, pos + 1)) {
+					X x = items.get(i);
+					items.lazySet(i, null);
+					// free the slot for the next lap
+					seqs.set(i, pos + mask + 1);
+					return x;
+				}
+			} else if (dif < 0) {
+				// not written yet
+				return null;
+			}
+			pos = head.get();
+		}
+	}
+
+	/**
+	 * Poll up to max items into out.
+	 * @param out
+	 * @param max
+	 * @return the number of items added
+	 */
+	public int drainTo(Collection<? super X> out, int max) {
+		int n = 0;
+		while (n < max) {
+			X x = poll();
+			if (x == null) break;
+			out.add(x);
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * @return approximate number of items. Only exact if nothing is being added or removed.
+	 */
+	public int size() {
+		long s = tail.get() - head.get();
+		return (int) Math.max(0, Math.min(s, capacity()));
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	public int capacity() {
+		return mask + 1;
+	}
+
+	@Override
+	public String toString() {
+		return "RingBuffer[" + size() + "/" + capacity() + "]";
+	}
+}
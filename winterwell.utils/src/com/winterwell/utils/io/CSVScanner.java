@@ -0,0 +1,558 @@
+package com.winterwell.utils.io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Function;
+
+import com.winterwell.utils.Printer;
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.containers.IOneShot;
+
+/**
+ * A fast, low-garbage CSV reader for big files. It follows the same rules as {@link CSVReader}
+ * (quotes can open & close anywhere in a field, "" inside quotes is a quote, comment lines are skipped).
+ * <p>
+ * How it differs from CSVReader:
+ * <ul>
+ * <li>It reads in large blocks, and scans each block for the next special character -- rather than
+ * a char at a time. Files are memory-mapped (and must be UTF-8).
+ * <li>{@link #next()} returns the same {@link Row} each time, and its fields are views into the buffer.
+ * These are only valid until the following next() -- use {@link Row#toArray()} or toString() to keep them.
+ * <li>\n, \r\n and \r are all line-ends.
+ * <li>Every record is returned, whatever its length (CSVReader's bad-record policy is not applied).
+ * <li>{@link #parallel(File, CSVSpec, Function)} splits a file into chunks, which are parsed in parallel.
+ * </ul>
+ *
+ * @testedby {@link CSVScannerTest}
+ * @author daniel
+ */
+public class CSVScanner implements Closeable, IOneShot {
+
+	private static final int DEFAULT_BUFFER = 64 * 1024;
+
+	/**
+	 * Don't bother splitting files smaller than this
+	 */
+	static int MIN_CHUNK = 1024 * 1024;
+
+	private final Reader input;
+	private final char delimiter;
+	/**
+	 * If unset, this is \n -- which is dealt with as a line-end first, so it never acts as a quote.
+	 */
+	private final char quote;
+	private final char comment;
+
+	private char[] buf;
+	/** where the next record starts */
+	private int pos;
+	private int limit;
+	/** Everything before this can be discarded */
+	private int recordStart;
+	private boolean eof;
+
+	private final Row row = new Row();
+
+	private int lineNumber = -1;
+	private int scanLineNumber;
+	private File file;
+
+	public CSVScanner(File file, CSVSpec spec) {
+		this(new MappedReader(file, 0, file.length()), spec, DEFAULT_BUFFER);
+		this.file = file;
+	}
+
+	public CSVScanner(Reader input, CSVSpec spec) {
+		this(input, spec, DEFAULT_BUFFER);
+	}
+
+	CSVScanner(Reader input, CSVSpec spec, int bufferSize) {
+		this.input = input;
+		this.delimiter = spec.delimiter;
+		this.quote = spec.quote==CSVSpec.UNSET? '\n' : spec.quote;
+		this.comment = spec.comment;
+		this.buf = new char[Math.max(2, bufferSize)];
+	}
+
+	/**
+	 * @return the next record, or null at the end. This is the same Row object each time!
+	 */
+	public Row next() {
+		try {
+			return next2();
+		} catch (IOException ex) {
+			throw Utils.runtime(ex);
+		}
+	}
+
+	private Row next2() throws IOException {
+		row.size = 0;
+		if ( ! next2_skipComments()) return null;
+		lineNumber = scanLineNumber;
+		recordStart = pos;
+		int i = pos;
+		while (true) {
+			// a field: its text goes into [fieldStart, w). w < i once quotes have been removed.
+			int fieldStart = i;
+			int w = i;
+			boolean inQuote = false;
+			while (true) {
+				if (i >= limit) {
+					int shift = refill();
+					if (shift < 0) {
+						// end of input
+						row.add(fieldStart, w);
+						pos = i;
+						scanLineNumber++;
+						return row;
+					}
+					i -= shift; w -= shift; fieldStart -= shift;
+					continue;
+				}
+				if ( ! inQuote && w == i) {
+					// fast path: nothing to unescape, so just scan for the next special char
+					while (i < limit) {
+						char c = buf[i];
+						if (c==delimiter || c=='\n' || c=='\r' || c==quote) break;
+						i++;
+					}
+					w = i;
+					if (i >= limit) continue;
+				}
+				char c = buf[i];
+				if (inQuote) {
+					if (c == quote) {
+						// peek
+						if (i+1 >= limit) {
+							int shift = refill();
+							if (shift >= 0) {
+								i -= shift; w -= shift; fieldStart -= shift;
+							}
+						}
+						if (i+1 < limit && buf[i+1] == quote) {
+							buf[w++] = quote;
+							i += 2;
+						} else {
+							inQuote = false;
+							i++;
+						}
+					} else {
+						if (c=='\n') scanLineNumber++;
+						buf[w++] = c;
+						i++;
+					}
+					continue;
+				}
+				if (c == delimiter) {
+					row.add(fieldStart, w);
+					i++;
+					break;
+				}
+				if (c == '\n' || c == '\r') {
+					row.add(fieldStart, w);
+					i++;
+					if (c == '\r') {
+						// \r\n?
+						if (i >= limit) {
+							int shift = refill();
+							if (shift >= 0) i -= shift;
+						}
+						if (i < limit && buf[i] == '\n') i++;
+					}
+					pos = i;
+					scanLineNumber++;
+					return row;
+				}
+				if (c == quote) {
+					inQuote = true;
+					i++;
+					continue;
+				}
+				buf[w++] = c;
+				i++;
+			}
+		}
+	}
+
+	/**
+	 * @return false at the end
+	 */
+	private boolean next2_skipComments() throws IOException {
+		while (true) {
+			if (pos >= limit) {
+				recordStart = pos;
+				if (refill() < 0) return false;
+				continue;
+			}
+			if (comment==CSVSpec.UNSET || buf[pos] != comment) {
+				return true;
+			}
+			// skip to the line-end
+			while (true) {
+				int i = pos;
+				while (i < limit && buf[i] != '\n') i++;
+				if (i < limit) {
+					pos = i + 1;
+					scanLineNumber++;
+					break;
+				}
+				pos = limit;
+				recordStart = pos;
+				if (refill() < 0) return false;
+			}
+		}
+	}
+
+	/**
+	 * Discard everything before recordStart, and read more.
+	 * @return how far the kept chars have moved back, or -1 if there is no more input
+	 */
+	private int refill() throws IOException {
+		if (eof) return -1;
+		int shift = recordStart;
+		int keep = limit - recordStart;
+		if (keep > buf.length / 2) {
+			// a long record: grow
+			char[] buf2 = new char[Math.max(buf.length * 2, keep * 2)];
+			System.arraycopy(buf, recordStart, buf2, 0, keep);
+			buf = buf2;
+		} else if (shift > 0) {
+			System.arraycopy(buf, recordStart, buf, 0, keep);
+		}
+		recordStart = 0;
+		limit = keep;
+		pos = Math.max(0, pos - shift);
+		row.shift(shift);
+		int n = input.read(buf, limit, buf.length - limit);
+		if (n < 0) {
+			eof = true;
+		} else {
+			limit += n;
+		}
+		return shift;
+	}
+
+	/**
+	 * The number of the line on which the last row returned began. Zero-indexed, as for {@link CSVReader#getLineNumber()}.
+	 * With {@link #parallel(File, CSVSpec, Function)}, this is within the chunk.
+	 */
+	public int getLineNumber() {
+		return lineNumber;
+	}
+
+	/**
+	 * @return the file we're looking at. Can be null if this was created using a Reader!
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	@Override
+	public void close() {
+		FileUtils.close(input);
+	}
+
+	@Override
+	public String toString() {
+		return "CSVScanner" + (file == null ? "" : "[" + file + "]");
+	}
+
+	/**
+	 * A record. This is re-used, and its fields are views into the scanner's buffer:
+	 * only valid until the next call to {@link CSVScanner#next()}.
+	 */
+	public final class Row {
+		private int[] starts = new int[16];
+		private int[] ends = new int[16];
+		private Field[] views = new Field[0];
+		private int size;
+
+		private Row() {
+		}
+
+		void add(int start, int end) {
+			if (size == starts.length) {
+				starts = Arrays.copyOf(starts, size * 2);
+				ends = Arrays.copyOf(ends, size * 2);
+			}
+			starts[size] = start;
+			ends[size] = end;
+			size++;
+		}
+
+		void shift(int shift) {
+			if (shift == 0) return;
+			for (int i = 0; i < size; i++) {
+				starts[i] -= shift;
+				ends[i] -= shift;
+			}
+		}
+
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * @return a view of field i -- no copying. The same view object is returned each time for column i,
+		 * so don't hold on to it.
+		 */
+		public CharSequence get(int i) {
+			if (i >= size) throw new IndexOutOfBoundsException(i + " of " + size);
+			if (i >= views.length) {
+				Field[] views2 = Arrays.copyOf(views, Math.max(size, views.length * 2));
+				for (int j = views.length; j < views2.length; j++) {
+					views2[j] = new Field();
+				}
+				views = views2;
+			}
+			Field f = views[i];
+			f.buf = buf;
+			f.start = starts[i];
+			f.end = ends[i];
+			return f;
+		}
+
+		/**
+		 * @return field i, copied into a String
+		 */
+		public String getString(int i) {
+			if (i >= size) throw new IndexOutOfBoundsException(i + " of " + size);
+			return new String(buf, starts[i], ends[i] - starts[i]);
+		}
+
+		/**
+		 * @return a copy of this row, as {@link CSVReader} would give it
+		 */
+		public String[] toArray() {
+			String[] arr = new String[size];
+			for (int i = 0; i < size; i++) {
+				arr[i] = getString(i);
+			}
+			return arr;
+		}
+
+		@Override
+		public String toString() {
+			return Printer.toString(toArray());
+		}
+	}
+
+	/**
+	 * A zero-copy view of a field.
+	 */
+	static final class Field implements CharSequence {
+		char[] buf;
+		int start;
+		int end;
+
+		@Override
+		public int length() {
+			return end - start;
+		}
+
+		@Override
+		public char charAt(int index) {
+			if (index < 0 || index >= end - start) throw new IndexOutOfBoundsException(index + " of " + length());
+			return buf[start + index];
+		}
+
+		@Override
+		public CharSequence subSequence(int s, int e) {
+			if (s < 0 || e > end - start || s > e) throw new IndexOutOfBoundsException(s + "-" + e + " of " + length());
+			return CharBuffer.wrap(buf, start + s, e - s);
+		}
+
+		@Override
+		public String toString() {
+			return new String(buf, start, end - start);
+		}
+	}
+
+	/**
+	 * Parse a big file in parallel, on the common fork-join pool.
+	 * @see #parallel(File, CSVSpec, Function, ForkJoinPool)
+	 */
+	public static <X> List<X> parallel(File file, CSVSpec spec, Function<Row, X> fn) {
+		return parallel(file, spec, fn, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Parse a big file in parallel. The file is split into chunks at line-ends which are not inside quotes,
+	 * and each chunk is scanned separately.
+	 * <p>
+	 * Limitation: a comment line with an odd number of quotes could confuse the split -- use a single CSVScanner for such files.
+	 *
+	 * @param fn Called for each row -- from several threads at once, though in order within a chunk.
+	 * The Row is only valid during the call.
+	 * @return fn's outputs, in file order (nulls included).
+	 */
+	public static <X> List<X> parallel(File file, CSVSpec spec, Function<Row, X> fn, ForkJoinPool pool) {
+		assert spec.quote < 128 && spec.delimiter < 128 : "Can only split on ascii";
+		long[] splits = parallel2_split(file, spec, pool);
+		List<ForkJoinTask<List<X>>> tasks = new ArrayList();
+		for (int k = 0; k < splits.length - 1; k++) {
+			long start = splits[k];
+			long end = splits[k+1];
+			if (start == end) continue;
+			tasks.add(pool.submit(() -> {
+				List<X> out = new ArrayList();
+				try (CSVScanner scanner = new CSVScanner(new MappedReader(file, start, end), spec, DEFAULT_BUFFER)) {
+					scanner.file = file;
+					for (Row row = scanner.next(); row != null; row = scanner.next()) {
+						out.add(fn.apply(row));
+					}
+				}
+				return out;
+			}));
+		}
+		List<X> all = new ArrayList();
+		for (ForkJoinTask<List<X>> task : tasks) {
+			all.addAll(task.join());
+		}
+		return all;
+	}
+
+	/**
+	 * @return chunk boundaries (byte offsets), from 0 to the file length
+	 */
+	static long[] parallel2_split(File file, CSVSpec spec, ForkJoinPool pool) {
+		long size = file.length();
+		int n = (int) Math.max(1, Math.min(pool.getParallelism() * 4L, size / MIN_CHUNK));
+		long[] splits = new long[n + 1];
+		for (int k = 0; k <= n; k++) {
+			splits[k] = k * size / n;
+		}
+		if (n == 1) return splits;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			// Are we inside quotes at each rough boundary? Count quotes in each piece (in parallel)...
+			boolean[] oddQuotes = new boolean[n];
+			if (spec.quote != CSVSpec.UNSET) {
+				List<ForkJoinTask<Boolean>> counts = new ArrayList();
+				for (int k = 0; k < n; k++) {
+					long s = splits[k], e = splits[k+1];
+					counts.add(pool.submit(() -> countQuotes(channel, s, e, (byte) spec.quote) % 2 == 1));
+				}
+				for (int k = 0; k < n; k++) {
+					oddQuotes[k] = counts.get(k).join();
+				}
+			}
+			// ...then move each boundary on to the next line-end outside quotes
+			boolean inQuote = false;
+			for (int k = 1; k < n; k++) {
+				inQuote ^= oddQuotes[k-1];
+				if (splits[k-1] >= splits[k]) {
+					// the previous boundary has moved past this one (e.g. a long quoted field)
+					// -- it's a line start, so outside quotes
+					splits[k] = nextLineStart(channel, splits[k-1], size, (byte) spec.quote, false);
+				} else {
+					splits[k] = nextLineStart(channel, splits[k], size, (byte) spec.quote, spec.quote != CSVSpec.UNSET && inQuote);
+				}
+			}
+		} catch (IOException ex) {
+			throw Utils.runtime(ex);
+		}
+		return splits;
+	}
+
+	private static long countQuotes(FileChannel channel, long start, long end, byte quote) throws IOException {
+		long count = 0;
+		for (long w = start; w < end; w += MappedReader.WINDOW) {
+			MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, w, Math.min(MappedReader.WINDOW, end - w));
+			while (bytes.hasRemaining()) {
+				if (bytes.get() == quote) count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return the offset after the first \n from start which is outside quotes, or end
+	 */
+	private static long nextLineStart(FileChannel channel, long start, long end, byte quote, boolean inQuote) throws IOException {
+		for (long w = start; w < end; w += MappedReader.WINDOW) {
+			MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, w, Math.min(MappedReader.WINDOW, end - w));
+			while (bytes.hasRemaining()) {
+				byte b = bytes.get();
+				if (b == '\n' && ! inQuote) {
+					return w + bytes.position();
+				}
+				if (b == quote) inQuote = ! inQuote;
+			}
+		}
+		return end;
+	}
+
+	/**
+	 * Reads UTF-8 from a memory-mapped section of a file, a window at a time.
+	 */
+	static final class MappedReader extends Reader {
+
+		static final long WINDOW = 64 * 1024 * 1024;
+
+		private final FileChannel channel;
+		private final long end;
+		private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		private MappedByteBuffer bytes;
+		/** file offset of bytes[0] */
+		private long windowStart;
+
+		MappedReader(File file, long start, long end) {
+			try {
+				this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			} catch (IOException ex) {
+				throw Utils.runtime(ex);
+			}
+			this.windowStart = start;
+			this.end = end;
+		}
+
+		@Override
+		public int read(char[] cbuf, int off, int len) throws IOException {
+			CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+			while (out.hasRemaining()) {
+				if (bytes == null || ! bytes.hasRemaining()) {
+					long next = bytes == null? windowStart : windowStart + bytes.limit();
+					if (next >= end) break;
+					map(next);
+				}
+				boolean last = windowStart + bytes.limit() >= end;
+				CoderResult cr = decoder.decode(bytes, out, last);
+				if (cr.isError()) cr.throwException();
+				if (cr.isOverflow()) break;
+				if (bytes.hasRemaining()) {
+					// a char split across windows
+					map(windowStart + bytes.position());
+				}
+			}
+			int n = out.position() - off;
+			return n == 0 && len > 0 ? -1 : n;
+		}
+
+		private void map(long start) throws IOException {
+			bytes = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW, end - start));
+			windowStart = start;
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
@@ -49,6 +49,12 @@ public class CSVSpec {
 	public CSVReader buildReader(File f) {
 		return new CSVReader(f, this);
 	}
+	/**
+	 * @return a fast reader for big files
+	 */
+	public CSVScanner buildScanner(File f) {
+		return new CSVScanner(f, this);
+	}
 	public CSVSpec setHeaderRow(boolean b) {
 		this.headerRow = b;
 		return this;
@@ -0,0 +1,343 @@
+package com.winterwell.utils.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+import com.winterwell.utils.containers.ArrayMap;
+import com.winterwell.utils.log.LogFile.KFsync;
+import com.winterwell.utils.time.Time;
+
+/**
+ * The async mode of {@link LogFile}. Producers put reports on a lock-free queue and return.
+ * One writer thread formats them, and appends them through an open FileChannel -- as many lines
+ * as are waiting per write (group commit), with fsync as per {@link LogConfig#fileFsync}.
+ * <p>
+ * The queue is bounded by {@link LogConfig#fileQueueSize}. When it is full, reports are dropped
+ * (and counted) -- or with {@link LogConfig#fileBlockWhenFull}, the producer waits (up to a second).
+ *
+ * @author daniel
+ * @testedby {@link LogFileTest}
+ */
+final class AsyncLogWriter implements Runnable {
+
+	/**
+	 * A report (formatted by the writer) or a ready-made line
+	 */
+	private static final class Entry {
+		final Report report;
+		final String line;
+		final Time time;
+
+		Entry(Report report, String line, Time time) {
+			this.report = report;
+			this.line = line;
+			this.time = time;
+		}
+	}
+
+	/**
+	 * Max chars per write
+	 */
+	private static final int MAX_BATCH = 1024*1024;
+
+	private static final long MAX_BLOCK = TimeUnit.SECONDS.toNanos(1);
+
+	private final LogFile logFile;
+	private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<Entry>();
+	private final AtomicInteger queued = new AtomicInteger();
+	private final int capacity;
+	private final boolean block;
+	private final KFsync fsync;
+	private final long fsyncInterval;
+	private final Thread thread;
+	/**
+	 * Writes out the queue on a normal JVM exit
+	 */
+	private final Thread shutdownHook = new Thread(this::flush, "LogFile-flush");
+
+	/**
+	 * Entries offered & entries done with (written or skipped). For flush()
+	 */
+	private final AtomicLong offered = new AtomicLong();
+	private final AtomicLong processed = new AtomicLong();
+
+	final AtomicLong written = new AtomicLong();
+	final AtomicLong dropped = new AtomicLong();
+	final AtomicLong blocked = new AtomicLong();
+	final AtomicLong batches = new AtomicLong();
+	final AtomicLong fsyncs = new AtomicLong();
+
+	private volatile boolean closed;
+	/**
+	 * true when the writer is (about to be) parked, so producers know to wake it
+	 */
+	private volatile boolean idle;
+
+	/**
+	 * Only touched by the writer thread, or while holding the lock on this
+	 */
+	private FileChannel channel;
+	/**
+	 * Tracked as we write, rather than asking the file system
+	 */
+	private long size;
+	private boolean dirty;
+	private long lastFsync = System.currentTimeMillis();
+	private boolean criedForHelp;
+	private final StringBuilder batch = new StringBuilder();
+
+	AsyncLogWriter(LogFile logFile, int capacity, boolean block, KFsync fsync, long fsyncInterval) {
+		this.logFile = logFile;
+		this.capacity = Math.max(1, capacity);
+		this.block = block;
+		this.fsync = fsync==null? KFsync.INTERVAL : fsync;
+		this.fsyncInterval = fsyncInterval;
+		thread = new Thread(this, "LogFile-writer "+logFile.getFile().getName());
+		thread.setDaemon(true);
+		thread.start();
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	/**
+	 * Never blocks, unless blockWhenFull is set and the queue is full.
+	 * @param report Can be null if line is set
+	 * @param line Can be null if report is set
+	 */
+	void offer(Report report, String line, Time time) {
+		if (closed) return;
+		if (queued.incrementAndGet() > capacity) {
+			if ( ! offer2_waitForSpace()) {
+				dropped.incrementAndGet();
+				return;
+			}
+		}
+		offered.incrementAndGet();
+		queue.offer(new Entry(report, line, time));
+		if (idle) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/**
+	 * Backpressure. Called having over-incremented queued.
+	 * @return true if there is now space (and queued counts the caller), false to drop
+	 */
+	private boolean offer2_waitForSpace() {
+		if ( ! block || Thread.currentThread() == thread) {
+			queued.decrementAndGet();
+			return false;
+		}
+		blocked.incrementAndGet();
+		long deadline = System.nanoTime() + MAX_BLOCK;
+		while (true) {
+			queued.decrementAndGet();
+			LockSupport.unpark(thread);
+			LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(1));
+			if (queued.incrementAndGet() <= capacity) return true;
+			if (closed || System.nanoTime() > deadline) {
+				queued.decrementAndGet();
+				return false;
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			Entry e = queue.poll();
+			if (e == null) {
+				if (closed) break;
+				run2_idle();
+				continue;
+			}
+			try {
+				synchronized (this) {
+					run2_writeBatch(e);
+				}
+			} catch (Throwable ex) {
+				// don't Log.e -- that would come back here
+				System.err.println("LogFile "+logFile.getFile()+": "+ex);
+			}
+		}
+		synchronized (this) {
+			try {
+				if (channel != null) {
+					if (dirty && fsync != KFsync.NEVER) channel.force(false);
+					channel.close();
+				}
+			} catch (IOException ex) {
+				System.err.println("LogFile "+logFile.getFile()+": "+ex);
+			}
+			channel = null;
+		}
+	}
+
+	private void run2_idle() {
+		idle = true;
+		// re-check, to avoid missing an unpark
+		if (queue.isEmpty() && ! closed) {
+			if (dirty && fsync == KFsync.INTERVAL) {
+				synchronized (this) {
+					maybeFsync(false);
+				}
+			}
+			long wait = dirty && fsync == KFsync.INTERVAL? Math.max(1, fsyncInterval) : 100;
+			LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(wait));
+		}
+		idle = false;
+	}
+
+	/**
+	 * Write e, and whatever else is waiting, in one go.
+	 */
+	private void run2_writeBatch(Entry e) throws IOException {
+		batch.setLength(0);
+		int n = 0;
+		try {
+			openChannel();
+			while (e != null) {
+				queued.decrementAndGet();
+				n++;
+				// Rotate the logs?
+				if (logFile.nextRotation != null && e.time != null && logFile.nextRotation.isBefore(e.time)) {
+					write();
+					channel.close();
+					channel = null;
+					logFile.rotateLogFiles();
+					openChannel();
+				}
+				String line = e.line != null? e.line : LogFile.formatLine(e.report);
+				// too big?!
+				long max = logFile.getFileMaxSize();
+				if (max > 0 && size + batch.length() > max) {
+					if ( ! criedForHelp) {
+						String tooBigLine = "Log file too big: "+(size + batch.length())+" > "+max+". Logging skipped!";
+						batch.append(LogFile.formatLine(new Report("log", tooBigLine, Level.SEVERE, line, null)));
+						criedForHelp = true;
+					}
+				} else {
+					batch.append(line);
+					written.incrementAndGet();
+					criedForHelp = false;
+				}
+				if (batch.length() > MAX_BATCH) break;
+				e = queue.poll();
+			}
+			write();
+			batches.incrementAndGet();
+			maybeFsync(fsync == KFsync.BATCH);
+		} finally {
+			processed.addAndGet(n);
+		}
+	}
+
+	private void write() throws IOException {
+		if (batch.length() == 0) return;
+		ByteBuffer bb = ByteBuffer.wrap(batch.toString().getBytes(StandardCharsets.UTF_8));
+		while (bb.hasRemaining()) {
+			size += channel.write(bb);
+		}
+		batch.setLength(0);
+		dirty = true;
+	}
+
+	private void openChannel() throws IOException {
+		if (channel != null) return;
+		File file = logFile.getFile();
+		channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		size = channel.size();
+	}
+
+	private void maybeFsync(boolean now) {
+		if ( ! dirty || channel == null || fsync == KFsync.NEVER) return;
+		long t = System.currentTimeMillis();
+		if ( ! now && t - lastFsync < fsyncInterval) return;
+		try {
+			channel.force(false);
+			fsyncs.incrementAndGet();
+		} catch (IOException ex) {
+			System.err.println("LogFile "+logFile.getFile()+": "+ex);
+		}
+		lastFsync = t;
+		dirty = false;
+	}
+
+	/**
+	 * Wait (up to 10 seconds) until everything offered so far has been written.
+	 */
+	void flush() {
+		long target = offered.get();
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (processed.get() < target && thread.isAlive() && System.nanoTime() < deadline) {
+			LockSupport.unpark(thread);
+			LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(1));
+		}
+	}
+
+	/**
+	 * Write what's waiting, then empty the file.
+	 */
+	void clear() {
+		flush();
+		synchronized (this) {
+			try {
+				openChannel();
+				channel.truncate(0);
+				size = 0;
+			} catch (IOException ex) {
+				System.err.println("LogFile "+logFile.getFile()+": "+ex);
+			}
+		}
+	}
+
+	/**
+	 * Write what's waiting, then stop the writer thread.
+	 */
+	void close() {
+		flush();
+		closed = true;
+		try {
+			Runtime.getRuntime().removeShutdownHook(shutdownHook);
+		} catch (IllegalStateException ex) {
+			// already shutting down
+		}
+		LockSupport.unpark(thread);
+		try {
+			thread.join(TimeUnit.SECONDS.toMillis(10));
+		} catch (InterruptedException e) {
+			// oh well
+		}
+	}
+
+	/**
+	 * @return queue, written, dropped, blocked, batches, fsyncs, size
+	 */
+	Map<String, Object> getStats() {
+		return new ArrayMap(
+				"queue", queued.get(),
+				"written", written.get(),
+				"dropped", dropped.get(),
+				"blocked", blocked.get(),
+				"batches", batches.get(),
+				"fsyncs", fsyncs.get(),
+				"size", size
+				);
+	}
+
+	@Override
+	public String toString() {
+		return "AsyncLogWriter[" + logFile.getFile() + " " + getStats() + "]";
+	}
+}
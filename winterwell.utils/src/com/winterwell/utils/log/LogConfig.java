@@ -73,6 +73,21 @@ public class LogConfig {
 	@Option(description="[0,1] What fraction of log messages to keep. If set, this leads to a sampling approach -- stochastically dropping messages, which reduces log size. E.g. keep=0.1 is a good way to handle giant logs, provided a full audit trail is not needed.")
 	public double keep = 1;
 	
+	@Option(description="If true, LogFile writes via a queue and a background thread, in batches. Much faster for busy logs, but reports still queued are lost if the JVM dies.")
+	public boolean fileAsync;
+	
+	@Option(description="Async LogFile: max queued reports. Beyond this, reports are dropped (or see fileBlockWhenFull).")
+	public int fileQueueSize = 65536;
+	
+	@Option(description="Async LogFile: if the queue is full, make the logging thread wait (up to a second) rather than drop the report.")
+	public boolean fileBlockWhenFull;
+	
+	@Option(description="Async LogFile: when to force writes to disk. NEVER (leave it to the OS), INTERVAL, or BATCH")
+	public LogFile.KFsync fileFsync = LogFile.KFsync.INTERVAL;
+	
+	@Option(description="Async LogFile: for fileFsync=INTERVAL")
+	public Dt fileFsyncInterval = TUnit.SECOND.dt;
+	
 	@Option
 	public Dt fileInterval;
 	
@@ -2,7 +2,18 @@ package com.winterwell.utils.log;
 
 import java.io.Closeable;
 import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.DateFormatSymbols;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
+import java.util.logging.LogManager;
 import java.util.logging.LogRecord;
 import java.util.logging.SimpleFormatter;
 
@@ -24,14 +35,35 @@ import com.winterwell.utils.web.WebUtils;
  * <p>
  * LogFile's stay alive until they are closed! Use {@link #close()} to remove
  * this LogFile from the log listeners.
+ * <p>
+ * For high-volume logs, use {@link #setAsync(boolean)} (or {@link LogConfig#fileAsync}): reports are
+ * then queued, and written in batches by a background thread. The trade-off is that reports still
+ * in the queue are lost if the JVM dies.
  * 
  * @author daniel
  * @testedby  LogFileTest}
  */
 public class LogFile implements ILogListener, Closeable {
 
+	/**
+	 * When should the async writer force data to disk?
+	 */
+	public static enum KFsync {
+		/** Leave it to the OS. Lines reach the OS with each batch, so this only risks a power-cut. */
+		NEVER,
+		/** At most every {@link LogConfig#fileFsyncInterval} */
+		INTERVAL,
+		/** After every batch */
+		BATCH
+	}
+
 	private final File file;
 
+	/**
+	 * null unless async
+	 */
+	private volatile AsyncLogWriter async;
+
 	Time nextRotation;
 
 	int rotationHistory;
@@ -80,18 +112,70 @@ public class LogFile implements ILogListener, Closeable {
 		if (lc.fileMaxSize!=null) {
 			setFileMaxSize(ConfigBuilder.bytesFromString(lc.fileMaxSize));
 		}
+		if (lc.fileAsync) {
+			setAsync(true);
+		}
 	}
 
 	private void setFileMaxSize(long maxSize) {
 		fileMaxSize = maxSize;
 	}
 
+	long getFileMaxSize() {
+		return fileMaxSize;
+	}
+
+	/**
+	 * @param on If true, write via a queue and a background thread (see {@link AsyncLogWriter}).
+	 * Queue size, fsync policy, etc. are set by {@link LogConfig}.
+	 */
+	public LogFile setAsync(boolean on) {
+		AsyncLogWriter old;
+		synchronized (this) {
+			if (on == (async != null)) return this;
+			if (on) {
+				LogConfig lc = Dep.has(LogConfig.class)? Dep.get(LogConfig.class) : new LogConfig();
+				async = new AsyncLogWriter(this, lc.fileQueueSize, lc.fileBlockWhenFull, lc.fileFsync,
+						lc.fileFsyncInterval==null? 1000 : lc.fileFsyncInterval.getMillisecs());
+				return this;
+			}
+			old = async;
+			async = null;
+		}
+		// outside the lock, as the writer may need it to rotate
+		old.close();
+		return this;
+	}
+
+	/**
+	 * In async mode, wait (up to 10 seconds) until everything logged so far is written.
+	 * Otherwise, does nothing (the sync mode writes as it goes).
+	 */
+	public void flush() {
+		AsyncLogWriter a = async;
+		if (a != null) a.flush();
+	}
+
+	/**
+	 * @return queue, written, dropped, blocked, batches, fsyncs, size -- for async mode. Empty otherwise.
+	 */
+	public Map<String, Object> getStats() {
+		AsyncLogWriter a = async;
+		if (a == null) return Collections.emptyMap();
+		return a.getStats();
+	}
+
 
 	/**
 	 * Delete all log entries from the file. The file will still exist but it
 	 * will be empty.
 	 */
 	public void clear() {
+		AsyncLogWriter a = async;
+		if (a != null) {
+			a.clear();
+			return;
+		}
 		FileUtils.write(file, "");
 	}
 
@@ -101,6 +185,8 @@ public class LogFile implements ILogListener, Closeable {
 	@Override
 	public void close() {
 		Log.removeListener(this);
+		AsyncLogWriter a = async;
+		if (a != null) a.close();
 	}
 
 	public File getFile() {
@@ -123,12 +209,92 @@ public class LogFile implements ILogListener, Closeable {
 				}
 			}
 		}
-		String line = listen2_lineFromReport(report);
+		AsyncLogWriter a = async;
+		if (a != null) {
+			// the writer thread will format it
+			a.offer(report, null, report.getTime());
+			return;
+		}
+		String line = formatLine(report);
 		listen2(line, report.getTime());
 	}
 
+	/**
+	 * Is the SimpleFormatter format customised? If so, we use SimpleFormatter. If not, a faster
+	 * (but identical) formatter.
+	 */
+	private static final boolean CUSTOM_FORMAT =
+			System.getProperty("java.util.logging.SimpleFormatter.format") != null
+			|| LogManager.getLogManager().getProperty("java.util.logging.SimpleFormatter.format") != null;
+
+	private static final ZoneId ZONE = ZoneId.systemDefault();
+	private static final Locale LOCALE = Locale.getDefault(Locale.Category.FORMAT);
+	private static final String[] MONTHS = DateFormatSymbols.getInstance(LOCALE).getShortMonths();
+	private static final String[] AMPM = DateFormatSymbols.getInstance(LOCALE).getAmPmStrings();
+	/**
+	 * What a line-break becomes
+	 */
+	private static final String NL = System.lineSeparator().replaceAll("[\r\n]", " ");
+	/**
+	 * getLocalizedName() does a resource-bundle lookup each time
+	 */
+	private static final Map<Level, String> LEVEL_NAMES = new ConcurrentHashMap<Level, String>();
 
-	private String listen2_lineFromReport(Report report) {
+	/**
+	 * @return report as one line, in the SimpleFormatter format (which LogStash understands out of the box),
+	 * with a line-break at the end.
+	 */
+	static String formatLine(Report report) {
+		if (CUSTOM_FORMAT) {
+			return formatLine2_simpleFormatter(report);
+		}
+		// As SimpleFormatter's default "%1$tb %1$td, %1$tY %1$tl:%1$tM:%1$tS %1$Tp %2$s%n%4$s: %5$s%6$s%n"
+		// -- but without parsing the format each time.
+		String msg = report.tag+" "+report.getMessage()+" "+report.context+" "+serverName;
+		StringBuilder sb = new StringBuilder(64 + msg.length());
+		ZonedDateTime t = ZonedDateTime.ofInstant(Instant.ofEpochMilli(report.getTime().getTime()), ZONE);
+		sb.append(MONTHS[t.getMonthValue() - 1]).append(' ');
+		append2digits(sb, t.getDayOfMonth());
+		sb.append(", ").append(t.getYear()).append(' ');
+		int h = t.getHour() % 12;
+		sb.append(h==0? 12 : h).append(':');
+		append2digits(sb, t.getMinute());
+		sb.append(':');
+		append2digits(sb, t.getSecond());
+		sb.append(' ').append(AMPM[t.getHour() < 12? 0 : 1].toUpperCase(LOCALE))
+			.append(' ');
+		appendOneLine(sb, report.thread);
+		sb.append(NL);
+		sb.append(LEVEL_NAMES.computeIfAbsent(report.level, Level::getLocalizedName)).append(": ");
+		appendOneLine(sb, msg);
+		if (report.ex != null) {
+			StringWriter sw = new StringWriter();
+			PrintWriter pw = new PrintWriter(sw);
+			pw.println();
+			report.ex.printStackTrace(pw);
+			pw.close();
+			appendOneLine(sb, sw.toString());
+		}
+		sb.append(NL).append('\n');
+		return sb.toString();
+	}
+
+	private static void append2digits(StringBuilder sb, int n) {
+		if (n < 10) sb.append('0');
+		sb.append(n);
+	}
+
+	/**
+	 * A single line for each report to make it easier to grep
+	 */
+	private static void appendOneLine(StringBuilder sb, String s) {
+		for (int i = 0, n = s.length(); i < n; i++) {
+			char c = s.charAt(i);
+			sb.append(c == '\r' || c == '\n'? ' ' : c);
+		}
+	}
+
+	static String formatLine2_simpleFormatter(Report report) {
 //		String lines = report.toString();
 		// Use Java SimpleFormatter to make LogStash happy out of the box
 		LogRecord lr = new LogRecord(report.level, report.tag+" "+report.getMessage()
@@ -138,15 +304,13 @@ public class LogFile implements ILogListener, Closeable {
 		lr.setThrown(report.ex);
 		// thread as logger name?
 		lr.setLoggerName(String.valueOf(report.thread));
-		String lines = sf.format(lr);
+		String lines = new SimpleFormatter().format(lr);
 		// a single line for each report to make it easier to grep
 		String line = lines.replaceAll("[\r\n]", " ") + "\n";
 		return line;
 	}
 	
 	static final String serverName = WebUtils.hostname();
-	
-	SimpleFormatter sf = new SimpleFormatter();
 
 	private transient boolean criedForHelp;
 	
@@ -155,7 +319,16 @@ public class LogFile implements ILogListener, Closeable {
 	 * @param line
 	 * @param time
 	 */
-	public synchronized void listen2(String line, Time time) {
+	public void listen2(String line, Time time) {
+		AsyncLogWriter a = async;
+		if (a != null) {
+			a.offer(null, line, time);
+			return;
+		}
+		listen3_sync(line, time);
+	}
+
+	private synchronized void listen3_sync(String line, Time time) {
 		// too big?!
 		if (fileMaxSize > 0 && file.length() > fileMaxSize) {
 			// one final log message
@@ -163,7 +336,7 @@ public class LogFile implements ILogListener, Closeable {
 				// ??minor: possibly refactor Log so this can use guaranteed the same Report construction
 				String tooBigLine = "Log file too big: "+file.length()+" > "+fileMaxSize+". Logging skipped!";
 				Report report = new Report("log", tooBigLine, Level.SEVERE, line, null);
-				String cry = listen2_lineFromReport(report);
+				String cry = formatLine(report);
 				FileUtils.append(cry, file);
 				criedForHelp = true;
 			}
@@ -182,7 +355,7 @@ public class LogFile implements ILogListener, Closeable {
 	/**
 	 * Move all the log files down one.
 	 */
-	private synchronized void rotateLogFiles() {
+	synchronized void rotateLogFiles() {
 		// advance the trigger
 		nextRotation = nextRotation.plus(rotationInterval);
 		// just nuke the current log?
@@ -0,0 +1,86 @@
+package com.winterwell.utils.containers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class RingBufferTest {
+
+	@Test
+	public void testOfferPoll() {
+		RingBuffer<String> rb = new RingBuffer<String>(3);
+		assertEquals(4, rb.capacity());
+		assertTrue(rb.isEmpty());
+		assertTrue(rb.offer("a"));
+		assertTrue(rb.offer("b"));
+		assertTrue(rb.offer("c"));
+		assertTrue(rb.offer("d"));
+		// full
+		assertFalse(rb.offer("e"));
+		assertEquals(4, rb.size());
+		assertEquals("a", rb.poll());
+		assertTrue(rb.offer("e"));
+		List<String> out = new ArrayList<String>();
+		assertEquals(2, rb.drainTo(out, 2));
+		assertEquals("[b, c]", out.toString());
+		assertEquals("d", rb.poll());
+		assertEquals("e", rb.poll());
+		assertNull(rb.poll());
+	}
+
+	@Test
+	public void testTiny() {
+		RingBuffer<String> rb = new RingBuffer<String>(1);
+		assertTrue(rb.offer("a"));
+		assertTrue(rb.offer("b"));
+		assertFalse(rb.offer("c"));
+		assertEquals("a", rb.poll());
+		assertEquals("b", rb.poll());
+		assertNull(rb.poll());
+	}
+
+	@Test
+	public void testMultiThreaded() throws InterruptedException {
+		RingBuffer<Long> rb = new RingBuffer<Long>(64);
+		AtomicLong sum = new AtomicLong();
+		AtomicLong got = new AtomicLong();
+		ExecutorService exe = Executors.newFixedThreadPool(8);
+		for (int p = 0; p < 4; p++) {
+			exe.submit(() -> {
+				for (long i = 1; i <= 10000; i++) {
+					while ( ! rb.offer(i)) {
+						Thread.yield();
+					}
+				}
+			});
+		}
+		for (int c = 0; c < 4; c++) {
+			exe.submit(() -> {
+				while (got.get() < 40000) {
+					Long x = rb.poll();
+					if (x == null) {
+						Thread.yield();
+						continue;
+					}
+					sum.addAndGet(x);
+					got.incrementAndGet();
+				}
+			});
+		}
+		exe.shutdown();
+		assertTrue(exe.awaitTermination(30, TimeUnit.SECONDS));
+		assertEquals(40000, got.get());
+		assertEquals(4 * (10000L * 10001 / 2), sum.get());
+		assertTrue(rb.isEmpty());
+	}
+}
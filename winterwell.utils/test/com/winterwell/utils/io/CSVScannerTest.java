@@ -0,0 +1,208 @@
+package com.winterwell.utils.io;
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.winterwell.utils.Printer;
+import com.winterwell.utils.time.StopWatch;
+
+import junit.framework.TestCase;
+
+public class CSVScannerTest extends TestCase {
+
+	static List<String[]> scanAll(String csv, CSVSpec spec, int bufferSize) {
+		CSVScanner s = new CSVScanner(new StringReader(csv), spec, bufferSize);
+		List<String[]> rows = new ArrayList();
+		for (CSVScanner.Row row = s.next(); row != null; row = s.next()) {
+			rows.add(row.toArray());
+		}
+		s.close();
+		return rows;
+	}
+
+	static List<String[]> readAll(String csv, CSVSpec spec) {
+		CSVReader r = new CSVReader(new StringReader(csv), spec);
+		r.setNumFields(-1);
+		List<String[]> rows = new ArrayList();
+		for (String[] row : r) {
+			rows.add(row);
+		}
+		return rows;
+	}
+
+	static void assertSameRows(List<String[]> expected, List<String[]> actual) {
+		assertEquals(Printer.toString(expected), expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assert Arrays.equals(expected.get(i), actual.get(i)) : i + ": " + Printer.toString(expected.get(i)) + " v " + Printer.toString(actual.get(i));
+		}
+	}
+
+	public void testSameAsCSVReader() {
+		String[] csvs = new String[] {
+				"a,b,c\n1,2,3",
+				"a,b,c\n1,2,3\n",
+				"a,,c\n , b , ",
+				"# hello\na,b,c\n#another\n1,2,3",
+				"Jun-09,36,HN,11,\"International Exchange & Cooperation Centre, Mingde College\",320\n",
+				"a,b,\"\"\"scare quotes\"\"\"",
+				"\"Daniel \n Winterstein\",Overrated,yes\nJim,,no\n",
+				"half\"quoted, still\"in,field\n",
+				"a,b\n\nc,d\n",
+				"",
+				"\"unclosed,quote\nrest"
+		};
+		CSVSpec spec = new CSVSpec();
+		for (String csv : csvs) {
+			// a tiny buffer, so records cross refills
+			for (int bufferSize : new int[] {2, 3, 7, 64 * 1024}) {
+				assertSameRows(readAll(csv, spec), scanAll(csv, spec, bufferSize));
+			}
+		}
+	}
+
+	public void testLineEnds() {
+		CSVSpec spec = new CSVSpec();
+		for (int bufferSize : new int[] {2, 5, 1024}) {
+			List<String[]> rows = scanAll("a,b\r\nc,\"d\r\ne\"\r\rf,g\rh", spec, bufferSize);
+			assertEquals(5, rows.size());
+			assertEquals("b", rows.get(0)[1]);
+			assertEquals("d\r\ne", rows.get(1)[1]);
+			assertEquals("", rows.get(2)[0]);
+			assertEquals("g", rows.get(3)[1]);
+			assertEquals("h", rows.get(4)[0]);
+		}
+	}
+
+	public void testLineNumbers() {
+		CSVScanner s = new CSVScanner(new StringReader("#c\na,b\n\"x\ny\",z\nlast"), new CSVSpec());
+		s.next();
+		assertEquals(1, s.getLineNumber());
+		s.next();
+		assertEquals(2, s.getLineNumber());
+		s.next();
+		assertEquals(4, s.getLineNumber());
+		assertEquals(null, s.next());
+	}
+
+	public void testRowViews() {
+		CSVScanner s = new CSVScanner(new StringReader("alpha,\"b\"\"eta\",\ngamma"), new CSVSpec());
+		CSVScanner.Row row = s.next();
+		assertEquals(3, row.size());
+		CharSequence f0 = row.get(0);
+		assertEquals(5, f0.length());
+		assertEquals('l', f0.charAt(1));
+		assertEquals("ph", f0.subSequence(2, 4).toString());
+		assertEquals("b\"eta", row.get(1).toString());
+		assertEquals("", row.getString(2));
+		// re-used
+		assert s.next() == row;
+		assertEquals("gamma", row.getString(0));
+	}
+
+	public void testParallelSameAsSequential() throws Exception {
+		File f = File.createTempFile("scan", ".csv");
+		f.deleteOnExit();
+		writeTestFile(f, 20000, 1);
+		assertParallelSameAsSequential(f);
+	}
+
+	/**
+	 * A quoted field longer than a chunk pushes the next boundary past the rough one after it.
+	 */
+	public void testParallelLongQuotedField() throws Exception {
+		File f = File.createTempFile("scan", ".csv");
+		f.deleteOnExit();
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			sb.append("r" + i + ",x\n");
+		}
+		sb.append("long,\"");
+		for (int i = 0; i < 6000; i++) {
+			sb.append("123456789\n");
+		}
+		sb.append("\"\n");
+		for (int i = 0; i < 2000; i++) {
+			sb.append("s,\"q\nline\"\n");
+		}
+		FileUtils.write(f, sb.toString());
+		assertParallelSameAsSequential(f);
+	}
+
+	static void assertParallelSameAsSequential(File f) throws Exception {
+		int old = CSVScanner.MIN_CHUNK;
+		CSVScanner.MIN_CHUNK = 10000;
+		try {
+			CSVSpec spec = new CSVSpec();
+			long[] splits = CSVScanner.parallel2_split(f, spec, java.util.concurrent.ForkJoinPool.commonPool());
+			assert splits.length > 2 : splits.length;
+			List<String[]> par = CSVScanner.parallel(f, spec, CSVScanner.Row::toArray);
+			CSVReader r = new CSVReader(f, spec);
+			r.setNumFields(-1);
+			List<String[]> seq = new ArrayList();
+			for (String[] row : r) seq.add(row);
+			r.close();
+			assertSameRows(seq, par);
+		} finally {
+			CSVScanner.MIN_CHUNK = old;
+		}
+	}
+
+	/**
+	 * Not a unit test: time CSVReader v CSVScanner v CSVScanner.parallel.
+	 * JMH isn't in this build, so this is a simple warm-up-then-time loop.
+	 */
+	public static void main(String[] args) throws Exception {
+		File f = File.createTempFile("bench", ".csv");
+		f.deleteOnExit();
+		writeTestFile(f, 200000, 2);
+		CSVSpec spec = new CSVSpec();
+		for (int rep = 0; rep < 3; rep++) {
+			boolean warmUp = rep < 2;
+			StopWatch sw = new StopWatch();
+			long nReader = 0;
+			CSVReader r = new CSVReader(f, spec);
+			for (String[] row : r) nReader += row.length;
+			r.close();
+			if ( ! warmUp) System.out.println("CSVReader:  " + sw.getTime() + "ms " + nReader + " fields");
+
+			sw = new StopWatch();
+			long nScanner = 0;
+			CSVScanner s = new CSVScanner(f, spec);
+			for (CSVScanner.Row row = s.next(); row != null; row = s.next()) nScanner += row.size();
+			s.close();
+			if ( ! warmUp) System.out.println("CSVScanner: " + sw.getTime() + "ms " + nScanner + " fields");
+
+			sw = new StopWatch();
+			List<Integer> sizes = CSVScanner.parallel(f, spec, CSVScanner.Row::size);
+			long nParallel = sizes.stream().mapToInt(i -> i).sum();
+			if ( ! warmUp) System.out.println("parallel:   " + sw.getTime() + "ms " + nParallel + " fields");
+
+			assertEquals(nReader, nScanner);
+			assertEquals(nReader, nParallel);
+		}
+	}
+
+	/**
+	 * rows of 10 fields, some quoted (with delimiters, quotes and line-breaks inside)
+	 */
+	static void writeTestFile(File f, int rows, long seed) {
+		Random r = new Random(seed);
+		CSVWriter w = new CSVWriter(f, ',');
+		for (int i = 0; i < rows; i++) {
+			String[] row = new String[10];
+			for (int j = 0; j < row.length; j++) {
+				switch (r.nextInt(8)) {
+				case 0: row[j] = "say \"hi\", \nthen go"; break;
+				case 1: row[j] = ""; break;
+				default: row[j] = Long.toString(r.nextLong(), 36);
+				}
+			}
+			w.write(row);
+		}
+		w.close();
+	}
+}
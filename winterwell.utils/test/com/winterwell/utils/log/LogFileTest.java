@@ -1,6 +1,8 @@
 package com.winterwell.utils.log;
 
 import java.io.File;
+import java.util.Map;
+import java.util.logging.Level;
 
 import com.winterwell.utils.Dep;
 import com.winterwell.utils.Printer;
@@ -8,6 +10,7 @@ import com.winterwell.utils.Utils;
 import com.winterwell.utils.io.ConfigBuilder;
 import com.winterwell.utils.io.FileUtils;
 import com.winterwell.utils.time.TUnit;
+import com.winterwell.utils.time.Time;
 
 import junit.framework.TestCase;
 
@@ -49,6 +52,71 @@ public class LogFileTest extends TestCase {
 	}
 
 	
+	public void testFormatLine() {
+		Report report = new Report("test", "Hello\nworld", Level.INFO, null, null);
+		assertEquals(LogFile.formatLine2_simpleFormatter(report), LogFile.formatLine(report));
+		Report err = new Report("test", "oops", Level.SEVERE, null, new RuntimeException(new Exception("base")));
+		String line = LogFile.formatLine(err);
+		assertEquals(LogFile.formatLine2_simpleFormatter(err), line);
+		assert line.indexOf('\n') == line.length() - 1 : line;
+	}
+
+	public void testAsync() throws Exception {
+		File f = new File("test-output/test-async.txt");
+		FileUtils.delete(f);
+		LogFile lf = new LogFile(f).setAsync(true);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final int _t = t;
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < 1000; i++) {
+					// NB: direct, as Log would throttle this
+					lf.listen(new Report("async", "Hello "+_t+" "+i, Level.INFO, null, null));
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) thread.join();
+		lf.flush();
+		String log = FileUtils.read(f);
+		lf.close();
+		assertEquals(4000, log.split("\n").length);
+		assert log.contains("Hello 3 999");
+		Map<String, Object> stats = lf.getStats();
+		Printer.out(stats);
+		assertEquals(4000L, stats.get("written"));
+		assertEquals(0L, stats.get("dropped"));
+		// group commit
+		assert (Long) stats.get("batches") < 4000 : stats;
+		assertEquals(f.length(), stats.get("size"));
+	}
+
+	public void testAsyncDrop() throws Exception {
+		LogConfig lc = new LogConfig();
+		lc.fileQueueSize = 1;
+		lc.fileFsync = LogFile.KFsync.BATCH;
+		Dep.set(LogConfig.class, lc);
+		File f = new File("test-output/test-async-drop.txt");
+		FileUtils.delete(f);
+		try {
+			LogFile lf = new LogFile(f).setAsync(true);
+			for (int i = 0; i < 10000; i++) {
+				lf.listen2("line "+i+"\n", new Time());
+			}
+			lf.flush();
+			Map<String, Object> stats = lf.getStats();
+			lf.close();
+			Printer.out(stats);
+			long written = (Long) stats.get("written");
+			long dropped = (Long) stats.get("dropped");
+			assertEquals(10000, written + dropped);
+			assert dropped > 0 : stats;
+			assertEquals(written, FileUtils.read(f).split("\n").length);
+		} finally {
+			Dep.set(LogConfig.class, new LogConfig());
+		}
+	}
+
 	public void testLogError() {
 		File f = new File("test-output/test-error.txt");
 		FileUtils.delete(f);